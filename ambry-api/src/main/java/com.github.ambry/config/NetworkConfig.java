@@ -75,6 +75,28 @@ public class NetworkConfig {
   @Default("104857600")
   public final int socketRequestMaxBytes;
 
+  /**
+   * Requests larger than this are not buffered by the socket server before they are handled. They are streamed to
+   * the request handler while they are received instead. No request is streamed if this is 0.
+   */
+  @Config("socket.request.streaming.threshold.bytes")
+  @Default("1048576")
+  public final int socketRequestStreamingThresholdBytes;
+
+  /**
+   * The number of bytes of a streamed request that the socket server holds before the request handler reads them
+   */
+  @Config("socket.request.streaming.buffer.bytes")
+  @Default("65536")
+  public final int socketRequestStreamingBufferBytes;
+
+  /**
+   * The time a request handler waits for more bytes of a streamed request before it fails the request
+   */
+  @Config("socket.request.streaming.timeout.ms")
+  @Default("10000")
+  public final int socketRequestStreamingTimeoutMs;
+
   public NetworkConfig(VerifiableProperties verifiableProperties) {
 
     numNetworkThreads = verifiableProperties.getIntInRange("num.network.threads", 3, 1, Integer.MAX_VALUE);
@@ -85,6 +107,13 @@ public class NetworkConfig {
     socketReceiveBufferBytes = verifiableProperties.getInt("socket.receive.buffer.bytes", 1 * 1024 * 1024);
     socketRequestMaxBytes =
         verifiableProperties.getIntInRange("socket.request.max.bytes", 100 * 1024 * 1024, 1, Integer.MAX_VALUE);
+    socketRequestStreamingThresholdBytes =
+        verifiableProperties.getIntInRange("socket.request.streaming.threshold.bytes", 1024 * 1024, 0,
+            Integer.MAX_VALUE);
+    socketRequestStreamingBufferBytes =
+        verifiableProperties.getIntInRange("socket.request.streaming.buffer.bytes", 64 * 1024, 1, Integer.MAX_VALUE);
+    socketRequestStreamingTimeoutMs =
+        verifiableProperties.getIntInRange("socket.request.streaming.timeout.ms", 10000, 1, Integer.MAX_VALUE);
     queuedMaxRequests = verifiableProperties.getIntInRange("queued.max.requests", 500, 1, Integer.MAX_VALUE);
   }
 }
@@ -13,6 +13,10 @@
  */
 package com.github.ambry.config;
 
+import com.github.ambry.protocol.CompressionCodec;
+import java.util.Arrays;
+
+
 /**
  * The configs for the replication layer
  */
@@ -91,6 +95,92 @@ public class ReplicationConfig {
   @Default("false")
   public final boolean replicationValidateMessageStream;
 
+  /**
+   * Whether replica threads replicate from all their remote nodes at the same time over a non blocking network client
+   * instead of from one node at a time over connections checked out of the connection pool
+   */
+  @Config("replication.enable.non.blocking")
+  @Default("false")
+  public final boolean replicationEnableNonBlocking;
+
+  /**
+   * The max number of connections a replica thread opens to a port of a remote node when replication is non blocking.
+   * The metadata request for the next batch is sent to a node while the previous batch is written locally, so two
+   * connections are enough for a node to never wait for a connection
+   */
+  @Config("replication.max.connections.per.port")
+  @Default("2")
+  public final int replicationMaxConnectionsPerPort;
+
+  /**
+   * The time after which a request to a remote node is given up on when replication is non blocking
+   */
+  @Config("replication.request.timeout.ms")
+  @Default("30000")
+  public final int replicationRequestTimeoutMs;
+
+  /**
+   * Whether the messages fetched from a remote replica are streamed from the response into the local store instead of
+   * being copied into a buffer first. Messages are verified as they are streamed if the message stream is validated.
+   */
+  @Config("replication.stream.fetched.messages")
+  @Default("false")
+  public final boolean replicationStreamFetchedMessages;
+
+  /**
+   * Whether the replica threads of a datacenter share all the remote nodes of the datacenter and replicate next from
+   * the set of partitions on a node that the local replicas are the furthest behind on, counting the time since the
+   * set was last replicated from, instead of each thread replicating from a fixed set of nodes in turn. A set that has
+   * nothing to replicate is backed off from, starting at replication.wait.time.between.replicas.ms and doubling up to
+   * replication.max.idle.backoff.ms. Not used when replication is non blocking
+   */
+  @Config("replication.enable.lag.based.scheduling")
+  @Default("false")
+  public final boolean replicationEnableLagBasedScheduling;
+
+  /**
+   * The max time that a set of partitions on a remote node which has nothing to replicate is backed off from when
+   * replication is scheduled by lag
+   */
+  @Config("replication.max.idle.backoff.ms")
+  @Default("30000")
+  public final int replicationMaxIdleBackoffMs;
+
+  /**
+   * The max number of partitions of a remote node that are replicated from together when replication is scheduled by
+   * lag. A node with more partitions is split into several sets, which can be replicated from by different threads
+   * at once
+   */
+  @Config("replication.scheduling.max.partitions.per.set")
+  @Default("32")
+  public final int replicationSchedulingMaxPartitionsPerSet;
+
+  /**
+   * The bytes of lag that every second since a set of partitions was last replicated from counts for when replication
+   * is scheduled by lag, so that sets that are a little behind are not starved by sets that are far behind
+   */
+  @Config("replication.scheduling.lag.per.second.waited.in.bytes")
+  @Default("1048576")
+  public final long replicationSchedulingLagPerSecondWaitedInBytes;
+
+  /**
+   * The codec that replica threads that replicate from another datacenter ask the remote nodes to compress the
+   * metadata and the messages they send with. "None" turns compression off. The codec has to be the name of one of
+   * the codecs in {@link CompressionCodec}.
+   */
+  @Config("replication.inter.dc.compression.codec")
+  @Default("None")
+  public final String replicationInterDcCompressionCodec;
+
+  /**
+   * Whether replica threads ask the remote nodes to send the message infos of replica metadata responses in a compact
+   * format, where the partition shared by the keys is sent once and the sizes and expiration times are varints.
+   * Remote nodes that do not know about the format send the message infos in the old format.
+   */
+  @Config("replication.enable.compact.message.info.list")
+  @Default("true")
+  public final boolean replicationEnableCompactMessageInfoList;
+
   public ReplicationConfig(VerifiableProperties verifiableProperties) {
 
     replicationTokenFactory =
@@ -112,5 +202,32 @@ public class ReplicationConfig {
     replicationMaxLagForWaitTimeInBytes =
         verifiableProperties.getLongInRange("replication.max.lag.for.wait.time.in.bytes", 5242880, 0, 104857600);
     replicationValidateMessageStream = verifiableProperties.getBoolean("replication.validate.message.stream", false);
+    replicationEnableNonBlocking = verifiableProperties.getBoolean("replication.enable.non.blocking", false);
+    replicationMaxConnectionsPerPort =
+        verifiableProperties.getIntInRange("replication.max.connections.per.port", 2, 1, 100);
+    replicationRequestTimeoutMs =
+        verifiableProperties.getIntInRange("replication.request.timeout.ms", 30000, 1000, Integer.MAX_VALUE);
+    replicationStreamFetchedMessages =
+        verifiableProperties.getBoolean("replication.stream.fetched.messages", false);
+    replicationEnableLagBasedScheduling =
+        verifiableProperties.getBoolean("replication.enable.lag.based.scheduling", false);
+    replicationMaxIdleBackoffMs =
+        verifiableProperties.getIntInRange("replication.max.idle.backoff.ms", 30000, 0, Integer.MAX_VALUE);
+    replicationSchedulingMaxPartitionsPerSet =
+        verifiableProperties.getIntInRange("replication.scheduling.max.partitions.per.set", 32, 1, Integer.MAX_VALUE);
+    replicationSchedulingLagPerSecondWaitedInBytes =
+        verifiableProperties.getLongInRange("replication.scheduling.lag.per.second.waited.in.bytes", 1048576, 0,
+            Long.MAX_VALUE);
+    replicationInterDcCompressionCodec =
+        verifiableProperties.getString("replication.inter.dc.compression.codec", "None");
+    try {
+      CompressionCodec.valueOf(replicationInterDcCompressionCodec);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(
+          "replication.inter.dc.compression.codec has value " + replicationInterDcCompressionCodec
+              + " which is not one of " + Arrays.toString(CompressionCodec.values()) + ".", e);
+    }
+    replicationEnableCompactMessageInfoList =
+        verifiableProperties.getBoolean("replication.enable.compact.message.info.list", true);
   }
 }
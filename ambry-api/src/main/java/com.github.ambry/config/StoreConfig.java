@@ -68,6 +68,56 @@ public class StoreConfig {
   @Default("com.github.ambry.commons.InMemoryJournalFactory")
   public final String storeJournalFactory;
 
+  /**
+   * Whether the entries of the in memory index segment are packed into off heap buffers instead of being held in a
+   * skip list of key and value objects. Packing reduces heap usage and GC pressure at the cost of deserializing keys
+   * during lookups.
+   */
+  @Config("store.index.packed.in.memory.segment")
+  @Default("false")
+  public final boolean storeIndexPackedInMemorySegment;
+
+  /**
+   * The number of entries between two fence keys of a memory mapped index segment. Every mapped segment keeps the
+   * key of every n-th entry in memory, so that a lookup only has to read the entries between two fence keys. The
+   * fence keys are not kept if this is zero.
+   */
+  @Config("store.index.fence.pointer.interval")
+  @Default("32")
+  public final int storeIndexFencePointerInterval;
+
+  /**
+   * How often (in seconds) the index entries that were added since the index was last persisted are written to a
+   * recovery checkpoint, so that a restart after a crash only has to recover the part of the log that follows the
+   * checkpoint. The checkpoint is disabled if this is zero.
+   */
+  @Config("store.index.recovery.checkpoint.interval.seconds")
+  @Default("0")
+  public final int storeIndexRecoveryCheckpointIntervalSeconds;
+
+  /**
+   * The max number of keys whose latest index value is cached by each store to avoid searching the index segments.
+   * The cache is disabled if this is zero.
+   */
+  @Config("store.index.lookup.cache.max.entries")
+  @Default("0")
+  public final int storeIndexLookupCacheMaxEntries;
+
+  /**
+   * The max number of entries in an index segment that is created by merging adjacent sealed index segments in the
+   * background. Merging is disabled if this is zero.
+   */
+  @Config("store.index.segment.merge.max.entries")
+  @Default("0")
+  public final int storeIndexSegmentMergeMaxEntries;
+
+  /**
+   * How often (in seconds) each store looks for sealed index segments to merge.
+   */
+  @Config("store.index.segment.merge.interval.seconds")
+  @Default("600")
+  public final int storeIndexSegmentMergeIntervalSeconds;
+
   /**
    * The max probability of a false positive for the index bloom filter
    */
@@ -75,6 +125,23 @@ public class StoreConfig {
   @Default("0.01")
   public final double storeIndexBloomMaxFalsePositiveProbability;
 
+  /**
+   * Whether the index uses blocked bloom filters, which keep the bits of a key within one cache line. Their bits are
+   * off heap.
+   */
+  @Config("store.index.bloom.blocked")
+  @Default("false")
+  public final boolean storeIndexBloomBlocked;
+
+  /**
+   * The max number of bytes, on and off heap, that the bloom filters of the sealed index segments of all the stores on
+   * a node can take. Once this is exceeded, the filters of the least used segments are dropped and are loaded again
+   * from their bloom files in the background when they are next needed. There is no limit if this is zero.
+   */
+  @Config("store.index.bloom.max.memory.bytes")
+  @Default("0")
+  public final long storeIndexBloomMaxMemoryBytes;
+
   /**
    * How long (in days) a key must be in deleted state before it is hard deleted.
    */
@@ -96,6 +163,233 @@ public class StoreConfig {
   @Default("false")
   public final boolean storeEnableHardDelete;
 
+  /**
+   * The size of each log segment file. If this is zero or not smaller than the capacity of the store, the log is a
+   * single preallocated file.
+   */
+  @Config("store.segment.size.in.bytes")
+  @Default("0")
+  public final long storeSegmentSizeInBytes;
+
+  /**
+   * Whether log segments are compacted in the background to reclaim the space held by deleted and expired blobs.
+   * Compaction requires a segmented log.
+   */
+  @Config("store.enable.compaction")
+  @Default("false")
+  public final boolean storeEnableCompaction;
+
+  /**
+   * The rate of I/O allowed for compaction.
+   */
+  @Config("store.compaction.bytes.per.sec")
+  @Default("1*1024*1024")
+  public final int storeCompactionBytesPerSec;
+
+  /**
+   * The max fraction of a log segment that can still be live for the segment to be compacted.
+   */
+  @Config("store.compaction.max.live.ratio")
+  @Default("0.5")
+  public final double storeCompactionMaxLiveRatio;
+
+  /**
+   * The period of time covered by a bucket of the index that tracks when blobs expire. Once all the blobs in a bucket
+   * have expired, the compactor looks at the log segments that hold them before any other segment. If this is zero,
+   * expiring blobs are not tracked. Only used if compaction is enabled.
+   */
+  @Config("store.compaction.expiry.bucket.size.seconds")
+  @Default("0")
+  public final int storeCompactionExpiryBucketSizeSeconds;
+
+  /**
+   * The max number of expiring blobs that the index that tracks when blobs expire holds. Once it is full, the blobs
+   * that expire last are no longer tracked and are only found by the regular scan of the compactor.
+   */
+  @Config("store.compaction.expiry.index.max.entries")
+  @Default("1000000")
+  public final int storeCompactionExpiryIndexMaxEntries;
+
+  /**
+   * Whether concurrent puts to a store are gathered and written to the log and the index as a single batch.
+   */
+  @Config("store.enable.group.commit")
+  @Default("false")
+  public final boolean storeEnableGroupCommit;
+
+  /**
+   * The max number of puts that are written to the log and the index as a single batch.
+   */
+  @Config("store.group.commit.max.batch.size")
+  @Default("64")
+  public final int storeGroupCommitMaxBatchSize;
+
+  /**
+   * The max time (in ms) a put waits for other puts to join its batch before it is written. A put only waits while
+   * other puts to the store are on their way to the batch. If this is zero, a batch only contains the puts that
+   * queued up while the previous batch was being written.
+   */
+  @Config("store.group.commit.window.ms")
+  @Default("0")
+  public final int storeGroupCommitWindowMs;
+
+  /**
+   * Whether a put is only acknowledged once the messages it wrote have been synced to disk. The puts that complete
+   * while a sync is in progress are made durable together by the next sync. If this is false, the log is synced
+   * every store.data.flush.interval.seconds.
+   */
+  @Config("store.enable.durable.puts")
+  @Default("false")
+  public final boolean storeEnableDurablePuts;
+
+  /**
+   * The max number of stores that are started at the same time across all the disks of a node.
+   */
+  @Config("store.startup.num.threads")
+  @Default("8")
+  public final int storeStartupNumThreads;
+
+  /**
+   * The max number of stores that are started at the same time on a single disk.
+   */
+  @Config("store.startup.num.threads.per.disk")
+  @Default("1")
+  public final int storeStartupNumThreadsPerDisk;
+
+  /**
+   * The size of the memory mapped windows over the log that reads are served from. If this is zero, reads are
+   * transferred from the log files with FileChannel.transferTo.
+   */
+  @Config("store.mapped.read.window.size.in.bytes")
+  @Default("0")
+  public final int storeMappedReadWindowSizeInBytes;
+
+  /**
+   * The max number of memory mapped read windows that a store keeps. The least recently used window is dropped when
+   * a new one is needed.
+   */
+  @Config("store.mapped.read.max.windows")
+  @Default("16")
+  public final int storeMappedReadMaxWindows;
+
+  /**
+   * Whether the I/O of all the stores on a disk is coordinated by a scheduler that is shared by the stores of the
+   * disk. The scheduler paces replication and background maintenance so that foreground reads and writes stay fast.
+   */
+  @Config("store.enable.io.scheduler")
+  @Default("false")
+  public final boolean storeEnableIoScheduler;
+
+  /**
+   * The rate of replication writes allowed on a disk. If this is zero, replication writes are not paced.
+   */
+  @Config("store.io.scheduler.replication.bytes.per.sec")
+  @Default("0")
+  public final int storeIoSchedulerReplicationBytesPerSec;
+
+  /**
+   * The rate of background I/O (hard deletes, compaction and index flushes) allowed on a disk while foreground
+   * operations meet their latency target.
+   */
+  @Config("store.io.scheduler.background.max.bytes.per.sec")
+  @Default("4*1024*1024")
+  public final int storeIoSchedulerBackgroundMaxBytesPerSec;
+
+  /**
+   * The rate of background I/O allowed on a disk while foreground operations miss their latency target.
+   */
+  @Config("store.io.scheduler.background.min.bytes.per.sec")
+  @Default("256*1024")
+  public final int storeIoSchedulerBackgroundMinBytesPerSec;
+
+  /**
+   * The average latency of foreground operations on a disk above which background I/O on the disk is slowed down.
+   */
+  @Config("store.io.scheduler.foreground.latency.target.ms")
+  @Default("50")
+  public final int storeIoSchedulerForegroundLatencyTargetMs;
+
+  /**
+   * Whether the health of every store and disk is tracked from the errors and latency of their operations. A store
+   * that is unhealthy, or is on a disk that is unhealthy, fails its operations fast until probes of it succeed again.
+   */
+  @Config("store.enable.health.monitor")
+  @Default("false")
+  public final boolean storeEnableHealthMonitor;
+
+  /**
+   * The length of the window over which the errors and latency of the operations of a store or a disk are tracked.
+   */
+  @Config("store.health.window.seconds")
+  @Default("30")
+  public final int storeHealthWindowSeconds;
+
+  /**
+   * The min number of operations in a window before the health of a store or a disk is judged from them.
+   */
+  @Config("store.health.min.operations")
+  @Default("20")
+  public final int storeHealthMinOperations;
+
+  /**
+   * The fraction of operations in a window that can fail with I/O errors before a store or a disk goes offline.
+   */
+  @Config("store.health.max.error.ratio")
+  @Default("0.5")
+  public final double storeHealthMaxErrorRatio;
+
+  /**
+   * The latency above which an operation or a probe is considered slow.
+   */
+  @Config("store.health.slow.operation.threshold.ms")
+  @Default("1000")
+  public final int storeHealthSlowOperationThresholdMs;
+
+  /**
+   * The fraction of operations in a window that can be slow before a store or a disk becomes read only.
+   */
+  @Config("store.health.max.slow.operation.ratio")
+  @Default("0.5")
+  public final double storeHealthMaxSlowOperationRatio;
+
+  /**
+   * How often the stores and disks that are not healthy are probed.
+   */
+  @Config("store.health.probe.interval.seconds")
+  @Default("10")
+  public final int storeHealthProbeIntervalSeconds;
+
+  /**
+   * The number of probes in a row that have to succeed before a store or a disk is healthy again.
+   */
+  @Config("store.health.probe.successes.to.recover")
+  @Default("3")
+  public final int storeHealthProbeSuccessesToRecover;
+
+  /**
+   * How long to wait for a probe to complete before it is counted as failed. A disk whose probe is still hung is not
+   * probed again until the probe completes.
+   */
+  @Config("store.health.probe.timeout.ms")
+  @Default("10000")
+  public final int storeHealthProbeTimeoutMs;
+
+  /**
+   * Whether every store keeps statistics of its live, deleted and expired bytes. The statistics are built from the
+   * index when the store starts and are then kept up to date as the index changes.
+   */
+  @Config("store.enable.stats")
+  @Default("false")
+  public final boolean storeEnableStats;
+
+  /**
+   * The range of the log covered by a bucket of the store statistics. Buckets that cover older parts of the log hold
+   * older data. If the log is segmented, a bucket covers a log segment instead.
+   */
+  @Config("store.stats.bucket.size.in.bytes")
+  @Default("1073741824")
+  public final long storeStatsBucketSizeInBytes;
+
   public StoreConfig(VerifiableProperties verifiableProperties) {
 
     storeKeyFactory = verifiableProperties.getString("store.key.factory", "com.github.ambry.commons.BlobIdFactory");
@@ -103,8 +397,22 @@ public class StoreConfig {
     storeIndexMaxMemorySizeBytes = verifiableProperties.getInt("store.index.max.memory.size.bytes", 20 * 1024 * 1024);
     storeDataFlushDelaySeconds = verifiableProperties.getInt("store.data.flush.delay.seconds", 5);
     storeIndexMaxNumberOfInmemElements = verifiableProperties.getInt("store.index.max.number.of.inmem.elements", 10000);
+    storeIndexPackedInMemorySegment = verifiableProperties.getBoolean("store.index.packed.in.memory.segment", false);
+    storeIndexFencePointerInterval =
+        verifiableProperties.getIntInRange("store.index.fence.pointer.interval", 32, 0, Integer.MAX_VALUE);
+    storeIndexRecoveryCheckpointIntervalSeconds = verifiableProperties
+        .getIntInRange("store.index.recovery.checkpoint.interval.seconds", 0, 0, Integer.MAX_VALUE);
+    storeIndexLookupCacheMaxEntries =
+        verifiableProperties.getIntInRange("store.index.lookup.cache.max.entries", 0, 0, Integer.MAX_VALUE);
+    storeIndexSegmentMergeMaxEntries =
+        verifiableProperties.getIntInRange("store.index.segment.merge.max.entries", 0, 0, Integer.MAX_VALUE);
+    storeIndexSegmentMergeIntervalSeconds =
+        verifiableProperties.getIntInRange("store.index.segment.merge.interval.seconds", 600, 1, Integer.MAX_VALUE);
     storeIndexBloomMaxFalsePositiveProbability =
         verifiableProperties.getDoubleInRange("store.index.bloom.max.false.positive.probability", 0.01, 0.0, 1.0);
+    storeIndexBloomBlocked = verifiableProperties.getBoolean("store.index.bloom.blocked", false);
+    storeIndexBloomMaxMemoryBytes =
+        verifiableProperties.getLongInRange("store.index.bloom.max.memory.bytes", 0, 0, Long.MAX_VALUE);
     storeJournalFactory =
         verifiableProperties.getString("store.journal.factory", "com.github.ambry.store.InMemoryJournalFactory");
     storeMaxNumberOfEntriesToReturnFromJournal =
@@ -112,6 +420,55 @@ public class StoreConfig {
     storeDeletedMessageRetentionDays = verifiableProperties.getInt("store.deleted.message.retention.days", 7);
     storeHardDeleteBytesPerSec = verifiableProperties.getInt("store.hard.delete.bytes.per.sec", 1 * 1024 * 1024);
     storeEnableHardDelete = verifiableProperties.getBoolean("store.enable.hard.delete", false);
+    storeSegmentSizeInBytes = verifiableProperties.getLong("store.segment.size.in.bytes", 0);
+    storeEnableCompaction = verifiableProperties.getBoolean("store.enable.compaction", false);
+    storeCompactionBytesPerSec = verifiableProperties.getInt("store.compaction.bytes.per.sec", 1 * 1024 * 1024);
+    storeCompactionMaxLiveRatio =
+        verifiableProperties.getDoubleInRange("store.compaction.max.live.ratio", 0.5, 0.0, 1.0);
+    storeCompactionExpiryBucketSizeSeconds =
+        verifiableProperties.getIntInRange("store.compaction.expiry.bucket.size.seconds", 0, 0, Integer.MAX_VALUE);
+    storeCompactionExpiryIndexMaxEntries =
+        verifiableProperties.getIntInRange("store.compaction.expiry.index.max.entries", 1000000, 1, Integer.MAX_VALUE);
+    storeEnableGroupCommit = verifiableProperties.getBoolean("store.enable.group.commit", false);
+    storeGroupCommitMaxBatchSize =
+        verifiableProperties.getIntInRange("store.group.commit.max.batch.size", 64, 1, Integer.MAX_VALUE);
+    storeGroupCommitWindowMs = verifiableProperties.getIntInRange("store.group.commit.window.ms", 0, 0, 1000);
+    storeEnableDurablePuts = verifiableProperties.getBoolean("store.enable.durable.puts", false);
+    storeStartupNumThreads = verifiableProperties.getIntInRange("store.startup.num.threads", 8, 1, Integer.MAX_VALUE);
+    storeStartupNumThreadsPerDisk =
+        verifiableProperties.getIntInRange("store.startup.num.threads.per.disk", 1, 1, Integer.MAX_VALUE);
+    storeMappedReadWindowSizeInBytes =
+        verifiableProperties.getIntInRange("store.mapped.read.window.size.in.bytes", 0, 0, Integer.MAX_VALUE);
+    storeMappedReadMaxWindows =
+        verifiableProperties.getIntInRange("store.mapped.read.max.windows", 16, 1, Integer.MAX_VALUE);
+    storeEnableIoScheduler = verifiableProperties.getBoolean("store.enable.io.scheduler", false);
+    storeIoSchedulerReplicationBytesPerSec =
+        verifiableProperties.getIntInRange("store.io.scheduler.replication.bytes.per.sec", 0, 0, Integer.MAX_VALUE);
+    storeIoSchedulerBackgroundMaxBytesPerSec = verifiableProperties
+        .getIntInRange("store.io.scheduler.background.max.bytes.per.sec", 4 * 1024 * 1024, 1, Integer.MAX_VALUE);
+    storeIoSchedulerBackgroundMinBytesPerSec = verifiableProperties
+        .getIntInRange("store.io.scheduler.background.min.bytes.per.sec", 256 * 1024, 1, Integer.MAX_VALUE);
+    storeIoSchedulerForegroundLatencyTargetMs =
+        verifiableProperties.getIntInRange("store.io.scheduler.foreground.latency.target.ms", 50, 1, Integer.MAX_VALUE);
+    storeEnableHealthMonitor = verifiableProperties.getBoolean("store.enable.health.monitor", false);
+    storeHealthWindowSeconds =
+        verifiableProperties.getIntInRange("store.health.window.seconds", 30, 1, Integer.MAX_VALUE);
+    storeHealthMinOperations =
+        verifiableProperties.getIntInRange("store.health.min.operations", 20, 1, Integer.MAX_VALUE);
+    storeHealthMaxErrorRatio = verifiableProperties.getDoubleInRange("store.health.max.error.ratio", 0.5, 0.0, 1.0);
+    storeHealthSlowOperationThresholdMs =
+        verifiableProperties.getIntInRange("store.health.slow.operation.threshold.ms", 1000, 1, Integer.MAX_VALUE);
+    storeHealthMaxSlowOperationRatio =
+        verifiableProperties.getDoubleInRange("store.health.max.slow.operation.ratio", 0.5, 0.0, 1.0);
+    storeHealthProbeIntervalSeconds =
+        verifiableProperties.getIntInRange("store.health.probe.interval.seconds", 10, 1, Integer.MAX_VALUE);
+    storeHealthProbeSuccessesToRecover =
+        verifiableProperties.getIntInRange("store.health.probe.successes.to.recover", 3, 1, Integer.MAX_VALUE);
+    storeHealthProbeTimeoutMs =
+        verifiableProperties.getIntInRange("store.health.probe.timeout.ms", 10000, 1, Integer.MAX_VALUE);
+    storeEnableStats = verifiableProperties.getBoolean("store.enable.stats", false);
+    storeStatsBucketSizeInBytes =
+        verifiableProperties.getLongInRange("store.stats.bucket.size.in.bytes", 1024 * 1024 * 1024, 1, Long.MAX_VALUE);
   }
 }
 
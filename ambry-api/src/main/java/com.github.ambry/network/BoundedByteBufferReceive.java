@@ -13,7 +13,12 @@
  */
 package com.github.ambry.network;
 
+import com.github.ambry.utils.ByteBufferInputStream;
+import com.github.ambry.utils.SystemTime;
 import java.io.EOFException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,19 +29,49 @@ import java.nio.ByteBuffer;
 
 /**
  * A byte buffer version of Receive to buffer the incoming request or response.
+ * <p>
+ * A receive that is given a streaming threshold does not buffer payloads that are larger than the threshold. Such a
+ * payload is streamed instead: its bytes are passed through a buffer of bounded size and are read out of
+ * {@link #getPayloadStream()} by another thread while they are still being received. The receiver has to stop
+ * reading from the channel while {@link #isStreamBufferFull()} and resume once the listener set through
+ * {@link #setStreamListener(Runnable)} is told that there is room again.
  */
 public class BoundedByteBufferReceive implements Receive {
+  private static final int Size_Field_Size_In_Bytes = 8;
 
   private ByteBuffer buffer = null;
   private ByteBuffer sizeBuffer;
   private long sizeToRead;
   private long sizeRead;
+  private final long streamingThresholdBytes;
+  private final int streamingBufferBytes;
+  private final long streamingTimeoutMs;
+  private boolean streamed = false;
+  // the fields below are guarded by this receive once the payload is streamed
+  private int streamReadPosition = 0;
+  private long sizeConsumed = 0;
+  private boolean streamClosed = false;
+  private IOException streamFailure = null;
+  private Runnable streamListener = null;
   private Logger logger = LoggerFactory.getLogger(getClass());
 
   public BoundedByteBufferReceive() {
+    this(0, 0, 0);
+  }
+
+  /**
+   * Creates a receive that streams payloads larger than the given threshold
+   * @param streamingThresholdBytes The size above which a payload is streamed. Nothing is streamed if this is zero.
+   * @param streamingBufferBytes The number of bytes of a streamed payload that are held before they are read
+   * @param streamingTimeoutMs The time a reader of a streamed payload waits for more bytes before it fails
+   */
+  public BoundedByteBufferReceive(long streamingThresholdBytes, int streamingBufferBytes, long streamingTimeoutMs) {
     sizeToRead = 0;
     sizeRead = 0;
-    sizeBuffer = ByteBuffer.allocate(8);
+    sizeBuffer = ByteBuffer.allocate(Size_Field_Size_In_Bytes);
+    this.streamingThresholdBytes = streamingThresholdBytes;
+    this.streamingBufferBytes = streamingBufferBytes;
+    this.streamingTimeoutMs = streamingTimeoutMs;
   }
 
   @Override
@@ -56,19 +91,25 @@ public class BoundedByteBufferReceive implements Receive {
       if (sizeBuffer.position() == sizeBuffer.capacity()) {
         sizeBuffer.flip();
         sizeToRead = sizeBuffer.getLong();
-        sizeRead += 8;
-        bytesRead += 8;
-        buffer = ByteBuffer.allocate((int) sizeToRead - 8);
+        sizeRead += Size_Field_Size_In_Bytes;
+        bytesRead += Size_Field_Size_In_Bytes;
+        long payloadSize = sizeToRead - Size_Field_Size_In_Bytes;
+        if (streamingThresholdBytes > 0 && payloadSize > streamingThresholdBytes) {
+          streamed = true;
+          buffer = ByteBuffer.allocate((int) Math.min(streamingBufferBytes, payloadSize));
+        } else {
+          buffer = ByteBuffer.allocate((int) payloadSize);
+        }
       }
     }
     if (buffer != null && sizeRead < sizeToRead) {
-      long bytesReadFromChannel = channel.read(buffer);
+      long bytesReadFromChannel = streamed ? readStreamedPayload(channel) : channel.read(buffer);
       if (bytesReadFromChannel < 0) {
         throw new EOFException();
       }
       sizeRead += bytesReadFromChannel;
       bytesRead += bytesReadFromChannel;
-      if (sizeRead == sizeToRead) {
+      if (sizeRead == sizeToRead && !streamed) {
         buffer.flip();
       }
     }
@@ -76,8 +117,54 @@ public class BoundedByteBufferReceive implements Receive {
     return bytesRead;
   }
 
+  /**
+   * @return The payload, once it has been read completely. It is null if the payload is streamed.
+   */
   public ByteBuffer getPayload() {
-    return buffer;
+    return streamed ? null : buffer;
+  }
+
+  /**
+   * @return A stream of the payload. A streamed payload can be read from it while it is being received, any other
+   * payload only once it has been read completely.
+   */
+  public InputStream getPayloadStream() {
+    return streamed ? new PayloadStream() : new ByteBufferInputStream(buffer);
+  }
+
+  /**
+   * @return true if the payload is streamed rather than buffered
+   */
+  public boolean isStreamed() {
+    return streamed;
+  }
+
+  /**
+   * @return true if the payload is streamed and no more of it can be received before some of it is read
+   */
+  public synchronized boolean isStreamBufferFull() {
+    return streamed && buffer.position() - streamReadPosition == buffer.capacity();
+  }
+
+  /**
+   * Sets the listener that is run when a streamed payload that could not be received any further because its buffer
+   * was full has room again
+   * @param listener The listener. It is run by the thread that reads the payload, so it must not block.
+   */
+  public synchronized void setStreamListener(Runnable listener) {
+    streamListener = listener;
+  }
+
+  /**
+   * Fails the readers of a streamed payload that has not been received completely, because nothing more of it will
+   * be received
+   */
+  public synchronized void abort() {
+    if (streamed && sizeRead < sizeToRead && streamFailure == null) {
+      streamFailure =
+          new EOFException("Connection closed after " + sizeRead + " of the " + sizeToRead + " bytes of the request");
+      notifyAll();
+    }
   }
 
   /**
@@ -88,4 +175,114 @@ public class BoundedByteBufferReceive implements Receive {
   long sizeRead() {
     return sizeRead;
   }
+
+  /**
+   * Receives what fits in the buffer of a streamed payload, but nothing beyond the end of the payload
+   */
+  private synchronized long readStreamedPayload(ReadableByteChannel channel)
+      throws IOException {
+    if (!buffer.hasRemaining() && streamReadPosition > 0) {
+      buffer.flip();
+      buffer.position(streamReadPosition);
+      buffer.compact();
+      streamReadPosition = 0;
+    }
+    if (!buffer.hasRemaining()) {
+      return 0;
+    }
+    buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + sizeToRead - sizeRead));
+    long bytesRead;
+    try {
+      bytesRead = channel.read(buffer);
+    } finally {
+      buffer.limit(buffer.capacity());
+    }
+    if (streamClosed) {
+      // nobody reads the payload any more, so what is received is dropped
+      buffer.clear();
+    } else if (bytesRead > 0) {
+      notifyAll();
+    }
+    return bytesRead;
+  }
+
+  private synchronized int readStreamedPayload(byte[] bytes, int offset, int length)
+      throws IOException {
+    if (streamClosed) {
+      throw new IOException("Stream of the payload is closed");
+    }
+    long waitUntilMs = SystemTime.getInstance().milliseconds() + streamingTimeoutMs;
+    while (buffer.position() == streamReadPosition) {
+      if (sizeConsumed == sizeToRead - Size_Field_Size_In_Bytes) {
+        return -1;
+      } else if (streamFailure != null) {
+        throw streamFailure;
+      }
+      long waitMs = waitUntilMs - SystemTime.getInstance().milliseconds();
+      if (waitMs <= 0) {
+        throw new SocketTimeoutException(
+            "Received no bytes of the payload for " + streamingTimeoutMs + " ms after " + sizeRead + " of the "
+                + sizeToRead + " bytes");
+      }
+      try {
+        wait(waitMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for bytes of the payload");
+      }
+    }
+    boolean wasFull = isStreamBufferFull();
+    int bytesRead = Math.min(length, buffer.position() - streamReadPosition);
+    System.arraycopy(buffer.array(), streamReadPosition, bytes, offset, bytesRead);
+    streamReadPosition += bytesRead;
+    sizeConsumed += bytesRead;
+    if (streamReadPosition == buffer.position()) {
+      buffer.clear();
+      streamReadPosition = 0;
+    }
+    if (wasFull && streamListener != null) {
+      streamListener.run();
+    }
+    return bytesRead;
+  }
+
+  private synchronized void closeStreamedPayload() {
+    if (!streamClosed) {
+      boolean wasFull = isStreamBufferFull();
+      streamClosed = true;
+      buffer.clear();
+      streamReadPosition = 0;
+      if (wasFull && streamListener != null) {
+        streamListener.run();
+      }
+    }
+  }
+
+  /**
+   * The stream of a streamed payload. Closing it drops the part of the payload that has not been read.
+   */
+  private class PayloadStream extends InputStream {
+
+    @Override
+    public int read()
+        throws IOException {
+      byte[] bytes = new byte[1];
+      int bytesRead = read(bytes, 0, 1);
+      return bytesRead < 0 ? -1 : bytes[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length)
+        throws IOException {
+      if (offset < 0 || length < 0 || length > bytes.length - offset) {
+        throw new IndexOutOfBoundsException();
+      }
+      return length == 0 ? 0 : readStreamedPayload(bytes, offset, length);
+    }
+
+    @Override
+    public void close() {
+      closeStreamedPayload();
+    }
+  }
 }
@@ -68,6 +68,10 @@ public class BoundedByteBufferSend implements Send {
     return buffer.limit();
   }
 
+  @Override
+  public void release() {
+  }
+
   public BoundedByteBufferSend duplicate() {
     return new BoundedByteBufferSend(buffer.duplicate());
   }
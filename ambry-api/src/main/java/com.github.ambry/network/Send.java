@@ -42,4 +42,10 @@ public interface Send {
    * @return The size of the data in bytes to be written
    */
   long sizeInBytes();
+
+  /**
+   * Releases the resources that the send holds until it is sent, such as the store messages that it reads. It is
+   * called once the send is complete or has been abandoned. Releasing it again has no effect.
+   */
+  void release();
 }
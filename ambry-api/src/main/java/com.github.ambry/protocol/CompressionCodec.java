@@ -0,0 +1,102 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * The codecs that a response can be compressed with. A codec is sent as its ordinal, so new codecs have to be added
+ * at the end. Responses are compressed in chunks of bounded size, each of which is compressed on its own.
+ */
+public enum CompressionCodec {
+  /**
+   * This is the default. The response is not compressed
+   */
+  None {
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) {
+      return Arrays.copyOfRange(data, offset, offset + length);
+    }
+
+    @Override
+    public int getMaxCompressedSizeInBytes(int sizeInBytes) {
+      return sizeInBytes;
+    }
+
+    @Override
+    public InputStream decompress(InputStream stream) {
+      return stream;
+    }
+  },
+  /**
+   * The response is compressed with deflate, tuned for speed rather than for size
+   */
+  Deflate {
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) {
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.max(length / 2, 64));
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+          int compressed = deflater.deflate(buf);
+          outputStream.write(buf, 0, compressed);
+        }
+        return outputStream.toByteArray();
+      } finally {
+        deflater.end();
+      }
+    }
+
+    @Override
+    public int getMaxCompressedSizeInBytes(int sizeInBytes) {
+      // the bound of zlib, which deflate stays within however incompressible the data is
+      return sizeInBytes + (sizeInBytes >> 12) + (sizeInBytes >> 14) + (sizeInBytes >> 25) + 13;
+    }
+
+    @Override
+    public InputStream decompress(InputStream stream) {
+      return new InflaterInputStream(stream);
+    }
+  };
+
+  /**
+   * Compresses the given bytes
+   * @param data The array that holds the bytes to compress
+   * @param offset The offset in the array of the first byte to compress
+   * @param length The number of bytes to compress
+   * @return The compressed bytes
+   */
+  public abstract byte[] compress(byte[] data, int offset, int length);
+
+  /**
+   * @param sizeInBytes The number of bytes to compress
+   * @return The max size that the bytes can have once they are compressed
+   */
+  public abstract int getMaxCompressedSizeInBytes(int sizeInBytes);
+
+  /**
+   * Wraps a stream of compressed bytes
+   * @param stream The stream of bytes compressed by {@link #compress(byte[], int, int)}
+   * @return A stream of the bytes before they were compressed
+   */
+  public abstract InputStream decompress(InputStream stream);
+}
@@ -24,6 +24,7 @@ public class MessageInfo {
   private long size;
   private long expirationTimeInMs;
   private boolean isDeleted;
+  private long[] recordOffsets = null;
 
   public MessageInfo(StoreKey key, long size, long expirationTimeInMs) {
     this(key, size, false, expirationTimeInMs);
@@ -44,6 +45,19 @@ public class MessageInfo {
     this(key, size, Utils.Infinite_Time);
   }
 
+  /**
+   * Creates the info of a message whose layout is known to the writer
+   * @param key The key of the message
+   * @param size The size of the message
+   * @param expirationTimeInMs The time at which the message expires
+   * @param recordOffsets The offsets, relative to the start of the message, at which the records of the message
+   *                      start, in the order defined by the message format
+   */
+  public MessageInfo(StoreKey key, long size, long expirationTimeInMs, long[] recordOffsets) {
+    this(key, size, false, expirationTimeInMs);
+    this.recordOffsets = recordOffsets;
+  }
+
   public StoreKey getStoreKey() {
     return key;
   }
@@ -56,6 +70,14 @@ public class MessageInfo {
     return expirationTimeInMs;
   }
 
+  /**
+   * @return The offsets, relative to the start of the message, at which the records of the message start, or null if
+   * they were not given when the message was written
+   */
+  public long[] getRecordOffsets() {
+    return recordOffsets;
+  }
+
   public boolean isDeleted() {
     return isDeleted;
   }
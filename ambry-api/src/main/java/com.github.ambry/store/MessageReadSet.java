@@ -55,4 +55,20 @@ public interface MessageReadSet {
    * @return The key of the message represented by the index
    */
   StoreKey getKeyAt(int index);
+
+  /**
+   * Returns the offsets at which the records of the ith message start, if they were recorded when the message was
+   * written. They save reading the message to find out where its records are.
+   * @param index The index into the message set
+   * @return The offsets, relative to the start of the message, at which the records of the message start, or null if
+   * they are not known
+   */
+  long[] getRecordOffsetsAt(int index);
+
+  /**
+   * Releases the resources that the set holds to keep its messages readable, such as the log segments that back
+   * them. Must be called once the set is no longer read. The set cannot be read after it has been released and
+   * releasing it again has no effect.
+   */
+  void release();
 }
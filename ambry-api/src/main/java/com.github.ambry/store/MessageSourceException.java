@@ -0,0 +1,30 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import java.io.IOException;
+
+
+/**
+ * Thrown while a {@link MessageWriteSet} is written if its messages cannot be read from where they come from, such as
+ * the response of a remote node. Like a {@link CorruptMessageException}, it says nothing about the health of the store
+ * that the message set is written to.
+ */
+public class MessageSourceException extends IOException {
+  private static final long serialVersionUID = 1;
+
+  public MessageSourceException(String message, Throwable e) {
+    super(message, e);
+  }
+}
@@ -30,5 +30,8 @@ public enum StoreErrorCodes {
   Illegal_Index_State,
   Index_Creation_Failure,
   Index_Version_Error,
+  Store_Unavailable,
+  Store_Read_Only,
+  Data_Corrupt,
   Unknown_Error
 }
@@ -13,6 +13,9 @@
  */
 package com.github.ambry.store;
 
+import java.nio.ByteBuffer;
+
+
 /**
  * Represents the index key. To make an object part of an index key,
  * this interface can be implemented
@@ -42,4 +45,47 @@ public abstract class StoreKey implements Comparable<StoreKey> {
    * @return the long form of the key
    */
   public abstract String getLongForm();
+
+  /**
+   * Indicates if this key can be compared with serialized keys through {@link #compareToSerialized(ByteBuffer, int)}
+   * @return true if serialized comparison is supported, false otherwise
+   */
+  public boolean supportsSerializedComparison() {
+    return false;
+  }
+
+  /**
+   * Compares this key with the serialized form of a key of the same type without deserializing it. The result has
+   * the same sign as comparing this key with the deserialized key through {@link #compareTo(Object)}. This is only
+   * supported if {@link #supportsSerializedComparison()} returns true.
+   * @param buffer The buffer that holds the serialized key. Its position and limit are not changed.
+   * @param position The position in the buffer at which the serialized key starts
+   * @return A negative integer, zero, or a positive integer as this key is less than, equal to, or greater than the
+   *         serialized key
+   */
+  public int compareToSerialized(ByteBuffer buffer, int position) {
+    throw new UnsupportedOperationException("Serialized comparison is not supported by " + getClass().getName());
+  }
+
+  /**
+   * Compares a byte array with a range of bytes in a buffer lexicographically, treating the bytes as unsigned. If one
+   * is a prefix of the other, the shorter one is ordered first. For ASCII strings this is the order of
+   * {@link String#compareTo(String)}.
+   * @param bytes The bytes to compare
+   * @param buffer The buffer that holds the bytes to compare with
+   * @param position The position in the buffer at which the bytes start
+   * @param length The number of bytes in the buffer to compare with
+   * @return A negative integer, zero, or a positive integer as the array is less than, equal to, or greater than the
+   *         bytes in the buffer
+   */
+  protected static int compareBytes(byte[] bytes, ByteBuffer buffer, int position, int length) {
+    int minLength = Math.min(bytes.length, length);
+    for (int i = 0; i < minLength; i++) {
+      int result = (bytes[i] & 0xff) - (buffer.get(position + i) & 0xff);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return bytes.length - length;
+  }
 }
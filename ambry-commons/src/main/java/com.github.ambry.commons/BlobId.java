@@ -35,6 +35,11 @@ public class BlobId extends StoreKey {
   private PartitionId partitionId;
   private String uuid;
   private static int UUID_Size_In_Bytes = 4;
+  private static int Partition_Version_Size_In_Bytes = 2;
+  // cached parts of the serialized form that are used to compare with serialized blob ids
+  private int partitionSizeInBytes;
+  private long partitionIdValue;
+  private byte[] uuidBytes;
 
   /**
    * Constructs a new unique BlobId for the specified partition.
@@ -44,6 +49,7 @@ public class BlobId extends StoreKey {
   public BlobId(PartitionId partitionId) {
     this.partitionId = partitionId;
     this.uuid = UUID.randomUUID().toString();
+    initSerializedFields();
   }
 
   /**
@@ -74,6 +80,15 @@ public class BlobId extends StoreKey {
     } else {
       throw new IllegalArgumentException("version " + version + " not supported for blob id");
     }
+    initSerializedFields();
+  }
+
+  private void initSerializedFields() {
+    byte[] partitionBytes = partitionId.getBytes();
+    partitionSizeInBytes = partitionBytes.length;
+    // a serialized partition id is a version followed by the numeric id by which partitions are ordered
+    partitionIdValue = ByteBuffer.wrap(partitionBytes).getLong(Partition_Version_Size_In_Bytes);
+    uuidBytes = uuid.getBytes();
   }
 
   public short sizeInBytes() {
@@ -89,8 +104,8 @@ public class BlobId extends StoreKey {
     ByteBuffer idBuf = ByteBuffer.allocate(sizeInBytes());
     idBuf.putShort(version);
     idBuf.put(partitionId.getBytes());
-    idBuf.putInt(uuid.getBytes().length);
-    idBuf.put(uuid.getBytes());
+    idBuf.putInt(uuidBytes.length);
+    idBuf.put(uuidBytes);
     return idBuf.array();
   }
 
@@ -128,6 +143,25 @@ public class BlobId extends StoreKey {
     return result;
   }
 
+  @Override
+  public boolean supportsSerializedComparison() {
+    return true;
+  }
+
+  @Override
+  public int compareToSerialized(ByteBuffer buffer, int position) {
+    int result = version - buffer.getShort(position);
+    if (result == 0) {
+      int partitionPosition = position + Version_Size_In_Bytes;
+      result = Long.compare(partitionIdValue, buffer.getLong(partitionPosition + Partition_Version_Size_In_Bytes));
+      if (result == 0) {
+        int uuidPosition = partitionPosition + partitionSizeInBytes;
+        result = compareBytes(uuidBytes, buffer, uuidPosition + UUID_Size_In_Bytes, buffer.getInt(uuidPosition));
+      }
+    }
+    return result;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -16,9 +16,13 @@ package com.github.ambry.commons;
 import com.github.ambry.clustermap.Partition;
 import com.github.ambry.clustermap.PartitionId;
 import com.github.ambry.clustermap.PartitionState;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 
 public class BlobIdTest {
@@ -33,4 +37,32 @@ public class BlobIdTest {
     System.out.println("Blob Id toString: " + blobId);
     System.out.println("Blob id sizeInBytes: " + blobId.toString().length());
   }
+
+  /**
+   * Tests that comparing a blob id with a serialized blob id gives the same order as comparing the blob ids.
+   */
+  @Test
+  public void serializedComparisonTest() {
+    final long replicaCapacityInBytes = 1024 * 1024 * 1024;
+    List<BlobId> blobIds = new ArrayList<BlobId>();
+    for (long id : new long[]{0, 1, 99, 256, Long.MAX_VALUE}) {
+      PartitionId partitionId = new Partition(id, PartitionState.READ_WRITE, replicaCapacityInBytes);
+      for (int i = 0; i < 5; i++) {
+        blobIds.add(new BlobId(partitionId));
+      }
+    }
+    for (BlobId blobId : blobIds) {
+      assertTrue(blobId.supportsSerializedComparison());
+      for (BlobId other : blobIds) {
+        // place the serialized id at an offset to check that the position is honored
+        byte[] otherBytes = other.toBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(otherBytes.length + 3);
+        buffer.position(3);
+        buffer.put(otherBytes);
+        buffer.position(0);
+        assertEquals(Integer.signum(blobId.compareTo(other)), Integer.signum(blobId.compareToSerialized(buffer, 3)));
+        assertEquals(0, buffer.position());
+      }
+    }
+  }
 }
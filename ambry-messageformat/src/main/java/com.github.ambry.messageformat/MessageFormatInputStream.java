@@ -38,6 +38,7 @@ public abstract class MessageFormatInputStream extends InputStream {
   protected long streamRead = 0;
   ByteBuffer crc = ByteBuffer.allocate(MessageFormatRecord.Crc_Size);
   protected long messageLength;
+  protected long[] recordOffsets = null;
   protected Logger logger = LoggerFactory.getLogger(getClass());
 
   @Override
@@ -104,4 +105,12 @@ public abstract class MessageFormatInputStream extends InputStream {
   public long getSize() {
     return messageLength;
   }
+
+  /**
+   * @return The offsets, relative to the start of the message, at which the records of the message start, in the order
+   * that {@link MessageFormatSend} expects them, or null if the message has no records to read separately
+   */
+  public long[] getRecordOffsets() {
+    return recordOffsets;
+  }
 }
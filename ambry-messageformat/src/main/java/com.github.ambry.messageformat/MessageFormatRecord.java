@@ -324,6 +324,18 @@ public class MessageFormatRecord {
       return buffer.getLong(Crc_Field_Offset_In_Bytes);
     }
 
+    /**
+     * @return The offsets, relative to the start of the message, of its blob properties, user metadata and blob
+     *         records, or null if the message is not a put
+     */
+    public long[] getRecordOffsets() {
+      if (getBlobPropertiesRecordRelativeOffset() == Message_Header_Invalid_Relative_Offset) {
+        return null;
+      }
+      return new long[]{getBlobPropertiesRecordRelativeOffset(), getUserMetadataRecordRelativeOffset(),
+          getBlobRecordRelativeOffset()};
+    }
+
     public void verifyHeader()
         throws MessageFormatException {
       verifyCrc();
@@ -17,6 +17,7 @@ import com.github.ambry.network.Send;
 import com.github.ambry.store.MessageReadSet;
 import com.github.ambry.store.StoreKey;
 import com.github.ambry.store.StoreKeyFactory;
+import com.github.ambry.utils.ByteBufferInputStream;
 import com.github.ambry.utils.ByteBufferOutputStream;
 import com.github.ambry.utils.SystemTime;
 import java.io.DataInputStream;
@@ -26,6 +27,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -98,44 +100,36 @@ public class MessageFormatSend implements Send {
           // have to read any data to deserialize anything.
           infoList.add(i, new SendInfo(0, readSet.sizeInBytes(i)));
           totalSizeToWrite += readSet.sizeInBytes(i);
+        } else if (readSet.getRecordOffsetsAt(i) != null) {
+          // the offsets of the records were recorded when the message was written, so the message does not have to
+          // be read to find them
+          SendInfo sendInfo = getSendInfo(i, readSet.getRecordOffsetsAt(i));
+          infoList.add(i, sendInfo);
+          totalSizeToWrite += sendInfo.sizetoSend();
+          logger.trace("Sending message from recorded record offsets relativeOffset : {} size : {}",
+              sendInfo.relativeOffset(), sendInfo.sizetoSend());
         } else {
-          // read header version
+          // read the header and the key with a single read. The key of the message is known, so its serialized
+          // size tells how much to read.
           long startTime = SystemTime.getInstance().milliseconds();
-          ByteBuffer headerVersion = ByteBuffer.allocate(MessageFormatRecord.Version_Field_Size_In_Bytes);
-          readSet.writeTo(i, Channels.newChannel(new ByteBufferOutputStream(headerVersion)), 0,
-              MessageFormatRecord.Version_Field_Size_In_Bytes);
-          logger.trace("Calculate offsets, read header version time: {}",
+          StoreKey key = readSet.getKeyAt(i);
+          int headerSize = MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize();
+          ByteBuffer headerAndKey = ByteBuffer.allocate(headerSize + key.sizeInBytes());
+          readFully(i, headerAndKey);
+          logger.trace("Calculate offsets, read header and key time: {}",
               SystemTime.getInstance().milliseconds() - startTime);
 
-          headerVersion.flip();
-          short version = headerVersion.getShort();
+          short version = headerAndKey.getShort(0);
           switch (version) {
             case MessageFormatRecord.Message_Header_Version_V1:
 
-              // read the header
               startTime = SystemTime.getInstance().milliseconds();
-              ByteBuffer header = ByteBuffer.allocate(MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize());
-              headerVersion.clear();
-              header.putShort(headerVersion.getShort());
-              readSet.writeTo(i, Channels.newChannel(new ByteBufferOutputStream(header)),
-                  MessageFormatRecord.Version_Field_Size_In_Bytes,
-                  MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize()
-                      - MessageFormatRecord.Version_Field_Size_In_Bytes);
-              logger.trace("Calculate offsets, read header time: {}",
-                  SystemTime.getInstance().milliseconds() - startTime);
-
-              startTime = SystemTime.getInstance().milliseconds();
-              header.flip();
+              headerAndKey.limit(headerSize);
               MessageFormatRecord.MessageHeader_Format_V1 headerFormat =
-                  new MessageFormatRecord.MessageHeader_Format_V1(header);
+                  new MessageFormatRecord.MessageHeader_Format_V1(headerAndKey.slice());
               headerFormat.verifyHeader();
-              StoreKey storeKey = storeKeyFactory
-                  .getStoreKey(new DataInputStream(new MessageReadSetIndexInputStream(readSet, i, header.capacity())));
-              if (storeKey.compareTo(readSet.getKeyAt(i)) != 0) {
-                throw new MessageFormatException(
-                    "Id mismatch between metadata and store - metadataId " + readSet.getKeyAt(i) + " storeId "
-                        + storeKey, MessageFormatErrorCodes.Store_Key_Id_MisMatch);
-              }
+              headerAndKey.limit(headerAndKey.capacity());
+              verifyKey(key, headerAndKey, headerSize);
               logger.trace("Calculate offsets, verify header time: {}",
                   SystemTime.getInstance().milliseconds() - startTime);
 
@@ -207,6 +201,85 @@ public class MessageFormatSend implements Send {
     }
   }
 
+  /**
+   * Gets the part of a message to send from the offsets that its records were written at
+   * @param index The index of the message in the read set
+   * @param recordOffsets The offsets, relative to the start of the message, of its blob properties, user metadata and
+   *                      blob records
+   * @return The part of the message to send
+   * @throws MessageFormatException if the offsets do not fit the message
+   */
+  private SendInfo getSendInfo(int index, long[] recordOffsets)
+      throws MessageFormatException {
+    long messageSize = readSet.sizeInBytes(index);
+    if (recordOffsets.length != 3 || recordOffsets[0] < 0 || recordOffsets[0] > recordOffsets[1]
+        || recordOffsets[1] > recordOffsets[2] || recordOffsets[2] > messageSize) {
+      throw new MessageFormatException(
+          "Record offsets " + Arrays.toString(recordOffsets) + " do not fit message " + readSet.getKeyAt(index)
+              + " of size " + messageSize, MessageFormatErrorCodes.Data_Corrupt);
+    }
+    long blobPropertiesRecordOffset = recordOffsets[0];
+    long userMetadataRecordOffset = recordOffsets[1];
+    long blobRecordOffset = recordOffsets[2];
+    if (flag == MessageFormatFlags.BlobProperties) {
+      return new SendInfo(blobPropertiesRecordOffset, userMetadataRecordOffset - blobPropertiesRecordOffset);
+    } else if (flag == MessageFormatFlags.BlobUserMetadata) {
+      return new SendInfo(userMetadataRecordOffset, blobRecordOffset - userMetadataRecordOffset);
+    } else if (flag == MessageFormatFlags.BlobInfo) {
+      return new SendInfo(blobPropertiesRecordOffset, blobRecordOffset - blobPropertiesRecordOffset);
+    } else if (flag == MessageFormatFlags.Blob) {
+      return new SendInfo(blobRecordOffset, messageSize - blobRecordOffset);
+    } else {
+      return new SendInfo(0, MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize()
+          + MessageFormatRecord.Version_Field_Size_In_Bytes);
+    }
+  }
+
+  /**
+   * Reads the start of a message into the buffer until the buffer is full
+   * @param index The index of the message in the read set
+   * @param buffer The buffer to read into
+   * @throws IOException
+   */
+  private void readFully(int index, ByteBuffer buffer)
+      throws IOException {
+    WritableByteChannel channel = Channels.newChannel(new ByteBufferOutputStream(buffer));
+    while (buffer.hasRemaining()) {
+      long read = readSet.writeTo(index, channel, buffer.position(), buffer.remaining());
+      if (read <= 0) {
+        throw new IOException(
+            "Message " + readSet.getKeyAt(index) + " ended after " + buffer.position() + " bytes while reading header");
+      }
+    }
+    buffer.flip();
+  }
+
+  /**
+   * Verifies that the key serialized in the message is the key that the store holds the message under. The key is
+   * compared with the serialized key directly if it supports that, otherwise the serialized key is deserialized.
+   * @param key The key that the store holds the message under
+   * @param buffer The buffer that holds the serialized key
+   * @param position The position in the buffer at which the serialized key starts
+   * @throws IOException
+   * @throws MessageFormatException
+   */
+  private void verifyKey(StoreKey key, ByteBuffer buffer, int position)
+      throws IOException, MessageFormatException {
+    boolean matches;
+    StoreKey storeKey = null;
+    if (key.supportsSerializedComparison()) {
+      matches = key.compareToSerialized(buffer, position) == 0;
+    } else {
+      buffer.position(position);
+      storeKey = storeKeyFactory.getStoreKey(new DataInputStream(new ByteBufferInputStream(buffer)));
+      matches = storeKey.compareTo(key) == 0;
+    }
+    if (!matches) {
+      throw new MessageFormatException("Id mismatch between metadata and store - metadataId " + key + " storeId "
+          + (storeKey != null ? storeKey : "does not match"), MessageFormatErrorCodes.Store_Key_Id_MisMatch);
+    }
+  }
+
   @Override
   public long writeTo(WritableByteChannel channel)
       throws IOException {
@@ -225,6 +298,10 @@ public class MessageFormatSend implements Send {
         currentWriteIndex++;
         sizeWrittenFromCurrentIndex = 0;
       }
+      if (isSendComplete()) {
+        // the messages are no longer read, so the store can reclaim the space they take up
+        readSet.release();
+      }
     }
     return written;
   }
@@ -238,6 +315,11 @@ public class MessageFormatSend implements Send {
   public long sizeInBytes() {
     return totalSizeToWrite;
   }
+
+  @Override
+  public void release() {
+    readSet.release();
+  }
 }
 
 /**
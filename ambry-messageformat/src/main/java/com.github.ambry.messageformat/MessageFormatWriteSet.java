@@ -19,34 +19,46 @@ import com.github.ambry.store.Write;
 import com.github.ambry.utils.ByteBufferInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * A message write set that writes to the underlying write interface
+ * A message write set that writes to the underlying write interface. The record offsets of put messages whose infos
+ * do not carry them are filled in from the message headers as the messages are written.
  */
 public class MessageFormatWriteSet implements MessageWriteSet {
 
   private final InputStream streamToWrite;
   private long sizeToWrite;
   private List<MessageInfo> streamInfo;
+  private final HeaderCapturingInputStream headerCapturingStream;
+
+  private static final Logger logger = LoggerFactory.getLogger(MessageFormatWriteSet.class);
 
   public MessageFormatWriteSet(InputStream streamToWrite, List<MessageInfo> streamInfo, boolean materializeStream)
       throws IOException {
     sizeToWrite = 0;
+    boolean recordOffsetsMissing = false;
     for (MessageInfo info : streamInfo) {
       sizeToWrite += info.getSize();
+      recordOffsetsMissing |= !info.isDeleted() && info.getRecordOffsets() == null;
     }
-    this.streamInfo = streamInfo;
+    this.streamInfo = new ArrayList<MessageInfo>(streamInfo);
     if(materializeStream){
       ByteBufferInputStream byteBufferInputStream = new ByteBufferInputStream(streamToWrite, (int)sizeToWrite);
-      this.streamToWrite = byteBufferInputStream;
+      streamToWrite = byteBufferInputStream;
     }
-    else{
+    if (recordOffsetsMissing) {
+      headerCapturingStream = new HeaderCapturingInputStream(streamToWrite, this.streamInfo);
+      this.streamToWrite = headerCapturingStream;
+    } else {
+      headerCapturingStream = null;
       this.streamToWrite = streamToWrite;
     }
   }
@@ -56,6 +68,9 @@ public class MessageFormatWriteSet implements MessageWriteSet {
       throws IOException {
     ReadableByteChannel readableByteChannel = Channels.newChannel(streamToWrite);
     writeChannel.appendFrom(readableByteChannel, sizeToWrite);
+    if (headerCapturingStream != null) {
+      fillInRecordOffsets();
+    }
     return sizeToWrite;
   }
 
@@ -63,4 +78,117 @@ public class MessageFormatWriteSet implements MessageWriteSet {
   public List<MessageInfo> getMessageSetInfo() {
     return streamInfo;
   }
+
+  /**
+   * Replaces the infos of the put messages that were written without record offsets with infos that carry the
+   * offsets found in their headers. Messages whose header cannot be parsed keep their info.
+   */
+  private void fillInRecordOffsets() {
+    for (int i = 0; i < streamInfo.size(); i++) {
+      byte[] header = headerCapturingStream.getHeader(i);
+      if (header == null || header.length != MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize()) {
+        continue;
+      }
+      ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+      if (headerBuffer.getShort(0) != MessageFormatRecord.Message_Header_Version_V1) {
+        continue;
+      }
+      MessageFormatRecord.MessageHeader_Format_V1 headerFormat =
+          new MessageFormatRecord.MessageHeader_Format_V1(headerBuffer);
+      try {
+        headerFormat.verifyHeader();
+      } catch (MessageFormatException e) {
+        logger.trace("Not recording offsets of message {} with invalid header", streamInfo.get(i).getStoreKey(), e);
+        continue;
+      }
+      long[] recordOffsets = headerFormat.getRecordOffsets();
+      if (recordOffsets != null) {
+        MessageInfo info = streamInfo.get(i);
+        streamInfo.set(i, new MessageInfo(info.getStoreKey(), info.getSize(), info.getExpirationTimeInMs(),
+            recordOffsets));
+      }
+    }
+  }
+
+  /**
+   * A stream that keeps a copy of the header of every put message that is read through it and whose info does not
+   * carry its record offsets. The messages are told apart by the sizes in their infos.
+   */
+  private static class HeaderCapturingInputStream extends InputStream {
+    private final InputStream stream;
+    private final long[] messageSizes;
+    private final byte[][] headers;
+    private int currentMessage = 0;
+    private long currentMessageStart = 0;
+    private long position = 0;
+
+    HeaderCapturingInputStream(InputStream stream, List<MessageInfo> streamInfo) {
+      this.stream = stream;
+      messageSizes = new long[streamInfo.size()];
+      headers = new byte[streamInfo.size()][];
+      for (int i = 0; i < streamInfo.size(); i++) {
+        MessageInfo info = streamInfo.get(i);
+        messageSizes[i] = info.getSize();
+        if (!info.isDeleted() && info.getRecordOffsets() == null) {
+          headers[i] = new byte[(int) Math.min(info.getSize(),
+              MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize())];
+        }
+      }
+    }
+
+    /**
+     * @param index The index of a message in the stream
+     * @return The header of the message, or null if it was not kept. The header is shorter than a full header if the
+     *         message was.
+     */
+    byte[] getHeader(int index) {
+      return headers[index];
+    }
+
+    @Override
+    public int read()
+        throws IOException {
+      byte[] b = new byte[1];
+      int read = read(b, 0, 1);
+      return read == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+        throws IOException {
+      int read = stream.read(b, off, len);
+      if (read > 0) {
+        capture(b, off, read);
+      }
+      return read;
+    }
+
+    @Override
+    public int available()
+        throws IOException {
+      return stream.available();
+    }
+
+    private void capture(byte[] b, int off, int len) {
+      long chunkStart = position;
+      position += len;
+      while (currentMessage < messageSizes.length) {
+        byte[] header = headers[currentMessage];
+        if (header != null) {
+          long from = Math.max(chunkStart, currentMessageStart);
+          long to = Math.min(position, currentMessageStart + header.length);
+          if (from < to) {
+            System.arraycopy(b, off + (int) (from - chunkStart), header, (int) (from - currentMessageStart),
+                (int) (to - from));
+          }
+        }
+        long currentMessageEnd = currentMessageStart + messageSizes[currentMessage];
+        if (currentMessageEnd > position) {
+          break;
+        }
+        currentMessageStart = currentMessageEnd;
+        currentMessage++;
+      }
+    }
+  }
 }
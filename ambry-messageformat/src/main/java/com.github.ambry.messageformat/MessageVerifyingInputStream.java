@@ -0,0 +1,178 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.messageformat;
+
+import com.github.ambry.store.CorruptMessageException;
+import com.github.ambry.store.MessageInfo;
+import com.github.ambry.utils.Crc32;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+
+/**
+ * Verifies the messages of a message set as they are read from the underlying stream, without buffering them. The
+ * header of every message and the crc of every record in it are checked as the bytes go by, and the size of every
+ * message is checked against its {@link MessageInfo}. The read that completes a part of a message that does not
+ * check out fails with a {@link CorruptMessageException}, as does a read that hits the end of the stream before all
+ * the messages have been read. A message set that is streamed into the store through this stream is therefore only
+ * indexed if all its messages are intact.
+ */
+public class MessageVerifyingInputStream extends InputStream {
+  private final InputStream stream;
+  private final List<MessageInfo> messageInfoList;
+  private final ByteBuffer header = ByteBuffer.allocate(MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize());
+  private final ByteBuffer recordCrc = ByteBuffer.allocate(MessageFormatRecord.Crc_Size);
+  private final Crc32 crc = new Crc32();
+  private final byte[] singleByte = new byte[1];
+  private int messageIndex = 0;
+  // the number of bytes of the current message that have been read
+  private long messageBytesRead = 0;
+  // the offset of the first record of the current message, relative to the start of the message
+  private long firstRecordRelativeOffset;
+  // the end offsets of the records of the current message, relative to the start of the message, or null while the
+  // header of the message is being read
+  private long[] recordEndRelativeOffsets;
+  private int recordIndex;
+
+  /**
+   * @param stream The stream to read the messages from
+   * @param messageInfoList The infos of the messages in the stream, in the order of the messages
+   */
+  public MessageVerifyingInputStream(InputStream stream, List<MessageInfo> messageInfoList) {
+    this.stream = stream;
+    this.messageInfoList = messageInfoList;
+  }
+
+  @Override
+  public int read()
+      throws IOException {
+    int read = read(singleByte, 0, 1);
+    return read == -1 ? -1 : singleByte[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len)
+      throws IOException {
+    int read = stream.read(b, off, len);
+    if (read > 0) {
+      verify(b, off, read);
+    } else if (read == -1 && !isComplete()) {
+      // a short stream would otherwise leave the writer waiting for bytes that never come
+      throw new CorruptMessageException(
+          "Stream ended after " + messageIndex + " of " + messageInfoList.size() + " messages");
+    }
+    return read;
+  }
+
+  /**
+   * @return true if all the messages of the message set have been read and verified
+   */
+  public boolean isComplete() {
+    return messageIndex == messageInfoList.size();
+  }
+
+  /**
+   * Runs the given bytes, which directly follow the bytes that were verified before, through the verification
+   */
+  private void verify(byte[] b, int off, int len)
+      throws CorruptMessageException {
+    while (len > 0) {
+      if (messageIndex == messageInfoList.size()) {
+        throw new CorruptMessageException("Stream has more bytes than the " + messageInfoList.size() + " messages");
+      }
+      int toProcess;
+      if (recordEndRelativeOffsets == null) {
+        // the header buffer is flipped once it is full, so whether it has been read is told by the record offsets
+        toProcess = Math.min(header.remaining(), len);
+        header.put(b, off, toProcess);
+        if (!header.hasRemaining()) {
+          onHeaderRead();
+        }
+      } else if (messageBytesRead < firstRecordRelativeOffset) {
+        // the key is only covered by the size checks
+        toProcess = (int) Math.min(firstRecordRelativeOffset - messageBytesRead, len);
+      } else {
+        long recordEnd = recordEndRelativeOffsets[recordIndex];
+        long crcStart = recordEnd - MessageFormatRecord.Crc_Size;
+        if (messageBytesRead < crcStart) {
+          toProcess = (int) Math.min(crcStart - messageBytesRead, len);
+          crc.update(b, off, toProcess);
+        } else {
+          toProcess = (int) Math.min(recordEnd - messageBytesRead, len);
+          recordCrc.put(b, off, toProcess);
+          if (!recordCrc.hasRemaining()) {
+            onRecordRead();
+          }
+        }
+      }
+      off += toProcess;
+      len -= toProcess;
+      messageBytesRead += toProcess;
+      if (recordEndRelativeOffsets != null && recordIndex == recordEndRelativeOffsets.length) {
+        onMessageRead();
+      }
+    }
+  }
+
+  private void onHeaderRead()
+      throws CorruptMessageException {
+    header.flip();
+    MessageFormatRecord.MessageHeader_Format_V1 headerFormat = new MessageFormatRecord.MessageHeader_Format_V1(header);
+    if (headerFormat.getVersion() != MessageFormatRecord.Message_Header_Version_V1) {
+      throw new CorruptMessageException(
+          "Unknown header version " + headerFormat.getVersion() + " of " + messageInfoList.get(messageIndex));
+    }
+    try {
+      headerFormat.verifyHeader();
+    } catch (MessageFormatException e) {
+      throw new CorruptMessageException("Header of " + messageInfoList.get(messageIndex) + " is corrupt", e);
+    }
+    if (headerFormat.getBlobPropertiesRecordRelativeOffset()
+        != MessageFormatRecord.Message_Header_Invalid_Relative_Offset) {
+      firstRecordRelativeOffset = headerFormat.getBlobPropertiesRecordRelativeOffset();
+      recordEndRelativeOffsets = new long[]{headerFormat.getUserMetadataRecordRelativeOffset(),
+          headerFormat.getBlobRecordRelativeOffset(), firstRecordRelativeOffset + headerFormat.getMessageSize()};
+    } else {
+      firstRecordRelativeOffset = headerFormat.getDeleteRecordRelativeOffset();
+      recordEndRelativeOffsets = new long[]{firstRecordRelativeOffset + headerFormat.getMessageSize()};
+    }
+    long messageSize = recordEndRelativeOffsets[recordEndRelativeOffsets.length - 1];
+    if (messageSize != messageInfoList.get(messageIndex).getSize()) {
+      throw new CorruptMessageException(
+          "Size " + messageSize + " in header does not match the size of " + messageInfoList.get(messageIndex));
+    }
+    recordIndex = 0;
+  }
+
+  private void onRecordRead()
+      throws CorruptMessageException {
+    recordCrc.flip();
+    if (recordCrc.getLong() != crc.getValue()) {
+      throw new CorruptMessageException("Record " + recordIndex + " of " + messageInfoList.get(messageIndex)
+          + " does not match its crc");
+    }
+    recordCrc.clear();
+    crc.reset();
+    recordIndex++;
+  }
+
+  private void onMessageRead() {
+    messageIndex++;
+    messageBytesRead = 0;
+    recordEndRelativeOffsets = null;
+    header.clear();
+  }
+}
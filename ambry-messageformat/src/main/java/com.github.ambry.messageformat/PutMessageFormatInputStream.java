@@ -55,6 +55,9 @@ public class PutMessageFormatInputStream extends MessageFormatInputStream {
             MessageFormatRecord.Message_Header_Invalid_Relative_Offset,
             headerSize + key.sizeInBytes() + blobPropertiesRecordSize,
             headerSize + key.sizeInBytes() + blobPropertiesRecordSize + userMetadataSize);
+    long blobPropertiesRecordOffset = headerSize + key.sizeInBytes();
+    recordOffsets = new long[]{blobPropertiesRecordOffset, blobPropertiesRecordOffset + blobPropertiesRecordSize,
+        blobPropertiesRecordOffset + blobPropertiesRecordSize + userMetadataSize};
     buffer.put(key.toBytes());
     MessageFormatRecord.BlobProperties_Format_V1.serializeBlobPropertiesRecord(buffer, blobProperties);
     MessageFormatRecord.UserMetadata_Format_V1.serializeUserMetadataRecord(buffer, userMetadata);
@@ -233,6 +233,15 @@ public class BlobStoreHardDeleteTest {
       public StoreKey getKeyAt(int index) {
         return messageList.get(index).key;
       }
+
+      @Override
+      public long[] getRecordOffsetsAt(int index) {
+        return null;
+      }
+
+      @Override
+      public void release() {
+      }
     }
   }
 
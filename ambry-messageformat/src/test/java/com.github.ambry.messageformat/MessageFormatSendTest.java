@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.nio.ByteBuffer;
 import java.util.Random;
 
@@ -35,10 +36,18 @@ public class MessageFormatSendTest {
 
     ArrayList<ByteBuffer> buffers;
     ArrayList<StoreKey> keys;
+    ArrayList<long[]> recordOffsets;
+    int releaseCount = 0;
 
     public MockMessageReadSet(ArrayList<ByteBuffer> buffers, ArrayList<StoreKey> keys) {
+      this(buffers, keys, null);
+    }
+
+    public MockMessageReadSet(ArrayList<ByteBuffer> buffers, ArrayList<StoreKey> keys,
+        ArrayList<long[]> recordOffsets) {
       this.buffers = buffers;
       this.keys = keys;
+      this.recordOffsets = recordOffsets;
     }
 
     @Override
@@ -65,6 +74,16 @@ public class MessageFormatSendTest {
     public StoreKey getKeyAt(int index) {
       return keys.get(index);
     }
+
+    @Override
+    public long[] getRecordOffsetsAt(int index) {
+      return recordOffsets == null ? null : recordOffsets.get(index);
+    }
+
+    @Override
+    public void release() {
+      releaseCount++;
+    }
   }
 
   @Test
@@ -119,7 +138,7 @@ public class MessageFormatSendTest {
       listbuf.add(buf1);
       ArrayList<StoreKey> storeKeys = new ArrayList<StoreKey>();
       storeKeys.add(new MockId("012345678910123456789012"));
-      MessageReadSet readSet = new MockMessageReadSet(listbuf, storeKeys);
+      MockMessageReadSet readSet = new MockMessageReadSet(listbuf, storeKeys);
 
       MetricRegistry registry = new MetricRegistry();
       MessageFormatMetrics metrics = new MessageFormatMetrics(registry);
@@ -129,9 +148,12 @@ public class MessageFormatSendTest {
       ByteBuffer bufresult = ByteBuffer.allocate(1010);
       WritableByteChannel channel1 = Channels.newChannel(new ByteBufferOutputStream(bufresult));
       while (!send.isSendComplete()) {
+        Assert.assertEquals("The read set should not be released before the send is complete", 0,
+            readSet.releaseCount);
         send.writeTo(channel1);
       }
       Assert.assertArrayEquals(buf1.array(), bufresult.array());
+      Assert.assertEquals("The read set should be released once the send is complete", 1, readSet.releaseCount);
 
       // get blob
       MessageFormatSend send1 = new MessageFormatSend(readSet, MessageFormatFlags.Blob, metrics, new MockIdFactory());
@@ -294,6 +316,80 @@ public class MessageFormatSendTest {
     }
   }
 
+  /**
+   * Tests that the records of a message are sent from the offsets that were recorded when the message was written,
+   * without the message being parsed, and that offsets that do not fit the message are rejected
+   * @throws IOException
+   * @throws MessageFormatException
+   */
+  @Test
+  public void sendWriteWithRecordOffsetsTest()
+      throws IOException, MessageFormatException {
+    // a message with the same layout as in sendWriteTest, but with a header that cannot be parsed
+    ByteBuffer buf1 = ByteBuffer.allocate(1010);
+    new Random().nextBytes(buf1.array());
+    byte[] usermetadata = new byte[100];
+    System.arraycopy(buf1.array(), 81 + 6, usermetadata, 0, 100);
+    byte[] data = new byte[805];
+    System.arraycopy(buf1.array(), 191 + 10, data, 0, 805);
+    buf1.putShort(0, (short) 1234);
+
+    ArrayList<ByteBuffer> listbuf = new ArrayList<ByteBuffer>();
+    listbuf.add(buf1);
+    ArrayList<StoreKey> storeKeys = new ArrayList<StoreKey>();
+    storeKeys.add(new MockId("012345678910123456789012"));
+    ArrayList<long[]> recordOffsets = new ArrayList<long[]>();
+    recordOffsets.add(new long[]{60, 81, 191});
+    MessageReadSet readSet = new MockMessageReadSet(listbuf, storeKeys, recordOffsets);
+    MessageFormatMetrics metrics = new MessageFormatMetrics(new MetricRegistry());
+
+    Assert.assertArrayEquals(Arrays.copyOfRange(buf1.array(), 191, 1010),
+        sendAll(new MessageFormatSend(readSet, MessageFormatFlags.Blob, metrics, new MockIdFactory()), 819));
+    Assert.assertArrayEquals(Arrays.copyOfRange(buf1.array(), 81, 191),
+        sendAll(new MessageFormatSend(readSet, MessageFormatFlags.BlobUserMetadata, metrics, new MockIdFactory()),
+            110));
+    Assert.assertArrayEquals(Arrays.copyOfRange(buf1.array(), 60, 81),
+        sendAll(new MessageFormatSend(readSet, MessageFormatFlags.BlobProperties, metrics, new MockIdFactory()), 21));
+    Assert.assertArrayEquals(Arrays.copyOfRange(buf1.array(), 60, 191),
+        sendAll(new MessageFormatSend(readSet, MessageFormatFlags.BlobInfo, metrics, new MockIdFactory()), 131));
+
+    // without the record offsets, the message has to be parsed and its header is found to be unknown
+    try {
+      new MessageFormatSend(new MockMessageReadSet(listbuf, storeKeys), MessageFormatFlags.Blob, metrics,
+          new MockIdFactory());
+      Assert.fail("The header of the message should not have been parsed");
+    } catch (MessageFormatException e) {
+      Assert.assertEquals(MessageFormatErrorCodes.Unknown_Format_Version, e.getErrorCode());
+    }
+
+    // offsets that go past the end of the message
+    recordOffsets.set(0, new long[]{60, 81, 1011});
+    try {
+      new MessageFormatSend(readSet, MessageFormatFlags.Blob, metrics, new MockIdFactory());
+      Assert.fail("Record offsets that do not fit the message should have been rejected");
+    } catch (MessageFormatException e) {
+      Assert.assertEquals(MessageFormatErrorCodes.Data_Corrupt, e.getErrorCode());
+    }
+  }
+
+  /**
+   * Writes out all of a send
+   * @param send The send to write out
+   * @param expectedSize The size that the send is expected to have
+   * @return The bytes written by the send
+   * @throws IOException
+   */
+  private byte[] sendAll(MessageFormatSend send, int expectedSize)
+      throws IOException {
+    Assert.assertEquals(expectedSize, send.sizeInBytes());
+    ByteBuffer result = ByteBuffer.allocate(expectedSize);
+    WritableByteChannel channel = Channels.newChannel(new ByteBufferOutputStream(result));
+    while (!send.isSendComplete()) {
+      send.writeTo(channel);
+    }
+    return result.array();
+  }
+
   @Test
   public void messageReadSetIndexInputStreamTest() {
     try {
@@ -14,15 +14,21 @@
 package com.github.ambry.messageformat;
 
 import com.github.ambry.store.MessageInfo;
+import com.github.ambry.store.StoreKey;
 import com.github.ambry.utils.ByteBufferInputStream;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import com.github.ambry.store.Write;
 
@@ -83,4 +89,61 @@ public class MessageFormatWriteSetTest {
     Assert.assertArrayEquals(write.getBuffer().array(), buf);
   }
 
+  /**
+   * Tests that the record offsets of put messages that are written without them are taken from their headers, also
+   * when the messages are read in small pieces, and that deletes and messages that cannot be parsed are left alone
+   * @throws Exception
+   */
+  @Test
+  public void recordOffsetsFromHeadersTest()
+      throws Exception {
+    Random random = new Random();
+    byte[] userMetadata = new byte[100];
+    random.nextBytes(userMetadata);
+    byte[] data = new byte[500];
+    random.nextBytes(data);
+    StoreKey putKey = new MockId("id1");
+    BlobProperties properties = new BlobProperties(data.length, "servid");
+    MessageFormatInputStream putStream =
+        new PutMessageFormatInputStream(putKey, properties, ByteBuffer.wrap(userMetadata),
+            new ByteBufferInputStream(ByteBuffer.wrap(data)), data.length, BlobType.DataBlob);
+    MessageFormatInputStream deleteStream = new DeleteMessageFormatInputStream(new MockId("id2"));
+    byte[] garbage = new byte[100];
+    random.nextBytes(garbage);
+    ByteArrayOutputStream messages = new ByteArrayOutputStream();
+    for (MessageFormatInputStream stream : new MessageFormatInputStream[]{putStream, deleteStream}) {
+      byte[] message = new byte[(int) stream.getSize()];
+      new DataInputStream(stream).readFully(message);
+      messages.write(message);
+    }
+    messages.write(garbage);
+    List<MessageInfo> infoList = new ArrayList<MessageInfo>();
+    infoList.add(new MessageInfo(putKey, putStream.getSize(), 123));
+    infoList.add(new MessageInfo(new MockId("id2"), deleteStream.getSize(), true));
+    infoList.add(new MessageInfo(new MockId("id3"), garbage.length, 123));
+
+    InputStream stream = new FilterInputStream(new ByteBufferInputStream(ByteBuffer.wrap(messages.toByteArray()))) {
+      @Override
+      public int read(byte[] b, int off, int len)
+          throws IOException {
+        return super.read(b, off, Math.min(len, 7));
+      }
+    };
+    MessageFormatWriteSet set = new MessageFormatWriteSet(stream, infoList, false);
+    MockWrite write = new MockWrite(messages.size());
+    Assert.assertEquals(messages.size(), set.writeTo(write));
+    Assert.assertArrayEquals(messages.toByteArray(), write.getBuffer().array());
+    List<MessageInfo> written = set.getMessageSetInfo();
+    Assert.assertEquals(3, written.size());
+    Assert.assertEquals(putKey, written.get(0).getStoreKey());
+    Assert.assertEquals(putStream.getSize(), written.get(0).getSize());
+    Assert.assertEquals(123, written.get(0).getExpirationTimeInMs());
+    Assert.assertArrayEquals(putStream.getRecordOffsets(), written.get(0).getRecordOffsets());
+    Assert.assertTrue(written.get(1).isDeleted());
+    Assert.assertNull(written.get(1).getRecordOffsets());
+    Assert.assertNull(written.get(2).getRecordOffsets());
+    // the list that was given to the write set is not changed
+    Assert.assertNull(infoList.get(0).getRecordOffsets());
+  }
+
 }
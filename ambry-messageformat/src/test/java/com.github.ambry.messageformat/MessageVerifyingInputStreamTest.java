@@ -0,0 +1,144 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.messageformat;
+
+import com.github.ambry.store.CorruptMessageException;
+import com.github.ambry.store.MessageInfo;
+import com.github.ambry.store.StoreKey;
+import com.github.ambry.utils.ByteBufferInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class MessageVerifyingInputStreamTest {
+  private final Random random = new Random();
+
+  @Test
+  public void testValidMessages()
+      throws IOException, MessageFormatException {
+    List<MessageInfo> infos = new ArrayList<MessageInfo>();
+    byte[] messages = createMessages(infos);
+    MessageVerifyingInputStream stream =
+        new MessageVerifyingInputStream(new ByteBufferInputStream(ByteBuffer.wrap(messages)), infos);
+    byte[] read = readFully(stream);
+    Assert.assertArrayEquals(messages, read);
+    Assert.assertTrue(stream.isComplete());
+
+    // single byte reads go through the same checks
+    stream = new MessageVerifyingInputStream(new ByteBufferInputStream(ByteBuffer.wrap(messages)), infos);
+    for (int i = 0; i < messages.length; i++) {
+      Assert.assertFalse(stream.isComplete());
+      Assert.assertEquals(messages[i] & 0xFF, stream.read());
+    }
+    Assert.assertTrue(stream.isComplete());
+  }
+
+  @Test
+  public void testCorruptMessages()
+      throws IOException, MessageFormatException {
+    List<MessageInfo> infos = new ArrayList<MessageInfo>();
+    byte[] messages = createMessages(infos);
+    // a flipped byte in the header or in any record of a message has to be caught. The key is not covered by a crc.
+    int headerSize = MessageFormatRecord.MessageHeader_Format_V1.getHeaderSize();
+    int recordsStart = headerSize + infos.get(0).getStoreKey().sizeInBytes();
+    for (int i = 0; i < 50; i++) {
+      byte[] corrupt = messages.clone();
+      int position = i < headerSize ? i : recordsStart + random.nextInt((int) infos.get(0).getSize() - recordsStart);
+      corrupt[position] ^= 0xFF;
+      assertCorrupt(corrupt, infos);
+    }
+
+    // a size that does not match the message
+    List<MessageInfo> wrongInfos = new ArrayList<MessageInfo>(infos);
+    MessageInfo info = wrongInfos.get(1);
+    wrongInfos.set(1, new MessageInfo(info.getStoreKey(), info.getSize() + 1, info.isDeleted(), -1));
+    assertCorrupt(messages, wrongInfos);
+
+    // more bytes than messages. All the messages have been verified by the time the extra byte is read.
+    byte[] tooLong = new byte[messages.length + 1];
+    System.arraycopy(messages, 0, tooLong, 0, messages.length);
+    try {
+      readFully(new MessageVerifyingInputStream(new ByteBufferInputStream(ByteBuffer.wrap(tooLong)), infos));
+      Assert.fail("Extra bytes should have been rejected");
+    } catch (CorruptMessageException e) {
+      // expected
+    }
+
+    // fewer bytes than messages
+    byte[] tooShort = new byte[messages.length - 1];
+    System.arraycopy(messages, 0, tooShort, 0, tooShort.length);
+    assertCorrupt(tooShort, infos);
+  }
+
+  /**
+   * Creates a put, a delete and another put message and adds their infos to the given list
+   * @return The serialized messages
+   */
+  private byte[] createMessages(List<MessageInfo> infos)
+      throws IOException, MessageFormatException {
+    ByteArrayOutputStream messages = new ByteArrayOutputStream();
+    for (int i = 0; i < 3; i++) {
+      StoreKey key = new MockId("id" + i);
+      MessageFormatInputStream messageStream;
+      if (i == 1) {
+        messageStream = new DeleteMessageFormatInputStream(key);
+      } else {
+        byte[] userMetadata = new byte[1000];
+        random.nextBytes(userMetadata);
+        byte[] data = new byte[2000];
+        random.nextBytes(data);
+        messageStream = new PutMessageFormatInputStream(key, new BlobProperties(data.length, "servid" + i),
+            ByteBuffer.wrap(userMetadata), new ByteBufferInputStream(ByteBuffer.wrap(data)), data.length,
+            BlobType.DataBlob);
+      }
+      infos.add(new MessageInfo(key, messageStream.getSize(), i == 1, -1));
+      // a message format stream does not signal its end, so exactly the size of the message is read from it
+      byte[] message = new byte[(int) messageStream.getSize()];
+      new DataInputStream(messageStream).readFully(message);
+      messages.write(message);
+    }
+    return messages.toByteArray();
+  }
+
+  private void assertCorrupt(byte[] messages, List<MessageInfo> infos)
+      throws IOException {
+    MessageVerifyingInputStream stream =
+        new MessageVerifyingInputStream(new ByteBufferInputStream(ByteBuffer.wrap(messages)), infos);
+    try {
+      readFully(stream);
+      Assert.fail("Corrupt messages should have been rejected");
+    } catch (CorruptMessageException e) {
+      Assert.assertFalse(stream.isComplete());
+    }
+  }
+
+  private byte[] readFully(InputStream stream)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[1 + random.nextInt(700)];
+    int read;
+    while ((read = stream.read(buf, 0, buf.length)) != -1) {
+      out.write(buf, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
@@ -57,4 +57,11 @@ public class CompositeSend implements Send {
   public long sizeInBytes() {
     return totalSizeToWrite;
   }
+
+  @Override
+  public void release() {
+    for (Send send : compositSendList) {
+      send.release();
+    }
+  }
 }
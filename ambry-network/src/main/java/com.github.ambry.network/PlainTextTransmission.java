@@ -61,7 +61,7 @@ public class PlainTextTransmission extends Transmission {
   public boolean read()
       throws IOException {
     if (!hasReceive()) {
-      networkReceive = new NetworkReceive(getConnectionId(), new BoundedByteBufferReceive(), time);
+      networkReceive = newNetworkReceive();
     }
     long startTimeMs = SystemTime.getInstance().milliseconds();
     long bytesRead = networkReceive.getReceivedBytes().readFrom(socketChannel);
@@ -116,6 +116,8 @@ public class SSLTransmission extends Transmission implements ReadableByteChannel
       return;
     }
     closing = true;
+    clearReceive();
+    clearSend();
     sslEngine.closeOutbound();
     try {
       if (!flush(netWriteBuffer)) {
@@ -131,8 +133,6 @@ public class SSLTransmission extends Transmission implements ReadableByteChannel
       }
       netWriteBuffer.flip();
       flush(netWriteBuffer);
-      clearReceive();
-      clearSend();
       socketChannel.socket().close();
       socketChannel.close();
     } catch (IOException ie) {
@@ -391,7 +391,7 @@ public class SSLTransmission extends Transmission implements ReadableByteChannel
   public boolean read()
       throws IOException {
     if (!hasReceive()) {
-      this.networkReceive = new NetworkReceive(getConnectionId(), new BoundedByteBufferReceive(), time);
+      this.networkReceive = newNetworkReceive();
     }
     long startTimeMs = SystemTime.getInstance().milliseconds();
     long bytesRead = networkReceive.getReceivedBytes().readFrom(this);
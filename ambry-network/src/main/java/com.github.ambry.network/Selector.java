@@ -31,6 +31,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -80,12 +81,33 @@ public class Selector implements Selectable {
   private final AtomicLong IdGenerator;
   private final AtomicLong numActiveConnections;
   private final SSLFactory sslFactory;
+  private final long receiveStreamingThresholdBytes;
+  private final int receiveStreamingBufferBytes;
+  private final long receiveStreamingTimeoutMs;
+  private final ConcurrentLinkedQueue<String> connectionsToResumeReading;
 
   /**
    * Create a new selector
    */
   public Selector(NetworkMetrics metrics, Time time, SSLFactory sslFactory)
       throws IOException {
+    this(metrics, time, sslFactory, 0, 0, 0);
+  }
+
+  /**
+   * Create a new selector that streams the payloads that it receives on connections registered through
+   * {@link #register(SocketChannel, PortType)} when they are larger than the given threshold. A streamed payload is
+   * added to {@link #completedReceives()} as soon as it starts to be received, so that it can be read while it
+   * arrives. Reading from its connection stops whenever its buffer is full.
+   * @param receiveStreamingThresholdBytes The size above which a payload is streamed. Nothing is streamed if this is
+   *                                       zero.
+   * @param receiveStreamingBufferBytes The number of bytes of a streamed payload that are held before they are read
+   * @param receiveStreamingTimeoutMs The time a reader of a streamed payload waits for more bytes before it fails
+   * @see BoundedByteBufferReceive
+   */
+  public Selector(NetworkMetrics metrics, Time time, SSLFactory sslFactory, long receiveStreamingThresholdBytes,
+      int receiveStreamingBufferBytes, long receiveStreamingTimeoutMs)
+      throws IOException {
     this.nioSelector = java.nio.channels.Selector.open();
     this.time = time;
     this.keyMap = new HashMap<String, SelectionKey>();
@@ -100,6 +122,10 @@ public class Selector implements Selectable {
     unreadyConnections = new HashSet<>();
     metrics.registerSelectorActiveConnections(numActiveConnections);
     this.sslFactory = sslFactory;
+    this.receiveStreamingThresholdBytes = receiveStreamingThresholdBytes;
+    this.receiveStreamingBufferBytes = receiveStreamingBufferBytes;
+    this.receiveStreamingTimeoutMs = receiveStreamingTimeoutMs;
+    this.connectionsToResumeReading = new ConcurrentLinkedQueue<String>();
   }
 
   /**
@@ -193,6 +219,10 @@ public class Selector implements Selectable {
       channel.close();
       throw e;
     }
+    if (receiveStreamingThresholdBytes > 0) {
+      transmission.enableReceiveStreaming(receiveStreamingThresholdBytes, receiveStreamingBufferBytes,
+          receiveStreamingTimeoutMs);
+    }
     key.attach(transmission);
     this.keyMap.put(connectionId, key);
     numActiveConnections.set(this.keyMap.size());
@@ -211,6 +241,26 @@ public class Selector implements Selectable {
     }
   }
 
+  /**
+   * Stop reading from the connection for the given id until {@link #unmute(String)} is called for it
+   */
+  public void mute(String connectionId) {
+    SelectionKey key = keyForId(connectionId);
+    if (key != null && key.isValid()) {
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+  }
+
+  /**
+   * Resume reading from the connection for the given id
+   */
+  public void unmute(String connectionId) {
+    SelectionKey key = keyForId(connectionId);
+    if (key != null && key.isValid()) {
+      key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+  }
+
   /**
    * Interrupt the selector if it is blocked waiting to do I/O.
    */
@@ -252,6 +302,7 @@ public class Selector implements Selectable {
   public void send(NetworkSend networkSend) {
     SelectionKey key = keyForId(networkSend.getConnectionId());
     if (key == null) {
+      networkSend.getPayload().release();
       throw new IllegalStateException("Attempt to send data to a null key");
     }
     Transmission transmission = getTransmission(key);
@@ -259,6 +310,7 @@ public class Selector implements Selectable {
       transmission.setNetworkSend(networkSend);
     } catch (CancelledKeyException e) {
       logger.debug("Ignoring response for closed socket.");
+      networkSend.getPayload().release();
       close(key);
     }
   }
@@ -313,6 +365,8 @@ public class Selector implements Selectable {
       }
     }
 
+    resumeReading();
+
     // check ready keys
     long startSelect = time.milliseconds();
     int readyKeys = select(timeoutMs);
@@ -377,6 +431,34 @@ public class Selector implements Selectable {
     this.metrics.selectorIOTime.update(endIo - endSelect);
   }
 
+  /**
+   * Resumes reading from the connections whose streamed payloads have room again
+   */
+  private void resumeReading() {
+    String connectionId = connectionsToResumeReading.poll();
+    while (connectionId != null) {
+      SelectionKey key = keyForId(connectionId);
+      if (key != null) {
+        Transmission transmission = getTransmission(key);
+        try {
+          key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+          // the transmission may hold bytes that it has already taken off the socket, which would not make the key
+          // readable again
+          if (transmission.hasReceive()) {
+            read(key, transmission);
+          }
+        } catch (IOException e) {
+          metrics.selectorIOErrorCount.inc();
+          logger.warn("Error in I/O with connection to {}", socketDescription(channel(key)), e);
+          close(key);
+        } catch (CancelledKeyException e) {
+          close(key);
+        }
+      }
+      connectionId = connectionsToResumeReading.poll();
+    }
+  }
+
   /**
    * Check readiness for unready connections and add to completed list if ready
    */
@@ -530,11 +612,24 @@ public class Selector implements Selectable {
       throws IOException {
     long startTimeToReadInMs = time.milliseconds();
     try {
+      boolean wasStreamed =
+          transmission.hasReceive() && transmission.getNetworkReceive().getReceivedBytes().isStreamed();
       boolean readComplete = transmission.read();
+      NetworkReceive networkReceive = transmission.getNetworkReceive();
+      BoundedByteBufferReceive receive = networkReceive.getReceivedBytes();
+      if (receive.isStreamed() && !wasStreamed) {
+        // a streamed payload is handed out as soon as it starts, so that it can be read while it arrives
+        receive.setStreamListener(new ResumeReadingListener(transmission.getConnectionId()));
+        this.completedReceives.add(networkReceive);
+      }
       if (readComplete) {
-        this.completedReceives.add(transmission.getNetworkReceive());
+        if (!receive.isStreamed()) {
+          this.completedReceives.add(networkReceive);
+        }
         transmission.onReceiveComplete();
         transmission.clearReceive();
+      } else if (receive.isStreamBufferFull()) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
       }
     } finally {
       long readTime = time.milliseconds() - startTimeToReadInMs;
@@ -577,4 +672,21 @@ public class Selector implements Selectable {
   private SocketChannel channel(SelectionKey key) {
     return (SocketChannel) key.channel();
   }
+
+  /**
+   * Resumes reading from a connection once the buffer of the payload that is streamed from it has room again
+   */
+  private class ResumeReadingListener implements Runnable {
+    private final String connectionId;
+
+    ResumeReadingListener(String connectionId) {
+      this.connectionId = connectionId;
+    }
+
+    @Override
+    public void run() {
+      connectionsToResumeReading.add(connectionId);
+      nioSelector.wakeup();
+    }
+  }
 }
@@ -136,6 +136,14 @@ public class SocketRequestResponseChannel implements RequestResponseChannel {
     requestQueue.put(request);
   }
 
+  /**
+   * Send a request to be handled if there is room in the queue for it
+   * @return true if the request was queued, false if the queue was full
+   */
+  public boolean offerRequest(Request request) {
+    return requestQueue.offer(request);
+  }
+
   /** Send a response back to the socket server to be sent over the network */
   @Override
   public void sendResponse(Send payloadToSend, Request originalRequest, ServerNetworkResponseMetrics metrics)
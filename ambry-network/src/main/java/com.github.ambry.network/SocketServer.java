@@ -16,7 +16,6 @@ package com.github.ambry.network;
 import com.codahale.metrics.MetricRegistry;
 import com.github.ambry.config.NetworkConfig;
 import com.github.ambry.config.SSLConfig;
-import com.github.ambry.utils.ByteBufferInputStream;
 import com.github.ambry.utils.SystemTime;
 import com.github.ambry.utils.Time;
 import com.github.ambry.utils.Utils;
@@ -31,6 +30,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -59,6 +59,9 @@ public class SocketServer implements NetworkServer {
   private volatile ArrayList<Acceptor> acceptors;
   private final SocketRequestResponseChannel requestResponseChannel;
   private Logger logger = LoggerFactory.getLogger(getClass());
+  private final int requestStreamingThresholdBytes;
+  private final int requestStreamingBufferBytes;
+  private final int requestStreamingTimeoutMs;
   private final ServerNetworkMetrics metrics;
   private final HashMap<PortType, Port> ports;
   private SSLFactory sslFactory;
@@ -71,6 +74,9 @@ public class SocketServer implements NetworkServer {
     this.sendBufferSize = config.socketSendBufferBytes;
     this.recvBufferSize = config.socketReceiveBufferBytes;
     this.maxRequestSize = config.socketRequestMaxBytes;
+    this.requestStreamingThresholdBytes = config.socketRequestStreamingThresholdBytes;
+    this.requestStreamingBufferBytes = config.socketRequestStreamingBufferBytes;
+    this.requestStreamingTimeoutMs = config.socketRequestStreamingTimeoutMs;
     processors = new ArrayList<Processor>(numProcessorThreads);
     requestResponseChannel = new SocketRequestResponseChannel(numProcessorThreads, maxQueuedRequests);
     metrics = new ServerNetworkMetrics(requestResponseChannel, registry, processors);
@@ -149,7 +155,8 @@ public class SocketServer implements NetworkServer {
       throws IOException, InterruptedException {
     logger.info("Starting {} processor threads", numProcessorThreads);
     for (int i = 0; i < numProcessorThreads; i++) {
-      processors.add(i, new Processor(i, maxRequestSize, requestResponseChannel, metrics, sslFactory));
+      processors.add(i, new Processor(i, maxRequestSize, requestStreamingThresholdBytes, requestStreamingBufferBytes,
+          requestStreamingTimeoutMs, requestResponseChannel, metrics, sslFactory));
       Utils.newThread("ambry-processor-" + port + " " + i, processors.get(i), false).start();
     }
 
@@ -411,16 +418,20 @@ class Processor extends AbstractServerThread {
       new ConcurrentLinkedQueue<SocketChannelPortTypePair>();
   private final Selector selector;
   private final ServerNetworkMetrics metrics;
+  private final LinkedList<SocketServerRequest> requestsToHandOff = new LinkedList<SocketServerRequest>();
   private static final long pollTimeoutMs = 300;
+  private static final long handOffRetryMs = 10;
 
-  Processor(int id, int maxRequestSize, RequestResponseChannel channel, ServerNetworkMetrics metrics,
+  Processor(int id, int maxRequestSize, int requestStreamingThresholdBytes, int requestStreamingBufferBytes,
+      int requestStreamingTimeoutMs, RequestResponseChannel channel, ServerNetworkMetrics metrics,
       SSLFactory sslFactory)
       throws IOException {
     this.maxRequestSize = maxRequestSize;
     this.channel = (SocketRequestResponseChannel) channel;
     this.id = id;
     this.time = SystemTime.getInstance();
-    selector = new Selector(metrics, time, sslFactory);
+    selector = new Selector(metrics, time, sslFactory, requestStreamingThresholdBytes, requestStreamingBufferBytes,
+        requestStreamingTimeoutMs);
     this.metrics = metrics;
   }
 
@@ -432,15 +443,19 @@ class Processor extends AbstractServerThread {
         configureNewConnections();
         // register any new responses for writing
         processNewResponses();
-        selector.poll(pollTimeoutMs);
+        selector.poll(requestsToHandOff.isEmpty() ? pollTimeoutMs : handOffRetryMs);
+        handOffRequests();
 
-        // handle completed receives
+        // handle completed receives. Streamed requests are among them as soon as they start to be received.
         List<NetworkReceive> completedReceives = selector.completedReceives();
         for (NetworkReceive networkReceive : completedReceives) {
           String connectionId = networkReceive.getConnectionId();
-          SocketServerRequest req = new SocketServerRequest(id, connectionId,
-              new ByteBufferInputStream(networkReceive.getReceivedBytes().getPayload()));
-          channel.sendRequest(req);
+          SocketServerRequest req =
+              new SocketServerRequest(id, connectionId, networkReceive.getReceivedBytes().getPayloadStream());
+          if (!requestsToHandOff.isEmpty() || !channel.offerRequest(req)) {
+            requestsToHandOff.add(req);
+            selector.mute(connectionId);
+          }
         }
       }
     } catch (Exception e) {
@@ -458,6 +473,17 @@ class Processor extends AbstractServerThread {
     }
   }
 
+  /**
+   * Hands the requests that did not fit in the request queue to the request handlers once there is room for them.
+   * The processor does not block on a full queue, because the handlers may be waiting for it to receive more of a
+   * streamed request. It stops reading from the connections of the waiting requests instead.
+   */
+  private void handOffRequests() {
+    while (!requestsToHandOff.isEmpty() && channel.offerRequest(requestsToHandOff.peek())) {
+      selector.unmute(requestsToHandOff.poll().getConnectionId());
+    }
+  }
+
   private void processNewResponses()
       throws InterruptedException, IOException {
     SocketServerResponse curr = (SocketServerResponse) channel.receiveResponse(id);
@@ -466,6 +492,8 @@ class Processor extends AbstractServerThread {
       SocketServerRequest request = (SocketServerRequest) curr.getRequest();
       String connectionId = request.getConnectionId();
       try {
+        // the handler is done with the request, so the part of a streamed request that it did not read is dropped
+        request.getInputStream().close();
         if (curr.getPayload() == null) {
           // We should never need to send an empty response. If the payload is empty, we will assume error
           // and close the connection
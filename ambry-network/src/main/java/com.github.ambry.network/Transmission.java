@@ -35,6 +35,9 @@ public abstract class Transmission {
   protected SelectionKey key = null;
   protected final Time time;
   protected final NetworkMetrics metrics;
+  private long receiveStreamingThresholdBytes = 0;
+  private int receiveStreamingBufferBytes = 0;
+  private long receiveStreamingTimeoutMs = 0;
 
   public Transmission(String connectionId, SocketChannel socketChannel, SelectionKey key, Time time,
       NetworkMetrics metrics) {
@@ -70,6 +73,28 @@ public abstract class Transmission {
     key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
   }
 
+  /**
+   * Makes the receives on this channel stream their payloads when they are larger than the given threshold
+   * @param thresholdBytes The size above which a payload is streamed
+   * @param bufferBytes The number of bytes of a streamed payload that are held before they are read
+   * @param timeoutMs The time a reader of a streamed payload waits for more bytes before it fails
+   * @see BoundedByteBufferReceive
+   */
+  public void enableReceiveStreaming(long thresholdBytes, int bufferBytes, long timeoutMs) {
+    receiveStreamingThresholdBytes = thresholdBytes;
+    receiveStreamingBufferBytes = bufferBytes;
+    receiveStreamingTimeoutMs = timeoutMs;
+  }
+
+  /**
+   * @return A new {@link NetworkReceive} for the next payload to be read from the channel
+   */
+  protected NetworkReceive newNetworkReceive() {
+    return new NetworkReceive(connectionId,
+        new BoundedByteBufferReceive(receiveStreamingThresholdBytes, receiveStreamingBufferBytes,
+            receiveStreamingTimeoutMs), time);
+  }
+
   /**
    * Prepare the channel to accept read and write calls
    * @throws IOException
@@ -147,7 +172,13 @@ public abstract class Transmission {
     return networkSend != null;
   }
 
+  /**
+   * Clears the {@link NetworkSend} and releases its payload, whether it was sent completely or not
+   */
   public void clearSend() {
+    if (networkSend != null) {
+      networkSend.getPayload().release();
+    }
     networkSend = null;
   }
 
@@ -155,7 +186,13 @@ public abstract class Transmission {
     return networkReceive != null;
   }
 
+  /**
+   * Clears the {@link NetworkReceive}. If its payload is streamed and was not received completely, its readers fail.
+   */
   public void clearReceive() {
+    if (networkReceive != null) {
+      networkReceive.getReceivedBytes().abort();
+    }
     networkReceive = null;
   }
 
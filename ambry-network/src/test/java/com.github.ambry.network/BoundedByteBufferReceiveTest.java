@@ -14,6 +14,14 @@
 package com.github.ambry.network;
 
 import com.github.ambry.utils.ByteBufferInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -44,4 +52,96 @@ public class BoundedByteBufferReceiveTest {
       Assert.assertEquals(true, false);
     }
   }
+
+  /**
+   * Tests that a payload larger than the streaming threshold is passed through a bounded buffer and can be read while
+   * it is received
+   */
+  @Test
+  public void testStreamedReceive()
+      throws IOException {
+    byte[] request = makeRequest(10000);
+    ReadableByteChannel channel = Channels.newChannel(new ByteBufferInputStream(ByteBuffer.wrap(request)));
+    BoundedByteBufferReceive receive = new BoundedByteBufferReceive(1000, 256, 1000);
+    final AtomicInteger listenerRuns = new AtomicInteger(0);
+    receive.setStreamListener(new Runnable() {
+      @Override
+      public void run() {
+        listenerRuns.incrementAndGet();
+      }
+    });
+    receive.readFrom(channel);
+    Assert.assertTrue("Payload should be streamed", receive.isStreamed());
+    Assert.assertNull("A streamed payload has no buffer", receive.getPayload());
+    Assert.assertTrue("Buffer should be full", receive.isStreamBufferFull());
+    Assert.assertEquals("Nothing should be received while the buffer is full", 0, receive.readFrom(channel));
+    InputStream stream = receive.getPayloadStream();
+    byte[] payload = new byte[request.length - 8];
+    int offset = 0;
+    while (!receive.isReadComplete()) {
+      offset += stream.read(payload, offset, 100);
+      receive.readFrom(channel);
+    }
+    new DataInputStream(stream).readFully(payload, offset, payload.length - offset);
+    Assert.assertEquals("Stream should have ended", -1, stream.read());
+    Assert.assertArrayEquals(Arrays.copyOfRange(request, 8, request.length), payload);
+    Assert.assertTrue("Listener should have been told that the buffer had room again", listenerRuns.get() > 0);
+  }
+
+  /**
+   * Tests that the readers of a streamed payload fail when it stops arriving and that a closed stream drops the rest
+   * of the payload
+   */
+  @Test
+  public void testStreamedReceiveFailures()
+      throws IOException {
+    byte[] request = makeRequest(10000);
+    BoundedByteBufferReceive receive = new BoundedByteBufferReceive(1000, 256, 100);
+    receive.readFrom(Channels.newChannel(new ByteBufferInputStream(ByteBuffer.wrap(request, 0, 108))));
+    InputStream stream = receive.getPayloadStream();
+    byte[] payload = new byte[200];
+    Assert.assertEquals("Only what was received should be read", 100, stream.read(payload));
+    try {
+      stream.read(payload);
+      Assert.fail("Read should have timed out");
+    } catch (SocketTimeoutException e) {
+      // expected
+    }
+    receive.abort();
+    try {
+      stream.read(payload);
+      Assert.fail("Read should have failed once the receive was aborted");
+    } catch (EOFException e) {
+      // expected
+    }
+
+    receive = new BoundedByteBufferReceive(1000, 256, 100);
+    ReadableByteChannel channel = Channels.newChannel(new ByteBufferInputStream(ByteBuffer.wrap(request)));
+    receive.readFrom(channel);
+    stream = receive.getPayloadStream();
+    stream.close();
+    while (!receive.isReadComplete()) {
+      receive.readFrom(channel);
+      Assert.assertFalse("Buffer of a closed stream should never fill up", receive.isStreamBufferFull());
+    }
+    try {
+      stream.read(payload);
+      Assert.fail("Read from a closed stream should fail");
+    } catch (IOException e) {
+      // expected
+    }
+
+    // payloads up to the threshold are buffered
+    receive = new BoundedByteBufferReceive(10000, 256, 100);
+    receive.readFrom(Channels.newChannel(new ByteBufferInputStream(ByteBuffer.wrap(makeRequest(10008)))));
+    Assert.assertFalse("Payload should not be streamed", receive.isStreamed());
+    Assert.assertTrue("Payload should be read completely", receive.isReadComplete());
+  }
+
+  private byte[] makeRequest(int size) {
+    byte[] request = new byte[size];
+    new Random().nextBytes(request);
+    ByteBuffer.wrap(request).putLong(0, size);
+    return request;
+  }
 }
@@ -45,4 +45,8 @@ public class ByteBufferSend implements Send {
   public long sizeInBytes() {
     return buffer.limit();
   }
+
+  @Override
+  public void release() {
+  }
 }
@@ -48,6 +48,10 @@ class ByteArraySend implements Send {
   public long sizeInBytes() {
     return bytesToSend.capacity();
   }
+
+  @Override
+  public void release() {
+  }
 }
 
 public class CompositeSendTest {
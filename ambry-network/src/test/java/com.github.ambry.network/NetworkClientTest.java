@@ -410,6 +410,10 @@ class MockSend implements Send {
   public long sizeInBytes() {
     return size;
   }
+
+  @Override
+  public void release() {
+  }
 }
 
 /**
@@ -54,6 +54,10 @@ public class SocketRequestResponseChannelTest {
     public long sizeInBytes() {
       return 10;
     }
+
+    @Override
+    public void release() {
+    }
   }
 
   @Test
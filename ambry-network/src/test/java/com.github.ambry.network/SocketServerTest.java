@@ -32,6 +32,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class SocketServerTest {
@@ -84,13 +85,41 @@ public class SocketServerTest {
     simpleRequest(new Port(server.getSSLPort(), PortType.SSL));
   }
 
+  /**
+   * Tests requests that are larger than the streaming threshold and are handed out while they are received
+   */
+  @Test
+  public void streamedRequest()
+      throws IOException, InterruptedException {
+    streamedRequest(new Port(server.getPort(), PortType.PLAINTEXT));
+  }
+
+  @Test
+  public void streamedSSLRequest()
+      throws IOException, InterruptedException {
+    streamedRequest(new Port(server.getSSLPort(), PortType.SSL));
+  }
+
   private void simpleRequest(Port targetPort)
       throws IOException, InterruptedException {
-    byte[] bytesToSend = new byte[1028];
-    new Random().nextBytes(bytesToSend);
-    ByteBuffer byteBufferToSend = ByteBuffer.wrap(bytesToSend);
-    byteBufferToSend.putLong(0, 1028);
-    BoundedByteBufferSend bufferToSend = new BoundedByteBufferSend(byteBufferToSend);
+    BlockingChannel channel = connect(targetPort);
+    sendRequest(channel, 1028, 1020);
+    channel.disconnect();
+  }
+
+  private void streamedRequest(Port targetPort)
+      throws IOException, InterruptedException {
+    BlockingChannel channel = connect(targetPort);
+    int requestSize = 4 * 1024 * 1024;
+    sendRequest(channel, requestSize, requestSize - 8);
+    // a handler that does not read all of a request leaves the rest to be dropped, and the connection stays usable
+    sendRequest(channel, requestSize, 100);
+    sendRequest(channel, 1028, 1020);
+    channel.disconnect();
+  }
+
+  private BlockingChannel connect(Port targetPort)
+      throws IOException {
     BlockingChannel channel = null;
     if (targetPort.getPortType() == PortType.SSL) {
       channel =
@@ -100,13 +129,38 @@ public class SocketServerTest {
       channel = new BlockingChannel("localhost", targetPort.getPort(), 10000, 10000, 1000, 2000);
     }
     channel.connect();
-    channel.send(bufferToSend);
+    return channel;
+  }
+
+  /**
+   * Sends a request of the given size, of which the handler reads the given number of bytes, and checks the response
+   */
+  private void sendRequest(final BlockingChannel channel, int requestSize, int bytesToRead)
+      throws IOException, InterruptedException {
+    byte[] bytesToSend = new byte[requestSize];
+    new Random().nextBytes(bytesToSend);
+    ByteBuffer byteBufferToSend = ByteBuffer.wrap(bytesToSend);
+    byteBufferToSend.putLong(0, requestSize);
+    final BoundedByteBufferSend bufferToSend = new BoundedByteBufferSend(byteBufferToSend);
+    // a streamed request is not received completely before the handler reads it, so it is sent on its own thread
+    final AtomicReference<IOException> sendException = new AtomicReference<IOException>();
+    Thread sender = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          channel.send(bufferToSend);
+        } catch (IOException e) {
+          sendException.set(e);
+        }
+      }
+    });
+    sender.start();
     RequestResponseChannel requestResponseChannel = server.getRequestResponseChannel();
     Request request = requestResponseChannel.receiveRequest();
     DataInputStream requestStream = new DataInputStream(request.getInputStream());
-    byte[] outputBytes = new byte[1020];
+    byte[] outputBytes = new byte[bytesToRead];
     requestStream.readFully(outputBytes);
-    for (int i = 0; i < 1020; i++) {
+    for (int i = 0; i < bytesToRead; i++) {
       Assert.assertEquals(bytesToSend[8 + i], outputBytes[i]);
     }
 
@@ -123,7 +177,8 @@ public class SocketServerTest {
     for (int i = 0; i < 2040; i++) {
       Assert.assertEquals(responseBytes[8 + i], responseBytesReceived[i]);
     }
-    channel.disconnect();
+    sender.join();
+    Assert.assertNull("Sending the request failed", sendException.get());
   }
 
   /**
@@ -0,0 +1,419 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.protocol;
+
+import com.github.ambry.network.Send;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The body of a response compressed with a {@link CompressionCodec}. The body is compressed in chunks of at most
+ * {@link #Chunk_Size_In_Bytes} bytes, each on its own, so that it can be compressed as it is read out of a
+ * {@link Send} without holding the uncompressed body in memory. It is sent as the codec, the size of the body before
+ * it was compressed, the number of chunks and then the chunks, each as its size before and after it was compressed and
+ * its compressed bytes.
+ * <p>
+ * A payload is either compressed to be sent, in which case it holds its compressed chunks, or read from a stream, in
+ * which case its chunks are read off the stream one at a time as the body is read.
+ */
+class CompressedPayload {
+  static final int Chunk_Size_In_Bytes = 64 * 1024;
+
+  private final CompressionCodec codec;
+  private final long uncompressedSizeInBytes;
+  private final int chunkCount;
+  // the chunks of a payload that is compressed to be sent, or null if the payload is read from a stream
+  private final List<Chunk> chunks;
+  // the stream that the chunks of a payload that is read are read from, or null if the payload is to be sent
+  private final DataInputStream stream;
+  private long sizeInBytes;
+  private boolean decompressedStreamCreated = false;
+
+  private static final int Codec_Size_In_Bytes = 2;
+  private static final int Uncompressed_Size_In_Bytes = 8;
+  private static final int Chunk_Count_Size_In_Bytes = 4;
+  private static final int Chunk_Header_Size_In_Bytes = 8;
+  private static final int Header_Size_In_Bytes =
+      Codec_Size_In_Bytes + Uncompressed_Size_In_Bytes + Chunk_Count_Size_In_Bytes;
+
+  private CompressedPayload(CompressionCodec codec, long uncompressedSizeInBytes, List<Chunk> chunks) {
+    this.codec = codec;
+    this.uncompressedSizeInBytes = uncompressedSizeInBytes;
+    this.chunkCount = chunks.size();
+    this.chunks = chunks;
+    this.stream = null;
+    long sizeInBytes = Header_Size_In_Bytes;
+    for (Chunk chunk : chunks) {
+      sizeInBytes += Chunk_Header_Size_In_Bytes + chunk.compressedBytes.length;
+    }
+    this.sizeInBytes = sizeInBytes;
+  }
+
+  private CompressedPayload(CompressionCodec codec, long uncompressedSizeInBytes, int chunkCount,
+      DataInputStream stream) {
+    this.codec = codec;
+    this.uncompressedSizeInBytes = uncompressedSizeInBytes;
+    this.chunkCount = chunkCount;
+    this.chunks = null;
+    this.stream = stream;
+    this.sizeInBytes = Header_Size_In_Bytes;
+  }
+
+  /**
+   * Compresses the body of a response
+   * @param codec The codec to compress the body with
+   * @param body The body, from its position to its limit
+   * @return The compressed body
+   */
+  static CompressedPayload compress(CompressionCodec codec, ByteBuffer body) {
+    ChunkingChannel channel = new ChunkingChannel(codec);
+    channel.write(body);
+    return channel.finish();
+  }
+
+  /**
+   * Compresses the body of a response as it is read out of a send. Only one chunk of the body is held in memory
+   * before it is compressed.
+   * @param codec The codec to compress the body with
+   * @param body The send to read the body from. It is read until it is complete and then released.
+   * @return The compressed body
+   * @throws IOException
+   */
+  static CompressedPayload compress(CompressionCodec codec, Send body)
+      throws IOException {
+    try {
+      ChunkingChannel channel = new ChunkingChannel(codec);
+      while (!body.isSendComplete()) {
+        body.writeTo(channel);
+      }
+      return channel.finish();
+    } finally {
+      body.release();
+    }
+  }
+
+  /**
+   * Reads the header of a payload sent by {@link #toSend()}. The chunks are only read as the stream returned by
+   * {@link #getDecompressedStream()} is read. The sizes in the payload are checked before anything is allocated for
+   * them, so a malformed payload cannot make the reader allocate more than a chunk beyond the bytes that it actually
+   * sends.
+   * @param stream The stream to read the payload from
+   * @return The payload
+   * @throws IOException if the header of the payload is malformed
+   */
+  static CompressedPayload readFrom(DataInputStream stream)
+      throws IOException {
+    short codecOrdinal = stream.readShort();
+    if (codecOrdinal < 0 || codecOrdinal >= CompressionCodec.values().length) {
+      throw new IOException("Unknown compression codec " + codecOrdinal);
+    }
+    CompressionCodec codec = CompressionCodec.values()[codecOrdinal];
+    long uncompressedSizeInBytes = stream.readLong();
+    int chunkCount = stream.readInt();
+    if (uncompressedSizeInBytes < 0 || chunkCount < 0
+        || chunkCount != (uncompressedSizeInBytes + Chunk_Size_In_Bytes - 1) / Chunk_Size_In_Bytes) {
+      throw new IOException(
+          "Compressed payload of " + uncompressedSizeInBytes + " bytes cannot be sent in " + chunkCount + " chunks");
+    }
+    return new CompressedPayload(codec, uncompressedSizeInBytes, chunkCount, stream);
+  }
+
+  /**
+   * @return A send that writes the payload to a channel, the header first and then the chunks one by one, without
+   * copying the payload into a buffer of its own
+   */
+  Send toSend() {
+    if (chunks == null) {
+      throw new IllegalStateException("Payload that is read from a stream cannot be sent");
+    }
+    return new PayloadSend();
+  }
+
+  /**
+   * @return The size that the payload is sent with. For a payload that is read from a stream, only the chunks that
+   * have been read so far are counted, so the size is complete once the decompressed stream has been read to its end.
+   */
+  long sizeInBytes() {
+    return sizeInBytes;
+  }
+
+  /**
+   * @return A stream of the body before it was compressed. The chunks are read off the stream that the payload is
+   * read from and decompressed one at a time as the returned stream is read. It can only be called once, on a payload
+   * returned by {@link #readFrom(DataInputStream)}.
+   */
+  DataInputStream getDecompressedStream() {
+    if (stream == null || decompressedStreamCreated) {
+      throw new IllegalStateException("Payload has no stream left to decompress");
+    }
+    decompressedStreamCreated = true;
+    return new DataInputStream(new DecompressingStream());
+  }
+
+  long getUncompressedSizeInBytes() {
+    return uncompressedSizeInBytes;
+  }
+
+  /**
+   * A chunk of the body and the size it had before it was compressed
+   */
+  private static class Chunk {
+    final int uncompressedSizeInBytes;
+    final byte[] compressedBytes;
+
+    Chunk(int uncompressedSizeInBytes, byte[] compressedBytes) {
+      this.uncompressedSizeInBytes = uncompressedSizeInBytes;
+      this.compressedBytes = compressedBytes;
+    }
+  }
+
+  /**
+   * A channel that gathers what is written to it into chunks and compresses every chunk as soon as it is full
+   */
+  private static class ChunkingChannel implements WritableByteChannel {
+    private final CompressionCodec codec;
+    private final ByteBuffer chunkBuffer = ByteBuffer.allocate(Chunk_Size_In_Bytes);
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+    private long uncompressedSizeInBytes = 0;
+    private boolean open = true;
+
+    ChunkingChannel(CompressionCodec codec) {
+      this.codec = codec;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      int written = 0;
+      while (src.hasRemaining()) {
+        int toCopy = Math.min(src.remaining(), chunkBuffer.remaining());
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + toCopy);
+        chunkBuffer.put(slice);
+        src.position(src.position() + toCopy);
+        written += toCopy;
+        if (!chunkBuffer.hasRemaining()) {
+          compressChunk();
+        }
+      }
+      return written;
+    }
+
+    /**
+     * Compresses what is left of the body and closes the channel
+     * @return The compressed body
+     */
+    CompressedPayload finish() {
+      if (chunkBuffer.position() > 0) {
+        compressChunk();
+      }
+      open = false;
+      return new CompressedPayload(codec, uncompressedSizeInBytes, chunks);
+    }
+
+    private void compressChunk() {
+      int size = chunkBuffer.position();
+      chunks.add(new Chunk(size, codec.compress(chunkBuffer.array(), 0, size)));
+      uncompressedSizeInBytes += size;
+      chunkBuffer.clear();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+  }
+
+  /**
+   * Writes the header of the payload and then the header and the compressed bytes of every chunk
+   */
+  private class PayloadSend implements Send {
+    // the buffers of the payload, in the order that they are sent: the header, then a header and the compressed
+    // bytes for every chunk
+    private final int bufferCount = 1 + 2 * chunkCount;
+    private int bufferIndex = 0;
+    private ByteBuffer buffer;
+
+    PayloadSend() {
+      buffer = ByteBuffer.allocate(Header_Size_In_Bytes);
+      buffer.putShort((short) codec.ordinal());
+      buffer.putLong(uncompressedSizeInBytes);
+      buffer.putInt(chunkCount);
+      buffer.flip();
+    }
+
+    @Override
+    public long writeTo(WritableByteChannel channel)
+        throws IOException {
+      long written = 0;
+      while (buffer != null) {
+        written += channel.write(buffer);
+        if (buffer.hasRemaining()) {
+          break;
+        }
+        bufferIndex++;
+        buffer = bufferIndex < bufferCount ? getBuffer(bufferIndex) : null;
+      }
+      return written;
+    }
+
+    private ByteBuffer getBuffer(int index) {
+      Chunk chunk = chunks.get((index - 1) / 2);
+      if (index % 2 == 1) {
+        ByteBuffer chunkHeader = ByteBuffer.allocate(Chunk_Header_Size_In_Bytes);
+        chunkHeader.putInt(chunk.uncompressedSizeInBytes);
+        chunkHeader.putInt(chunk.compressedBytes.length);
+        chunkHeader.flip();
+        return chunkHeader;
+      }
+      return ByteBuffer.wrap(chunk.compressedBytes);
+    }
+
+    @Override
+    public boolean isSendComplete() {
+      return buffer == null;
+    }
+
+    @Override
+    public long sizeInBytes() {
+      return sizeInBytes;
+    }
+
+    @Override
+    public void release() {
+    }
+  }
+
+  /**
+   * The body of a payload that is read from a stream. Every chunk is read off the stream and decompressed as the body
+   * gets to it, after its sizes have been checked.
+   */
+  private class DecompressingStream extends InputStream {
+    private final byte[] singleByte = new byte[1];
+    private int nextChunk = 0;
+    private long uncompressedBytesRemaining = uncompressedSizeInBytes;
+    private CompressedChunkStream compressedChunk = null;
+    private InputStream chunkStream = null;
+    private long chunkBytesRemaining = 0;
+
+    @Override
+    public int read()
+        throws IOException {
+      int read = read(singleByte, 0, 1);
+      return read == -1 ? -1 : singleByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+        throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (chunkBytesRemaining == 0) {
+        if (nextChunk == chunkCount) {
+          return -1;
+        }
+        readChunkHeader();
+      }
+      int read = chunkStream.read(b, off, (int) Math.min(len, chunkBytesRemaining));
+      if (read == -1) {
+        throw new IOException(
+            "Chunk " + (nextChunk - 1) + " of compressed payload ended with " + chunkBytesRemaining + " bytes left");
+      }
+      chunkBytesRemaining -= read;
+      if (chunkBytesRemaining == 0) {
+        // the stream has to be left at the start of the next chunk
+        compressedChunk.skipRemaining();
+      }
+      return read;
+    }
+
+    private void readChunkHeader()
+        throws IOException {
+      int chunkUncompressedSizeInBytes = stream.readInt();
+      int chunkCompressedSizeInBytes = stream.readInt();
+      // every chunk is full except for the last one
+      if (chunkUncompressedSizeInBytes != Math.min(uncompressedBytesRemaining, Chunk_Size_In_Bytes)
+          || chunkCompressedSizeInBytes < 0
+          || chunkCompressedSizeInBytes > codec.getMaxCompressedSizeInBytes(Chunk_Size_In_Bytes)) {
+        throw new IOException(
+            "Chunk " + nextChunk + " of compressed payload has invalid sizes " + chunkUncompressedSizeInBytes + " and "
+                + chunkCompressedSizeInBytes);
+      }
+      sizeInBytes += Chunk_Header_Size_In_Bytes + chunkCompressedSizeInBytes;
+      compressedChunk = new CompressedChunkStream(stream, chunkCompressedSizeInBytes);
+      chunkStream = codec.decompress(compressedChunk);
+      chunkBytesRemaining = chunkUncompressedSizeInBytes;
+      uncompressedBytesRemaining -= chunkUncompressedSizeInBytes;
+      nextChunk++;
+    }
+  }
+
+  /**
+   * The compressed bytes of a chunk. Reads never go past the chunk.
+   */
+  private static class CompressedChunkStream extends InputStream {
+    private final InputStream stream;
+    private long bytesRemaining;
+
+    CompressedChunkStream(InputStream stream, long size) {
+      this.stream = stream;
+      this.bytesRemaining = size;
+    }
+
+    @Override
+    public int read()
+        throws IOException {
+      byte[] b = new byte[1];
+      int read = read(b, 0, 1);
+      return read == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+        throws IOException {
+      if (bytesRemaining == 0) {
+        return -1;
+      }
+      int read = stream.read(b, off, (int) Math.min(len, bytesRemaining));
+      if (read == -1) {
+        throw new EOFException("Compressed payload ended with " + bytesRemaining + " bytes of a chunk left");
+      }
+      bytesRemaining -= read;
+      return read;
+    }
+
+    /**
+     * Reads and drops what the decompressor left of the chunk
+     */
+    void skipRemaining()
+        throws IOException {
+      byte[] buf = new byte[(int) Math.min(512, bytesRemaining)];
+      while (bytesRemaining > 0) {
+        read(buf, 0, buf.length);
+      }
+    }
+  }
+}
@@ -31,6 +31,7 @@ public class GetRequest extends RequestOrResponse {
 
   private MessageFormatFlags flags;
   private GetOptions getOptions;
+  private CompressionCodec responseCompressionCodec;
   private List<PartitionRequestInfo> partitionRequestInfoList;
   private int sizeSent;
   private int totalPartitionRequestInfoListSize;
@@ -38,14 +39,35 @@ public class GetRequest extends RequestOrResponse {
   private static final int MessageFormat_Size_In_Bytes = 2;
   private static final int GetOptions_Size_In_Bytes = 2;
   private static final int Partition_Request_Info_List_Size = 4;
+  private static final int Compression_Codec_Size_In_Bytes = 2;
   private static final short Get_Request_Version_V2 = 2;
+  private static final short Get_Request_Version_V3 = 3;
 
   public GetRequest(int correlationId, String clientId, MessageFormatFlags flags,
       List<PartitionRequestInfo> partitionRequestInfoList, GetOptions getOptions) {
-    super(RequestOrResponseType.GetRequest, Get_Request_Version_V2, correlationId, clientId);
+    this(correlationId, clientId, flags, partitionRequestInfoList, getOptions, CompressionCodec.None);
+  }
+
+  /**
+   * Creates a request that asks for the data in the response to be compressed. The request is sent as a V2 request
+   * when no compression is asked for, so that it can be served by servers that do not know about compression.
+   * @param correlationId The correlation id of the request
+   * @param clientId The id of the client sending the request
+   * @param flags The format of the data to get
+   * @param partitionRequestInfoList The blobs to get, grouped by partition
+   * @param getOptions The options to get the blobs with
+   * @param responseCompressionCodec The codec to compress the data in the response with
+   */
+  public GetRequest(int correlationId, String clientId, MessageFormatFlags flags,
+      List<PartitionRequestInfo> partitionRequestInfoList, GetOptions getOptions,
+      CompressionCodec responseCompressionCodec) {
+    super(RequestOrResponseType.GetRequest,
+        responseCompressionCodec == CompressionCodec.None ? Get_Request_Version_V2 : Get_Request_Version_V3,
+        correlationId, clientId);
 
     this.flags = flags;
     this.getOptions = getOptions;
+    this.responseCompressionCodec = responseCompressionCodec;
     if (partitionRequestInfoList == null) {
       throw new IllegalArgumentException("No partition info specified in GetRequest");
     }
@@ -68,6 +90,10 @@ public class GetRequest extends RequestOrResponse {
     return getOptions;
   }
 
+  public CompressionCodec getResponseCompressionCodec() {
+    return responseCompressionCodec;
+  }
+
   public static GetRequest readFrom(DataInputStream stream, ClusterMap clusterMap)
       throws IOException {
     RequestOrResponseType type = RequestOrResponseType.GetRequest;
@@ -83,11 +109,15 @@ public class GetRequest extends RequestOrResponse {
       partitionRequestInfoList.add(partitionRequestInfo);
     }
     GetOptions getOption = GetOptions.None;
-    if (versionId == Get_Request_Version_V2) {
+    if (versionId >= Get_Request_Version_V2) {
       getOption = GetOptions.values()[stream.readShort()];
     }
-    // ignore version for now
-    return new GetRequest(correlationId, clientId, messageType, partitionRequestInfoList, getOption);
+    CompressionCodec responseCompressionCodec = CompressionCodec.None;
+    if (versionId == Get_Request_Version_V3) {
+      responseCompressionCodec = CompressionCodec.values()[stream.readShort()];
+    }
+    return new GetRequest(correlationId, clientId, messageType, partitionRequestInfoList, getOption,
+        responseCompressionCodec);
   }
 
   @Override
@@ -103,6 +133,9 @@ public class GetRequest extends RequestOrResponse {
         partitionRequestInfo.writeTo(bufferToSend);
       }
       bufferToSend.putShort((short) getOptions.ordinal());
+      if (versionId == Get_Request_Version_V3) {
+        bufferToSend.putShort((short) responseCompressionCodec.ordinal());
+      }
       bufferToSend.flip();
     }
     if (bufferToSend.remaining() > 0) {
@@ -121,7 +154,8 @@ public class GetRequest extends RequestOrResponse {
   public long sizeInBytes() {
     // header + message format size + partition request info size + total partition request info list size
     return super.sizeInBytes() + MessageFormat_Size_In_Bytes +
-        Partition_Request_Info_List_Size + totalPartitionRequestInfoListSize + GetOptions_Size_In_Bytes;
+        Partition_Request_Info_List_Size + totalPartitionRequestInfoListSize + GetOptions_Size_In_Bytes + (
+        versionId == Get_Request_Version_V3 ? Compression_Codec_Size_In_Bytes : 0);
   }
 
   @Override
@@ -135,6 +169,7 @@ public class GetRequest extends RequestOrResponse {
     sb.append(", ").append("CorrelationId=").append(correlationId);
     sb.append(", ").append("MessageFormatFlags=").append(flags);
     sb.append(", ").append("GetOptions=").append(getOptions);
+    sb.append(", ").append("ResponseCompressionCodec=").append(responseCompressionCodec);
     sb.append("]");
     return sb.toString();
   }
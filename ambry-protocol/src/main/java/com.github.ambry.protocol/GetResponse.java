@@ -34,11 +34,14 @@ public class GetResponse extends Response {
 
   private Send toSend = null;
   private InputStream stream = null;
+  // the compressed data, if the response is compressed
+  private CompressedPayload compressedPayload = null;
   private final List<PartitionResponseInfo> partitionResponseInfoList;
   private int partitionResponseInfoSize;
 
   private static int Partition_Response_Info_List_Size = 4;
   private static final short Get_Response_Version_V1 = 1;
+  private static final short Get_Response_Version_V2 = 2;
 
   public GetResponse(int correlationId, String clientId, List<PartitionResponseInfo> partitionResponseInfoList,
       Send send, ServerErrorCode error) {
@@ -51,6 +54,31 @@ public class GetResponse extends Response {
     this.toSend = send;
   }
 
+  /**
+   * Creates a response whose data is compressed with the given codec. The data is read out of the send and compressed
+   * a chunk at a time as the response is created, since the size of the response has to be known before it is sent.
+   * Only the compressed data is held in memory until the response is sent, and it is written to the channel a chunk at
+   * a time after the header of the response. The response is sent as a V1 response when
+   * it is not compressed, so that it can be read by clients that do not know about compression.
+   * @param correlationId The correlation id of the request that the response is for
+   * @param clientId The id of the client that sent the request
+   * @param partitionResponseInfoList The blobs in the response, grouped by partition
+   * @param send The data of the blobs in the response
+   * @param error The error of the response
+   * @param compressionCodec The codec to compress the data with
+   * @throws IOException
+   */
+  public GetResponse(int correlationId, String clientId, List<PartitionResponseInfo> partitionResponseInfoList,
+      Send send, ServerErrorCode error, CompressionCodec compressionCodec)
+      throws IOException {
+    this(correlationId, clientId, partitionResponseInfoList, send, error);
+    if (compressionCodec != CompressionCodec.None) {
+      versionId = Get_Response_Version_V2;
+      compressedPayload = CompressedPayload.compress(compressionCodec, send);
+      toSend = compressedPayload.toSend();
+    }
+  }
+
   public GetResponse(int correlationId, String clientId, List<PartitionResponseInfo> partitionResponseInfoList,
       InputStream stream, ServerErrorCode error) {
     super(RequestOrResponseType.GetResponse, Get_Response_Version_V1, correlationId, clientId, error);
@@ -76,6 +104,20 @@ public class GetResponse extends Response {
     return partitionResponseInfoList;
   }
 
+  /**
+   * @return The size of the data before it was compressed, or -1 if the data is not compressed
+   */
+  public long getUncompressedPayloadSizeInBytes() {
+    return compressedPayload != null ? compressedPayload.getUncompressedSizeInBytes() : -1;
+  }
+
+  /**
+   * @return The size that the compressed data is sent with, or -1 if the data is not compressed
+   */
+  public long getCompressedPayloadSizeInBytes() {
+    return compressedPayload != null ? compressedPayload.sizeInBytes() : -1;
+  }
+
   public static GetResponse readFrom(DataInputStream stream, ClusterMap map)
       throws IOException {
     short typeval = stream.readShort();
@@ -84,7 +126,6 @@ public class GetResponse extends Response {
       throw new IllegalArgumentException("The type of request response is not compatible");
     }
     Short versionId = stream.readShort();
-    // ignore version for now
     int correlationId = stream.readInt();
     String clientId = Utils.readIntString(stream);
     ServerErrorCode error = ServerErrorCode.values()[stream.readShort()];
@@ -99,6 +140,13 @@ public class GetResponse extends Response {
         PartitionResponseInfo partitionResponseInfo = PartitionResponseInfo.readFrom(stream, map);
         partitionResponseInfoList.add(partitionResponseInfo);
       }
+      if (versionId == Get_Response_Version_V2) {
+        CompressedPayload compressedPayload = CompressedPayload.readFrom(stream);
+        GetResponse response = new GetResponse(correlationId, clientId, partitionResponseInfoList,
+            compressedPayload.getDecompressedStream(), error);
+        response.compressedPayload = compressedPayload;
+        return response;
+      }
       return new GetResponse(correlationId, clientId, partitionResponseInfoList, stream, error);
     }
   }
@@ -108,8 +156,8 @@ public class GetResponse extends Response {
       throws IOException {
     long written = 0;
     if (bufferToSend == null) {
-      bufferToSend = ByteBuffer
-          .allocate((int) super.sizeInBytes() + (Partition_Response_Info_List_Size + partitionResponseInfoSize));
+      bufferToSend = ByteBuffer.allocate(
+          (int) super.sizeInBytes() + (Partition_Response_Info_List_Size + partitionResponseInfoSize));
       writeHeader();
       if (partitionResponseInfoList != null) {
         bufferToSend.putInt(partitionResponseInfoList.size());
@@ -135,15 +183,26 @@ public class GetResponse extends Response {
 
   @Override
   public long sizeInBytes() {
-    return super.sizeInBytes() + (Partition_Response_Info_List_Size + partitionResponseInfoSize) +
-        ((toSend == null) ? 0 : toSend.sizeInBytes());
+    // the data of a compressed response that is sent is the send of its compressed payload
+    long dataSizeInBytes =
+        toSend != null ? toSend.sizeInBytes() : compressedPayload != null ? compressedPayload.sizeInBytes() : 0;
+    return super.sizeInBytes() + (Partition_Response_Info_List_Size + partitionResponseInfoSize) + dataSizeInBytes;
+  }
+
+  @Override
+  public void release() {
+    if (toSend != null) {
+      toSend.release();
+    }
   }
 
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
     sb.append("GetResponse[");
-    if (toSend != null) {
+    if (compressedPayload != null) {
+      sb.append("CompressedSizeToSend=").append(compressedPayload.sizeInBytes());
+    } else if (toSend != null) {
       sb.append("SizeToSend=").append(toSend.sizeInBytes());
     }
     sb.append(" ServerErrorCode=").append(getError());
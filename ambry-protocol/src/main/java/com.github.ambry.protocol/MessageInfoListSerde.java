@@ -16,20 +16,46 @@ package com.github.ambry.protocol;
 import com.github.ambry.clustermap.ClusterMap;
 import com.github.ambry.commons.BlobId;
 import com.github.ambry.store.MessageInfo;
+import com.github.ambry.utils.Utils;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 
 /**
- * A serde for serializing and deserializing list of message info
+ * A serde for serializing and deserializing list of message info. There are two versions of the serialized list.
+ * V1 has the whole key, the size, the expiration time and the deleted flag of every message. V2 is a compact version
+ * for lists of messages of the same partition. A key is written as the length of the prefix that it shares with the
+ * key before it followed by the rest of the key, so the partition that the keys share is only written once. A key
+ * that ends with a UUID in its canonical string form has the UUID, along with the length before it, written as its
+ * 16 raw bytes instead, which is told by a flag. The size and the difference between the expiration time and the
+ * expiration time before it are written as varints and the flags of a message are packed into a byte.
  */
 public class MessageInfoListSerde {
 
   private final List<MessageInfo> messageInfoList;
+  // the size of the V2 list, which is computed when it is first asked for
+  private int compactMessageInfoListSize = -1;
+
+  static final short Message_Info_List_Version_V1 = 1;
+  static final short Message_Info_List_Version_V2 = 2;
+
+  private static final byte Deleted_Flag = 1;
+  private static final byte Expiration_Time_Flag = 1 << 1;
+  private static final byte Compact_Uuid_Flag = 1 << 2;
+
+  // the size of a key is sent as a short
+  private static final int Max_Key_Size_In_Bytes = Short.MAX_VALUE;
+  private static final int Uuid_String_Size_In_Bytes = 36;
+  // a UUID string along with the int size that it is written with in a key
+  private static final int Uuid_Field_Size_In_Bytes = 4 + Uuid_String_Size_In_Bytes;
+  private static final int Compact_Uuid_Size_In_Bytes = 16;
 
   public MessageInfoListSerde(List<MessageInfo> messageInfoList) {
     this.messageInfoList = messageInfoList;
@@ -54,6 +80,20 @@ public class MessageInfoListSerde {
     return size;
   }
 
+  /**
+   * @param version The version of the serialized list
+   * @return The size of the serialized list
+   */
+  int getMessageInfoListSize(short version) {
+    if (version == Message_Info_List_Version_V1) {
+      return getMessageInfoListSize();
+    }
+    if (compactMessageInfoListSize == -1) {
+      compactMessageInfoListSize = serializeCompactMessageInfoList(null);
+    }
+    return compactMessageInfoListSize;
+  }
+
   public void serializeMessageInfoList(ByteBuffer outputBuffer) {
     outputBuffer.putInt(messageInfoList == null ? 0 : messageInfoList.size());
     if (messageInfoList != null) {
@@ -66,6 +106,74 @@ public class MessageInfoListSerde {
     }
   }
 
+  /**
+   * Serializes the list
+   * @param outputBuffer The buffer to serialize the list into
+   * @param version The version to serialize the list as
+   */
+  void serializeMessageInfoList(ByteBuffer outputBuffer, short version) {
+    if (version == Message_Info_List_Version_V1) {
+      serializeMessageInfoList(outputBuffer);
+    } else {
+      serializeCompactMessageInfoList(outputBuffer);
+    }
+  }
+
+  /**
+   * Serializes the list as a V2 list
+   * @param outputBuffer The buffer to serialize the list into, or null if only the size of the list is needed
+   * @return The size of the serialized list
+   */
+  private int serializeCompactMessageInfoList(ByteBuffer outputBuffer) {
+    int size = 4;
+    if (outputBuffer != null) {
+      outputBuffer.putInt(messageInfoList == null ? 0 : messageInfoList.size());
+    }
+    if (messageInfoList != null) {
+      byte[] previousKeyBytes = new byte[0];
+      long previousExpirationTimeInMs = 0;
+      for (MessageInfo messageInfo : messageInfoList) {
+        byte[] keyBytes = messageInfo.getStoreKey().toBytes();
+        byte flags = messageInfo.isDeleted() ? Deleted_Flag : 0;
+        byte[] compactKeyBytes = compactUuid(keyBytes);
+        if (compactKeyBytes != null) {
+          flags |= Compact_Uuid_Flag;
+          keyBytes = compactKeyBytes;
+        }
+        int sharedPrefixLength = 0;
+        int maxSharedPrefixLength = Math.min(keyBytes.length, previousKeyBytes.length);
+        while (sharedPrefixLength < maxSharedPrefixLength
+            && keyBytes[sharedPrefixLength] == previousKeyBytes[sharedPrefixLength]) {
+          sharedPrefixLength++;
+        }
+        int suffixLength = keyBytes.length - sharedPrefixLength;
+        long expirationTimeDelta = 0;
+        if (messageInfo.getExpirationTimeInMs() != Utils.Infinite_Time) {
+          flags |= Expiration_Time_Flag;
+          expirationTimeDelta = messageInfo.getExpirationTimeInMs() - previousExpirationTimeInMs;
+          previousExpirationTimeInMs = messageInfo.getExpirationTimeInMs();
+        }
+        size += getVarLongSize(sharedPrefixLength) + getVarLongSize(suffixLength) + suffixLength + 1 + getVarLongSize(
+            messageInfo.getSize());
+        if ((flags & Expiration_Time_Flag) != 0) {
+          size += getVarLongSize(zigZagEncode(expirationTimeDelta));
+        }
+        if (outputBuffer != null) {
+          putVarLong(outputBuffer, sharedPrefixLength);
+          putVarLong(outputBuffer, suffixLength);
+          outputBuffer.put(keyBytes, sharedPrefixLength, suffixLength);
+          outputBuffer.put(flags);
+          putVarLong(outputBuffer, messageInfo.getSize());
+          if ((flags & Expiration_Time_Flag) != 0) {
+            putVarLong(outputBuffer, zigZagEncode(expirationTimeDelta));
+          }
+        }
+        previousKeyBytes = keyBytes;
+      }
+    }
+    return size;
+  }
+
   public static List<MessageInfo> deserializeMessageInfoList(DataInputStream stream, ClusterMap map)
       throws IOException {
     int messageInfoListCount = stream.readInt();
@@ -84,7 +192,160 @@ public class MessageInfoListSerde {
     return messageListInfo;
   }
 
+  /**
+   * Deserializes a list
+   * @param stream The stream to read the list from
+   * @param map The cluster map to read the keys with
+   * @param version The version that the list was serialized as
+   * @return The list
+   * @throws IOException
+   */
+  static List<MessageInfo> deserializeMessageInfoList(DataInputStream stream, ClusterMap map, short version)
+      throws IOException {
+    if (version == Message_Info_List_Version_V1) {
+      return deserializeMessageInfoList(stream, map);
+    }
+    int messageInfoListCount = stream.readInt();
+    if (messageInfoListCount < 0) {
+      throw new IOException("Message info list has " + messageInfoListCount + " messages");
+    }
+    ArrayList<MessageInfo> messageListInfo = new ArrayList<MessageInfo>();
+    byte[] previousKeyBytes = new byte[0];
+    long previousExpirationTimeInMs = 0;
+    for (int i = 0; i < messageInfoListCount; i++) {
+      int sharedPrefixLength = readLength(stream, previousKeyBytes.length, "Shared prefix of key " + i);
+      int suffixLength = readLength(stream, Max_Key_Size_In_Bytes - sharedPrefixLength, "Suffix of key " + i);
+      byte[] keyBytes = new byte[sharedPrefixLength + suffixLength];
+      System.arraycopy(previousKeyBytes, 0, keyBytes, 0, sharedPrefixLength);
+      stream.readFully(keyBytes, sharedPrefixLength, suffixLength);
+      byte flags = stream.readByte();
+      byte[] fullKeyBytes = keyBytes;
+      if ((flags & Compact_Uuid_Flag) != 0) {
+        if (keyBytes.length < Compact_Uuid_Size_In_Bytes) {
+          throw new IOException("Key " + i + " of " + keyBytes.length + " bytes is too short for a compact UUID");
+        }
+        fullKeyBytes = expandUuid(keyBytes);
+      }
+      BlobId id = new BlobId(new DataInputStream(new ByteArrayInputStream(fullKeyBytes)), map);
+      long size = readVarLong(stream);
+      if (size < 0) {
+        throw new IOException("Message " + i + " has a size of " + size + " bytes");
+      }
+      long ttl = Utils.Infinite_Time;
+      if ((flags & Expiration_Time_Flag) != 0) {
+        ttl = previousExpirationTimeInMs + zigZagDecode(readVarLong(stream));
+        previousExpirationTimeInMs = ttl;
+      }
+      messageListInfo.add(new MessageInfo(id, size, (flags & Deleted_Flag) != 0, ttl));
+      previousKeyBytes = keyBytes;
+    }
+    return messageListInfo;
+  }
+
   public List<MessageInfo> getMessageInfoList() {
     return messageInfoList;
   }
+
+  /**
+   * @param keyBytes The bytes of a key
+   * @return The bytes of the key with the canonical UUID string that it ends with, along with its size, replaced by
+   *         the 16 bytes of the UUID, or null if the key does not end with a canonical UUID string
+   */
+  private static byte[] compactUuid(byte[] keyBytes) {
+    int uuidFieldPosition = keyBytes.length - Uuid_Field_Size_In_Bytes;
+    if (uuidFieldPosition < 0 || ByteBuffer.wrap(keyBytes).getInt(uuidFieldPosition) != Uuid_String_Size_In_Bytes) {
+      return null;
+    }
+    String uuidString =
+        new String(keyBytes, uuidFieldPosition + 4, Uuid_String_Size_In_Bytes, StandardCharsets.US_ASCII);
+    UUID uuid;
+    try {
+      uuid = UUID.fromString(uuidString);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    // only a UUID that is written back as the same string can be sent as its bytes
+    if (!uuid.toString().equals(uuidString)) {
+      return null;
+    }
+    ByteBuffer compactKey = ByteBuffer.allocate(uuidFieldPosition + Compact_Uuid_Size_In_Bytes);
+    compactKey.put(keyBytes, 0, uuidFieldPosition);
+    compactKey.putLong(uuid.getMostSignificantBits());
+    compactKey.putLong(uuid.getLeastSignificantBits());
+    return compactKey.array();
+  }
+
+  /**
+   * @param compactKeyBytes The bytes of a key as returned by {@link #compactUuid(byte[])}
+   * @return The bytes of the key
+   */
+  private static byte[] expandUuid(byte[] compactKeyBytes) {
+    int uuidPosition = compactKeyBytes.length - Compact_Uuid_Size_In_Bytes;
+    ByteBuffer compactKey = ByteBuffer.wrap(compactKeyBytes);
+    UUID uuid = new UUID(compactKey.getLong(uuidPosition), compactKey.getLong(uuidPosition + 8));
+    ByteBuffer key = ByteBuffer.allocate(uuidPosition + Uuid_Field_Size_In_Bytes);
+    key.put(compactKeyBytes, 0, uuidPosition);
+    key.putInt(Uuid_String_Size_In_Bytes);
+    key.put(uuid.toString().getBytes(StandardCharsets.US_ASCII));
+    return key.array();
+  }
+
+  /**
+   * Reads a length that is written as a varint and checks that it is within bounds
+   * @param stream The stream to read the length from
+   * @param maxLength The max length that is valid
+   * @param name What the length is of, to report if it is not valid
+   * @return The length
+   * @throws IOException if the length is negative or greater than the max
+   */
+  private static int readLength(DataInputStream stream, int maxLength, String name)
+      throws IOException {
+    long length = readVarLong(stream);
+    if (length < 0 || length > maxLength) {
+      throw new IOException(name + " has a length of " + length + " bytes, which is not within 0-" + maxLength);
+    }
+    return (int) length;
+  }
+
+  private static long zigZagEncode(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long zigZagDecode(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static int getVarLongSize(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Writes a value seven bits at a time, least significant bits first, with the top bit of every byte but the last
+   * one set
+   */
+  private static void putVarLong(ByteBuffer buffer, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  private static long readVarLong(DataInputStream stream)
+      throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = stream.readByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Varint is longer than 10 bytes");
+  }
 }
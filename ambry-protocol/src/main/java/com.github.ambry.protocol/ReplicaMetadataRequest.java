@@ -30,20 +30,65 @@ import java.util.List;
 public class ReplicaMetadataRequest extends RequestOrResponse {
   private List<ReplicaMetadataRequestInfo> replicaMetadataRequestInfoList;
   private long maxTotalSizeOfEntriesInBytes;
+  private CompressionCodec responseCompressionCodec;
+  private boolean compactMessageInfoListAccepted;
   private long replicaMetadataRequestInfoListSizeInBytes;
 
   private static final int Max_Entries_Size_In_Bytes = 8;
   private static final int Replica_Metadata_Request_Info_List_Size_In_Bytes = 4;
+  private static final int Compression_Codec_Size_In_Bytes = 2;
   private static final short Replica_Metadata_Request_Version_V1 = 1;
+  private static final short Replica_Metadata_Request_Version_V2 = 2;
+  // a V3 request also tells the server that the client can read message info lists in the compact V2 format of
+  // MessageInfoListSerde
+  private static final short Replica_Metadata_Request_Version_V3 = 3;
 
   public ReplicaMetadataRequest(int correlationId, String clientId,
       List<ReplicaMetadataRequestInfo> replicaMetadataRequestInfoList, long maxTotalSizeOfEntriesInBytes) {
-    super(RequestOrResponseType.ReplicaMetadataRequest, Replica_Metadata_Request_Version_V1, correlationId, clientId);
+    this(correlationId, clientId, replicaMetadataRequestInfoList, maxTotalSizeOfEntriesInBytes, CompressionCodec.None);
+  }
+
+  /**
+   * Creates a request that asks for the response to be compressed. The request is sent as a V1 request when no
+   * compression is asked for, so that it can be served by servers that do not know about compression.
+   * @param correlationId The correlation id of the request
+   * @param clientId The id of the client sending the request
+   * @param replicaMetadataRequestInfoList The replicas to get the metadata of
+   * @param maxTotalSizeOfEntriesInBytes The max total size of the entries to return
+   * @param responseCompressionCodec The codec to compress the response with
+   */
+  public ReplicaMetadataRequest(int correlationId, String clientId,
+      List<ReplicaMetadataRequestInfo> replicaMetadataRequestInfoList, long maxTotalSizeOfEntriesInBytes,
+      CompressionCodec responseCompressionCodec) {
+    this(correlationId, clientId, replicaMetadataRequestInfoList, maxTotalSizeOfEntriesInBytes,
+        responseCompressionCodec, false);
+  }
+
+  /**
+   * Creates a request that asks for the response to be compressed and that can accept the message info lists of the
+   * response in the compact format. The request is sent as a V3 request if the compact format is accepted. Servers
+   * that do not know about V3 requests read it as an older request and respond in the old format.
+   * @param correlationId The correlation id of the request
+   * @param clientId The id of the client sending the request
+   * @param replicaMetadataRequestInfoList The replicas to get the metadata of
+   * @param maxTotalSizeOfEntriesInBytes The max total size of the entries to return
+   * @param responseCompressionCodec The codec to compress the response with
+   * @param compactMessageInfoListAccepted true if the message info lists of the response can be in the compact format
+   */
+  public ReplicaMetadataRequest(int correlationId, String clientId,
+      List<ReplicaMetadataRequestInfo> replicaMetadataRequestInfoList, long maxTotalSizeOfEntriesInBytes,
+      CompressionCodec responseCompressionCodec, boolean compactMessageInfoListAccepted) {
+    super(RequestOrResponseType.ReplicaMetadataRequest,
+        compactMessageInfoListAccepted ? Replica_Metadata_Request_Version_V3
+            : responseCompressionCodec == CompressionCodec.None ? Replica_Metadata_Request_Version_V1
+                : Replica_Metadata_Request_Version_V2, correlationId, clientId);
     if (replicaMetadataRequestInfoList == null) {
       throw new IllegalArgumentException("replicaMetadataRequestInfoList cannot be null");
     }
     this.replicaMetadataRequestInfoList = replicaMetadataRequestInfoList;
     this.maxTotalSizeOfEntriesInBytes = maxTotalSizeOfEntriesInBytes;
+    this.responseCompressionCodec = responseCompressionCodec;
+    this.compactMessageInfoListAccepted = compactMessageInfoListAccepted;
     this.replicaMetadataRequestInfoListSizeInBytes = 0;
     for (ReplicaMetadataRequestInfo replicaMetadataRequestInfo : replicaMetadataRequestInfoList) {
       this.replicaMetadataRequestInfoListSizeInBytes += replicaMetadataRequestInfo.sizeInBytes();
@@ -65,8 +110,12 @@ public class ReplicaMetadataRequest extends RequestOrResponse {
       replicaMetadataRequestInfoList.add(replicaMetadataRequestInfo);
     }
     long maxTotalSizeOfEntries = stream.readLong();
-    // ignore version for now
-    return new ReplicaMetadataRequest(correlationId, clientId, replicaMetadataRequestInfoList, maxTotalSizeOfEntries);
+    CompressionCodec responseCompressionCodec = CompressionCodec.None;
+    if (versionId >= Replica_Metadata_Request_Version_V2) {
+      responseCompressionCodec = CompressionCodec.values()[stream.readShort()];
+    }
+    return new ReplicaMetadataRequest(correlationId, clientId, replicaMetadataRequestInfoList, maxTotalSizeOfEntries,
+        responseCompressionCodec, versionId == Replica_Metadata_Request_Version_V3);
   }
 
   public List<ReplicaMetadataRequestInfo> getReplicaMetadataRequestInfoList() {
@@ -77,6 +126,14 @@ public class ReplicaMetadataRequest extends RequestOrResponse {
     return maxTotalSizeOfEntriesInBytes;
   }
 
+  public CompressionCodec getResponseCompressionCodec() {
+    return responseCompressionCodec;
+  }
+
+  public boolean isCompactMessageInfoListAccepted() {
+    return compactMessageInfoListAccepted;
+  }
+
   @Override
   public long writeTo(WritableByteChannel channel)
       throws IOException {
@@ -88,6 +145,9 @@ public class ReplicaMetadataRequest extends RequestOrResponse {
         replicaMetadataRequestInfo.writeTo(bufferToSend);
       }
       bufferToSend.putLong(maxTotalSizeOfEntriesInBytes);
+      if (versionId >= Replica_Metadata_Request_Version_V2) {
+        bufferToSend.putShort((short) responseCompressionCodec.ordinal());
+      }
       bufferToSend.flip();
     }
     return bufferToSend.remaining() > 0 ? channel.write(bufferToSend) : 0;
@@ -101,7 +161,8 @@ public class ReplicaMetadataRequest extends RequestOrResponse {
   @Override
   public long sizeInBytes() {
     return super.sizeInBytes() + Replica_Metadata_Request_Info_List_Size_In_Bytes +
-        replicaMetadataRequestInfoListSizeInBytes + Max_Entries_Size_In_Bytes;
+        replicaMetadataRequestInfoListSizeInBytes + Max_Entries_Size_In_Bytes + (
+        versionId >= Replica_Metadata_Request_Version_V2 ? Compression_Codec_Size_In_Bytes : 0);
   }
 
   @Override
@@ -112,6 +173,8 @@ public class ReplicaMetadataRequest extends RequestOrResponse {
       sb.append(replicaMetadataRequestInfo.toString());
     }
     sb.append(", ").append("maxTotalSizeOfEntriesInBytes=").append(maxTotalSizeOfEntriesInBytes);
+    sb.append(", ").append("ResponseCompressionCodec=").append(responseCompressionCodec);
+    sb.append(", ").append("CompactMessageInfoListAccepted=").append(compactMessageInfoListAccepted);
     sb.append(", ").append("ClientId=").append(clientId);
     sb.append(", ").append("CorrelationId=").append(correlationId);
     sb.append("]");
@@ -15,6 +15,7 @@ package com.github.ambry.protocol;
 
 import com.github.ambry.clustermap.ClusterMap;
 import com.github.ambry.commons.ServerErrorCode;
+import com.github.ambry.network.Send;
 import com.github.ambry.store.FindTokenFactory;
 import com.github.ambry.utils.Utils;
 
@@ -34,24 +35,75 @@ public class ReplicaMetadataResponse extends Response {
 
   private List<ReplicaMetadataResponseInfo> replicaMetadataResponseInfoList;
   private int replicaMetadataResponseInfoListSizeInBytes;
+  // the compressed list of response infos, if the response is compressed
+  private CompressedPayload compressedPayload;
+  private Send compressedPayloadSend = null;
+  // the version of MessageInfoListSerde that the message info lists are serialized as
+  private short messageInfoListVersion;
 
   private static int Replica_Metadata_Response_Info_List_Size_In_Bytes = 4;
   private static final short Replica_Metadata_Response_Version_V1 = 1;
+  private static final short Replica_Metadata_Response_Version_V2 = 2;
+  // V3 and V4 are V1 and V2 with the message info lists serialized as V2 of MessageInfoListSerde
+  private static final short Replica_Metadata_Response_Version_V3 = 3;
+  private static final short Replica_Metadata_Response_Version_V4 = 4;
 
   public ReplicaMetadataResponse(int correlationId, String clientId, ServerErrorCode error,
       List<ReplicaMetadataResponseInfo> replicaMetadataResponseInfoList) {
-    super(RequestOrResponseType.ReplicaMetadataResponse, Replica_Metadata_Response_Version_V1, correlationId, clientId, error);
+    this(correlationId, clientId, error, replicaMetadataResponseInfoList, CompressionCodec.None);
+  }
+
+  /**
+   * Creates a response whose list of response infos is compressed with the given codec. The response is sent as a V1
+   * response when it is not compressed, so that it can be read by clients that do not know about compression.
+   * @param correlationId The correlation id of the request that the response is for
+   * @param clientId The id of the client that sent the request
+   * @param error The error of the response
+   * @param replicaMetadataResponseInfoList The metadata of the replicas asked for
+   * @param compressionCodec The codec to compress the list of response infos with
+   */
+  public ReplicaMetadataResponse(int correlationId, String clientId, ServerErrorCode error,
+      List<ReplicaMetadataResponseInfo> replicaMetadataResponseInfoList, CompressionCodec compressionCodec) {
+    this(correlationId, clientId, error, replicaMetadataResponseInfoList, compressionCodec, false);
+  }
+
+  /**
+   * Creates a response whose list of response infos is compressed with the given codec and whose message info lists
+   * are optionally serialized in the compact V2 format of {@link MessageInfoListSerde}, which has to be asked for by
+   * the request.
+   * @param correlationId The correlation id of the request that the response is for
+   * @param clientId The id of the client that sent the request
+   * @param error The error of the response
+   * @param replicaMetadataResponseInfoList The metadata of the replicas asked for
+   * @param compressionCodec The codec to compress the list of response infos with
+   * @param compactMessageInfoList true if the message info lists are to be serialized in the compact format
+   */
+  public ReplicaMetadataResponse(int correlationId, String clientId, ServerErrorCode error,
+      List<ReplicaMetadataResponseInfo> replicaMetadataResponseInfoList, CompressionCodec compressionCodec,
+      boolean compactMessageInfoList) {
+    this(correlationId, clientId, error, replicaMetadataResponseInfoList,
+        getMessageInfoListVersion(compactMessageInfoList), compressionCodec == CompressionCodec.None ? null
+            : compressResponseInfoList(replicaMetadataResponseInfoList,
+                getMessageInfoListVersion(compactMessageInfoList), compressionCodec));
+  }
+
+  private ReplicaMetadataResponse(int correlationId, String clientId, ServerErrorCode error,
+      List<ReplicaMetadataResponseInfo> replicaMetadataResponseInfoList, short messageInfoListVersion,
+      CompressedPayload compressedPayload) {
+    super(RequestOrResponseType.ReplicaMetadataResponse, getVersionId(messageInfoListVersion, compressedPayload),
+        correlationId, clientId, error);
     this.replicaMetadataResponseInfoList = replicaMetadataResponseInfoList;
-    this.replicaMetadataResponseInfoListSizeInBytes = 0;
-    for (ReplicaMetadataResponseInfo replicaMetadataResponseInfo : replicaMetadataResponseInfoList) {
-      this.replicaMetadataResponseInfoListSizeInBytes += replicaMetadataResponseInfo.sizeInBytes();
-    }
+    this.messageInfoListVersion = messageInfoListVersion;
+    this.replicaMetadataResponseInfoListSizeInBytes =
+        getResponseInfoListSizeInBytes(replicaMetadataResponseInfoList, messageInfoListVersion);
+    this.compressedPayload = compressedPayload;
   }
 
   public ReplicaMetadataResponse(int correlationId, String clientId, ServerErrorCode error) {
     super(RequestOrResponseType.ReplicaMetadataResponse, Replica_Metadata_Response_Version_V1, correlationId, clientId, error);
     replicaMetadataResponseInfoList = null;
     replicaMetadataResponseInfoListSizeInBytes = 0;
+    messageInfoListVersion = MessageInfoListSerde.Message_Info_List_Version_V1;
   }
 
   public List<ReplicaMetadataResponseInfo> getReplicaMetadataResponseInfoList() {
@@ -69,48 +121,126 @@ public class ReplicaMetadataResponse extends Response {
     int correlationId = stream.readInt();
     String clientId = Utils.readIntString(stream);
     ServerErrorCode error = ServerErrorCode.values()[stream.readShort()];
-    int replicaMetadataResponseInfoListCount = stream.readInt();
+    CompressedPayload compressedPayload = null;
+    DataInputStream listStream = stream;
+    short messageInfoListVersion =
+        versionId == Replica_Metadata_Response_Version_V3 || versionId == Replica_Metadata_Response_Version_V4
+            ? MessageInfoListSerde.Message_Info_List_Version_V2 : MessageInfoListSerde.Message_Info_List_Version_V1;
+    if (versionId == Replica_Metadata_Response_Version_V2 || versionId == Replica_Metadata_Response_Version_V4) {
+      compressedPayload = CompressedPayload.readFrom(stream);
+      listStream = compressedPayload.getDecompressedStream();
+    }
+    int replicaMetadataResponseInfoListCount = listStream.readInt();
     ArrayList<ReplicaMetadataResponseInfo> replicaMetadataResponseInfoList =
         new ArrayList<ReplicaMetadataResponseInfo>(replicaMetadataResponseInfoListCount);
     for (int i = 0; i < replicaMetadataResponseInfoListCount; i++) {
       ReplicaMetadataResponseInfo replicaMetadataResponseInfo =
-          ReplicaMetadataResponseInfo.readFrom(stream, factory, clusterMap);
+          ReplicaMetadataResponseInfo.readFrom(listStream, factory, clusterMap, messageInfoListVersion);
       replicaMetadataResponseInfoList.add(replicaMetadataResponseInfo);
     }
     if (error != ServerErrorCode.No_Error) {
       return new ReplicaMetadataResponse(correlationId, clientId, error);
     } else {
-      // ignore version for now
-      return new ReplicaMetadataResponse(correlationId, clientId, error, replicaMetadataResponseInfoList);
+      // the payload is kept as it was received, so that the sizes it was sent with can be told
+      return new ReplicaMetadataResponse(correlationId, clientId, error, replicaMetadataResponseInfoList,
+          messageInfoListVersion, compressedPayload);
     }
   }
 
+  /**
+   * @return The size of the list of response infos before it was compressed
+   */
+  public long getUncompressedPayloadSizeInBytes() {
+    return compressedPayload != null ? compressedPayload.getUncompressedSizeInBytes()
+        : Replica_Metadata_Response_Info_List_Size_In_Bytes + replicaMetadataResponseInfoListSizeInBytes;
+  }
+
+  /**
+   * @return The size that the list of response infos is sent with
+   */
+  public long getCompressedPayloadSizeInBytes() {
+    return compressedPayload != null ? compressedPayload.sizeInBytes()
+        : Replica_Metadata_Response_Info_List_Size_In_Bytes + replicaMetadataResponseInfoListSizeInBytes;
+  }
+
   @Override
   public long writeTo(WritableByteChannel channel)
       throws IOException {
     if (bufferToSend == null) {
-      bufferToSend = ByteBuffer.allocate((int) sizeInBytes());
-      writeHeader();
-      if (replicaMetadataResponseInfoList != null) {
-        bufferToSend.putInt(replicaMetadataResponseInfoList.size());
-        for (ReplicaMetadataResponseInfo replicaMetadataResponseInfo : replicaMetadataResponseInfoList) {
-          replicaMetadataResponseInfo.writeTo(bufferToSend);
-        }
+      if (compressedPayload != null) {
+        // the compressed list is written to the channel a chunk at a time after the header
+        bufferToSend = ByteBuffer.allocate((int) super.sizeInBytes());
+        writeHeader();
+        compressedPayloadSend = compressedPayload.toSend();
       } else {
-        bufferToSend.putInt(0);
+        bufferToSend = ByteBuffer.allocate((int) sizeInBytes());
+        writeHeader();
+        writeResponseInfoList(replicaMetadataResponseInfoList, messageInfoListVersion, bufferToSend);
       }
       bufferToSend.flip();
     }
-    return bufferToSend.remaining() > 0 ? channel.write(bufferToSend) : 0;
+    long written = bufferToSend.remaining() > 0 ? channel.write(bufferToSend) : 0;
+    if (bufferToSend.remaining() == 0 && compressedPayloadSend != null && !compressedPayloadSend.isSendComplete()) {
+      written += compressedPayloadSend.writeTo(channel);
+    }
+    return written;
+  }
+
+  private static short getMessageInfoListVersion(boolean compactMessageInfoList) {
+    return compactMessageInfoList ? MessageInfoListSerde.Message_Info_List_Version_V2
+        : MessageInfoListSerde.Message_Info_List_Version_V1;
+  }
+
+  private static short getVersionId(short messageInfoListVersion, CompressedPayload compressedPayload) {
+    if (messageInfoListVersion == MessageInfoListSerde.Message_Info_List_Version_V1) {
+      return compressedPayload == null ? Replica_Metadata_Response_Version_V1 : Replica_Metadata_Response_Version_V2;
+    }
+    return compressedPayload == null ? Replica_Metadata_Response_Version_V3 : Replica_Metadata_Response_Version_V4;
+  }
+
+  private static CompressedPayload compressResponseInfoList(
+      List<ReplicaMetadataResponseInfo> replicaMetadataResponseInfoList, short messageInfoListVersion,
+      CompressionCodec compressionCodec) {
+    ByteBuffer body = ByteBuffer.allocate(
+        Replica_Metadata_Response_Info_List_Size_In_Bytes + getResponseInfoListSizeInBytes(
+            replicaMetadataResponseInfoList, messageInfoListVersion));
+    writeResponseInfoList(replicaMetadataResponseInfoList, messageInfoListVersion, body);
+    body.flip();
+    return CompressedPayload.compress(compressionCodec, body);
+  }
+
+  private static int getResponseInfoListSizeInBytes(List<ReplicaMetadataResponseInfo> replicaMetadataResponseInfoList,
+      short messageInfoListVersion) {
+    int sizeInBytes = 0;
+    for (ReplicaMetadataResponseInfo replicaMetadataResponseInfo : replicaMetadataResponseInfoList) {
+      sizeInBytes += replicaMetadataResponseInfo.sizeInBytes(messageInfoListVersion);
+    }
+    return sizeInBytes;
+  }
+
+  private static void writeResponseInfoList(List<ReplicaMetadataResponseInfo> replicaMetadataResponseInfoList,
+      short messageInfoListVersion, ByteBuffer buffer) {
+    if (replicaMetadataResponseInfoList != null) {
+      buffer.putInt(replicaMetadataResponseInfoList.size());
+      for (ReplicaMetadataResponseInfo replicaMetadataResponseInfo : replicaMetadataResponseInfoList) {
+        replicaMetadataResponseInfo.writeTo(buffer, messageInfoListVersion);
+      }
+    } else {
+      buffer.putInt(0);
+    }
   }
 
   @Override
   public boolean isSendComplete() {
-    return bufferToSend != null && bufferToSend.remaining() == 0;
+    return bufferToSend != null && bufferToSend.remaining() == 0 && (compressedPayloadSend == null
+        || compressedPayloadSend.isSendComplete());
   }
 
   @Override
   public long sizeInBytes() {
+    if (compressedPayload != null) {
+      return super.sizeInBytes() + compressedPayload.sizeInBytes();
+    }
     return super.sizeInBytes() + Replica_Metadata_Response_Info_List_Size_In_Bytes
         + replicaMetadataResponseInfoListSizeInBytes;
   }
@@ -89,31 +89,58 @@ public class ReplicaMetadataResponseInfo {
   public static ReplicaMetadataResponseInfo readFrom(DataInputStream stream, FindTokenFactory factory,
       ClusterMap clusterMap)
       throws IOException {
+    return readFrom(stream, factory, clusterMap, MessageInfoListSerde.Message_Info_List_Version_V1);
+  }
+
+  /**
+   * Reads a response info whose message info list was serialized as the given version of {@link MessageInfoListSerde}
+   */
+  static ReplicaMetadataResponseInfo readFrom(DataInputStream stream, FindTokenFactory factory, ClusterMap clusterMap,
+      short messageInfoListVersion)
+      throws IOException {
     PartitionId partitionId = clusterMap.getPartitionIdFromStream(stream);
     ServerErrorCode error = ServerErrorCode.values()[stream.readShort()];
     if (error != ServerErrorCode.No_Error) {
       return new ReplicaMetadataResponseInfo(partitionId, error);
     } else {
       FindToken token = factory.getFindToken(stream);
-      List<MessageInfo> messageInfoList = MessageInfoListSerde.deserializeMessageInfoList(stream, clusterMap);
+      List<MessageInfo> messageInfoList =
+          MessageInfoListSerde.deserializeMessageInfoList(stream, clusterMap, messageInfoListVersion);
       long remoteReplicaLag = stream.readLong();
       return new ReplicaMetadataResponseInfo(partitionId, token, messageInfoList, remoteReplicaLag);
     }
   }
 
   public void writeTo(ByteBuffer buffer) {
+    writeTo(buffer, MessageInfoListSerde.Message_Info_List_Version_V1);
+  }
+
+  /**
+   * Writes the response info with its message info list serialized as the given version of
+   * {@link MessageInfoListSerde}
+   */
+  void writeTo(ByteBuffer buffer, short messageInfoListVersion) {
     buffer.put(partitionId.getBytes());
     buffer.putShort((short) errorCode.ordinal());
     if (errorCode == ServerErrorCode.No_Error) {
       buffer.put(token.toBytes());
-      messageInfoListSerDe.serializeMessageInfoList(buffer);
+      messageInfoListSerDe.serializeMessageInfoList(buffer, messageInfoListVersion);
       buffer.putLong(remoteReplicaLagInBytes);
     }
   }
 
   public long sizeInBytes() {
-    return (token == null ? 0 : (token.toBytes().length + Remote_Replica_Lag_Size_In_Bytes + messageInfoListSize)) +
-        +partitionId.getBytes().length + Error_Size_InBytes;
+    return sizeInBytes(MessageInfoListSerde.Message_Info_List_Version_V1);
+  }
+
+  long sizeInBytes(short messageInfoListVersion) {
+    long sizeInBytes = partitionId.getBytes().length + Error_Size_InBytes;
+    if (token != null) {
+      sizeInBytes += token.toBytes().length + Remote_Replica_Lag_Size_In_Bytes + (
+          messageInfoListVersion == MessageInfoListSerde.Message_Info_List_Version_V1 ? messageInfoListSize
+              : messageInfoListSerDe.getMessageInfoListSize(messageInfoListVersion));
+    }
+    return sizeInBytes;
   }
 
   @Override
@@ -13,6 +13,7 @@
  */
 package com.github.ambry.protocol;
 
+import com.github.ambry.clustermap.ClusterMap;
 import com.github.ambry.clustermap.MockClusterMap;
 import com.github.ambry.clustermap.MockPartitionId;
 import com.github.ambry.commons.BlobId;
@@ -21,6 +22,8 @@ import com.github.ambry.messageformat.BlobProperties;
 import com.github.ambry.messageformat.BlobPropertiesSerDe;
 import com.github.ambry.messageformat.BlobType;
 import com.github.ambry.messageformat.MessageFormatFlags;
+import com.github.ambry.network.BoundedByteBufferSend;
+import com.github.ambry.network.Send;
 import com.github.ambry.store.FindToken;
 import com.github.ambry.store.FindTokenFactory;
 import com.github.ambry.store.MessageInfo;
@@ -36,8 +39,11 @@ import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.UUID;
+import org.apache.commons.codec.binary.Base64;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -418,4 +424,307 @@ public class RequestResponseTest {
     Assert.assertEquals(deserializedDeleteResponse.getCorrelationId(), 1234);
     Assert.assertEquals(deserializedDeleteResponse.getError(), ServerErrorCode.No_Error);
   }
+
+  /**
+   * Tests that requests that ask for a compressed response and the compressed responses are read back as they were
+   * written
+   * @throws IOException
+   */
+  @Test
+  public void compressedReplicationRequestResponseTest()
+      throws IOException {
+    MockClusterMap clusterMap = new MockClusterMap();
+    BlobId id1 = new BlobId(clusterMap.getWritablePartitionIds().get(0));
+    List<ReplicaMetadataRequestInfo> replicaMetadataRequestInfoList = new ArrayList<ReplicaMetadataRequestInfo>();
+    replicaMetadataRequestInfoList.add(
+        new ReplicaMetadataRequestInfo(new MockPartitionId(), new MockFindToken(0, 1000), "localhost", "path"));
+    ReplicaMetadataRequest metadataRequest =
+        new ReplicaMetadataRequest(1, "id", replicaMetadataRequestInfoList, 1000, CompressionCodec.Deflate);
+    DataInputStream requestStream = new DataInputStream(new ByteArrayInputStream(writeToBytes(metadataRequest)));
+    requestStream.readLong(); // read length
+    requestStream.readShort(); // read type
+    ReplicaMetadataRequest deserializedMetadataRequest =
+        ReplicaMetadataRequest.readFrom(requestStream, clusterMap, new MockFindTokenFactory());
+    Assert.assertEquals(CompressionCodec.Deflate, deserializedMetadataRequest.getResponseCompressionCodec());
+    Assert.assertEquals(1000, deserializedMetadataRequest.getMaxTotalSizeOfEntriesInBytes());
+    Assert.assertEquals(1, deserializedMetadataRequest.getReplicaMetadataRequestInfoList().size());
+
+    List<MessageInfo> messageInfoList = new ArrayList<MessageInfo>();
+    for (int i = 0; i < 100; i++) {
+      messageInfoList.add(new MessageInfo(new BlobId(clusterMap.getWritablePartitionIds().get(0)), 1000));
+    }
+    List<ReplicaMetadataResponseInfo> replicaMetadataResponseInfoList = new ArrayList<ReplicaMetadataResponseInfo>();
+    replicaMetadataResponseInfoList.add(
+        new ReplicaMetadataResponseInfo(clusterMap.getWritablePartitionIds().get(0), new MockFindToken(0, 1000),
+            messageInfoList, 1000));
+    ReplicaMetadataResponse metadataResponse =
+        new ReplicaMetadataResponse(1234, "clientId", ServerErrorCode.No_Error, replicaMetadataResponseInfoList,
+            CompressionCodec.Deflate);
+    ReplicaMetadataResponse uncompressedMetadataResponse =
+        new ReplicaMetadataResponse(1234, "clientId", ServerErrorCode.No_Error, replicaMetadataResponseInfoList);
+    Assert.assertTrue("Response should have been compressed",
+        metadataResponse.sizeInBytes() < uncompressedMetadataResponse.sizeInBytes());
+    Assert.assertEquals(uncompressedMetadataResponse.getUncompressedPayloadSizeInBytes(),
+        metadataResponse.getUncompressedPayloadSizeInBytes());
+    DataInputStream responseStream = new DataInputStream(new ByteArrayInputStream(writeToBytes(metadataResponse)));
+    responseStream.readLong(); // read size
+    ReplicaMetadataResponse deserializedMetadataResponse =
+        ReplicaMetadataResponse.readFrom(responseStream, new MockFindTokenFactory(), clusterMap);
+    Assert.assertEquals(1234, deserializedMetadataResponse.getCorrelationId());
+    Assert.assertEquals(ServerErrorCode.No_Error, deserializedMetadataResponse.getError());
+    Assert.assertEquals(metadataResponse.getCompressedPayloadSizeInBytes(),
+        deserializedMetadataResponse.getCompressedPayloadSizeInBytes());
+    List<MessageInfo> deserializedMessageInfoList =
+        deserializedMetadataResponse.getReplicaMetadataResponseInfoList().get(0).getMessageInfoList();
+    Assert.assertEquals(messageInfoList.size(), deserializedMessageInfoList.size());
+    for (int i = 0; i < messageInfoList.size(); i++) {
+      Assert.assertEquals(messageInfoList.get(i).getStoreKey(), deserializedMessageInfoList.get(i).getStoreKey());
+      Assert.assertEquals(messageInfoList.get(i).getSize(), deserializedMessageInfoList.get(i).getSize());
+    }
+
+    List<PartitionRequestInfo> partitionRequestInfoList = new ArrayList<PartitionRequestInfo>();
+    List<BlobId> blobIdList = new ArrayList<BlobId>();
+    blobIdList.add(id1);
+    partitionRequestInfoList.add(new PartitionRequestInfo(new MockPartitionId(), blobIdList));
+    GetRequest getRequest =
+        new GetRequest(1234, "clientId", MessageFormatFlags.All, partitionRequestInfoList, GetOptions.Include_All,
+            CompressionCodec.Deflate);
+    requestStream = new DataInputStream(new ByteArrayInputStream(writeToBytes(getRequest)));
+    requestStream.readLong(); // read length
+    requestStream.readShort(); // read type
+    GetRequest deserializedGetRequest = GetRequest.readFrom(requestStream, clusterMap);
+    Assert.assertEquals(GetOptions.Include_All, deserializedGetRequest.getGetOptions());
+    Assert.assertEquals(CompressionCodec.Deflate, deserializedGetRequest.getResponseCompressionCodec());
+    Assert.assertEquals(id1, deserializedGetRequest.getPartitionInfoList().get(0).getBlobIds().get(0));
+
+    // data that spans more than one chunk of compression
+    byte[] data = new byte[2 * CompressedPayload.Chunk_Size_In_Bytes + 4000];
+    List<MessageInfo> getMessageInfoList = new ArrayList<MessageInfo>();
+    getMessageInfoList.add(new MessageInfo(id1, data.length));
+    List<PartitionResponseInfo> partitionResponseInfoList = new ArrayList<PartitionResponseInfo>();
+    partitionResponseInfoList.add(
+        new PartitionResponseInfo(clusterMap.getWritablePartitionIds().get(0), getMessageInfoList));
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i % 16);
+    }
+    GetResponse getResponse = new GetResponse(1234, "clientId", partitionResponseInfoList,
+        new BoundedByteBufferSend(ByteBuffer.wrap(data)), ServerErrorCode.No_Error, CompressionCodec.Deflate);
+    Assert.assertEquals(data.length, getResponse.getUncompressedPayloadSizeInBytes());
+    Assert.assertTrue("Data should have been compressed", getResponse.getCompressedPayloadSizeInBytes() < data.length);
+    responseStream = new DataInputStream(new ByteArrayInputStream(writeToBytes(getResponse)));
+    responseStream.readLong(); // read size
+    GetResponse deserializedGetResponse = GetResponse.readFrom(responseStream, clusterMap);
+    Assert.assertEquals(ServerErrorCode.No_Error, deserializedGetResponse.getError());
+    Assert.assertEquals(id1,
+        deserializedGetResponse.getPartitionResponseInfoList().get(0).getMessageInfoList().get(0).getStoreKey());
+    byte[] deserializedData = new byte[data.length];
+    new DataInputStream(deserializedGetResponse.getInputStream()).readFully(deserializedData);
+    Assert.assertArrayEquals(data, deserializedData);
+    Assert.assertEquals("Data should end where the response ends", -1, deserializedGetResponse.getInputStream().read());
+  }
+
+  /**
+   * Tests that compressed payloads whose sizes are not what they can be written as are rejected before anything is
+   * allocated for them
+   * @throws IOException
+   */
+  @Test
+  public void malformedCompressedPayloadTest()
+      throws IOException {
+    byte[] data = new byte[CompressedPayload.Chunk_Size_In_Bytes + 1000];
+    new Random().nextBytes(data);
+    CompressedPayload payload = CompressedPayload.compress(CompressionCodec.Deflate, ByteBuffer.wrap(data));
+    ByteBuffer buffer = ByteBuffer.wrap(writeToBytes(payload.toSend()));
+    byte[] decompressed = new byte[data.length];
+    CompressedPayload readPayload =
+        CompressedPayload.readFrom(new DataInputStream(new ByteArrayInputStream(buffer.array())));
+    DataInputStream decompressedStream = readPayload.getDecompressedStream();
+    decompressedStream.readFully(decompressed);
+    Assert.assertArrayEquals(data, decompressed);
+    Assert.assertEquals("Stream should end with the payload", -1, decompressedStream.read());
+    Assert.assertEquals(payload.sizeInBytes(), readPayload.sizeInBytes());
+
+    // unknown codec
+    verifyMalformedCompressedPayload(buffer.array(), 0, ByteBuffer.allocate(2).putShort((short) 100).array());
+    // more chunks than the data can be split into
+    verifyMalformedCompressedPayload(buffer.array(), 2,
+        ByteBuffer.allocate(12).putLong(data.length).putInt(Integer.MAX_VALUE).array());
+    // a chunk that is bigger than any chunk can be once it is compressed
+    verifyMalformedCompressedPayload(buffer.array(), 14,
+        ByteBuffer.allocate(8).putInt(CompressedPayload.Chunk_Size_In_Bytes).putInt(Integer.MAX_VALUE).array());
+    // a chunk that is not full although it is not the last one
+    verifyMalformedCompressedPayload(buffer.array(), 14, ByteBuffer.allocate(4).putInt(1000).array());
+  }
+
+  /**
+   * Verifies that a compressed payload with some of its bytes overwritten fails to be read. The chunks are only read
+   * as the body is, so the whole body is read.
+   * @param payload The bytes of a valid payload
+   * @param offset The offset in the payload to overwrite from
+   * @param bytes The bytes to overwrite the payload with
+   */
+  private void verifyMalformedCompressedPayload(byte[] payload, int offset, byte[] bytes) {
+    byte[] malformedPayload = Arrays.copyOf(payload, payload.length);
+    System.arraycopy(bytes, 0, malformedPayload, offset, bytes.length);
+    try {
+      InputStream decompressedStream =
+          CompressedPayload.readFrom(new DataInputStream(new ByteArrayInputStream(malformedPayload)))
+              .getDecompressedStream();
+      byte[] buf = new byte[4096];
+      while (decompressedStream.read(buf) != -1) {
+        // read the whole body
+      }
+      Assert.fail("Reading a malformed payload should have failed");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Tests that requests that accept the compact message info list format and the responses with compact message info
+   * lists are read back as they were written, whether the responses are compressed or not
+   * @throws IOException
+   */
+  @Test
+  public void compactReplicaMetadataResponseTest()
+      throws IOException {
+    MockClusterMap clusterMap = new MockClusterMap();
+    List<ReplicaMetadataRequestInfo> replicaMetadataRequestInfoList = new ArrayList<ReplicaMetadataRequestInfo>();
+    replicaMetadataRequestInfoList.add(
+        new ReplicaMetadataRequestInfo(new MockPartitionId(), new MockFindToken(0, 1000), "localhost", "path"));
+    for (CompressionCodec codec : CompressionCodec.values()) {
+      ReplicaMetadataRequest metadataRequest =
+          new ReplicaMetadataRequest(1, "id", replicaMetadataRequestInfoList, 1000, codec, true);
+      DataInputStream requestStream = new DataInputStream(new ByteArrayInputStream(writeToBytes(metadataRequest)));
+      requestStream.readLong(); // read length
+      requestStream.readShort(); // read type
+      ReplicaMetadataRequest deserializedMetadataRequest =
+          ReplicaMetadataRequest.readFrom(requestStream, clusterMap, new MockFindTokenFactory());
+      Assert.assertTrue(deserializedMetadataRequest.isCompactMessageInfoListAccepted());
+      Assert.assertEquals(codec, deserializedMetadataRequest.getResponseCompressionCodec());
+      Assert.assertEquals(1000, deserializedMetadataRequest.getMaxTotalSizeOfEntriesInBytes());
+    }
+
+    // sizes, flags and expiration times going both up and down
+    List<MessageInfo> messageInfoList = new ArrayList<MessageInfo>();
+    long expirationTimeInMs = System.currentTimeMillis();
+    for (int i = 0; i < 100; i++) {
+      expirationTimeInMs += (i % 4 == 0 ? -1 : 1) * i * 1000;
+      messageInfoList.add(new MessageInfo(new BlobId(clusterMap.getWritablePartitionIds().get(0)), i * 1000,
+          i % 3 == 0, i % 2 == 0 ? Utils.Infinite_Time : expirationTimeInMs));
+    }
+    List<ReplicaMetadataResponseInfo> replicaMetadataResponseInfoList = new ArrayList<ReplicaMetadataResponseInfo>();
+    replicaMetadataResponseInfoList.add(
+        new ReplicaMetadataResponseInfo(clusterMap.getWritablePartitionIds().get(0), new MockFindToken(0, 1000),
+            messageInfoList, 1000));
+    replicaMetadataResponseInfoList.add(
+        new ReplicaMetadataResponseInfo(clusterMap.getWritablePartitionIds().get(1), ServerErrorCode.Disk_Unavailable));
+    ReplicaMetadataResponse uncompactMetadataResponse =
+        new ReplicaMetadataResponse(1234, "clientId", ServerErrorCode.No_Error, replicaMetadataResponseInfoList);
+    for (CompressionCodec codec : CompressionCodec.values()) {
+      ReplicaMetadataResponse metadataResponse =
+          new ReplicaMetadataResponse(1234, "clientId", ServerErrorCode.No_Error, replicaMetadataResponseInfoList,
+              codec, true);
+      Assert.assertTrue("Message info lists should have been compacted",
+          metadataResponse.getUncompressedPayloadSizeInBytes()
+              < uncompactMetadataResponse.getUncompressedPayloadSizeInBytes());
+      DataInputStream responseStream = new DataInputStream(new ByteArrayInputStream(writeToBytes(metadataResponse)));
+      responseStream.readLong(); // read size
+      ReplicaMetadataResponse deserializedMetadataResponse =
+          ReplicaMetadataResponse.readFrom(responseStream, new MockFindTokenFactory(), clusterMap);
+      Assert.assertEquals(1234, deserializedMetadataResponse.getCorrelationId());
+      Assert.assertEquals(metadataResponse.sizeInBytes(), deserializedMetadataResponse.sizeInBytes());
+      List<ReplicaMetadataResponseInfo> deserializedResponseInfoList =
+          deserializedMetadataResponse.getReplicaMetadataResponseInfoList();
+      Assert.assertEquals(2, deserializedResponseInfoList.size());
+      Assert.assertEquals(ServerErrorCode.Disk_Unavailable, deserializedResponseInfoList.get(1).getError());
+      Assert.assertEquals(1000, deserializedResponseInfoList.get(0).getRemoteReplicaLagInBytes());
+      List<MessageInfo> deserializedMessageInfoList = deserializedResponseInfoList.get(0).getMessageInfoList();
+      Assert.assertEquals(messageInfoList.size(), deserializedMessageInfoList.size());
+      for (int i = 0; i < messageInfoList.size(); i++) {
+        MessageInfo messageInfo = messageInfoList.get(i);
+        MessageInfo deserializedMessageInfo = deserializedMessageInfoList.get(i);
+        Assert.assertEquals(messageInfo.getStoreKey(), deserializedMessageInfo.getStoreKey());
+        Assert.assertEquals(messageInfo.getSize(), deserializedMessageInfo.getSize());
+        Assert.assertEquals(messageInfo.isDeleted(), deserializedMessageInfo.isDeleted());
+        Assert.assertEquals(messageInfo.getExpirationTimeInMs(), deserializedMessageInfo.getExpirationTimeInMs());
+      }
+    }
+  }
+
+  /**
+   * Tests that the keys of compact message info lists are read back as they were written, whether their UUIDs can be
+   * sent as raw bytes or not, and that lists with lengths that are out of bounds are rejected
+   * @throws IOException
+   */
+  @Test
+  public void compactMessageInfoListKeysTest()
+      throws IOException {
+    MockClusterMap clusterMap = new MockClusterMap();
+    byte[] partitionBytes = clusterMap.getWritablePartitionIds().get(0).getBytes();
+    List<MessageInfo> messageInfoList = new ArrayList<MessageInfo>();
+    for (int i = 0; i < 10; i++) {
+      messageInfoList.add(new MessageInfo(new BlobId(clusterMap.getWritablePartitionIds().get(0)), 1000));
+    }
+    // UUIDs that are not in their canonical form, or are not UUIDs at all, are sent as they are
+    String canonicalUuid = UUID.randomUUID().toString();
+    for (String uuid : Arrays.asList(canonicalUuid.toUpperCase(), "not-a-uuid", canonicalUuid.replace("-", "+"))) {
+      ByteBuffer keyBytes = ByteBuffer.allocate(2 + partitionBytes.length + 4 + uuid.length());
+      keyBytes.putShort((short) 1);
+      keyBytes.put(partitionBytes);
+      keyBytes.putInt(uuid.length());
+      keyBytes.put(uuid.getBytes());
+      messageInfoList.add(
+          new MessageInfo(new BlobId(Base64.encodeBase64URLSafeString(keyBytes.array()), clusterMap), 1000));
+    }
+    MessageInfoListSerde serde = new MessageInfoListSerde(messageInfoList);
+    int compactSize = serde.getMessageInfoListSize(MessageInfoListSerde.Message_Info_List_Version_V2);
+    ByteBuffer buffer = ByteBuffer.allocate(compactSize);
+    serde.serializeMessageInfoList(buffer, MessageInfoListSerde.Message_Info_List_Version_V2);
+    Assert.assertEquals("List should fill its size", 0, buffer.remaining());
+    List<MessageInfo> deserializedMessageInfoList = MessageInfoListSerde.deserializeMessageInfoList(
+        new DataInputStream(new ByteArrayInputStream(buffer.array())), clusterMap,
+        MessageInfoListSerde.Message_Info_List_Version_V2);
+    Assert.assertEquals(messageInfoList.size(), deserializedMessageInfoList.size());
+    for (int i = 0; i < messageInfoList.size(); i++) {
+      Assert.assertEquals(messageInfoList.get(i).getStoreKey(), deserializedMessageInfoList.get(i).getStoreKey());
+      Assert.assertArrayEquals(messageInfoList.get(i).getStoreKey().toBytes(),
+          deserializedMessageInfoList.get(i).getStoreKey().toBytes());
+    }
+    // a canonical UUID is sent as 16 bytes instead of its 36 characters and their size
+    MessageInfoListSerde canonicalSerde = new MessageInfoListSerde(messageInfoList.subList(1, 2));
+    int keySize = messageInfoList.get(1).getStoreKey().sizeInBytes();
+    // the count, the prefix and suffix lengths, the key, the flags and a size of two varint bytes
+    Assert.assertEquals("Canonical UUID should have been sent as its bytes", 4 + 1 + 1 + (keySize - 24) + 1 + 2,
+        canonicalSerde.getMessageInfoListSize(MessageInfoListSerde.Message_Info_List_Version_V2));
+
+    // a suffix that is longer than any key
+    verifyMalformedMessageInfoList(new byte[]{0, 0, 0, 1, 0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 8},
+        clusterMap);
+    // a prefix that is shared with a key that is not there
+    verifyMalformedMessageInfoList(new byte[]{0, 0, 0, 1, 5, 0}, clusterMap);
+    // a negative number of messages
+    verifyMalformedMessageInfoList(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, clusterMap);
+  }
+
+  private void verifyMalformedMessageInfoList(byte[] list, ClusterMap clusterMap) {
+    try {
+      MessageInfoListSerde.deserializeMessageInfoList(new DataInputStream(new ByteArrayInputStream(list)), clusterMap,
+          MessageInfoListSerde.Message_Info_List_Version_V2);
+      Assert.fail("Reading a malformed message info list should have failed");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private byte[] writeToBytes(Send send)
+      throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    WritableByteChannel writableByteChannel = Channels.newChannel(outputStream);
+    do {
+      send.writeTo(writableByteChannel);
+    } while (!send.isSendComplete());
+    Assert.assertEquals(send.sizeInBytes(), outputStream.size());
+    return outputStream.toByteArray();
+  }
 }
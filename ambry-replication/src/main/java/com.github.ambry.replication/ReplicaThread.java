@@ -25,6 +25,7 @@ import com.github.ambry.messageformat.MessageFormatFlags;
 import com.github.ambry.messageformat.MessageFormatInputStream;
 import com.github.ambry.messageformat.MessageFormatWriteSet;
 import com.github.ambry.messageformat.MessageSievingInputStream;
+import com.github.ambry.messageformat.MessageVerifyingInputStream;
 import com.github.ambry.notification.BlobReplicaSourceType;
 import com.github.ambry.notification.NotificationSystem;
 import com.github.ambry.commons.BlobId;
@@ -32,6 +33,11 @@ import com.github.ambry.commons.ServerErrorCode;
 import com.github.ambry.network.ChannelOutput;
 import com.github.ambry.network.ConnectedChannel;
 import com.github.ambry.network.ConnectionPool;
+import com.github.ambry.network.NetworkClient;
+import com.github.ambry.network.NetworkClientFactory;
+import com.github.ambry.network.RequestInfo;
+import com.github.ambry.network.ResponseInfo;
+import com.github.ambry.protocol.CompressionCodec;
 import com.github.ambry.protocol.GetOptions;
 import com.github.ambry.protocol.GetRequest;
 import com.github.ambry.protocol.GetResponse;
@@ -41,26 +47,37 @@ import com.github.ambry.protocol.ReplicaMetadataRequest;
 import com.github.ambry.protocol.ReplicaMetadataRequestInfo;
 import com.github.ambry.protocol.ReplicaMetadataResponse;
 import com.github.ambry.protocol.ReplicaMetadataResponseInfo;
+import com.github.ambry.store.DiskIOScheduler;
 import com.github.ambry.store.FindToken;
 import com.github.ambry.store.FindTokenFactory;
 import com.github.ambry.store.MessageInfo;
+import com.github.ambry.store.MessageSourceException;
 import com.github.ambry.store.StoreErrorCodes;
 import com.github.ambry.store.StoreException;
 import com.github.ambry.store.StoreKey;
 import com.github.ambry.store.StoreKeyFactory;
 import com.github.ambry.utils.ByteBufferInputStream;
 import com.github.ambry.utils.SystemTime;
+import com.github.ambry.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -88,8 +105,20 @@ class ReplicaThread implements Runnable {
   private final MetricRegistry metricRegistry;
   private final ResponseHandler responseHandler;
   private final boolean replicatingFromRemoteColo;
+  // the codec that the remote nodes are asked to compress their responses with
+  private final CompressionCodec responseCompressionCodec;
   private final boolean replicatingOverSsl;
   private final String datacenterName;
+  private final NetworkClientFactory networkClientFactory;
+  private volatile NetworkClient networkClient = null;
+  private final ReplicationScheduler scheduler;
+  // the replicas whose last streamed batch had a corrupt message. Their next batch is sieved instead of streamed so
+  // that the corrupt message is skipped.
+  private final Set<RemoteReplicaInfo> replicasToSieve = new HashSet<RemoteReplicaInfo>();
+  // the thread that does the work of the remote nodes against the local stores during non blocking replication, and
+  // the work that it has finished and that is yet to be applied to the state of the nodes
+  private ExecutorService localWorkExecutor = null;
+  private final ConcurrentLinkedQueue<LocalWork> finishedLocalWork = new ConcurrentLinkedQueue<LocalWork>();
 
   public ReplicaThread(String threadName, Map<DataNodeId, List<RemoteReplicaInfo>> replicasToReplicateGroupedByNode,
       FindTokenFactory findTokenFactory, ClusterMap clusterMap, AtomicInteger correlationIdGenerator,
@@ -97,6 +126,42 @@ class ReplicaThread implements Runnable {
       ReplicationMetrics replicationMetrics, NotificationSystem notification, StoreKeyFactory storeKeyFactory,
       boolean validateMessageStream, MetricRegistry metricRegistry, boolean replicatingOverSsl, String datacenterName,
       ResponseHandler responseHandler) {
+    this(threadName, replicasToReplicateGroupedByNode, findTokenFactory, clusterMap, correlationIdGenerator, dataNodeId,
+        connectionPool, replicationConfig, replicationMetrics, notification, storeKeyFactory, validateMessageStream,
+        metricRegistry, replicatingOverSsl, datacenterName, responseHandler, null, null);
+  }
+
+  /**
+   * Creates a replica thread that replicates from all its remote nodes at the same time if a factory for network
+   * clients is given
+   * @param networkClientFactory The factory to create the network client of the thread with. If this is null, the
+   *                             thread replicates from one remote node at a time over connections from the connection
+   *                             pool.
+   */
+  public ReplicaThread(String threadName, Map<DataNodeId, List<RemoteReplicaInfo>> replicasToReplicateGroupedByNode,
+      FindTokenFactory findTokenFactory, ClusterMap clusterMap, AtomicInteger correlationIdGenerator,
+      DataNodeId dataNodeId, ConnectionPool connectionPool, ReplicationConfig replicationConfig,
+      ReplicationMetrics replicationMetrics, NotificationSystem notification, StoreKeyFactory storeKeyFactory,
+      boolean validateMessageStream, MetricRegistry metricRegistry, boolean replicatingOverSsl, String datacenterName,
+      ResponseHandler responseHandler, NetworkClientFactory networkClientFactory) {
+    this(threadName, replicasToReplicateGroupedByNode, findTokenFactory, clusterMap, correlationIdGenerator, dataNodeId,
+        connectionPool, replicationConfig, replicationMetrics, notification, storeKeyFactory, validateMessageStream,
+        metricRegistry, replicatingOverSsl, datacenterName, responseHandler, networkClientFactory, null);
+  }
+
+  /**
+   * Creates a replica thread that takes the remote nodes to replicate from from a scheduler shared with other replica
+   * threads if a scheduler is given
+   * @param scheduler The scheduler that hands out the remote nodes to replicate from. If this is null, the thread
+   *                  replicates from all the nodes in {@code replicasToReplicateGroupedByNode} in turn. It is not used
+   *                  if the thread replicates over a network client.
+   */
+  public ReplicaThread(String threadName, Map<DataNodeId, List<RemoteReplicaInfo>> replicasToReplicateGroupedByNode,
+      FindTokenFactory findTokenFactory, ClusterMap clusterMap, AtomicInteger correlationIdGenerator,
+      DataNodeId dataNodeId, ConnectionPool connectionPool, ReplicationConfig replicationConfig,
+      ReplicationMetrics replicationMetrics, NotificationSystem notification, StoreKeyFactory storeKeyFactory,
+      boolean validateMessageStream, MetricRegistry metricRegistry, boolean replicatingOverSsl, String datacenterName,
+      ResponseHandler responseHandler, NetworkClientFactory networkClientFactory, ReplicationScheduler scheduler) {
     this.threadName = threadName;
     this.replicasToReplicateGroupedByNode = replicasToReplicateGroupedByNode;
     this.running = true;
@@ -113,9 +178,13 @@ class ReplicaThread implements Runnable {
     this.metricRegistry = metricRegistry;
     this.responseHandler = responseHandler;
     this.replicatingFromRemoteColo = !(dataNodeId.getDatacenterName().equals(datacenterName));
-    this.waitEnabled = !replicatingFromRemoteColo;
+    this.waitEnabled = !replicatingFromRemoteColo && scheduler == null;
+    this.responseCompressionCodec = replicatingFromRemoteColo ? CompressionCodec.valueOf(
+        replicationConfig.replicationInterDcCompressionCodec) : CompressionCodec.None;
     this.replicatingOverSsl = replicatingOverSsl;
     this.datacenterName = datacenterName;
+    this.networkClientFactory = networkClientFactory;
+    this.scheduler = scheduler;
   }
 
   public String getName() {
@@ -135,6 +204,44 @@ class ReplicaThread implements Runnable {
             " ReplicasToReplicate: " + replicasToReplicateEntry.getValue());
         replicasToReplicate.add(replicasToReplicateEntry.getValue());
       }
+      if (networkClientFactory != null) {
+        try {
+          networkClient = networkClientFactory.getNetworkClient();
+        } catch (IOException e) {
+          logger.error("Thread name: " + threadName + " failed to create network client, replicating from one node "
+              + "at a time", e);
+        }
+      }
+      if (networkClient != null) {
+        logger.info("Begin non blocking replication for thread " + threadName);
+        try {
+          replicateNonBlocking(replicasToReplicate);
+        } finally {
+          networkClient.close();
+        }
+        return;
+      }
+      if (scheduler != null) {
+        logger.info("Begin scheduled replication for thread " + threadName);
+        while (running) {
+          ReplicationScheduler.ReplicaSet replicaSet;
+          try {
+            replicaSet = scheduler.checkOut();
+          } catch (InterruptedException e) {
+            logger.error("Thread name: " + threadName + " interrupted while waiting for remote replicas", e);
+            break;
+          }
+          if (replicaSet != null) {
+            boolean idle = true;
+            try {
+              idle = !replicateFromNode(replicaSet.getReplicas());
+            } finally {
+              scheduler.checkIn(replicaSet, idle);
+            }
+          }
+        }
+        return;
+      }
       logger.info("Begin iteration for thread " + threadName);
       while (running) {
         // shuffle the nodes
@@ -143,111 +250,7 @@ class ReplicaThread implements Runnable {
           if (!running) {
             break;
           }
-          DataNodeId remoteNode = replicasToReplicatePerNode.get(0).getReplicaId().getDataNodeId();
-          logger.trace("Remote node: {} Thread name: {} Remote replicas: {}", remoteNode, threadName,
-              replicasToReplicatePerNode);
-          Timer.Context context = null;
-          Timer.Context portTypeBasedContext = null;
-          if (replicatingFromRemoteColo) {
-            context = replicationMetrics.interColoReplicationLatency.get(remoteNode.getDatacenterName()).time();
-            if (replicatingOverSsl) {
-              portTypeBasedContext =
-                  replicationMetrics.sslInterColoReplicationLatency.get(remoteNode.getDatacenterName()).time();
-            } else {
-              portTypeBasedContext =
-                  replicationMetrics.plainTextInterColoReplicationLatency.get(remoteNode.getDatacenterName()).time();
-            }
-          } else {
-            context = replicationMetrics.intraColoReplicationLatency.time();
-            if (replicatingOverSsl) {
-              portTypeBasedContext = replicationMetrics.sslIntraColoReplicationLatency.time();
-            } else {
-              portTypeBasedContext = replicationMetrics.plainTextIntraColoReplicationLatency.time();
-            }
-          }
-          ConnectedChannel connectedChannel = null;
-          long checkoutConnectionTimeInMs = -1;
-          long exchangeMetadataTimeInMs = -1;
-          long fixMissingStoreKeysTimeInMs = -1;
-          long replicationStartTimeInMs = SystemTime.getInstance().milliseconds();
-          long startTimeInMs = replicationStartTimeInMs;
-
-          List<RemoteReplicaInfo> activeReplicasPerNode = new ArrayList<RemoteReplicaInfo>();
-          for (RemoteReplicaInfo remoteReplicaInfo : replicasToReplicatePerNode) {
-            if (!remoteReplicaInfo.getReplicaId().isDown()) {
-              activeReplicasPerNode.add(remoteReplicaInfo);
-            }
-          }
-          if (activeReplicasPerNode.size() > 0) {
-            try {
-              connectedChannel = connectionPool
-                  .checkOutConnection(remoteNode.getHostname(), replicasToReplicatePerNode.get(0).getPort(),
-                      replicationConfig.replicationConnectionPoolCheckoutTimeoutMs);
-              checkoutConnectionTimeInMs = SystemTime.getInstance().milliseconds() - startTimeInMs;
-              startTimeInMs = SystemTime.getInstance().milliseconds();
-              List<ExchangeMetadataResponse> exchangeMetadataResponseList =
-                  exchangeMetadata(connectedChannel, replicasToReplicatePerNode);
-              exchangeMetadataTimeInMs = SystemTime.getInstance().milliseconds() - startTimeInMs;
-
-              startTimeInMs = SystemTime.getInstance().milliseconds();
-              fixMissingStoreKeys(connectedChannel, replicasToReplicatePerNode, exchangeMetadataResponseList);
-              fixMissingStoreKeysTimeInMs = SystemTime.getInstance().milliseconds() - startTimeInMs;
-            } catch (Exception e) {
-              if (checkoutConnectionTimeInMs == -1) {
-                // exception happened in checkout connection phase
-                checkoutConnectionTimeInMs = SystemTime.getInstance().milliseconds() - startTimeInMs;
-                // recording an exception for any replica on a node will record a node timeout failure
-                responseHandler.onRequestResponseException(activeReplicasPerNode.get(0).getReplicaId(), e);
-              } else if (exchangeMetadataTimeInMs == -1) {
-                // exception happened in exchange metadata phase
-                exchangeMetadataTimeInMs = SystemTime.getInstance().milliseconds() - startTimeInMs;
-              } else if (fixMissingStoreKeysTimeInMs == -1) {
-                // exception happened in fix missing store phase
-                fixMissingStoreKeysTimeInMs = SystemTime.getInstance().milliseconds() - startTimeInMs;
-              }
-              StringBuilder strBuilder = new StringBuilder();
-              strBuilder.append("Remote node: ").append(remoteNode);
-              strBuilder.append(" Thread name: ").append(threadName);
-              strBuilder.append(" Remote replicas: ").append(replicasToReplicatePerNode);
-              strBuilder.append(" Active remote replicas: ").append(activeReplicasPerNode);
-              strBuilder.append(" Error while replicating with remote replica ");
-              strBuilder.append(" Checkout connection time: ").append(checkoutConnectionTimeInMs);
-              strBuilder.append(" Exchange metadata time: ").append(exchangeMetadataTimeInMs);
-              strBuilder.append(" Fix missing store key time: ").append(fixMissingStoreKeysTimeInMs);
-
-              if (logger.isTraceEnabled()) {
-                logger.trace(strBuilder.toString(), e);
-              } else {
-                logger.error(strBuilder.toString() + e);
-              }
-              replicationMetrics.incrementReplicationErrors(replicatingOverSsl);
-              if (connectedChannel != null) {
-                connectionPool.destroyConnection(connectedChannel);
-                connectedChannel = null;
-              }
-            } catch (Throwable e) {
-              logger.error("Remote node: " + remoteNode +
-                  " Thread name: " + threadName +
-                  " Remote replicas: " + replicasToReplicatePerNode +
-                  " Active remote replicas: " + activeReplicasPerNode +
-                  " Throwable exception while replicating with remote replica ", e);
-              replicationMetrics.incrementReplicationErrors(replicatingOverSsl);
-              if (connectedChannel != null) {
-                connectionPool.destroyConnection(connectedChannel);
-                connectedChannel = null;
-              }
-            } finally {
-              long totalReplicationTime = SystemTime.getInstance().milliseconds() - replicationStartTimeInMs;
-              replicationMetrics
-                  .updateTotalReplicationTime(totalReplicationTime, replicatingFromRemoteColo, replicatingOverSsl,
-                      datacenterName);
-              if (connectedChannel != null) {
-                connectionPool.checkInConnection(connectedChannel);
-              }
-              context.stop();
-              portTypeBasedContext.stop();
-            }
-          }
+          replicateFromNode(replicasToReplicatePerNode);
         }
       }
     } finally {
@@ -256,6 +259,232 @@ class ReplicaThread implements Runnable {
     }
   }
 
+  /**
+   * Replicates a batch from the remote replicas on a remote node over a connection from the connection pool
+   * @param replicasToReplicatePerNode The remote replicas on the node to replicate from
+   * @return true if the local replicas were found to be behind any of the remote replicas
+   */
+  private boolean replicateFromNode(List<RemoteReplicaInfo> replicasToReplicatePerNode) {
+    boolean behindRemoteReplicas = false;
+    DataNodeId remoteNode = replicasToReplicatePerNode.get(0).getReplicaId().getDataNodeId();
+    logger.trace("Remote node: {} Thread name: {} Remote replicas: {}", remoteNode, threadName,
+        replicasToReplicatePerNode);
+    Timer.Context context = null;
+    Timer.Context portTypeBasedContext = null;
+    if (replicatingFromRemoteColo) {
+      context = replicationMetrics.interColoReplicationLatency.get(remoteNode.getDatacenterName()).time();
+      if (replicatingOverSsl) {
+        portTypeBasedContext =
+            replicationMetrics.sslInterColoReplicationLatency.get(remoteNode.getDatacenterName()).time();
+      } else {
+        portTypeBasedContext =
+            replicationMetrics.plainTextInterColoReplicationLatency.get(remoteNode.getDatacenterName()).time();
+      }
+    } else {
+      context = replicationMetrics.intraColoReplicationLatency.time();
+      if (replicatingOverSsl) {
+        portTypeBasedContext = replicationMetrics.sslIntraColoReplicationLatency.time();
+      } else {
+        portTypeBasedContext = replicationMetrics.plainTextIntraColoReplicationLatency.time();
+      }
+    }
+    ConnectedChannel connectedChannel = null;
+    long checkoutConnectionTimeInMs = -1;
+    long exchangeMetadataTimeInMs = -1;
+    long fixMissingStoreKeysTimeInMs = -1;
+    long replicationStartTimeInMs = SystemTime.getInstance().milliseconds();
+    long startTimeInMs = replicationStartTimeInMs;
+
+    List<RemoteReplicaInfo> activeReplicasPerNode = new ArrayList<RemoteReplicaInfo>();
+    for (RemoteReplicaInfo remoteReplicaInfo : replicasToReplicatePerNode) {
+      if (!remoteReplicaInfo.getReplicaId().isDown()) {
+        activeReplicasPerNode.add(remoteReplicaInfo);
+      }
+    }
+    if (activeReplicasPerNode.size() > 0) {
+      try {
+        connectedChannel = connectionPool
+            .checkOutConnection(remoteNode.getHostname(), replicasToReplicatePerNode.get(0).getPort(),
+                replicationConfig.replicationConnectionPoolCheckoutTimeoutMs);
+        checkoutConnectionTimeInMs = SystemTime.getInstance().milliseconds() - startTimeInMs;
+        startTimeInMs = SystemTime.getInstance().milliseconds();
+        List<ExchangeMetadataResponse> exchangeMetadataResponseList =
+            exchangeMetadata(connectedChannel, replicasToReplicatePerNode);
+        exchangeMetadataTimeInMs = SystemTime.getInstance().milliseconds() - startTimeInMs;
+
+        startTimeInMs = SystemTime.getInstance().milliseconds();
+        fixMissingStoreKeys(connectedChannel, replicasToReplicatePerNode, exchangeMetadataResponseList);
+        fixMissingStoreKeysTimeInMs = SystemTime.getInstance().milliseconds() - startTimeInMs;
+        behindRemoteReplicas = isBehindRemoteReplicas(replicasToReplicatePerNode, exchangeMetadataResponseList);
+      } catch (Exception e) {
+        if (checkoutConnectionTimeInMs == -1) {
+          // exception happened in checkout connection phase
+          checkoutConnectionTimeInMs = SystemTime.getInstance().milliseconds() - startTimeInMs;
+          // recording an exception for any replica on a node will record a node timeout failure
+          responseHandler.onRequestResponseException(activeReplicasPerNode.get(0).getReplicaId(), e);
+        } else if (exchangeMetadataTimeInMs == -1) {
+          // exception happened in exchange metadata phase
+          exchangeMetadataTimeInMs = SystemTime.getInstance().milliseconds() - startTimeInMs;
+        } else if (fixMissingStoreKeysTimeInMs == -1) {
+          // exception happened in fix missing store phase
+          fixMissingStoreKeysTimeInMs = SystemTime.getInstance().milliseconds() - startTimeInMs;
+        }
+        StringBuilder strBuilder = new StringBuilder();
+        strBuilder.append("Remote node: ").append(remoteNode);
+        strBuilder.append(" Thread name: ").append(threadName);
+        strBuilder.append(" Remote replicas: ").append(replicasToReplicatePerNode);
+        strBuilder.append(" Active remote replicas: ").append(activeReplicasPerNode);
+        strBuilder.append(" Error while replicating with remote replica ");
+        strBuilder.append(" Checkout connection time: ").append(checkoutConnectionTimeInMs);
+        strBuilder.append(" Exchange metadata time: ").append(exchangeMetadataTimeInMs);
+        strBuilder.append(" Fix missing store key time: ").append(fixMissingStoreKeysTimeInMs);
+
+        if (logger.isTraceEnabled()) {
+          logger.trace(strBuilder.toString(), e);
+        } else {
+          logger.error(strBuilder.toString() + e);
+        }
+        replicationMetrics.incrementReplicationErrors(replicatingOverSsl);
+        if (connectedChannel != null) {
+          connectionPool.destroyConnection(connectedChannel);
+          connectedChannel = null;
+        }
+      } catch (Throwable e) {
+        logger.error("Remote node: " + remoteNode +
+            " Thread name: " + threadName +
+            " Remote replicas: " + replicasToReplicatePerNode +
+            " Active remote replicas: " + activeReplicasPerNode +
+            " Throwable exception while replicating with remote replica ", e);
+        replicationMetrics.incrementReplicationErrors(replicatingOverSsl);
+        if (connectedChannel != null) {
+          connectionPool.destroyConnection(connectedChannel);
+          connectedChannel = null;
+        }
+      } finally {
+        long totalReplicationTime = SystemTime.getInstance().milliseconds() - replicationStartTimeInMs;
+        replicationMetrics
+            .updateTotalReplicationTime(totalReplicationTime, replicatingFromRemoteColo, replicatingOverSsl,
+                datacenterName);
+        if (connectedChannel != null) {
+          connectionPool.checkInConnection(connectedChannel);
+        }
+        context.stop();
+        portTypeBasedContext.stop();
+      }
+    }
+    return behindRemoteReplicas;
+  }
+
+  /**
+   * Checks whether the local replicas were behind the remote replicas on a node before a batch was replicated from
+   * them, either because messages were missing locally or because the remote replicas reported a lag of at least
+   * {@link ReplicationConfig#replicationMaxLagForWaitTimeInBytes}
+   * @param replicasToReplicatePerNode The remote replicas on the node
+   * @param exchangeMetadataResponseList The metadata exchanged with the remote replicas, one for each of them
+   * @return true if any of the local replicas was behind its remote replica
+   */
+  private boolean isBehindRemoteReplicas(List<RemoteReplicaInfo> replicasToReplicatePerNode,
+      List<ExchangeMetadataResponse> exchangeMetadataResponseList) {
+    for (int i = 0; i < exchangeMetadataResponseList.size(); i++) {
+      ExchangeMetadataResponse exchangeMetadataResponse = exchangeMetadataResponseList.get(i);
+      if ((exchangeMetadataResponse.missingStoreKeys != null && exchangeMetadataResponse.missingStoreKeys.size() > 0)
+          || replicasToReplicatePerNode.get(i).getLocalReplicaLagInBytes()
+          >= replicationConfig.replicationMaxLagForWaitTimeInBytes) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Replicates from all the remote nodes of this thread at the same time over the network client of the thread.
+   * Requests to all the nodes are in flight together and their responses are processed as they arrive, so a slow
+   * node only delays its own replicas. The metadata request for the next batch from a node is sent before the
+   * messages of the previous batch are written to the local stores, so that its round trip overlaps with the writes.
+   * The local stores are read and written on a thread of their own, so that waiting for the local disks does not
+   * hold up the requests to and the responses from the remote nodes.
+   * @param replicasToReplicate The remote replicas to replicate from, grouped by remote node
+   */
+  private void replicateNonBlocking(List<List<RemoteReplicaInfo>> replicasToReplicate) {
+    localWorkExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        return Utils.newThread(threadName + "-local-work", runnable, true);
+      }
+    });
+    try {
+      pollNonBlocking(replicasToReplicate);
+    } finally {
+      // the writes that have started are let finish, so that the local stores can be shut down after this thread
+      localWorkExecutor.shutdown();
+      try {
+        while (!localWorkExecutor.awaitTermination(replicationConfig.replicationRequestTimeoutMs,
+            TimeUnit.MILLISECONDS)) {
+          logger.info("Thread name: " + threadName + " waiting for the writes to the local stores to finish");
+        }
+      } catch (InterruptedException e) {
+        logger.error("Thread name: " + threadName + " interrupted while waiting for the local stores", e);
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Sends the requests to the remote nodes and handles their responses until the thread is shut down
+   * @param replicasToReplicate The remote replicas to replicate from, grouped by remote node
+   */
+  private void pollNonBlocking(List<List<RemoteReplicaInfo>> replicasToReplicate) {
+    List<RemoteNodeReplicationState> nodeStates =
+        new ArrayList<RemoteNodeReplicationState>(replicasToReplicate.size());
+    for (List<RemoteReplicaInfo> replicasToReplicatePerNode : replicasToReplicate) {
+      nodeStates.add(new RemoteNodeReplicationState(replicasToReplicatePerNode));
+    }
+    Map<RequestInfo, RemoteNodeReplicationState> requestsInFlight =
+        new HashMap<RequestInfo, RemoteNodeReplicationState>();
+    // as in the router, the poll timeout is an order of magnitude smaller than the request timeout so that a request
+    // does not time out much later than the configured timeout
+    long maxPollTimeoutMs = replicationConfig.replicationRequestTimeoutMs / 10;
+    while (running) {
+      long timeInMs = SystemTime.getInstance().milliseconds();
+      List<RequestInfo> requestsToSend = new ArrayList<RequestInfo>();
+      long pollTimeoutMs = maxPollTimeoutMs;
+      for (RemoteNodeReplicationState nodeState : nodeStates) {
+        RequestInfo requestInfo = nodeState.requestInFlight;
+        if (requestInfo != null
+            && timeInMs - nodeState.requestSendTimeInMs > replicationConfig.replicationRequestTimeoutMs) {
+          // a response that arrives after the request was given up on is ignored
+          requestsInFlight.remove(requestInfo);
+          nodeState.onRequestFailed(requestInfo, new IOException("Request timed out"), true, timeInMs);
+        }
+        requestInfo = nodeState.createRequest(timeInMs);
+        if (requestInfo != null) {
+          requestsToSend.add(requestInfo);
+          requestsInFlight.put(requestInfo, nodeState);
+        }
+        pollTimeoutMs = Math.min(pollTimeoutMs, nodeState.getTimeToNextActionInMs(timeInMs));
+      }
+      List<ResponseInfo> responseInfoList = networkClient.sendAndPoll(requestsToSend, (int) pollTimeoutMs);
+      timeInMs = SystemTime.getInstance().milliseconds();
+      for (ResponseInfo responseInfo : responseInfoList) {
+        RemoteNodeReplicationState nodeState = requestsInFlight.remove(responseInfo.getRequestInfo());
+        if (nodeState != null) {
+          nodeState.onResponse(responseInfo, timeInMs);
+        }
+      }
+      LocalWork localWork;
+      while ((localWork = finishedLocalWork.poll()) != null) {
+        localWork.onFinished();
+      }
+      Collections.shuffle(nodeStates);
+      for (RemoteNodeReplicationState nodeState : nodeStates) {
+        if (!running) {
+          break;
+        }
+        nodeState.processPendingWork(timeInMs);
+      }
+    }
+  }
+
   /**
    * Gets all the metadata about messages from the remote replicas since last token. Checks the messages with the local
    * store and finds all the messages that are missing. For the messages that are not missing, updates the delete
@@ -282,46 +511,10 @@ class ReplicaThread implements Runnable {
         ReplicaMetadataResponse response =
             getReplicaMetadataResponse(replicasToReplicatePerNode, connectedChannel, remoteNode);
         long startTimeInMs = SystemTime.getInstance().milliseconds();
-        waitEnabled = !replicatingFromRemoteColo;
-        for (int i = 0; i < response.getReplicaMetadataResponseInfoList().size(); i++) {
-          RemoteReplicaInfo remoteReplicaInfo = replicasToReplicatePerNode.get(i);
-          ReplicaMetadataResponseInfo replicaMetadataResponseInfo =
-              response.getReplicaMetadataResponseInfoList().get(i);
-          responseHandler.onRequestResponseError(remoteReplicaInfo.getReplicaId(),
-              replicaMetadataResponseInfo.getError());
-          if (replicaMetadataResponseInfo.getError() == ServerErrorCode.No_Error) {
-            try {
-              logger.trace("Remote node: {} Thread name: {} Remote replica: {} Token from remote: {} Replica lag: {} ",
-                  remoteNode, threadName, remoteReplicaInfo.getReplicaId(), replicaMetadataResponseInfo.getFindToken(),
-                  replicaMetadataResponseInfo.getRemoteReplicaLagInBytes());
-              if (waitEnabled) {
-                waitIfRequired(replicaMetadataResponseInfo, remoteNode, remoteReplicaInfo);
-              }
-              Set<StoreKey> missingStoreKeys =
-                  getMissingStoreKeys(replicaMetadataResponseInfo, remoteNode, remoteReplicaInfo);
-              processReplicaMetadataResponse(missingStoreKeys, replicaMetadataResponseInfo, remoteReplicaInfo,
-                  remoteNode);
-              ExchangeMetadataResponse exchangeMetadataResponse =
-                  new ExchangeMetadataResponse(missingStoreKeys, replicaMetadataResponseInfo.getFindToken());
-              exchangeMetadataResponseList.add(exchangeMetadataResponse);
-            } catch (Exception e) {
-              replicationMetrics.updateLocalStoreError(remoteReplicaInfo.getReplicaId());
-              logger.error("Remote node: " + remoteNode + " Thread name: " + threadName +
-                  " Remote replica: " + remoteReplicaInfo.getReplicaId(), e);
-              responseHandler.onRequestResponseException(remoteReplicaInfo.getReplicaId(), e);
-              ExchangeMetadataResponse exchangeMetadataResponse =
-                  new ExchangeMetadataResponse(ServerErrorCode.Unknown_Error);
-              exchangeMetadataResponseList.add(exchangeMetadataResponse);
-            }
-          } else {
-            replicationMetrics.updateMetadataRequestError(remoteReplicaInfo.getReplicaId());
-            logger.error("Remote node: {} Thread name: {} Remote replica: {} Server error: {}", remoteNode, threadName,
-                remoteReplicaInfo.getReplicaId(), replicaMetadataResponseInfo.getError());
-            ExchangeMetadataResponse exchangeMetadataResponse =
-                new ExchangeMetadataResponse(replicaMetadataResponseInfo.getError());
-            exchangeMetadataResponseList.add(exchangeMetadataResponse);
-          }
-        }
+        waitEnabled = !replicatingFromRemoteColo && scheduler == null;
+        exchangeMetadataResponseList =
+            handleReplicaMetadataResponse(response.getReplicaMetadataResponseInfoList(), replicasToReplicatePerNode,
+                remoteNode);
         long processMetadataResponseTimeInMs = SystemTime.getInstance().milliseconds() - startTimeInMs;
         logger.trace("Remote node: {} Thread name: {} processMetadataResponseTime: {}", remoteNode, threadName,
             processMetadataResponseTimeInMs);
@@ -335,6 +528,62 @@ class ReplicaThread implements Runnable {
     return exchangeMetadataResponseList;
   }
 
+  /**
+   * Checks the messages in the metadata from the remote replicas with the local stores. Finds the messages that are
+   * missing locally and, for the messages that are not missing, updates the delete state.
+   * @param replicaMetadataResponseInfoList The metadata of the remote replicas, one for each of the remote replicas
+   * @param replicasToReplicatePerNode The information about the replicas that is being replicated
+   * @param remoteNode The remote node from which replication needs to happen
+   * @return - List of ExchangeMetadataResponse, one for each of the remote replicas
+   * @throws InterruptedException
+   */
+  private List<ExchangeMetadataResponse> handleReplicaMetadataResponse(
+      List<ReplicaMetadataResponseInfo> replicaMetadataResponseInfoList,
+      List<RemoteReplicaInfo> replicasToReplicatePerNode, DataNodeId remoteNode)
+      throws InterruptedException {
+    List<ExchangeMetadataResponse> exchangeMetadataResponseList = new ArrayList<ExchangeMetadataResponse>();
+    for (int i = 0; i < replicaMetadataResponseInfoList.size(); i++) {
+      RemoteReplicaInfo remoteReplicaInfo = replicasToReplicatePerNode.get(i);
+      ReplicaMetadataResponseInfo replicaMetadataResponseInfo = replicaMetadataResponseInfoList.get(i);
+      responseHandler.onRequestResponseError(remoteReplicaInfo.getReplicaId(),
+          replicaMetadataResponseInfo.getError());
+      if (replicaMetadataResponseInfo.getError() == ServerErrorCode.No_Error) {
+        try {
+          logger.trace("Remote node: {} Thread name: {} Remote replica: {} Token from remote: {} Replica lag: {} ",
+              remoteNode, threadName, remoteReplicaInfo.getReplicaId(), replicaMetadataResponseInfo.getFindToken(),
+              replicaMetadataResponseInfo.getRemoteReplicaLagInBytes());
+          remoteReplicaInfo.setLocalReplicaLagInBytes(replicaMetadataResponseInfo.getRemoteReplicaLagInBytes());
+          if (waitEnabled) {
+            waitIfRequired(replicaMetadataResponseInfo, remoteNode, remoteReplicaInfo);
+          }
+          Set<StoreKey> missingStoreKeys =
+              getMissingStoreKeys(replicaMetadataResponseInfo, remoteNode, remoteReplicaInfo);
+          processReplicaMetadataResponse(missingStoreKeys, replicaMetadataResponseInfo, remoteReplicaInfo,
+              remoteNode);
+          ExchangeMetadataResponse exchangeMetadataResponse =
+              new ExchangeMetadataResponse(missingStoreKeys, replicaMetadataResponseInfo.getFindToken());
+          exchangeMetadataResponseList.add(exchangeMetadataResponse);
+        } catch (Exception e) {
+          replicationMetrics.updateLocalStoreError(remoteReplicaInfo.getReplicaId());
+          logger.error("Remote node: " + remoteNode + " Thread name: " + threadName +
+              " Remote replica: " + remoteReplicaInfo.getReplicaId(), e);
+          responseHandler.onRequestResponseException(remoteReplicaInfo.getReplicaId(), e);
+          ExchangeMetadataResponse exchangeMetadataResponse =
+              new ExchangeMetadataResponse(ServerErrorCode.Unknown_Error);
+          exchangeMetadataResponseList.add(exchangeMetadataResponse);
+        }
+      } else {
+        replicationMetrics.updateMetadataRequestError(remoteReplicaInfo.getReplicaId());
+        logger.error("Remote node: {} Thread name: {} Remote replica: {} Server error: {}", remoteNode, threadName,
+            remoteReplicaInfo.getReplicaId(), replicaMetadataResponseInfo.getError());
+        ExchangeMetadataResponse exchangeMetadataResponse =
+            new ExchangeMetadataResponse(replicaMetadataResponseInfo.getError());
+        exchangeMetadataResponseList.add(exchangeMetadataResponse);
+      }
+    }
+    return exchangeMetadataResponseList;
+  }
+
   /**
    * Gets all the messages from the remote node for the missing keys and writes them to the local store
    * @param connectedChannel The connected channel that represents a connection to the remote replica
@@ -383,22 +632,12 @@ class ReplicaThread implements Runnable {
       ConnectedChannel connectedChannel, DataNodeId remoteNode)
       throws ReplicationException, IOException {
     long replicaMetadataRequestStartTime = SystemTime.getInstance().milliseconds();
-    List<ReplicaMetadataRequestInfo> replicaMetadataRequestInfoList = new ArrayList<ReplicaMetadataRequestInfo>();
+    List<FindToken> tokens = new ArrayList<FindToken>(replicasToReplicatePerNode.size());
     for (RemoteReplicaInfo remoteReplicaInfo : replicasToReplicatePerNode) {
-      ReplicaMetadataRequestInfo replicaMetadataRequestInfo =
-          new ReplicaMetadataRequestInfo(remoteReplicaInfo.getReplicaId().getPartitionId(),
-              remoteReplicaInfo.getToken(), dataNodeId.getHostname(),
-              remoteReplicaInfo.getLocalReplicaId().getReplicaPath());
-      replicaMetadataRequestInfoList.add(replicaMetadataRequestInfo);
-      logger
-          .trace("Remote node: {} Thread name: {} Remote replica: {} Token going to be sent to remote: {} ", remoteNode,
-              threadName, remoteReplicaInfo.getReplicaId(), remoteReplicaInfo.getToken());
+      tokens.add(remoteReplicaInfo.getToken());
     }
-
     try {
-      ReplicaMetadataRequest request = new ReplicaMetadataRequest(correlationIdGenerator.incrementAndGet(),
-          "replication-metadata-" + dataNodeId.getHostname(), replicaMetadataRequestInfoList,
-          replicationConfig.replicationFetchSizeInBytes);
+      ReplicaMetadataRequest request = createReplicaMetadataRequest(replicasToReplicatePerNode, tokens, remoteNode);
       connectedChannel.send(request);
       ChannelOutput channelOutput = connectedChannel.receive();
       ByteBufferInputStream byteBufferInputStream =
@@ -411,17 +650,7 @@ class ReplicaThread implements Runnable {
       long metadataRequestTime = SystemTime.getInstance().milliseconds() - replicaMetadataRequestStartTime;
       replicationMetrics
           .updateMetadataRequestTime(metadataRequestTime, replicatingFromRemoteColo, replicatingOverSsl, datacenterName);
-
-      if (response.getError() != ServerErrorCode.No_Error
-          || response.getReplicaMetadataResponseInfoList().size() != replicasToReplicatePerNode.size()) {
-        logger.error("Remote node: " + remoteNode +
-            " Thread name: " + threadName +
-            " Remote replicas: " + replicasToReplicatePerNode +
-            " Replica metadata response error: " + response.getError() +
-            " ReplicaMetadataResponseInfoListSize: " + response.getReplicaMetadataResponseInfoList().size() +
-            " ReplicasToReplicatePerNodeSize: " + replicasToReplicatePerNode.size());
-        throw new ReplicationException("Replica Metadata Response Error " + response.getError());
-      }
+      verifyReplicaMetadataResponse(response, replicasToReplicatePerNode, remoteNode);
       return response;
     } catch (IOException e) {
       responseHandler.onRequestResponseException(replicasToReplicatePerNode.get(0).getReplicaId(), e);
@@ -429,6 +658,55 @@ class ReplicaThread implements Runnable {
     }
   }
 
+  /**
+   * Creates the request for the metadata of the messages in a list of remote replicas on a given remote data node
+   * @param replicasToReplicatePerNode The list of remote replicas for a node
+   * @param tokens The tokens to request the metadata from, one for each of the remote replicas
+   * @param remoteNode The remote node from which replication needs to happen
+   * @return The replica metadata request
+   */
+  private ReplicaMetadataRequest createReplicaMetadataRequest(List<RemoteReplicaInfo> replicasToReplicatePerNode,
+      List<FindToken> tokens, DataNodeId remoteNode) {
+    List<ReplicaMetadataRequestInfo> replicaMetadataRequestInfoList = new ArrayList<ReplicaMetadataRequestInfo>();
+    for (int i = 0; i < replicasToReplicatePerNode.size(); i++) {
+      RemoteReplicaInfo remoteReplicaInfo = replicasToReplicatePerNode.get(i);
+      ReplicaMetadataRequestInfo replicaMetadataRequestInfo =
+          new ReplicaMetadataRequestInfo(remoteReplicaInfo.getReplicaId().getPartitionId(), tokens.get(i),
+              dataNodeId.getHostname(), remoteReplicaInfo.getLocalReplicaId().getReplicaPath());
+      replicaMetadataRequestInfoList.add(replicaMetadataRequestInfo);
+      logger
+          .trace("Remote node: {} Thread name: {} Remote replica: {} Token going to be sent to remote: {} ", remoteNode,
+              threadName, remoteReplicaInfo.getReplicaId(), tokens.get(i));
+    }
+    return new ReplicaMetadataRequest(correlationIdGenerator.incrementAndGet(),
+        "replication-metadata-" + dataNodeId.getHostname(), replicaMetadataRequestInfoList,
+        replicationConfig.replicationFetchSizeInBytes, responseCompressionCodec,
+        replicationConfig.replicationEnableCompactMessageInfoList);
+  }
+
+  /**
+   * Verifies that the replica metadata response from a remote node has no error and covers all the replicas that
+   * were requested
+   * @param response The replica metadata response
+   * @param replicasToReplicatePerNode The list of remote replicas that the metadata was requested for
+   * @param remoteNode The remote node from which replication needs to happen
+   * @throws ReplicationException
+   */
+  private void verifyReplicaMetadataResponse(ReplicaMetadataResponse response,
+      List<RemoteReplicaInfo> replicasToReplicatePerNode, DataNodeId remoteNode)
+      throws ReplicationException {
+    if (response.getError() != ServerErrorCode.No_Error
+        || response.getReplicaMetadataResponseInfoList().size() != replicasToReplicatePerNode.size()) {
+      logger.error("Remote node: " + remoteNode +
+          " Thread name: " + threadName +
+          " Remote replicas: " + replicasToReplicatePerNode +
+          " Replica metadata response error: " + response.getError() +
+          " ReplicaMetadataResponseInfoListSize: " + response.getReplicaMetadataResponseInfoList().size() +
+          " ReplicasToReplicatePerNodeSize: " + replicasToReplicatePerNode.size());
+      throw new ReplicationException("Replica Metadata Response Error " + response.getError());
+    }
+  }
+
   /**
    * Gets the missing store keys by comparing the messages from the remote node
    * @param replicaMetadataResponseInfo The response that contains the messages from the remote node
@@ -578,6 +856,31 @@ class ReplicaThread implements Runnable {
       List<ExchangeMetadataResponse> exchangeMetadataResponseList, List<RemoteReplicaInfo> replicasToReplicatePerNode,
       DataNodeId remoteNode)
       throws ReplicationException, IOException {
+    GetRequest getRequest = createGetRequest(exchangeMetadataResponseList, replicasToReplicatePerNode);
+    long startTime = SystemTime.getInstance().milliseconds();
+    try {
+      connectedChannel.send(getRequest);
+      ChannelOutput channelOutput = connectedChannel.receive();
+      GetResponse getResponse = GetResponse.readFrom(new DataInputStream(channelOutput.getInputStream()), clusterMap);
+      long getRequestTime = SystemTime.getInstance().milliseconds() - startTime;
+      replicationMetrics
+          .updateGetRequestTime(getRequestTime, replicatingFromRemoteColo, replicatingOverSsl, datacenterName);
+      verifyGetResponse(getResponse, replicasToReplicatePerNode, remoteNode);
+      return getResponse;
+    } catch (IOException e) {
+      responseHandler.onRequestResponseException(replicasToReplicatePerNode.get(0).getReplicaId(), e);
+      throw e;
+    }
+  }
+
+  /**
+   * Creates the request for the messages for the keys that are missing from the local store
+   * @param exchangeMetadataResponseList The list of metadata response from the remote node
+   * @param replicasToReplicatePerNode The list of remote replicas for the remote node
+   * @return The get request for the missing messages
+   */
+  private GetRequest createGetRequest(List<ExchangeMetadataResponse> exchangeMetadataResponseList,
+      List<RemoteReplicaInfo> replicasToReplicatePerNode) {
     List<PartitionRequestInfo> partitionRequestInfoList = new ArrayList<PartitionRequestInfo>();
     for (int i = 0; i < exchangeMetadataResponseList.size(); i++) {
       ExchangeMetadataResponse exchangeMetadataResponse = exchangeMetadataResponseList.get(i);
@@ -595,29 +898,27 @@ class ReplicaThread implements Runnable {
         }
       }
     }
-    GetRequest getRequest =
-        new GetRequest(correlationIdGenerator.incrementAndGet(), "replication-fetch-" + dataNodeId.getHostname(),
-            MessageFormatFlags.All, partitionRequestInfoList, GetOptions.None);
-    long startTime = SystemTime.getInstance().milliseconds();
-    try {
-      connectedChannel.send(getRequest);
-      ChannelOutput channelOutput = connectedChannel.receive();
-      GetResponse getResponse = GetResponse.readFrom(new DataInputStream(channelOutput.getInputStream()), clusterMap);
-      long getRequestTime = SystemTime.getInstance().milliseconds() - startTime;
-      replicationMetrics
-          .updateGetRequestTime(getRequestTime, replicatingFromRemoteColo, replicatingOverSsl, datacenterName);
-      if (getResponse.getError() != ServerErrorCode.No_Error) {
-        logger.error("Remote node: " + remoteNode +
-            " Thread name: " + threadName +
-            " Remote replicas: " + replicasToReplicatePerNode +
-            " GetResponse from replication: " + getResponse.getError());
-        throw new ReplicationException(
-            " Get Request returned error when trying to get missing keys " + getResponse.getError());
-      }
-      return getResponse;
-    } catch (IOException e) {
-      responseHandler.onRequestResponseException(replicasToReplicatePerNode.get(0).getReplicaId(), e);
-      throw e;
+    return new GetRequest(correlationIdGenerator.incrementAndGet(), "replication-fetch-" + dataNodeId.getHostname(),
+        MessageFormatFlags.All, partitionRequestInfoList, GetOptions.None, responseCompressionCodec);
+  }
+
+  /**
+   * Verifies that the response to a get request for the missing messages has no error
+   * @param getResponse The response that contains the missing messages
+   * @param replicasToReplicatePerNode The list of remote replicas for the remote node
+   * @param remoteNode The remote node from which replication needs to happen
+   * @throws ReplicationException
+   */
+  private void verifyGetResponse(GetResponse getResponse, List<RemoteReplicaInfo> replicasToReplicatePerNode,
+      DataNodeId remoteNode)
+      throws ReplicationException {
+    if (getResponse.getError() != ServerErrorCode.No_Error) {
+      logger.error("Remote node: " + remoteNode +
+          " Thread name: " + threadName +
+          " Remote replicas: " + replicasToReplicatePerNode +
+          " GetResponse from replication: " + getResponse.getError());
+      throw new ReplicationException(
+          " Get Request returned error when trying to get missing keys " + getResponse.getError());
     }
   }
 
@@ -659,7 +960,9 @@ class ReplicaThread implements Runnable {
                   remoteReplicaInfo.getLocalReplicaId().getMountPath());
 
               MessageFormatWriteSet writeset = null;
-              if (validateMessageStream) {
+              if (replicationConfig.replicationStreamFetchedMessages && !replicasToSieve.remove(remoteReplicaInfo)) {
+                streamMessagesToLocalStore(getResponse, remoteReplicaInfo, messageInfoList);
+              } else if (validateMessageStream) {
                 MessageSievingInputStream validMessageDetectionInputStream =
                     new MessageSievingInputStream(getResponse.getInputStream(), messageInfoList, storeKeyFactory,
                         metricRegistry);
@@ -674,10 +977,12 @@ class ReplicaThread implements Runnable {
                   logger.error("MessageInfoList is of size 0 as all messages are invalidated ");
                 } else {
                   writeset = new MessageFormatWriteSet(validMessageDetectionInputStream, messageInfoList, false);
+                  acquireLocalWriteBudget(remoteReplicaInfo, messageInfoList);
                   remoteReplicaInfo.getLocalStore().put(writeset);
                 }
               } else {
                 writeset = new MessageFormatWriteSet(getResponse.getInputStream(), messageInfoList, true);
+                acquireLocalWriteBudget(remoteReplicaInfo, messageInfoList);
                 remoteReplicaInfo.getLocalStore().put(writeset);
               }
 
@@ -697,7 +1002,12 @@ class ReplicaThread implements Runnable {
               logger.trace("Remote node: {} Thread name: {} Remote replica: {} Token after speaking to remote node: {}",
                   remoteNode, threadName, remoteReplicaInfo.getReplicaId(), exchangeMetadataResponse.remoteToken);
             } catch (StoreException e) {
-              if (e.getErrorCode() != StoreErrorCodes.Already_Exist) {
+              if (e.getErrorCode() == StoreErrorCodes.Data_Corrupt) {
+                replicationMetrics.incrementInvalidMessageError(partitionResponseInfo.getPartition());
+                replicasToSieve.add(remoteReplicaInfo);
+                logger.error("Remote node: " + remoteNode + " Thread name: " + threadName +
+                    " Remote replica: " + remoteReplicaInfo.getReplicaId() + " sent a corrupt message", e);
+              } else if (e.getErrorCode() != StoreErrorCodes.Already_Exist) {
                 replicationMetrics.updateLocalStoreError(remoteReplicaInfo.getReplicaId());
                 logger.error("Remote node: " + remoteNode + " Thread name: " + threadName +
                     " Remote replica: " + remoteReplicaInfo.getReplicaId(), e);
@@ -722,6 +1032,463 @@ class ReplicaThread implements Runnable {
             replicatingOverSsl, datacenterName);
   }
 
+  /**
+   * Streams the messages of a remote replica from the get response straight into the local store. The messages are
+   * verified on the way if the message stream is validated, in which case a corrupt message fails the whole put with
+   * {@link StoreErrorCodes#Data_Corrupt}. Whether or not the put succeeds, the messages of the replica are read off the
+   * response so that the messages of the next replica can be read.
+   * @param getResponse The get response that the messages are read from
+   * @param remoteReplicaInfo The remote replica that the messages were fetched from
+   * @param messageInfoList The messages of the replica in the response
+   * @throws IOException if the messages could not be read from the response
+   * @throws StoreException if the messages could not be written to the local store
+   */
+  private void streamMessagesToLocalStore(GetResponse getResponse, RemoteReplicaInfo remoteReplicaInfo,
+      List<MessageInfo> messageInfoList)
+      throws IOException, StoreException {
+    long sizeToStream = 0;
+    for (MessageInfo messageInfo : messageInfoList) {
+      sizeToStream += messageInfo.getSize();
+    }
+    FetchedMessageStream fetchedMessageStream = new FetchedMessageStream(getResponse.getInputStream(), sizeToStream);
+    try {
+      InputStream streamToWrite = fetchedMessageStream;
+      if (validateMessageStream) {
+        streamToWrite = new MessageVerifyingInputStream(fetchedMessageStream, messageInfoList);
+      }
+      acquireLocalWriteBudget(remoteReplicaInfo, messageInfoList);
+      remoteReplicaInfo.getLocalStore().put(new MessageFormatWriteSet(streamToWrite, messageInfoList, false));
+    } finally {
+      fetchedMessageStream.drain();
+    }
+  }
+
+  /**
+   * Waits until the I/O scheduler of the disk of the local store, if there is one, allows the messages to be written
+   * @param remoteReplicaInfo The remote replica that the messages were fetched from
+   * @param messageInfoList The messages that are about to be written to the local store
+   * @throws IOException if the thread was interrupted while waiting
+   */
+  private void acquireLocalWriteBudget(RemoteReplicaInfo remoteReplicaInfo, List<MessageInfo> messageInfoList)
+      throws IOException {
+    DiskIOScheduler ioScheduler = remoteReplicaInfo.getLocalDiskIOScheduler();
+    if (ioScheduler != null) {
+      long bytesToWrite = 0;
+      for (MessageInfo messageInfo : messageInfoList) {
+        bytesToWrite += messageInfo.getSize();
+      }
+      try {
+        ioScheduler.acquire(DiskIOScheduler.IOClass.Replication, bytesToWrite);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting to write to the local store", e);
+      }
+    }
+  }
+
+  /**
+   * The part of a get response that holds the messages of one remote replica. Reads never go past the messages of the
+   * replica. A failure to read from the response is reported to the store as a {@link MessageSourceException}, so
+   * that it is not taken for a failure of the local disk, and is thrown again by {@link #drain()}.
+   */
+  private static class FetchedMessageStream extends InputStream {
+    private static final int Drain_Buffer_Size = 8192;
+    private final InputStream stream;
+    private long bytesRemaining;
+    private IOException readException = null;
+
+    FetchedMessageStream(InputStream stream, long size) {
+      this.stream = stream;
+      this.bytesRemaining = size;
+    }
+
+    @Override
+    public int read()
+        throws IOException {
+      byte[] b = new byte[1];
+      int read = read(b, 0, 1);
+      return read == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+        throws IOException {
+      if (bytesRemaining == 0) {
+        return -1;
+      }
+      int read;
+      try {
+        read = stream.read(b, off, (int) Math.min(len, bytesRemaining));
+        if (read == -1) {
+          throw new IOException("Response ended with " + bytesRemaining + " bytes of messages left to read");
+        }
+      } catch (IOException e) {
+        readException = e;
+        throw new MessageSourceException("Failed to read messages from the response", e);
+      }
+      bytesRemaining -= read;
+      return read;
+    }
+
+    /**
+     * Reads and drops what is left of the messages
+     * @throws IOException if a read from the response has failed
+     */
+    void drain()
+        throws IOException {
+      if (readException != null) {
+        throw readException;
+      }
+      byte[] buf = new byte[(int) Math.min(Drain_Buffer_Size, bytesRemaining)];
+      while (bytesRemaining > 0) {
+        int read = stream.read(buf, 0, (int) Math.min(buf.length, bytesRemaining));
+        if (read == -1) {
+          throw new IOException("Response ended with " + bytesRemaining + " bytes of messages left to read");
+        }
+        bytesRemaining -= read;
+      }
+    }
+  }
+
+  /**
+   * The state of the non blocking replication from a remote node. A node goes through the metadata request, the
+   * processing of the metadata against the local stores, the get request for the missing messages and the write of
+   * those messages to the local stores, with at most one request to the node in flight at any time. The metadata
+   * request for the next batch is sent with the tokens of the batch that has been fetched and is about to be
+   * written. The metadata of a replica whose batch then fails to be written is dropped, so the replica is replicated
+   * again from its last token.
+   */
+  private class RemoteNodeReplicationState {
+    private final List<RemoteReplicaInfo> replicas;
+    private final DataNodeId remoteNode;
+    // the request to the node that is in flight, if any, and the time at which it was sent
+    private RequestInfo requestInFlight = null;
+    private long requestSendTimeInMs = 0;
+    // the replicas and the tokens that the last metadata request was sent for
+    private List<RemoteReplicaInfo> metadataReplicas = null;
+    private List<FindToken> metadataTokens = null;
+    // the metadata received from the node that is yet to be processed and the time from which it can be processed
+    private ReplicaMetadataResponse metadataResponse = null;
+    private long processMetadataTimeInMs = 0;
+    // the batch whose missing messages are being fetched or written
+    private List<RemoteReplicaInfo> batchReplicas = null;
+    private List<ExchangeMetadataResponse> batchExchangeMetadataResponseList = null;
+    private GetResponse batchGetResponse = null;
+    private boolean nextMetadataRequested = false;
+    // set while the batch is being written or the metadata is being processed on the local work thread
+    private boolean localWorkInProgress = false;
+    // no request is sent to the node before this time after a failure
+    private long retryTimeInMs = 0;
+
+    RemoteNodeReplicationState(List<RemoteReplicaInfo> replicas) {
+      this.replicas = replicas;
+      this.remoteNode = replicas.get(0).getReplicaId().getDataNodeId();
+    }
+
+    /**
+     * @param timeInMs The current time
+     * @return The next request to send to the node, or null if no request has to be sent right now
+     */
+    RequestInfo createRequest(long timeInMs) {
+      if (requestInFlight != null || metadataResponse != null || timeInMs < retryTimeInMs) {
+        return null;
+      }
+      if (batchExchangeMetadataResponseList != null && batchGetResponse == null) {
+        requestInFlight = new RequestInfo(remoteNode.getHostname(), replicas.get(0).getPort(),
+            createGetRequest(batchExchangeMetadataResponseList, batchReplicas));
+      } else {
+        // either no batch is in progress or the fetched batch is about to be written
+        nextMetadataRequested = true;
+        metadataReplicas = new ArrayList<RemoteReplicaInfo>();
+        metadataTokens = new ArrayList<FindToken>();
+        for (RemoteReplicaInfo remoteReplicaInfo : replicas) {
+          if (!remoteReplicaInfo.getReplicaId().isDown()) {
+            metadataReplicas.add(remoteReplicaInfo);
+            metadataTokens.add(getTokenAfterBatch(remoteReplicaInfo));
+          }
+        }
+        if (metadataReplicas.size() == 0) {
+          return null;
+        }
+        requestInFlight = new RequestInfo(remoteNode.getHostname(), replicas.get(0).getPort(),
+            createReplicaMetadataRequest(metadataReplicas, metadataTokens, remoteNode));
+      }
+      requestSendTimeInMs = timeInMs;
+      return requestInFlight;
+    }
+
+    /**
+     * @param timeInMs The current time
+     * @return The time until this node has work to do that does not wait for a response
+     */
+    long getTimeToNextActionInMs(long timeInMs) {
+      if (localWorkInProgress) {
+        // the thread is woken up once the local work is done
+        return Long.MAX_VALUE;
+      }
+      if (batchGetResponse != null) {
+        return 0;
+      }
+      long nextActionTimeInMs = Long.MAX_VALUE;
+      if (metadataResponse != null) {
+        nextActionTimeInMs = processMetadataTimeInMs;
+      } else if (requestInFlight == null && timeInMs < retryTimeInMs) {
+        nextActionTimeInMs = retryTimeInMs;
+      }
+      return Math.max(0, nextActionTimeInMs - timeInMs);
+    }
+
+    /**
+     * Handles the response to the request that was in flight to the node
+     * @param responseInfo The response
+     * @param timeInMs The current time
+     */
+    void onResponse(ResponseInfo responseInfo, long timeInMs) {
+      requestInFlight = null;
+      long requestTimeInMs = timeInMs - requestSendTimeInMs;
+      boolean isGetRequest = responseInfo.getRequestInfo().getRequest() instanceof GetRequest;
+      if (responseInfo.getError() != null) {
+        onRequestFailed(responseInfo.getRequestInfo(), new IOException("Network error: " + responseInfo.getError()),
+            true, timeInMs);
+        return;
+      }
+      try {
+        DataInputStream stream = new DataInputStream(new ByteBufferInputStream(responseInfo.getResponse()));
+        if (isGetRequest) {
+          GetResponse getResponse = GetResponse.readFrom(stream, clusterMap);
+          replicationMetrics
+              .updateGetRequestTime(requestTimeInMs, replicatingFromRemoteColo, replicatingOverSsl, datacenterName);
+          verifyGetResponse(getResponse, batchReplicas, remoteNode);
+          batchGetResponse = getResponse;
+          nextMetadataRequested = false;
+        } else {
+          ReplicaMetadataResponse response = ReplicaMetadataResponse.readFrom(stream, findTokenFactory, clusterMap);
+          replicationMetrics
+              .updateMetadataRequestTime(requestTimeInMs, replicatingFromRemoteColo, replicatingOverSsl,
+                  datacenterName);
+          verifyReplicaMetadataResponse(response, metadataReplicas, remoteNode);
+          metadataResponse = response;
+          processMetadataTimeInMs = timeInMs;
+          if (!replicatingFromRemoteColo) {
+            // instead of sleeping as in waitIfRequired, the metadata is set aside until the wait is over
+            for (ReplicaMetadataResponseInfo replicaMetadataResponseInfo : response
+                .getReplicaMetadataResponseInfoList()) {
+              if (replicaMetadataResponseInfo.getError() == ServerErrorCode.No_Error
+                  && replicaMetadataResponseInfo.getRemoteReplicaLagInBytes()
+                  < replicationConfig.replicationMaxLagForWaitTimeInBytes) {
+                processMetadataTimeInMs = timeInMs + replicationConfig.replicaWaitTimeBetweenReplicasMs;
+                break;
+              }
+            }
+          }
+        }
+      } catch (Exception e) {
+        onRequestFailed(responseInfo.getRequestInfo(), e, false, timeInMs);
+      }
+    }
+
+    /**
+     * Gives up on the request that was in flight to the node. Nothing that the request was sent for is applied to the
+     * local stores, so the replicas are replicated again from their last tokens.
+     * @param requestInfo The request that failed
+     * @param e The reason for the failure
+     * @param networkError True if the request failed in the network
+     * @param timeInMs The current time
+     */
+    void onRequestFailed(RequestInfo requestInfo, Exception e, boolean networkError, long timeInMs) {
+      boolean isGetRequest = requestInfo.getRequest() instanceof GetRequest;
+      requestInFlight = null;
+      if (isGetRequest) {
+        clearBatch();
+      } else {
+        metadataReplicas = null;
+        metadataTokens = null;
+      }
+      if (networkError) {
+        responseHandler.onRequestResponseException(replicas.get(0).getReplicaId(), e);
+      }
+      logger.error("Remote node: " + remoteNode + " Thread name: " + threadName + " Remote replicas: " + replicas
+          + " Error in " + (isGetRequest ? "get" : "metadata") + " request to remote node " + e);
+      replicationMetrics.incrementReplicationErrors(replicatingOverSsl);
+      retryTimeInMs = timeInMs + replicationConfig.replicaWaitTimeBetweenReplicasMs;
+    }
+
+    /**
+     * Hands the local work of the node that is ready to be done to the local work thread: the write of the fetched
+     * batch once the metadata for the next batch has been requested or, once no batch is left, the processing of the
+     * metadata that was received, if its wait is over. The node has at most one piece of local work at a time.
+     * @param timeInMs The current time
+     */
+    void processPendingWork(long timeInMs) {
+      if (localWorkInProgress) {
+        return;
+      }
+      if (batchGetResponse != null && (nextMetadataRequested || timeInMs < retryTimeInMs)) {
+        startLocalWork(new LocalWork() {
+          @Override
+          void doWork() {
+            writeBatch();
+          }
+
+          @Override
+          void onFinished() {
+            clearBatch();
+            localWorkInProgress = false;
+          }
+        });
+      } else if (metadataResponse != null && batchReplicas == null && timeInMs >= processMetadataTimeInMs) {
+        final List<RemoteReplicaInfo> replicasToProcess = new ArrayList<RemoteReplicaInfo>();
+        final List<ExchangeMetadataResponse> exchangeMetadataResponseList = new ArrayList<ExchangeMetadataResponse>();
+        startLocalWork(new LocalWork() {
+          @Override
+          void doWork() {
+            processMetadata(replicasToProcess, exchangeMetadataResponseList);
+          }
+
+          @Override
+          void onFinished() {
+            metadataResponse = null;
+            metadataReplicas = null;
+            metadataTokens = null;
+            for (ExchangeMetadataResponse exchangeMetadataResponse : exchangeMetadataResponseList) {
+              if (exchangeMetadataResponse.serverErrorCode == ServerErrorCode.No_Error
+                  && exchangeMetadataResponse.missingStoreKeys.size() > 0) {
+                batchReplicas = replicasToProcess;
+                batchExchangeMetadataResponseList = exchangeMetadataResponseList;
+                break;
+              }
+            }
+            localWorkInProgress = false;
+          }
+        });
+      }
+    }
+
+    private void startLocalWork(LocalWork localWork) {
+      localWorkInProgress = true;
+      localWorkExecutor.execute(localWork);
+    }
+
+    /**
+     * Writes the fetched batch to the local stores. Runs on the local work thread.
+     */
+    private void writeBatch() {
+      long startTimeInMs = SystemTime.getInstance().milliseconds();
+      try {
+        writeMessagesToLocalStore(batchExchangeMetadataResponseList, batchGetResponse, batchReplicas, remoteNode);
+      } catch (Exception e) {
+        logger.error("Remote node: " + remoteNode + " Thread name: " + threadName + " Remote replicas: " + replicas
+            + " Error while writing replicated messages ", e);
+        replicationMetrics.incrementReplicationErrors(replicatingOverSsl);
+      } finally {
+        replicationMetrics.updateFixMissingStoreKeysTime(SystemTime.getInstance().milliseconds() - startTimeInMs,
+            replicatingFromRemoteColo, replicatingOverSsl, datacenterName);
+      }
+    }
+
+    /**
+     * Processes the metadata received from the node against the local stores. The metadata of replicas whose tokens
+     * are not the ones the metadata was requested with is dropped. The tokens of the replicas that have no missing
+     * messages are advanced right away. Runs on the local work thread.
+     * @param replicasToProcess The list to add the replicas whose metadata was processed to
+     * @param exchangeMetadataResponseList The list to add the result of the processing for each of those replicas to
+     */
+    private void processMetadata(List<RemoteReplicaInfo> replicasToProcess,
+        List<ExchangeMetadataResponse> exchangeMetadataResponseList) {
+      long startTimeInMs = SystemTime.getInstance().milliseconds();
+      List<ReplicaMetadataResponseInfo> replicaMetadataResponseInfoList = new ArrayList<ReplicaMetadataResponseInfo>();
+      for (int i = 0; i < metadataReplicas.size(); i++) {
+        RemoteReplicaInfo remoteReplicaInfo = metadataReplicas.get(i);
+        if (remoteReplicaInfo.getToken() == metadataTokens.get(i)) {
+          replicasToProcess.add(remoteReplicaInfo);
+          replicaMetadataResponseInfoList.add(metadataResponse.getReplicaMetadataResponseInfoList().get(i));
+        } else {
+          logger.trace("Remote node: {} Thread name: {} Remote replica: {} Dropping metadata as the previous batch "
+              + "was not written", remoteNode, threadName, remoteReplicaInfo.getReplicaId());
+        }
+      }
+      try {
+        // the wait between replicas was already applied before the metadata was processed
+        waitEnabled = false;
+        List<ExchangeMetadataResponse> responses =
+            handleReplicaMetadataResponse(replicaMetadataResponseInfoList, replicasToProcess, remoteNode);
+        replicationMetrics.updateExchangeMetadataTime(SystemTime.getInstance().milliseconds() - startTimeInMs,
+            replicatingFromRemoteColo, replicatingOverSsl, datacenterName);
+        boolean hasMissingKeys = false;
+        for (ExchangeMetadataResponse exchangeMetadataResponse : responses) {
+          if (exchangeMetadataResponse.serverErrorCode == ServerErrorCode.No_Error
+              && exchangeMetadataResponse.missingStoreKeys.size() > 0) {
+            hasMissingKeys = true;
+            break;
+          }
+        }
+        if (hasMissingKeys) {
+          exchangeMetadataResponseList.addAll(responses);
+        } else {
+          // nothing has to be fetched, so the tokens are just advanced
+          writeMessagesToLocalStore(responses, null, replicasToProcess, remoteNode);
+        }
+      } catch (Exception e) {
+        logger.error("Remote node: " + remoteNode + " Thread name: " + threadName + " Remote replicas: " + replicas
+            + " Error while processing metadata from remote node ", e);
+        replicationMetrics.incrementReplicationErrors(replicatingOverSsl);
+      }
+    }
+
+    /**
+     * @param remoteReplicaInfo The remote replica
+     * @return The token the replica will have once the batch that is in progress is written
+     */
+    private FindToken getTokenAfterBatch(RemoteReplicaInfo remoteReplicaInfo) {
+      if (batchReplicas != null) {
+        int index = batchReplicas.indexOf(remoteReplicaInfo);
+        if (index != -1) {
+          ExchangeMetadataResponse exchangeMetadataResponse = batchExchangeMetadataResponseList.get(index);
+          if (exchangeMetadataResponse.serverErrorCode == ServerErrorCode.No_Error) {
+            return exchangeMetadataResponse.remoteToken;
+          }
+        }
+      }
+      return remoteReplicaInfo.getToken();
+    }
+
+    private void clearBatch() {
+      batchReplicas = null;
+      batchExchangeMetadataResponseList = null;
+      batchGetResponse = null;
+      nextMetadataRequested = false;
+    }
+  }
+
+  /**
+   * Work of a remote node against the local stores that is done on the local work thread during non blocking
+   * replication. What the work found is applied to the state of the node on the replica thread once it is finished.
+   */
+  private abstract class LocalWork implements Runnable {
+    @Override
+    public void run() {
+      try {
+        doWork();
+      } finally {
+        finishedLocalWork.add(this);
+        NetworkClient client = networkClient;
+        if (client != null) {
+          client.wakeup();
+        }
+      }
+    }
+
+    /**
+     * Does the work. Called on the local work thread.
+     */
+    abstract void doWork();
+
+    /**
+     * Applies the result of the work to the state of its node. Called on the replica thread.
+     */
+    abstract void onFinished();
+  }
+
   class ExchangeMetadataResponse {
     public final Set<StoreKey> missingStoreKeys;
     public final FindToken remoteToken;
@@ -747,6 +1514,13 @@ class ReplicaThread implements Runnable {
   public void shutdown()
       throws InterruptedException {
     running = false;
+    NetworkClient client = networkClient;
+    if (client != null) {
+      client.wakeup();
+    }
+    if (scheduler != null) {
+      scheduler.wakeup();
+    }
     shutdownLatch.await();
   }
 }
@@ -23,9 +23,11 @@ import com.github.ambry.config.ReplicationConfig;
 import com.github.ambry.config.SSLConfig;
 import com.github.ambry.config.StoreConfig;
 import com.github.ambry.network.ConnectionPool;
+import com.github.ambry.network.NetworkClientFactory;
 import com.github.ambry.network.Port;
 import com.github.ambry.network.PortType;
 import com.github.ambry.notification.NotificationSystem;
+import com.github.ambry.store.DiskIOScheduler;
 import com.github.ambry.store.FindToken;
 import com.github.ambry.store.FindTokenFactory;
 import com.github.ambry.store.Store;
@@ -72,16 +74,29 @@ final class RemoteReplicaInfo {
   // The token that is known to be safe to persist.
   private FindToken tokenSafeToPersist = null;
   private final Store localStore;
+  private final DiskIOScheduler localDiskIOScheduler;
   private long totalBytesReadFromLocalStore;
+  // the bytes that the local replica is behind the remote replica, as last reported by the remote replica
+  private long localReplicaLagInBytes = 0;
   private Time time;
   private final Port port;
 
   public RemoteReplicaInfo(ReplicaId replicaId, ReplicaId localReplicaId, Store localStore, FindToken token,
       long tokenPersistIntervalInMs, Time time, Port port) {
+    this(replicaId, localReplicaId, localStore, null, token, tokenPersistIntervalInMs, time, port);
+  }
+
+  /**
+   * @param localDiskIOScheduler The I/O scheduler of the disk of the local replica, or null if the writes to the local
+   *                             store are not paced
+   */
+  public RemoteReplicaInfo(ReplicaId replicaId, ReplicaId localReplicaId, Store localStore,
+      DiskIOScheduler localDiskIOScheduler, FindToken token, long tokenPersistIntervalInMs, Time time, Port port) {
     this.replicaId = replicaId;
     this.localReplicaId = localReplicaId;
     this.totalBytesReadFromLocalStore = 0;
     this.localStore = localStore;
+    this.localDiskIOScheduler = localDiskIOScheduler;
     this.time = time;
     this.port = port;
     this.tokenPersistIntervalInMs = tokenPersistIntervalInMs;
@@ -100,6 +115,10 @@ final class RemoteReplicaInfo {
     return localStore;
   }
 
+  public DiskIOScheduler getLocalDiskIOScheduler() {
+    return localDiskIOScheduler;
+  }
+
   public Port getPort() {
     return this.port;
   }
@@ -112,6 +131,14 @@ final class RemoteReplicaInfo {
     }
   }
 
+  public long getLocalReplicaLagInBytes() {
+    return localReplicaLagInBytes;
+  }
+
+  public void setLocalReplicaLagInBytes(long localReplicaLagInBytes) {
+    this.localReplicaLagInBytes = localReplicaLagInBytes;
+  }
+
   public FindToken getToken() {
     synchronized (lock) {
       return currentToken;
@@ -259,6 +286,7 @@ public final class ReplicationManager {
   private final ArrayList<String> sslEnabledDatacenters;
   private final Map<String, ArrayList<ReplicaThread>> replicaThreadPools;
   private final Map<String, Integer> numberOfReplicaThreads;
+  private final NetworkClientFactory networkClientFactory;
 
   private static final String replicaTokenFileName = "replicaTokens";
   private static final short Crc_Size = 8;
@@ -269,8 +297,26 @@ public final class ReplicationManager {
       DataNodeId dataNode, ConnectionPool connectionPool, MetricRegistry metricRegistry,
       NotificationSystem requestNotification)
       throws ReplicationException {
+    this(replicationConfig, sslConfig, storeConfig, storeManager, storeKeyFactory, clusterMap, scheduler, dataNode,
+        connectionPool, metricRegistry, requestNotification, null);
+  }
+
+  /**
+   * Creates a replication manager whose replica threads replicate from all their remote nodes at the same time if a
+   * factory for network clients is given
+   * @param networkClientFactory The factory to create the network clients of the replica threads with. If this is
+   *                             null, replica threads replicate from one remote node at a time over connections from
+   *                             the connection pool.
+   * @throws ReplicationException
+   */
+  public ReplicationManager(ReplicationConfig replicationConfig, SSLConfig sslConfig, StoreConfig storeConfig,
+      StoreManager storeManager, StoreKeyFactory storeKeyFactory, ClusterMap clusterMap, Scheduler scheduler,
+      DataNodeId dataNode, ConnectionPool connectionPool, MetricRegistry metricRegistry,
+      NotificationSystem requestNotification, NetworkClientFactory networkClientFactory)
+      throws ReplicationException {
 
     try {
+      this.networkClientFactory = networkClientFactory;
       this.replicationConfig = replicationConfig;
       this.storeKeyFactory = storeKeyFactory;
       this.factory = Utils.getObj(replicationConfig.replicationTokenFactory, storeKeyFactory);
@@ -302,8 +348,9 @@ public final class ReplicationManager {
             // to determine the token flush interval
             RemoteReplicaInfo remoteReplicaInfo =
                 new RemoteReplicaInfo(remoteReplica, replicaId, storeManager.getStore(replicaId.getPartitionId()),
-                    factory.getNewFindToken(), storeConfig.storeDataFlushIntervalSeconds *
-                    SystemTime.MsPerSec * Replication_Delay_Multiplier, SystemTime.getInstance(),
+                    storeManager.getDiskIOScheduler(replicaId.getMountPath()), factory.getNewFindToken(),
+                    storeConfig.storeDataFlushIntervalSeconds * SystemTime.MsPerSec * Replication_Delay_Multiplier,
+                    SystemTime.getInstance(),
                     getPortForReplica(remoteReplica, sslEnabledDatacenters));
             replicationMetrics.addRemoteReplicaToLagMetrics(remoteReplicaInfo);
             replicationMetrics.createRemoteReplicaErrorMetrics(remoteReplicaInfo);
@@ -396,6 +443,16 @@ public final class ReplicationManager {
     }
   }
 
+  /**
+   * Records a response that was compressed for a remote replica in the replication metrics
+   * @param bytesBeforeCompression The size of the compressed part of the response before it was compressed
+   * @param bytesAfterCompression The size of the compressed part of the response after it was compressed
+   * @param compressionTimeInMs The time taken to compress the response
+   */
+  public void onResponseCompressed(long bytesBeforeCompression, long bytesAfterCompression, long compressionTimeInMs) {
+    replicationMetrics.updateResponseCompression(bytesBeforeCompression, bytesAfterCompression, compressionTimeInMs);
+  }
+
   /**
    * Gets the replica lag of the remote replica with the local store
    * @param partitionId The partition to which the remote replica belongs to
@@ -526,6 +583,26 @@ public final class ReplicationManager {
 
       ResponseHandler responseHandler = new ResponseHandler(clusterMap);
 
+      // the threads of a datacenter share all its nodes if they are scheduled by lag
+      ReplicationScheduler replicationScheduler = null;
+      Map<DataNodeId, List<RemoteReplicaInfo>> replicasForAllThreads = null;
+      if (replicationConfig.replicationEnableLagBasedScheduling) {
+        if (networkClientFactory != null) {
+          logger.warn("Replication is non blocking, not scheduling replication from {} by lag", datacenter);
+        } else {
+          replicasForAllThreads = new HashMap<DataNodeId, List<RemoteReplicaInfo>>();
+          for (DataNodeId dataNodeToReplicate : dataNodesToReplicate) {
+            replicasForAllThreads.put(dataNodeToReplicate,
+                dataNodeRemoteReplicaInfos.getRemoteReplicaListForDataNode(dataNodeToReplicate));
+          }
+          replicationScheduler = new ReplicationScheduler(replicasForAllThreads.values(),
+              replicationConfig.replicationSchedulingMaxPartitionsPerSet,
+              replicationConfig.replicationSchedulingLagPerSecondWaitedInBytes,
+              replicationConfig.replicaWaitTimeBetweenReplicasMs, replicationConfig.replicationMaxIdleBackoffMs,
+              SystemTime.getInstance());
+        }
+      }
+
       int numberOfNodesPerThread = dataNodesCount / replicaThreadCount;
       int remainingNodes = dataNodesCount % replicaThreadCount;
 
@@ -533,21 +610,24 @@ public final class ReplicationManager {
 
       for (int i = 0; i < replicaThreadCount; i++) {
         // create the list of nodes for the replica thread
-        Map<DataNodeId, List<RemoteReplicaInfo>> replicasForThread = new HashMap<DataNodeId, List<RemoteReplicaInfo>>();
-        int nodesAssignedToThread = 0;
-        while (nodesAssignedToThread < numberOfNodesPerThread) {
-          DataNodeId dataNodeToReplicate = dataNodeIdIterator.next();
-          replicasForThread.put(dataNodeToReplicate,
-              dataNodeRemoteReplicaInfos.getRemoteReplicaListForDataNode(dataNodeToReplicate));
-          dataNodeIdIterator.remove();
-          nodesAssignedToThread++;
-        }
-        if (remainingNodes > 0) {
-          DataNodeId dataNodeToReplicate = dataNodeIdIterator.next();
-          replicasForThread.put(dataNodeToReplicate,
-              dataNodeRemoteReplicaInfos.getRemoteReplicaListForDataNode(dataNodeToReplicate));
-          dataNodeIdIterator.remove();
-          remainingNodes--;
+        Map<DataNodeId, List<RemoteReplicaInfo>> replicasForThread = replicasForAllThreads;
+        if (replicasForThread == null) {
+          replicasForThread = new HashMap<DataNodeId, List<RemoteReplicaInfo>>();
+          int nodesAssignedToThread = 0;
+          while (nodesAssignedToThread < numberOfNodesPerThread) {
+            DataNodeId dataNodeToReplicate = dataNodeIdIterator.next();
+            replicasForThread.put(dataNodeToReplicate,
+                dataNodeRemoteReplicaInfos.getRemoteReplicaListForDataNode(dataNodeToReplicate));
+            dataNodeIdIterator.remove();
+            nodesAssignedToThread++;
+          }
+          if (remainingNodes > 0) {
+            DataNodeId dataNodeToReplicate = dataNodeIdIterator.next();
+            replicasForThread.put(dataNodeToReplicate,
+                dataNodeRemoteReplicaInfos.getRemoteReplicaListForDataNode(dataNodeToReplicate));
+            dataNodeIdIterator.remove();
+            remainingNodes--;
+          }
         }
         boolean replicatingOverSsl = sslEnabledDatacenters.contains(datacenter);
         String threadIdentity =
@@ -557,7 +637,7 @@ public final class ReplicationManager {
             new ReplicaThread(threadIdentity, replicasForThread, factory, clusterMap, correlationIdGenerator,
                 dataNodeId, connectionPool, replicationConfig, replicationMetrics, notification, storeKeyFactory,
                 replicationConfig.replicationValidateMessageStream, metricRegistry, replicatingOverSsl, datacenter,
-                responseHandler);
+                responseHandler, networkClientFactory, replicationScheduler);
         if (replicaThreadPools.containsKey(datacenter)) {
           replicaThreadPools.get(datacenter).add(replicaThread);
         } else {
@@ -108,6 +108,10 @@ public class ReplicationMetrics {
   public final Histogram plainTextIntraColoTotalReplicationTime;
   public final Map<String, Histogram> sslInterColoTotalReplicationTime = new HashMap<String, Histogram>();
   public final Histogram sslIntraColoTotalReplicationTime;
+  public final Counter compressedResponseCount;
+  public final Counter compressedResponseBytesBeforeCompression;
+  public final Counter compressedResponseBytesAfterCompression;
+  public final Histogram responseCompressionTimeInMs;
 
   public List<Gauge<Long>> replicaLagInBytes;
   private MetricRegistry registry;
@@ -200,6 +204,23 @@ public class ReplicationMetrics {
         registry.histogram(MetricRegistry.name(ReplicaThread.class, "PlainTextIntraColoTotalReplicationTime"));
     sslIntraColoTotalReplicationTime =
         registry.histogram(MetricRegistry.name(ReplicaThread.class, "SslIntraColoTotalReplicationTime"));
+    compressedResponseCount =
+        registry.counter(MetricRegistry.name(ReplicaThread.class, "CompressedResponseCount"));
+    compressedResponseBytesBeforeCompression =
+        registry.counter(MetricRegistry.name(ReplicaThread.class, "CompressedResponseBytesBeforeCompression"));
+    compressedResponseBytesAfterCompression =
+        registry.counter(MetricRegistry.name(ReplicaThread.class, "CompressedResponseBytesAfterCompression"));
+    responseCompressionTimeInMs =
+        registry.histogram(MetricRegistry.name(ReplicaThread.class, "ResponseCompressionTimeInMs"));
+    Gauge<Double> responseCompressionRatio = new Gauge<Double>() {
+      @Override
+      public Double getValue() {
+        long bytesAfterCompression = compressedResponseBytesAfterCompression.getCount();
+        return bytesAfterCompression == 0 ? 0.0
+            : compressedResponseBytesBeforeCompression.getCount() / (double) bytesAfterCompression;
+      }
+    };
+    registry.register(MetricRegistry.name(ReplicaThread.class, "ResponseCompressionRatio"), responseCompressionRatio);
     this.registry = registry;
     this.replicaLagInBytes = new ArrayList<Gauge<Long>>();
     populateInvalidMessageMetricForReplicas(replicaIds);
@@ -419,6 +440,20 @@ public class ReplicationMetrics {
     localStoreErrorMap.get(localStoreErrorMetricName).inc();
   }
 
+  /**
+   * Updates the metrics of a response that was compressed for a replica in another datacenter
+   * @param bytesBeforeCompression The size of the compressed part of the response before it was compressed
+   * @param bytesAfterCompression The size of the compressed part of the response after it was compressed
+   * @param compressionTimeInMs The time taken to compress the response
+   */
+  public void updateResponseCompression(long bytesBeforeCompression, long bytesAfterCompression,
+      long compressionTimeInMs) {
+    compressedResponseCount.inc();
+    compressedResponseBytesBeforeCompression.inc(bytesBeforeCompression);
+    compressedResponseBytesAfterCompression.inc(bytesAfterCompression);
+    responseCompressionTimeInMs.update(compressionTimeInMs);
+  }
+
   public void incrementReplicationErrors(boolean sslEnabled) {
     replicationErrors.inc();
     if (sslEnabled) {
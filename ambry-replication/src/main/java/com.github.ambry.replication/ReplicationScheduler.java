@@ -0,0 +1,183 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.replication;
+
+import com.github.ambry.utils.Time;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ * Hands out the replicas of the remote nodes of a datacenter to the replica threads that replicate from the
+ * datacenter, so that the threads share all the nodes instead of each owning a fixed set of them. The replicas of a
+ * node are split into sets of at most a given number of partitions, and a set is what is scheduled, so that several
+ * threads can replicate from a node with many partitions at once. A set is replicated from by one thread at a time.
+ * <p/>
+ * Of the sets that are due, the one with the highest priority goes first. The priority of a set is the number of bytes
+ * that the local replicas are behind its remote replicas plus a credit, in bytes, for every second since the set was
+ * last replicated from. The credit keeps sets that are a little behind from being starved by sets that are far behind:
+ * a set is picked at the latest once the credit it has earned makes up for the lag of the other sets. Among sets with
+ * the same priority, the one that was replicated from the longest ago goes first. A set that had nothing to replicate
+ * is not due again until a backoff has passed, which doubles every time the set turns out to have nothing to
+ * replicate, up to a max.
+ */
+class ReplicationScheduler {
+  // the longest a thread waits for a set to be due before it gets back to check whether it is still running
+  static final long Max_Wait_Ms = 1000;
+
+  private final double lagPerMsWaitedInBytes;
+  private final long minIdleBackoffMs;
+  private final long maxIdleBackoffMs;
+  private final Time time;
+  // the time that the wait of the sets is measured from, so that priorities do not lose precision
+  private final long startTimeInMs;
+  // the sets that are due or will be due once their backoff has passed. The credit of every set grows at the same
+  // rate, so the order of the sets only changes when a set is checked in
+  private final PriorityQueue<ReplicaSet> dueSets = new PriorityQueue<ReplicaSet>(11, new Comparator<ReplicaSet>() {
+    @Override
+    public int compare(ReplicaSet set1, ReplicaSet set2) {
+      if (set1.priority != set2.priority) {
+        return set1.priority > set2.priority ? -1 : 1;
+      }
+      return Long.compare(set1.lastReplicationTimeInMs, set2.lastReplicationTimeInMs);
+    }
+  });
+  private final PriorityQueue<ReplicaSet> backedOffSets =
+      new PriorityQueue<ReplicaSet>(11, new Comparator<ReplicaSet>() {
+        @Override
+        public int compare(ReplicaSet set1, ReplicaSet set2) {
+          return Long.compare(set1.nextReplicationTimeInMs, set2.nextReplicationTimeInMs);
+        }
+      });
+
+  /**
+   * @param replicasGroupedByNode The remote replicas to replicate from, grouped by remote node
+   * @param maxPartitionsPerSet The max number of partitions in a set of replicas of a node
+   * @param lagPerSecondWaitedInBytes The credit, in bytes of lag, that a set earns for every second that it waits
+   * @param minIdleBackoffMs The backoff of a set that had nothing to replicate for the first time
+   * @param maxIdleBackoffMs The max backoff of a set
+   * @param time The time instance to use
+   */
+  ReplicationScheduler(Collection<List<RemoteReplicaInfo>> replicasGroupedByNode, int maxPartitionsPerSet,
+      long lagPerSecondWaitedInBytes, long minIdleBackoffMs, long maxIdleBackoffMs, Time time) {
+    this.lagPerMsWaitedInBytes = (double) lagPerSecondWaitedInBytes / Time.MsPerSec;
+    this.minIdleBackoffMs = minIdleBackoffMs;
+    this.maxIdleBackoffMs = Math.max(minIdleBackoffMs, maxIdleBackoffMs);
+    this.time = time;
+    this.startTimeInMs = time.milliseconds();
+    for (List<RemoteReplicaInfo> replicas : replicasGroupedByNode) {
+      for (int i = 0; i < replicas.size(); i += maxPartitionsPerSet) {
+        ReplicaSet set = new ReplicaSet(replicas.subList(i, Math.min(i + maxPartitionsPerSet, replicas.size())));
+        set.lastReplicationTimeInMs = startTimeInMs;
+        dueSets.add(set);
+      }
+    }
+  }
+
+  /**
+   * Takes the next set of replicas to replicate from, waiting for a while if no set is due
+   * @return The next set to replicate from, which has to be checked in once it has been replicated from, or null if
+   *         no set became due while waiting
+   * @throws InterruptedException
+   */
+  synchronized ReplicaSet checkOut()
+      throws InterruptedException {
+    ReplicaSet set = pollDueSet();
+    if (set == null) {
+      long waitTimeMs = Max_Wait_Ms;
+      if (backedOffSets.size() > 0) {
+        waitTimeMs = Math.min(waitTimeMs, backedOffSets.peek().nextReplicationTimeInMs - time.milliseconds());
+      }
+      time.wait(this, Math.max(waitTimeMs, 1));
+      set = pollDueSet();
+    }
+    return set;
+  }
+
+  /**
+   * Gives back a set of replicas that has been replicated from
+   * @param set The set, as returned by {@link #checkOut()}
+   * @param idle true if the set had nothing to replicate, or could not be replicated from
+   */
+  synchronized void checkIn(ReplicaSet set, boolean idle) {
+    long timeInMs = time.milliseconds();
+    long lagInBytes = 0;
+    for (RemoteReplicaInfo remoteReplicaInfo : set.replicas) {
+      lagInBytes += remoteReplicaInfo.getLocalReplicaLagInBytes();
+    }
+    set.lastReplicationTimeInMs = timeInMs;
+    // the credit earned up to now is taken off, so that the set only earns credit from now on
+    set.priority = lagInBytes - lagPerMsWaitedInBytes * (timeInMs - startTimeInMs);
+    if (idle) {
+      set.idleBackoffMs = set.idleBackoffMs == 0 ? minIdleBackoffMs : Math.min(set.idleBackoffMs * 2, maxIdleBackoffMs);
+    } else {
+      set.idleBackoffMs = 0;
+    }
+    set.nextReplicationTimeInMs = timeInMs + set.idleBackoffMs;
+    if (set.idleBackoffMs > 0) {
+      backedOffSets.add(set);
+    } else {
+      dueSets.add(set);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Wakes up the threads that are waiting for a set, so that they get back to check whether they are still running
+   */
+  synchronized void wakeup() {
+    notifyAll();
+  }
+
+  private ReplicaSet pollDueSet() {
+    long timeInMs = time.milliseconds();
+    while (backedOffSets.size() > 0 && backedOffSets.peek().nextReplicationTimeInMs <= timeInMs) {
+      dueSets.add(backedOffSets.poll());
+    }
+    return dueSets.poll();
+  }
+
+  /**
+   * The replicas of a set of partitions on one remote node, along with the state that they are scheduled by
+   */
+  static class ReplicaSet {
+    private final List<RemoteReplicaInfo> replicas;
+    // the bytes that the local replicas were behind the remote replicas when the set was last replicated from, less
+    // the credit that every set had earned by then
+    private double priority = 0;
+    private long lastReplicationTimeInMs = 0;
+    private long nextReplicationTimeInMs = 0;
+    private long idleBackoffMs = 0;
+
+    private ReplicaSet(List<RemoteReplicaInfo> replicas) {
+      this.replicas = replicas;
+    }
+
+    /**
+     * @return The remote replicas in the set to replicate from, which are all on the same node
+     */
+    List<RemoteReplicaInfo> getReplicas() {
+      return replicas;
+    }
+
+    /**
+     * @return The time before the set is due after it had nothing to replicate
+     */
+    long getIdleBackoffMs() {
+      return idleBackoffMs;
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.replication;
+
+import com.github.ambry.utils.MockTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ReplicationSchedulerTest {
+  private static final long Min_Idle_Backoff_Ms = 1000;
+  private static final long Max_Idle_Backoff_Ms = 8000;
+  private static final int Max_Partitions_Per_Set = 10;
+  // a byte of lag for every ms waited
+  private static final long Lag_Per_Second_Waited_In_Bytes = 1000;
+
+  private final MockTime time = new MockTime();
+
+  /**
+   * Tests that sets are handed out to one thread at a time, furthest behind first and least recently replicated
+   * from among sets that are equally behind
+   * @throws InterruptedException
+   */
+  @Test
+  public void setOrderTest()
+      throws InterruptedException {
+    List<List<RemoteReplicaInfo>> replicasGroupedByNode = createReplicasGroupedByNode(3, 2);
+    ReplicationScheduler scheduler =
+        new ReplicationScheduler(replicasGroupedByNode, Max_Partitions_Per_Set, Lag_Per_Second_Waited_In_Bytes,
+            Min_Idle_Backoff_Ms, Max_Idle_Backoff_Ms, time);
+    Set<List<RemoteReplicaInfo>> checkedOutReplicas = new HashSet<List<RemoteReplicaInfo>>();
+    List<ReplicationScheduler.ReplicaSet> sets = new ArrayList<ReplicationScheduler.ReplicaSet>();
+    for (int i = 0; i < replicasGroupedByNode.size(); i++) {
+      ReplicationScheduler.ReplicaSet set = scheduler.checkOut();
+      Assert.assertNotNull("All sets should be due", set);
+      Assert.assertTrue("Set should not be handed out twice", checkedOutReplicas.add(set.getReplicas()));
+      sets.add(set);
+    }
+    long timeInMs = time.milliseconds();
+    Assert.assertNull("No set should be left", scheduler.checkOut());
+    Assert.assertEquals(timeInMs + ReplicationScheduler.Max_Wait_Ms, time.milliseconds());
+
+    setLag(sets.get(0), 100);
+    setLag(sets.get(1), 500);
+    setLag(sets.get(2), 0);
+    for (ReplicationScheduler.ReplicaSet set : Arrays.asList(sets.get(2), sets.get(0), sets.get(1))) {
+      scheduler.checkIn(set, false);
+    }
+    Assert.assertEquals(sets.get(1), scheduler.checkOut());
+    Assert.assertEquals(sets.get(0), scheduler.checkOut());
+    Assert.assertEquals(sets.get(2), scheduler.checkOut());
+
+    // sets that are equally behind go in the order they were last replicated from
+    for (ReplicationScheduler.ReplicaSet set : sets) {
+      setLag(set, 0);
+    }
+    for (ReplicationScheduler.ReplicaSet set : Arrays.asList(sets.get(1), sets.get(2), sets.get(0))) {
+      scheduler.checkIn(set, false);
+      time.sleep(1);
+    }
+    Assert.assertEquals(sets.get(1), scheduler.checkOut());
+    Assert.assertEquals(sets.get(2), scheduler.checkOut());
+    Assert.assertEquals(sets.get(0), scheduler.checkOut());
+  }
+
+  /**
+   * Tests that a set that is far behind does not starve a set that is not behind at all, which is picked once the time
+   * it has waited makes up for the lag of the other set
+   * @throws InterruptedException
+   */
+  @Test
+  public void waitCreditTest()
+      throws InterruptedException {
+    ReplicationScheduler scheduler =
+        new ReplicationScheduler(createReplicasGroupedByNode(2, 2), Max_Partitions_Per_Set,
+            Lag_Per_Second_Waited_In_Bytes, Min_Idle_Backoff_Ms, Max_Idle_Backoff_Ms, time);
+    ReplicationScheduler.ReplicaSet behindSet = scheduler.checkOut();
+    ReplicationScheduler.ReplicaSet upToDateSet = scheduler.checkOut();
+    long lagInBytes = 10000;
+    setLag(behindSet, lagInBytes);
+    setLag(upToDateSet, 0);
+    scheduler.checkIn(upToDateSet, false);
+    scheduler.checkIn(behindSet, false);
+    long checkInTimeInMs = time.milliseconds();
+    // the set that is behind stays behind by as much every time it is replicated from
+    ReplicationScheduler.ReplicaSet set;
+    while ((set = scheduler.checkOut()) == behindSet) {
+      time.sleep(1000);
+      scheduler.checkIn(behindSet, false);
+    }
+    Assert.assertEquals(upToDateSet, set);
+    long waitTimeMs = time.milliseconds() - checkInTimeInMs;
+    Assert.assertTrue("Set that is not behind was picked too early after " + waitTimeMs + " ms",
+        waitTimeMs >= lagInBytes * 1000 / Lag_Per_Second_Waited_In_Bytes);
+    Assert.assertTrue("Set that is not behind was picked too late after " + waitTimeMs + " ms",
+        waitTimeMs <= lagInBytes * 1000 / Lag_Per_Second_Waited_In_Bytes + 1000);
+  }
+
+  /**
+   * Tests that the replicas of a node with more partitions than fit in a set are split into sets that are handed out
+   * separately
+   * @throws InterruptedException
+   */
+  @Test
+  public void partitionSetTest()
+      throws InterruptedException {
+    List<List<RemoteReplicaInfo>> replicasGroupedByNode = createReplicasGroupedByNode(1, 5);
+    ReplicationScheduler scheduler =
+        new ReplicationScheduler(replicasGroupedByNode, 2, Lag_Per_Second_Waited_In_Bytes, Min_Idle_Backoff_Ms,
+            Max_Idle_Backoff_Ms, time);
+    List<RemoteReplicaInfo> checkedOutReplicas = new ArrayList<RemoteReplicaInfo>();
+    for (int i = 0; i < 3; i++) {
+      ReplicationScheduler.ReplicaSet set = scheduler.checkOut();
+      Assert.assertNotNull("All sets of the node should be due at once", set);
+      Assert.assertTrue("Set has too many partitions", set.getReplicas().size() <= 2);
+      checkedOutReplicas.addAll(set.getReplicas());
+    }
+    Assert.assertNull("No set should be left", scheduler.checkOut());
+    Assert.assertEquals(new HashSet<RemoteReplicaInfo>(replicasGroupedByNode.get(0)),
+        new HashSet<RemoteReplicaInfo>(checkedOutReplicas));
+    Assert.assertEquals("A replica should be in one set only", replicasGroupedByNode.get(0).size(),
+        checkedOutReplicas.size());
+  }
+
+  /**
+   * Tests that a set that has nothing to replicate is backed off from for longer and longer, and that it is due
+   * right away once it has something to replicate again
+   * @throws InterruptedException
+   */
+  @Test
+  public void idleBackoffTest()
+      throws InterruptedException {
+    ReplicationScheduler scheduler =
+        new ReplicationScheduler(createReplicasGroupedByNode(1, 2), Max_Partitions_Per_Set,
+            Lag_Per_Second_Waited_In_Bytes, Min_Idle_Backoff_Ms, Max_Idle_Backoff_Ms, time);
+    ReplicationScheduler.ReplicaSet set = scheduler.checkOut();
+    long expectedBackoffMs = Min_Idle_Backoff_Ms;
+    for (int i = 0; i < 6; i++) {
+      scheduler.checkIn(set, true);
+      Assert.assertEquals(expectedBackoffMs, set.getIdleBackoffMs());
+      long checkInTimeInMs = time.milliseconds();
+      ReplicationScheduler.ReplicaSet checkedOutSet = null;
+      while (checkedOutSet == null) {
+        checkedOutSet = scheduler.checkOut();
+      }
+      Assert.assertEquals(set, checkedOutSet);
+      Assert.assertEquals("Set should be due once its backoff has passed", checkInTimeInMs + expectedBackoffMs,
+          time.milliseconds());
+      expectedBackoffMs = Math.min(expectedBackoffMs * 2, Max_Idle_Backoff_Ms);
+    }
+
+    scheduler.checkIn(set, false);
+    Assert.assertEquals(0, set.getIdleBackoffMs());
+    long timeInMs = time.milliseconds();
+    Assert.assertEquals(set, scheduler.checkOut());
+    Assert.assertEquals("Set should be due right away", timeInMs, time.milliseconds());
+  }
+
+  private List<List<RemoteReplicaInfo>> createReplicasGroupedByNode(int nodeCount, int partitionCount) {
+    List<List<RemoteReplicaInfo>> replicasGroupedByNode = new ArrayList<List<RemoteReplicaInfo>>(nodeCount);
+    for (int i = 0; i < nodeCount; i++) {
+      List<RemoteReplicaInfo> replicas = new ArrayList<RemoteReplicaInfo>();
+      for (int j = 0; j < partitionCount; j++) {
+        replicas.add(new RemoteReplicaInfo(null, null, null, null, 0, time, null));
+      }
+      replicasGroupedByNode.add(replicas);
+    }
+    return replicasGroupedByNode;
+  }
+
+  private void setLag(ReplicationScheduler.ReplicaSet set, long lagInBytes) {
+    for (RemoteReplicaInfo remoteReplicaInfo : set.getReplicas()) {
+      remoteReplicaInfo.setLocalReplicaLagInBytes(lagInBytes / set.getReplicas().size());
+    }
+  }
+}
@@ -33,9 +33,15 @@ import com.github.ambry.network.ChannelOutput;
 import com.github.ambry.network.ConnectedChannel;
 import com.github.ambry.network.ConnectionPool;
 import com.github.ambry.network.ConnectionPoolTimeoutException;
+import com.github.ambry.network.NetworkClient;
+import com.github.ambry.network.NetworkClientFactory;
+import com.github.ambry.network.NetworkMetrics;
 import com.github.ambry.network.Port;
 import com.github.ambry.network.PortType;
+import com.github.ambry.network.RequestInfo;
+import com.github.ambry.network.ResponseInfo;
 import com.github.ambry.network.Send;
+import com.github.ambry.protocol.CompressionCodec;
 import com.github.ambry.protocol.GetRequest;
 import com.github.ambry.protocol.GetResponse;
 import com.github.ambry.protocol.PartitionRequestInfo;
@@ -45,6 +51,7 @@ import com.github.ambry.protocol.ReplicaMetadataRequestInfo;
 import com.github.ambry.protocol.ReplicaMetadataResponse;
 import com.github.ambry.protocol.ReplicaMetadataResponseInfo;
 import com.github.ambry.protocol.Response;
+import com.github.ambry.store.CorruptMessageException;
 import com.github.ambry.store.FindInfo;
 import com.github.ambry.store.FindToken;
 import com.github.ambry.store.MessageInfo;
@@ -53,6 +60,7 @@ import com.github.ambry.store.MessageStoreHardDelete;
 import com.github.ambry.store.MessageStoreRecovery;
 import com.github.ambry.store.MessageWriteSet;
 import com.github.ambry.store.Store;
+import com.github.ambry.store.StoreErrorCodes;
 import com.github.ambry.store.StoreException;
 import com.github.ambry.store.StoreGetOptions;
 import com.github.ambry.store.StoreInfo;
@@ -67,6 +75,7 @@ import com.github.ambry.utils.Scheduler;
 import com.github.ambry.utils.SystemTime;
 import com.github.ambry.utils.Time;
 import com.github.ambry.utils.Utils;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
@@ -125,6 +134,15 @@ public class ReplicationTest {
     public StoreKey getKeyAt(int index) {
       return storeKeys.get(index);
     }
+
+    @Override
+    public long[] getRecordOffsetsAt(int index) {
+      return null;
+    }
+
+    @Override
+    public void release() {
+    }
   }
 
   class MockStore implements Store {
@@ -233,6 +251,8 @@ public class ReplicationTest {
       }
       try {
         messageSetToWrite.writeTo(new ByteBufferWrite(buffersToWrite));
+      } catch (CorruptMessageException e) {
+        throw new StoreException("Corrupt message in message set", e, StoreErrorCodes.Data_Corrupt);
       } catch (IOException e) {
 
       }
@@ -373,6 +393,10 @@ public class ReplicationTest {
       public long sizeInBytes() {
         return size;
       }
+
+      @Override
+      public void release() {
+      }
     }
 
     Map<PartitionId, List<MessageInfo>> messageInfoForPartition;
@@ -414,7 +438,7 @@ public class ReplicationTest {
             for (MessageInfo info : messageInfoList) {
               if (key.equals(info.getStoreKey())) {
                 messageInfoToReturn.get(partitionId).add(info);
-                bufferToReturn.add(bufferList.get(index));
+                bufferToReturn.add(bufferList.get(index).duplicate());
               }
               index++;
             }
@@ -447,7 +471,7 @@ public class ReplicationTest {
           replicaMetadataResponseInfoList.add(replicaMetadataResponseInfo);
         }
         response = new ReplicaMetadataResponse(1, "replicametadata", ServerErrorCode.No_Error,
-            replicaMetadataResponseInfoList);
+            replicaMetadataResponseInfoList, CompressionCodec.None, metadataRequest.isCompactMessageInfoListAccepted());
         metadataRequest = null;
       } else {
         List<PartitionResponseInfo> partitionResponseInfoList = new ArrayList<PartitionResponseInfo>();
@@ -521,6 +545,219 @@ public class ReplicationTest {
     }
   }
 
+  /**
+   * A network client that answers the requests of a replica thread from the messages of the remote nodes in the same
+   * way as {@link MockConnection}, without going over the network. The responses to a number of metadata requests can
+   * be held back until the request after them is answered, so that the requests time out.
+   */
+  class MockNetworkClient extends NetworkClient {
+    private final Map<String, Map<PartitionId, List<MessageInfo>>> messageInfoList;
+    private final Map<String, Map<PartitionId, List<ByteBuffer>>> byteBufferList;
+    private final int maxEntriesToReturn;
+    private int metadataResponsesToHold;
+    private final List<ResponseInfo> heldResponses = new ArrayList<ResponseInfo>();
+    // the index of the token of every metadata request sent for a partition, in order
+    private final Map<PartitionId, List<Integer>> requestedTokenIndexes = new HashMap<PartitionId, List<Integer>>();
+    private final AtomicInteger polls = new AtomicInteger(0);
+
+    public MockNetworkClient(Map<String, Map<PartitionId, List<MessageInfo>>> messageInfoList,
+        Map<String, Map<PartitionId, List<ByteBuffer>>> byteBufferList, int maxEntriesToReturn,
+        int metadataResponsesToHold) {
+      super(null, null, new NetworkMetrics(new MetricRegistry()), 1, 1, 1, SystemTime.getInstance());
+      this.messageInfoList = messageInfoList;
+      this.byteBufferList = byteBufferList;
+      this.maxEntriesToReturn = maxEntriesToReturn;
+      this.metadataResponsesToHold = metadataResponsesToHold;
+    }
+
+    @Override
+    public List<ResponseInfo> sendAndPoll(List<RequestInfo> requestInfos, int pollTimeoutMs) {
+      polls.incrementAndGet();
+      List<ResponseInfo> responseInfoList = new ArrayList<ResponseInfo>();
+      try {
+        for (RequestInfo requestInfo : requestInfos) {
+          boolean isMetadataRequest = requestInfo.getRequest() instanceof ReplicaMetadataRequest;
+          if (isMetadataRequest) {
+            recordMetadataRequest((ReplicaMetadataRequest) requestInfo.getRequest());
+          }
+          String node = requestInfo.getHost() + requestInfo.getPort().getPort();
+          MockConnection connection =
+              new MockConnection(requestInfo.getHost(), requestInfo.getPort().getPort(), messageInfoList.get(node),
+                  byteBufferList.get(node), maxEntriesToReturn);
+          connection.send(requestInfo.getRequest());
+          ChannelOutput output = connection.receive();
+          byte[] response = new byte[(int) output.getStreamSize()];
+          new DataInputStream(output.getInputStream()).readFully(response);
+          ResponseInfo responseInfo = new ResponseInfo(requestInfo, null, ByteBuffer.wrap(response));
+          if (isMetadataRequest && metadataResponsesToHold > 0) {
+            metadataResponsesToHold--;
+            heldResponses.add(responseInfo);
+          } else {
+            responseInfoList.add(responseInfo);
+            responseInfoList.addAll(heldResponses);
+            heldResponses.clear();
+          }
+        }
+        if (responseInfoList.isEmpty()) {
+          Thread.sleep(Math.min(pollTimeoutMs, 10));
+        }
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+      return responseInfoList;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void wakeup() {
+    }
+
+    /**
+     * @param partitionId The partition
+     * @return The index of the token of every metadata request sent for the partition so far, in order
+     */
+    synchronized List<Integer> getRequestedTokenIndexes(PartitionId partitionId) {
+      List<Integer> indexes = requestedTokenIndexes.get(partitionId);
+      return indexes == null ? new ArrayList<Integer>() : new ArrayList<Integer>(indexes);
+    }
+
+    /**
+     * @return The number of times the client was polled
+     */
+    int getPolls() {
+      return polls.get();
+    }
+
+    private synchronized void recordMetadataRequest(ReplicaMetadataRequest request) {
+      for (ReplicaMetadataRequestInfo requestInfo : request.getReplicaMetadataRequestInfoList()) {
+        List<Integer> indexes = requestedTokenIndexes.get(requestInfo.getPartitionId());
+        if (indexes == null) {
+          indexes = new ArrayList<Integer>();
+          requestedTokenIndexes.put(requestInfo.getPartitionId(), indexes);
+        }
+        indexes.add(((MockFindToken) requestInfo.getToken()).getIndex());
+      }
+    }
+  }
+
+  /**
+   * The replicas of the first node of a cluster map that replicate without blocking from those on the second node.
+   * The second node has a number of messages in every partition that the first node does not have. The local store of
+   * any partition can be replaced before the replication is started.
+   */
+  class NonBlockingReplication {
+    final MockClusterMap clusterMap;
+    final DataNodeId dataNode1;
+    final DataNodeId dataNode2;
+    final List<ReplicaId> replicaIds;
+    final Map<String, Map<PartitionId, List<MessageInfo>>> replicaStores =
+        new HashMap<String, Map<PartitionId, List<MessageInfo>>>();
+    final Map<String, Map<PartitionId, List<ByteBuffer>>> replicaBuffers =
+        new HashMap<String, Map<PartitionId, List<ByteBuffer>>>();
+    final Map<PartitionId, MockStore> localStores = new HashMap<PartitionId, MockStore>();
+    final List<RemoteReplicaInfo> replicasOnNode2 = new ArrayList<RemoteReplicaInfo>();
+    private ReplicaThread replicaThread = null;
+
+    NonBlockingReplication(int numMessages)
+        throws Exception {
+      Random random = new Random();
+      clusterMap = new MockClusterMap();
+      dataNode1 = clusterMap.getDataNodeIds().get(0);
+      dataNode2 = clusterMap.getDataNodeIds().get(1);
+      replicaIds = clusterMap.getReplicaIds(clusterMap.getDataNodeId("localhost", dataNode1.getPort()));
+      Map<PartitionId, List<MessageInfo>> messageInfoNode2 = new HashMap<PartitionId, List<MessageInfo>>();
+      Map<PartitionId, List<ByteBuffer>> bufferListNode2 = new HashMap<PartitionId, List<ByteBuffer>>();
+      for (PartitionId partitionId : clusterMap.getWritablePartitionIds()) {
+        List<MessageInfo> messageInfoList = new ArrayList<MessageInfo>();
+        List<ByteBuffer> bufferList = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < numMessages; i++) {
+          BlobId id = new BlobId(partitionId);
+          ByteBuffer byteBuffer = constructTestBlobInMessageFormat(id, 1000, random);
+          messageInfoList.add(new MessageInfo(id, byteBuffer.limit()));
+          bufferList.add(byteBuffer);
+        }
+        messageInfoNode2.put(partitionId, messageInfoList);
+        bufferListNode2.put(partitionId, bufferList);
+        localStores.put(partitionId, new MockStore(new ArrayList<MessageInfo>(), new ArrayList<ByteBuffer>()));
+      }
+      replicaStores.put("localhost" + dataNode2.getPort(), messageInfoNode2);
+      replicaBuffers.put("localhost" + dataNode2.getPort(), bufferListNode2);
+    }
+
+    /**
+     * Starts a replica thread that replicates from the second node over the given network client
+     * @param networkClient The network client
+     * @param properties The replication config
+     */
+    void start(final MockNetworkClient networkClient, Properties properties)
+        throws Exception {
+      for (ReplicaId replicaId : replicaIds) {
+        for (ReplicaId peerReplicaId : replicaId.getPeerReplicaIds()) {
+          if (peerReplicaId.getDataNodeId().getPort() == dataNode2.getPort()) {
+            replicasOnNode2.add(
+                new RemoteReplicaInfo(peerReplicaId, replicaId, localStores.get(replicaId.getPartitionId()),
+                    new MockFindToken(0, 0), 1000000, SystemTime.getInstance(),
+                    new Port(peerReplicaId.getDataNodeId().getPort(), PortType.PLAINTEXT)));
+          }
+        }
+      }
+      Map<DataNodeId, List<RemoteReplicaInfo>> replicasToReplicate = new HashMap<DataNodeId, List<RemoteReplicaInfo>>();
+      replicasToReplicate.put(dataNode2, replicasOnNode2);
+      ReplicationConfig config = new ReplicationConfig(new VerifiableProperties(properties));
+      ReplicationMetrics replicationMetrics = new ReplicationMetrics(new MetricRegistry(), replicaIds);
+      replicationMetrics.populatePerColoMetrics(new HashSet<String>(Arrays.asList("localhost")));
+      StoreKeyFactory storeKeyFactory = Utils.getObj("com.github.ambry.commons.BlobIdFactory", clusterMap);
+      NetworkClientFactory networkClientFactory =
+          new NetworkClientFactory(null, null, null, 1, 1, 1, SystemTime.getInstance()) {
+            @Override
+            public NetworkClient getNetworkClient() {
+              return networkClient;
+            }
+          };
+      replicaThread = new ReplicaThread("threadtest", replicasToReplicate, new MockFindTokenFactory(), clusterMap,
+          new AtomicInteger(0), clusterMap.getDataNodeId("localhost", dataNode1.getPort()),
+          new MockConnectionPool(replicaStores, replicaBuffers, 3), config, replicationMetrics, null, storeKeyFactory,
+          true, clusterMap.getMetricRegistry(), false, "localhost", new ResponseHandler(clusterMap),
+          networkClientFactory);
+      Utils.newThread(replicaThread, false).start();
+    }
+
+    /**
+     * Waits until the metadata of every partition has been requested twice from the given token index, or a while has
+     * passed. The metadata of a batch is requested once before the batch is written, so the second request is only
+     * sent once the replica has advanced to the token.
+     * @param networkClient The network client that the metadata is requested over
+     * @param tokenIndex The index of the token
+     * @return true if the metadata of every partition has been requested twice from the token index
+     */
+    boolean awaitMetadataRequests(MockNetworkClient networkClient, int tokenIndex)
+        throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (System.currentTimeMillis() < deadline) {
+        boolean requested = true;
+        for (PartitionId partitionId : localStores.keySet()) {
+          List<Integer> requestedTokenIndexes = networkClient.getRequestedTokenIndexes(partitionId);
+          requested = requested && requestedTokenIndexes.indexOf(tokenIndex) != requestedTokenIndexes.lastIndexOf(
+              tokenIndex);
+        }
+        if (requested) {
+          return true;
+        }
+        Thread.sleep(10);
+      }
+      return false;
+    }
+
+    void shutdown()
+        throws Exception {
+      replicaThread.shutdown();
+      clusterMap.cleanup();
+    }
+  }
+
   @Test
   public void replicaThreadTest()
       throws InterruptedException, IOException {
@@ -1229,6 +1466,304 @@ public class ReplicationTest {
     }
   }
 
+  @Test
+  public void replicaThreadTestWithStreamedMessages()
+      throws Exception {
+    Random random = new Random();
+    MockClusterMap clusterMap = new MockClusterMap();
+    DataNodeId dataNode1 = clusterMap.getDataNodeIds().get(0);
+    DataNodeId dataNode2 = clusterMap.getDataNodeIds().get(1);
+
+    List<ReplicaId> replicaIds = clusterMap.getReplicaIds(clusterMap.getDataNodeId("localhost", dataNode1.getPort()));
+
+    Map<String, Map<PartitionId, List<MessageInfo>>> replicaStores =
+        new HashMap<String, Map<PartitionId, List<MessageInfo>>>();
+    Map<String, Map<PartitionId, List<ByteBuffer>>> replicaBuffers =
+        new HashMap<String, Map<PartitionId, List<ByteBuffer>>>();
+
+    List<PartitionId> partitionIds = clusterMap.getWritablePartitionIds();
+    Map<PartitionId, List<MessageInfo>> messageInfoNode1 = new HashMap<PartitionId, List<MessageInfo>>();
+    Map<PartitionId, List<MessageInfo>> messageInfoNode2 = new HashMap<PartitionId, List<MessageInfo>>();
+    Map<PartitionId, List<ByteBuffer>> bufferListNode1 = new HashMap<PartitionId, List<ByteBuffer>>();
+    Map<PartitionId, List<ByteBuffer>> bufferListNode2 = new HashMap<PartitionId, List<ByteBuffer>>();
+
+    Map<PartitionId, BlobId> partitionIdToCorruptIdMap = new HashMap<PartitionId, BlobId>();
+
+    for (PartitionId partitionId : partitionIds) {
+      List<MessageInfo> messageInfoListLocalReplica = new ArrayList<MessageInfo>();
+      List<ByteBuffer> messageBufferListLocalReplica = new ArrayList<ByteBuffer>();
+      List<MessageInfo> messageInfoListRemoteReplica2 = new ArrayList<MessageInfo>();
+      List<ByteBuffer> messageBufferListRemoteReplica2 = new ArrayList<ByteBuffer>();
+
+      for (int j = 0; j < 10; j++) {
+        BlobId id = new BlobId(partitionId);
+        ByteBuffer byteBuffer = constructTestBlobInMessageFormat(id, 1000, random);
+        messageInfoListLocalReplica.add(new MessageInfo(id, byteBuffer.limit()));
+        messageInfoListRemoteReplica2.add(new MessageInfo(id, byteBuffer.limit()));
+        messageBufferListLocalReplica.add(byteBuffer);
+        messageBufferListRemoteReplica2.add(byteBuffer);
+      }
+
+      // add a corrupt message to replica 2
+      BlobId corruptId = new BlobId(partitionId);
+      ByteBuffer corruptByteBuffer = constructTestBlobInMessageFormat(corruptId, 1000, random);
+      new Random().nextBytes(corruptByteBuffer.array());
+      messageInfoListRemoteReplica2.add(new MessageInfo(corruptId, corruptByteBuffer.limit()));
+      messageBufferListRemoteReplica2.add(corruptByteBuffer);
+      partitionIdToCorruptIdMap.put(partitionId, corruptId);
+
+      // add additional messages to replica 2
+      for (int j = 11; j < 16; j++) {
+        BlobId id = new BlobId(partitionId);
+        ByteBuffer byteBuffer = constructTestBlobInMessageFormat(id, 1000, random);
+        messageInfoListRemoteReplica2.add(new MessageInfo(id, byteBuffer.limit()));
+        messageBufferListRemoteReplica2.add(byteBuffer);
+      }
+
+      messageInfoNode1.put(partitionId, messageInfoListLocalReplica);
+      bufferListNode1.put(partitionId, messageBufferListLocalReplica);
+      messageInfoNode2.put(partitionId, messageInfoListRemoteReplica2);
+      bufferListNode2.put(partitionId, messageBufferListRemoteReplica2);
+    }
+    replicaStores.put("localhost" + dataNode2.getPort(), messageInfoNode2);
+    replicaBuffers.put("localhost" + dataNode2.getPort(), bufferListNode2);
+
+    List<RemoteReplicaInfo> replicasOnNode2 = new ArrayList<RemoteReplicaInfo>();
+    for (ReplicaId replicaId : replicaIds) {
+      for (ReplicaId peerReplicaId : replicaId.getPeerReplicaIds()) {
+        if (peerReplicaId.getDataNodeId().getPort() == dataNode2.getPort()) {
+          replicasOnNode2.add(new RemoteReplicaInfo(peerReplicaId, replicaId,
+              new MockStore(messageInfoNode1.get(replicaId.getPartitionId()),
+                  bufferListNode1.get(replicaId.getPartitionId())), new MockFindToken(0, 0), 1000000,
+              SystemTime.getInstance(), new Port(peerReplicaId.getDataNodeId().getPort(), PortType.PLAINTEXT)));
+        }
+      }
+    }
+    Map<DataNodeId, List<RemoteReplicaInfo>> replicasToReplicate = new HashMap<DataNodeId, List<RemoteReplicaInfo>>();
+    replicasToReplicate.put(replicasOnNode2.get(0).getReplicaId().getDataNodeId(), replicasOnNode2);
+
+    Properties properties = new Properties();
+    properties.setProperty("replication.stream.fetched.messages", "true");
+    ReplicationConfig config = new ReplicationConfig(new VerifiableProperties(properties));
+    ReplicationMetrics replicationMetrics = new ReplicationMetrics(new MetricRegistry(), replicaIds);
+    replicationMetrics.populatePerColoMetrics(new HashSet<String>(Arrays.asList("localhost")));
+    StoreKeyFactory storeKeyFactory = Utils.getObj("com.github.ambry.commons.BlobIdFactory", clusterMap);
+    ReplicaThread replicaThread =
+        new ReplicaThread("threadtest", replicasToReplicate, new MockFindTokenFactory(), clusterMap,
+            new AtomicInteger(0), clusterMap.getDataNodeId("localhost", dataNode1.getPort()),
+            new MockConnectionPool(replicaStores, replicaBuffers, 3), config, replicationMetrics, null,
+            storeKeyFactory, true, clusterMap.getMetricRegistry(), false, "localhost",
+            new ResponseHandler(clusterMap));
+
+    // the first batch has the corrupt message, so none of it is written and the tokens stay where they are
+    List<ReplicaThread.ExchangeMetadataResponse> response = replicaThread.exchangeMetadata(
+        new MockConnection("localhost", dataNode2.getPort(), replicaStores.get("localhost" + dataNode2.getPort()),
+            replicaBuffers.get("localhost" + dataNode2.getPort()), 12), replicasOnNode2);
+    Assert.assertEquals(replicasOnNode2.size(), response.size());
+    List<FindToken> tokensBeforeBatch = new ArrayList<FindToken>();
+    for (int i = 0; i < response.size(); i++) {
+      Assert.assertEquals(2, response.get(i).missingStoreKeys.size());
+      tokensBeforeBatch.add(replicasOnNode2.get(i).getToken());
+    }
+    replicaThread.fixMissingStoreKeys(
+        new MockConnection("localhost", dataNode2.getPort(), replicaStores.get("localhost" + dataNode2.getPort()),
+            replicaBuffers.get("localhost" + dataNode2.getPort()), 12), replicasOnNode2, response);
+    for (int i = 0; i < response.size(); i++) {
+      Assert.assertEquals(tokensBeforeBatch.get(i), replicasOnNode2.get(i).getToken());
+      Assert.assertEquals(10, messageInfoNode1.get(replicasOnNode2.get(i).getReplicaId().getPartitionId()).size());
+    }
+
+    // the batch is fetched again and sieved, which skips the corrupt message
+    response = replicaThread.exchangeMetadata(
+        new MockConnection("localhost", dataNode2.getPort(), replicaStores.get("localhost" + dataNode2.getPort()),
+            replicaBuffers.get("localhost" + dataNode2.getPort()), 12), replicasOnNode2);
+    replicaThread.fixMissingStoreKeys(
+        new MockConnection("localhost", dataNode2.getPort(), replicaStores.get("localhost" + dataNode2.getPort()),
+            replicaBuffers.get("localhost" + dataNode2.getPort()), 12), replicasOnNode2, response);
+    for (int i = 0; i < response.size(); i++) {
+      Assert.assertEquals(response.get(i).remoteToken, replicasOnNode2.get(i).getToken());
+      Assert.assertEquals(11, messageInfoNode1.get(replicasOnNode2.get(i).getReplicaId().getPartitionId()).size());
+    }
+
+    // the rest of the messages are streamed again
+    response = replicaThread.exchangeMetadata(
+        new MockConnection("localhost", dataNode2.getPort(), replicaStores.get("localhost" + dataNode2.getPort()),
+            replicaBuffers.get("localhost" + dataNode2.getPort()), 12), replicasOnNode2);
+    for (int i = 0; i < response.size(); i++) {
+      Assert.assertEquals(4, response.get(i).missingStoreKeys.size());
+    }
+    replicaThread.fixMissingStoreKeys(
+        new MockConnection("localhost", dataNode2.getPort(), replicaStores.get("localhost" + dataNode2.getPort()),
+            replicaBuffers.get("localhost" + dataNode2.getPort()), 12), replicasOnNode2, response);
+    for (int i = 0; i < response.size(); i++) {
+      Assert.assertEquals(response.get(i).remoteToken, replicasOnNode2.get(i).getToken());
+    }
+
+    // every message but the corrupt one has been replicated
+    for (Map.Entry<PartitionId, List<ByteBuffer>> entry : bufferListNode2.entrySet()) {
+      int totalFound = 0;
+      for (ByteBuffer buf : entry.getValue()) {
+        for (ByteBuffer bufActual : bufferListNode1.get(entry.getKey())) {
+          if (Arrays.equals(buf.array(), bufActual.array())) {
+            totalFound++;
+            break;
+          }
+        }
+      }
+      Assert.assertEquals(entry.getValue().size() - 1, totalFound);
+      for (MessageInfo messageInfo : messageInfoNode1.get(entry.getKey())) {
+        Assert.assertFalse(messageInfo.getStoreKey().equals(partitionIdToCorruptIdMap.get(entry.getKey())));
+      }
+    }
+  }
+
+  /**
+   * Tests that non blocking replication requests the metadata of the next batch before the fetched batch is written
+   * and keeps polling the network while the batch is being written
+   * @throws Exception
+   */
+  @Test
+  public void nonBlockingReplicationPipelinedMetadataTest()
+      throws Exception {
+    final NonBlockingReplication replication = new NonBlockingReplication(6);
+    final MockNetworkClient networkClient =
+        new MockNetworkClient(replication.replicaStores, replication.replicaBuffers, 3, 0);
+    final AtomicInteger writes = new AtomicInteger(0);
+    final AtomicInteger pipelinedWrites = new AtomicInteger(0);
+    final AtomicInteger writesWhilePolling = new AtomicInteger(0);
+    for (final PartitionId partitionId : new ArrayList<PartitionId>(replication.localStores.keySet())) {
+      replication.localStores.put(partitionId,
+          new MockStore(new ArrayList<MessageInfo>(), new ArrayList<ByteBuffer>()) {
+            private int batchesWritten = 0;
+
+            @Override
+            public void put(MessageWriteSet messageSetToWrite)
+                throws StoreException {
+              writes.incrementAndGet();
+              batchesWritten++;
+              // every metadata request but the last was answered with a batch, so the metadata of the next batch was
+              // requested before this one is written if there are more requests than batches
+              if (networkClient.getRequestedTokenIndexes(partitionId).size() > batchesWritten) {
+                pipelinedWrites.incrementAndGet();
+              }
+              // the network is polled while the batch is written
+              int polls = networkClient.getPolls();
+              long deadline = System.currentTimeMillis() + 5000;
+              while (networkClient.getPolls() < polls + 2 && System.currentTimeMillis() < deadline) {
+                try {
+                  Thread.sleep(1);
+                } catch (InterruptedException e) {
+                  throw new StoreException("Interrupted", e, StoreErrorCodes.IOError);
+                }
+              }
+              if (networkClient.getPolls() >= polls + 2) {
+                writesWhilePolling.incrementAndGet();
+              }
+              super.put(messageSetToWrite);
+            }
+          });
+    }
+    Properties properties = new Properties();
+    properties.setProperty("replication.wait.time.between.replicas.ms", "0");
+    replication.start(networkClient, properties);
+    Assert.assertTrue("Not all the messages were replicated", replication.awaitMetadataRequests(networkClient, 5));
+    replication.shutdown();
+
+    Assert.assertTrue(writes.get() > 0);
+    Assert.assertEquals("Batches were written before the next metadata was requested", writes.get(),
+        pipelinedWrites.get());
+    Assert.assertEquals("The network was not polled while batches were written", writes.get(),
+        writesWhilePolling.get());
+    for (Map.Entry<PartitionId, MockStore> entry : replication.localStores.entrySet()) {
+      Assert.assertEquals(6, entry.getValue().messageInfoList.size());
+    }
+  }
+
+  /**
+   * Tests that non blocking replication does not advance the token of a replica whose batch fails to be written to
+   * the local store and requests the batch again from the last token
+   * @throws Exception
+   */
+  @Test
+  public void nonBlockingReplicationLocalWriteFailureTest()
+      throws Exception {
+    NonBlockingReplication replication = new NonBlockingReplication(6);
+    MockNetworkClient networkClient = new MockNetworkClient(replication.replicaStores, replication.replicaBuffers, 3, 0);
+    final AtomicInteger failedWrites = new AtomicInteger(0);
+    for (PartitionId partitionId : new ArrayList<PartitionId>(replication.localStores.keySet())) {
+      replication.localStores.put(partitionId,
+          new MockStore(new ArrayList<MessageInfo>(), new ArrayList<ByteBuffer>()) {
+            @Override
+            public void put(MessageWriteSet messageSetToWrite)
+                throws StoreException {
+              failedWrites.incrementAndGet();
+              throw new StoreException("Disk failure", StoreErrorCodes.IOError);
+            }
+          });
+    }
+    Properties properties = new Properties();
+    properties.setProperty("replication.wait.time.between.replicas.ms", "0");
+    replication.start(networkClient, properties);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (failedWrites.get() < 3 * replication.localStores.size() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    replication.shutdown();
+
+    Assert.assertTrue(failedWrites.get() >= 3 * replication.localStores.size());
+    for (RemoteReplicaInfo remoteReplicaInfo : replication.replicasOnNode2) {
+      Assert.assertEquals("Token advanced past a batch that was not written", 0,
+          ((MockFindToken) remoteReplicaInfo.getToken()).getIndex());
+      Assert.assertEquals(0, replication.localStores.get(remoteReplicaInfo.getReplicaId().getPartitionId())
+          .messageInfoList.size());
+      // the metadata is requested again from the token that the failed batch started at
+      List<Integer> requestedTokenIndexes =
+          networkClient.getRequestedTokenIndexes(remoteReplicaInfo.getReplicaId().getPartitionId());
+      int requestsFromStart = 0;
+      for (int tokenIndex : requestedTokenIndexes) {
+        if (tokenIndex == 0) {
+          requestsFromStart++;
+        }
+      }
+      Assert.assertTrue("Metadata was not requested again from the last token", requestsFromStart > 1);
+    }
+  }
+
+  /**
+   * Tests that non blocking replication gives up on a request that is not answered in time, sends it again and
+   * ignores the response to the request that timed out when it arrives later
+   * @throws Exception
+   */
+  @Test
+  public void nonBlockingReplicationRequestTimeoutTest()
+      throws Exception {
+    NonBlockingReplication replication = new NonBlockingReplication(6);
+    MockNetworkClient networkClient = new MockNetworkClient(replication.replicaStores, replication.replicaBuffers, 3, 1);
+    Properties properties = new Properties();
+    properties.setProperty("replication.wait.time.between.replicas.ms", "0");
+    properties.setProperty("replication.request.timeout.ms", "1000");
+    long startTimeInMs = System.currentTimeMillis();
+    replication.start(networkClient, properties);
+    Assert.assertTrue("Not all the messages were replicated", replication.awaitMetadataRequests(networkClient, 5));
+    long replicationTimeInMs = System.currentTimeMillis() - startTimeInMs;
+    replication.shutdown();
+
+    Assert.assertTrue("The request did not time out", replicationTimeInMs >= 1000);
+    for (Map.Entry<PartitionId, MockStore> entry : replication.localStores.entrySet()) {
+      List<Integer> requestedTokenIndexes = networkClient.getRequestedTokenIndexes(entry.getKey());
+      // the first request was sent again once it timed out
+      Assert.assertEquals(0, (int) requestedTokenIndexes.get(0));
+      Assert.assertEquals(0, (int) requestedTokenIndexes.get(1));
+      // every message was written once, in spite of the late response
+      Set<StoreKey> replicatedKeys = new HashSet<StoreKey>();
+      for (MessageInfo messageInfo : entry.getValue().messageInfoList) {
+        replicatedKeys.add(messageInfo.getStoreKey());
+      }
+      Assert.assertEquals(6, entry.getValue().messageInfoList.size());
+      Assert.assertEquals(6, replicatedKeys.size());
+    }
+  }
+
   private ByteBuffer constructTestBlobInMessageFormat(BlobId id, long blobSize, Random random)
       throws MessageFormatException, IOException {
     return constructEntireMessageForTestBlob(id, blobSize, random, "test");
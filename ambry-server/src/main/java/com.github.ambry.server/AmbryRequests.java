@@ -30,6 +30,7 @@ import com.github.ambry.messageformat.MessageFormatInputStream;
 import com.github.ambry.messageformat.MessageFormatMetrics;
 import com.github.ambry.messageformat.MessageFormatSend;
 import com.github.ambry.messageformat.MessageFormatWriteSet;
+import com.github.ambry.messageformat.MessageVerifyingInputStream;
 import com.github.ambry.messageformat.PutMessageFormatInputStream;
 import com.github.ambry.network.CompositeSend;
 import com.github.ambry.network.Request;
@@ -38,6 +39,7 @@ import com.github.ambry.network.Send;
 import com.github.ambry.network.ServerNetworkResponseMetrics;
 import com.github.ambry.notification.BlobReplicaSourceType;
 import com.github.ambry.notification.NotificationSystem;
+import com.github.ambry.protocol.CompressionCodec;
 import com.github.ambry.protocol.DeleteRequest;
 import com.github.ambry.protocol.DeleteResponse;
 import com.github.ambry.protocol.GetOptions;
@@ -57,6 +59,7 @@ import com.github.ambry.store.FindInfo;
 import com.github.ambry.store.FindToken;
 import com.github.ambry.store.FindTokenFactory;
 import com.github.ambry.store.MessageInfo;
+import com.github.ambry.store.MessageSourceException;
 import com.github.ambry.store.Store;
 import com.github.ambry.store.StoreErrorCodes;
 import com.github.ambry.store.StoreException;
@@ -67,7 +70,9 @@ import com.github.ambry.store.StoreManager;
 import com.github.ambry.utils.SystemTime;
 import com.github.ambry.utils.Utils;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
@@ -153,16 +158,19 @@ public class AmbryRequests implements RequestAPI {
         logger.error("Validating put request failed with error {} for request {}", error, putRequest);
         response = new PutResponse(putRequest.getCorrelationId(), putRequest.getClientId(), error);
       } else {
+        InputStream blobStream = new RequestBlobStream(putRequest.getBlobStream(), putRequest.getBlobSize());
         MessageFormatInputStream stream =
             new PutMessageFormatInputStream(putRequest.getBlobId(), putRequest.getBlobProperties(),
-                putRequest.getUsermetadata(), putRequest.getBlobStream(), putRequest.getBlobSize(),
-                putRequest.getBlobType());
+                putRequest.getUsermetadata(), blobStream, putRequest.getBlobSize(), putRequest.getBlobType());
         MessageInfo info = new MessageInfo(putRequest.getBlobId(), stream.getSize(), Utils
             .addSecondsToEpochTime(putRequest.getBlobProperties().getCreationTimeInMs(),
-                putRequest.getBlobProperties().getTimeToLiveInSeconds()));
+                putRequest.getBlobProperties().getTimeToLiveInSeconds()), stream.getRecordOffsets());
         ArrayList<MessageInfo> infoList = new ArrayList<MessageInfo>();
         infoList.add(info);
-        MessageFormatWriteSet writeset = new MessageFormatWriteSet(stream, infoList, false);
+        // a large request is still being received while its message is appended to the log, so the message is only
+        // indexed once all of it has arrived and its records check out
+        MessageFormatWriteSet writeset =
+            new MessageFormatWriteSet(new MessageVerifyingInputStream(stream, infoList), infoList, false);
         Store storeToPut = storeManager.getStore(putRequest.getBlobId().getPartition());
         storeToPut.put(writeset);
         response = new PutResponse(putRequest.getCorrelationId(), putRequest.getClientId(), ServerErrorCode.No_Error);
@@ -268,9 +276,14 @@ public class AmbryRequests implements RequestAPI {
                   EnumSet.of(StoreGetOptions.Store_Include_Deleted, StoreGetOptions.Store_Include_Expired);
             }
             StoreInfo info = storeToGet.get(partitionRequestInfo.getBlobIds(), storeGetOptions);
-            MessageFormatSend blobsToSend =
-                new MessageFormatSend(info.getMessageReadSet(), getRequest.getMessageFormatFlag(), messageFormatMetrics,
-                    storeKeyFactory);
+            MessageFormatSend blobsToSend;
+            try {
+              blobsToSend = new MessageFormatSend(info.getMessageReadSet(), getRequest.getMessageFormatFlag(),
+                  messageFormatMetrics, storeKeyFactory);
+            } catch (IOException | MessageFormatException e) {
+              info.getMessageReadSet().release();
+              throw e;
+            }
             PartitionResponseInfo partitionResponseInfo =
                 new PartitionResponseInfo(partitionRequestInfo.getPartition(), info.getMessageReadSetInfo());
             messagesToSendList.add(blobsToSend);
@@ -311,8 +324,15 @@ public class AmbryRequests implements RequestAPI {
         }
       }
       CompositeSend compositeSend = new CompositeSend(messagesToSendList);
+      CompressionCodec compressionCodec = getRequest.getResponseCompressionCodec();
+      long compressionStartTimeInMs = SystemTime.getInstance().milliseconds();
       response = new GetResponse(getRequest.getCorrelationId(), getRequest.getClientId(), partitionResponseInfoList,
-          compositeSend, ServerErrorCode.No_Error);
+          compositeSend, ServerErrorCode.No_Error, compressionCodec);
+      if (compressionCodec != CompressionCodec.None) {
+        replicationManager.onResponseCompressed(response.getUncompressedPayloadSizeInBytes(),
+            response.getCompressedPayloadSizeInBytes(),
+            SystemTime.getInstance().milliseconds() - compressionStartTimeInMs);
+      }
     } catch (Exception e) {
       logger.error("Unknown exception for request " + getRequest, e);
       response =
@@ -474,9 +494,17 @@ public class AmbryRequests implements RequestAPI {
           }
         }
       }
+      CompressionCodec compressionCodec = replicaMetadataRequest.getResponseCompressionCodec();
+      long compressionStartTimeInMs = SystemTime.getInstance().milliseconds();
       response =
           new ReplicaMetadataResponse(replicaMetadataRequest.getCorrelationId(), replicaMetadataRequest.getClientId(),
-              ServerErrorCode.No_Error, replicaMetadataResponseList);
+              ServerErrorCode.No_Error, replicaMetadataResponseList, compressionCodec,
+              replicaMetadataRequest.isCompactMessageInfoListAccepted());
+      if (compressionCodec != CompressionCodec.None) {
+        replicationManager.onResponseCompressed(response.getUncompressedPayloadSizeInBytes(),
+            response.getCompressedPayloadSizeInBytes(),
+            SystemTime.getInstance().milliseconds() - compressionStartTimeInMs);
+      }
     } catch (Exception e) {
       logger.error("Unknown exception for request " + replicaMetadataRequest, e);
       response =
@@ -604,4 +632,46 @@ public class AmbryRequests implements RequestAPI {
     }
     return ServerErrorCode.No_Error;
   }
+
+  /**
+   * The blob of a put request. A large request is streamed, so the blob may still be arriving while it is appended to
+   * the log. A failure to read it, or a request that ends before the blob does, is reported to the store as a
+   * {@link MessageSourceException}, so that it is not taken for a failure of the local disk.
+   */
+  private static class RequestBlobStream extends InputStream {
+    private final InputStream stream;
+    private long bytesRemaining;
+
+    RequestBlobStream(InputStream stream, long size) {
+      this.stream = stream;
+      this.bytesRemaining = size;
+    }
+
+    @Override
+    public int read()
+        throws IOException {
+      byte[] b = new byte[1];
+      int read = read(b, 0, 1);
+      return read == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+        throws IOException {
+      if (bytesRemaining == 0) {
+        return -1;
+      }
+      int read;
+      try {
+        read = stream.read(b, off, (int) Math.min(len, bytesRemaining));
+        if (read == -1) {
+          throw new EOFException("Request ended with " + bytesRemaining + " bytes of the blob left to read");
+        }
+      } catch (IOException e) {
+        throw new MessageSourceException("Failed to read the blob from the request", e);
+      }
+      bytesRemaining -= read;
+      return read;
+    }
+  }
 }
@@ -29,9 +29,12 @@ import com.github.ambry.messageformat.BlobStoreHardDelete;
 import com.github.ambry.messageformat.BlobStoreRecovery;
 import com.github.ambry.network.BlockingChannelConnectionPool;
 import com.github.ambry.network.ConnectionPool;
+import com.github.ambry.network.NetworkClientFactory;
+import com.github.ambry.network.NetworkMetrics;
 import com.github.ambry.network.NetworkServer;
 import com.github.ambry.network.Port;
 import com.github.ambry.network.PortType;
+import com.github.ambry.network.SSLFactory;
 import com.github.ambry.network.SocketServer;
 import com.github.ambry.notification.NotificationSystem;
 import com.github.ambry.replication.ReplicationManager;
@@ -43,6 +46,7 @@ import com.github.ambry.utils.SystemTime;
 import com.github.ambry.utils.Time;
 import com.github.ambry.utils.Utils;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.concurrent.CountDownLatch;
 import org.slf4j.Logger;
@@ -125,9 +129,16 @@ public class AmbryServer {
       connectionPool = new BlockingChannelConnectionPool(connectionPoolConfig, sslConfig, registry);
       connectionPool.start();
 
+      NetworkClientFactory networkClientFactory = null;
+      if (replicationConfig.replicationEnableNonBlocking) {
+        SSLFactory sslFactory = sslConfig.sslEnabledDatacenters.length() > 0 ? new SSLFactory(sslConfig) : null;
+        networkClientFactory = new NetworkClientFactory(new NetworkMetrics(registry), networkConfig, sslFactory,
+            replicationConfig.replicationMaxConnectionsPerPort, replicationConfig.replicationMaxConnectionsPerPort,
+            replicationConfig.replicationConnectionPoolCheckoutTimeoutMs, time);
+      }
       replicationManager =
           new ReplicationManager(replicationConfig, sslConfig, storeConfig, storeManager, storeKeyFactory, clusterMap,
-              scheduler, nodeId, connectionPool, registry, notificationSystem);
+              scheduler, nodeId, connectionPool, registry, notificationSystem, networkClientFactory);
       replicationManager.start();
 
       ArrayList<Port> ports = new ArrayList<Port>();
@@ -148,6 +159,11 @@ public class AmbryServer {
       long processingTime = SystemTime.getInstance().milliseconds() - startTime;
       metrics.serverStartTimeInMs.update(processingTime);
       logger.info("Server startup time in Ms " + processingTime);
+      // the time from the start of the process until requests are accepted, which includes all store recovery
+      long timeToFirstServe =
+          SystemTime.getInstance().milliseconds() - ManagementFactory.getRuntimeMXBean().getStartTime();
+      metrics.serverTimeToFirstServeInMs.update(timeToFirstServe);
+      logger.info("Server time to first serve in Ms " + timeToFirstServe);
     } catch (Exception e) {
       logger.error("Error during startup", e);
       throw new InstantiationException("failure during startup " + e);
@@ -36,6 +36,9 @@ public class ErrorMapping {
     tempMap.put(StoreErrorCodes.ID_Not_Found, ServerErrorCode.Blob_Not_Found);
     tempMap.put(StoreErrorCodes.TTL_Expired, ServerErrorCode.Blob_Expired);
     tempMap.put(StoreErrorCodes.Already_Exist, ServerErrorCode.Blob_Already_Exists);
+    tempMap.put(StoreErrorCodes.Store_Unavailable, ServerErrorCode.Disk_Unavailable);
+    tempMap.put(StoreErrorCodes.Store_Read_Only, ServerErrorCode.Partition_ReadOnly);
+    tempMap.put(StoreErrorCodes.Data_Corrupt, ServerErrorCode.Data_Corrupt);
     storeErrorMapping = Collections.unmodifiableMap(tempMap);
   }
 
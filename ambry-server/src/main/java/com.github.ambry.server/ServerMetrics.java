@@ -111,6 +111,7 @@ public class ServerMetrics {
 
   public final Histogram serverStartTimeInMs;
   public final Histogram serverShutdownTimeInMs;
+  public final Histogram serverTimeToFirstServeInMs;
 
   public final Meter putBlobRequestRate;
   public final Meter getBlobRequestRate;
@@ -267,6 +268,8 @@ public class ServerMetrics {
 
     serverStartTimeInMs = registry.histogram(MetricRegistry.name(AmbryServer.class, "ServerStartTimeInMs"));
     serverShutdownTimeInMs = registry.histogram(MetricRegistry.name(AmbryServer.class, "ServerShutdownTimeInMs"));
+    serverTimeToFirstServeInMs =
+        registry.histogram(MetricRegistry.name(AmbryServer.class, "ServerTimeToFirstServeInMs"));
 
     putBlobRequestRate = registry.meter(MetricRegistry.name(AmbryRequests.class, "PutBlobRequestRate"));
     getBlobRequestRate = registry.meter(MetricRegistry.name(AmbryRequests.class, "GetBlobRequestRate"));
@@ -19,14 +19,18 @@ import com.github.ambry.config.StoreConfig;
 import com.github.ambry.utils.FileLock;
 import com.github.ambry.utils.Scheduler;
 import com.github.ambry.utils.Time;
+import com.github.ambry.utils.Utils;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +42,13 @@ public class BlobStore implements Store {
 
   private Log log;
   private PersistentIndex index;
+  private volatile BlobStoreCompactor compactor;
+  /* Puts waiting to be written as part of a batch when group commit is enabled */
+  private final ConcurrentLinkedQueue<PendingPut> pendingPuts = new ConcurrentLinkedQueue<PendingPut>();
+  /* The number of puts that have started but are not in the group commit queue yet */
+  private final AtomicInteger arrivingPuts = new AtomicInteger(0);
+  /* Notified whenever a put stops arriving, so that the puts waiting for a batch to fill up can check again */
+  private final Object groupCommitMonitor = new Object();
   private final String dataDir;
   private final Scheduler scheduler;
   private Logger logger = LoggerFactory.getLogger(getClass());
@@ -53,10 +64,44 @@ public class BlobStore implements Store {
   private MessageStoreHardDelete hardDelete;
   private StoreMetrics metrics;
   private Time time;
+  private final DiskIOScheduler ioScheduler;
+  private final DiskHealthMonitor healthMonitor;
+  private final BloomFilterBudget bloomFilterBudget;
 
   public BlobStore(String storeId, StoreConfig config, Scheduler scheduler, MetricRegistry registry, String dataDir,
       long capacityInBytes, StoreKeyFactory factory, MessageStoreRecovery recovery, MessageStoreHardDelete hardDelete,
       Time time) {
+    this(storeId, config, scheduler, registry, dataDir, capacityInBytes, factory, recovery, hardDelete, null, null,
+        null, time);
+  }
+
+  /**
+   * Creates a blob store whose I/O is coordinated with the other stores on its disk
+   * @param ioScheduler The I/O scheduler of the disk that the store is on. If this is null, the I/O of the store is
+   *                    not coordinated.
+   */
+  public BlobStore(String storeId, StoreConfig config, Scheduler scheduler, MetricRegistry registry, String dataDir,
+      long capacityInBytes, StoreKeyFactory factory, MessageStoreRecovery recovery, MessageStoreHardDelete hardDelete,
+      DiskIOScheduler ioScheduler, Time time) {
+    this(storeId, config, scheduler, registry, dataDir, capacityInBytes, factory, recovery, hardDelete, ioScheduler,
+        null, null, time);
+  }
+
+  /**
+   * Creates a blob store whose I/O is coordinated with the other stores on its disk and whose health is tracked
+   * @param ioScheduler The I/O scheduler of the disk that the store is on. If this is null, the I/O of the store is
+   *                    not coordinated.
+   * @param healthMonitor The health monitor of the disk that the store is on. If this is null, the health of the
+   *                      store is not tracked and its operations are never failed fast.
+   * @param bloomFilterBudget The budget of the node for the bloom filters of the index segments. If this is null, the
+   *                          filters of the store are always loaded.
+   */
+  public BlobStore(String storeId, StoreConfig config, Scheduler scheduler, MetricRegistry registry, String dataDir,
+      long capacityInBytes, StoreKeyFactory factory, MessageStoreRecovery recovery, MessageStoreHardDelete hardDelete,
+      DiskIOScheduler ioScheduler, DiskHealthMonitor healthMonitor, BloomFilterBudget bloomFilterBudget, Time time) {
+    this.ioScheduler = ioScheduler;
+    this.healthMonitor = healthMonitor;
+    this.bloomFilterBudget = bloomFilterBudget;
     this.metrics = new StoreMetrics(storeId, registry);
     this.dataDir = dataDir;
     this.scheduler = scheduler;
@@ -98,11 +143,21 @@ public class BlobStore implements Store {
           throw new StoreException("Failed to acquire lock on file " + dataDir +
               ". Another process or thread is using this directory.", StoreErrorCodes.Initialization_Error);
         }
-        log = new Log(dataDir, capacityInBytes, metrics);
-        index = new PersistentIndex(dataDir, scheduler, log, config, factory, recovery, hardDelete, metrics, time);
+        log = new Log(dataDir, capacityInBytes, config.storeSegmentSizeInBytes, config.storeMappedReadWindowSizeInBytes,
+            config.storeMappedReadMaxWindows, metrics, time);
+        index = new PersistentIndex(dataDir, scheduler, log, config, factory, recovery, hardDelete, metrics,
+            ioScheduler, bloomFilterBudget, time);
         // set the log end offset to the recovered offset from the index after initializing it
         log.setLogEndOffset(index.getCurrentEndOffset());
         metrics.initializeCapacityUsedMetric(log, capacityInBytes);
+        if (healthMonitor != null) {
+          healthMonitor.registerStore(dataDir);
+        }
+        if (config.storeEnableCompaction && log.isSegmented()) {
+          logger.info("Store : {} starting compaction thread", dataDir);
+          compactor = new BlobStoreCompactor(dataDir, log, index, lock, config, metrics, ioScheduler, time);
+          Utils.newThread("compaction thread " + dataDir, compactor, true).start();
+        }
         started = true;
       } catch (Exception e) {
         throw new StoreException("Error while starting store for dir " + dataDir, e,
@@ -117,7 +172,9 @@ public class BlobStore implements Store {
   public StoreInfo get(List<? extends StoreKey> ids, EnumSet<StoreGetOptions> storeGetOptions)
       throws StoreException {
     checkStarted();
+    checkHealth(false);
     // allows concurrent gets
+    boolean ioError = false;
     final Timer.Context context = metrics.getResponse.time();
     try {
       List<BlobReadOptions> readOptions = new ArrayList<BlobReadOptions>(ids.size());
@@ -137,15 +194,17 @@ public class BlobStore implements Store {
       }
       return new StoreInfo(readSet, messageInfoList);
     } catch (StoreException e) {
+      ioError = e.getErrorCode() == StoreErrorCodes.IOError;
       throw e;
     } catch (IOException e) {
+      ioError = true;
       throw new StoreException("IO error while trying to fetch blobs from store " + dataDir, e,
           StoreErrorCodes.IOError);
     } catch (Exception e) {
       throw new StoreException("Unknown exception while trying to fetch blobs from store " + dataDir, e,
           StoreErrorCodes.Unknown_Error);
     } finally {
-      context.stop();
+      onOperationCompleted(DiskIOScheduler.IOClass.Foreground_Read, context.stop(), ioError);
     }
   }
 
@@ -153,7 +212,13 @@ public class BlobStore implements Store {
   public void put(MessageWriteSet messageSetToWrite)
       throws StoreException {
     checkStarted();
+    checkHealth(true);
+    boolean ioError = false;
     final Timer.Context context = metrics.putResponse.time();
+    boolean arriving = config.storeEnableGroupCommit;
+    if (arriving) {
+      arrivingPuts.incrementAndGet();
+    }
     try {
       if (messageSetToWrite.getMessageSetInfo().size() == 0) {
         throw new IllegalArgumentException("Message write set cannot be empty");
@@ -166,6 +231,12 @@ public class BlobStore implements Store {
         }
       }
 
+      if (config.storeEnableGroupCommit) {
+        arriving = false;
+        syncIfDurable(putAsPartOfGroup(messageSetToWrite, indexEndOffsetBeforeCheck));
+        return;
+      }
+      long writeEndOffset;
       synchronized (lock) {
         // Validate that log end offset was not changed. If changed, check once again for existing
         // keys in store
@@ -184,7 +255,8 @@ public class BlobStore implements Store {
         List<MessageInfo> messageInfo = messageSetToWrite.getMessageSetInfo();
         ArrayList<IndexEntry> indexEntries = new ArrayList<IndexEntry>(messageInfo.size());
         for (MessageInfo info : messageInfo) {
-          IndexValue value = new IndexValue(info.getSize(), writeStartOffset, (byte) 0, info.getExpirationTimeInMs());
+          IndexValue value = new IndexValue(info.getSize(), writeStartOffset, (byte) 0, info.getExpirationTimeInMs(),
+              writeStartOffset, info.getRecordOffsets());
           IndexEntry entry = new IndexEntry(info.getStoreKey(), value);
           indexEntries.add(entry);
           writeStartOffset += info.getSize();
@@ -192,16 +264,207 @@ public class BlobStore implements Store {
         FileSpan fileSpan = new FileSpan(indexEntries.get(0).getValue().getOffset(), log.getLogEndOffset());
         index.addToIndex(indexEntries, fileSpan);
         logger.trace("Store : {} message set written to index ", dataDir);
+        writeEndOffset = log.getLogEndOffset();
       }
+      syncIfDurable(writeEndOffset);
     } catch (StoreException e) {
+      ioError = isStoreIOError(e);
       throw e;
+    } catch (CorruptMessageException e) {
+      // nothing was added to the log or the index for the message set
+      throw new StoreException("Corrupt message in message set put to store " + dataDir, e,
+          StoreErrorCodes.Data_Corrupt);
+    } catch (MessageSourceException e) {
+      throw new StoreException("Failed to read message set put to store " + dataDir, e, StoreErrorCodes.IOError);
     } catch (IOException e) {
+      ioError = true;
       throw new StoreException("IO error while trying to put blobs to store " + dataDir, e, StoreErrorCodes.IOError);
     } catch (Exception e) {
       throw new StoreException("Unknown error while trying to put blobs to store " + dataDir, e,
           StoreErrorCodes.Unknown_Error);
     } finally {
-      context.stop();
+      if (arriving) {
+        onPutArrived();
+      }
+      onOperationCompleted(DiskIOScheduler.IOClass.Foreground_Write, context.stop(), ioError);
+    }
+  }
+
+  /**
+   * Queues the message set and waits until it has been written as part of a batch. The thread that gets the lock
+   * first writes all the queued message sets as one contiguous append to the log followed by one update of the
+   * index. Every message set in a batch is validated on its own and an error with one only fails that put.
+   * <p/>
+   * A put only waits for others to join its batch while there are puts that have started but not been queued yet, and
+   * never for longer than the group commit window. A put that is on its own is written right away. The put must have
+   * been counted as arriving by the caller.
+   * @param messageSetToWrite The message set to write
+   * @param indexEndOffsetBeforeCheck The end offset of the index when the keys of the message set were checked
+   * @return The end offset of the log after the batch that contained the message set was written
+   * @throws StoreException
+   * @throws InterruptedException
+   */
+  private long putAsPartOfGroup(MessageWriteSet messageSetToWrite, long indexEndOffsetBeforeCheck)
+      throws StoreException, InterruptedException {
+    PendingPut pendingPut = new PendingPut(messageSetToWrite, indexEndOffsetBeforeCheck, time.milliseconds());
+    pendingPuts.add(pendingPut);
+    onPutArrived();
+    if (config.storeGroupCommitWindowMs > 0) {
+      long deadlineMs = pendingPut.queuedAtMs + config.storeGroupCommitWindowMs;
+      synchronized (groupCommitMonitor) {
+        long remainingMs;
+        while (arrivingPuts.get() > 0 && pendingPuts.size() < config.storeGroupCommitMaxBatchSize
+            && (remainingMs = deadlineMs - time.milliseconds()) > 0) {
+          time.wait(groupCommitMonitor, remainingMs);
+        }
+      }
+    }
+    long writeEndOffset;
+    synchronized (lock) {
+      // the put may already have been written as part of a batch written by another thread
+      while (!pendingPut.done) {
+        writeBatch();
+      }
+      writeEndOffset = log.getLogEndOffset();
+    }
+    if (pendingPut.exception != null) {
+      throw pendingPut.exception;
+    }
+    return writeEndOffset;
+  }
+
+  /**
+   * Records that a put is no longer on its way to the group commit queue, either because it has been queued or because
+   * it failed before it got there, and wakes up the puts that are waiting for it
+   */
+  private void onPutArrived() {
+    arrivingPuts.decrementAndGet();
+    synchronized (groupCommitMonitor) {
+      groupCommitMonitor.notifyAll();
+    }
+  }
+
+  /**
+   * Waits until the log has been synced up to the given offset if puts are only acknowledged once they are durable.
+   * The sync is shared with the other puts that are waiting for one, so that a single fsync covers all of them.
+   * @param writeEndOffset The end offset of the log after the messages of the put were written
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private void syncIfDurable(long writeEndOffset)
+      throws IOException, InterruptedException {
+    if (config.storeEnableDurablePuts) {
+      log.sync(writeEndOffset);
+    }
+  }
+
+  /**
+   * Writes the next batch of queued puts to the log and the index. Must be called with the lock held.
+   */
+  private void writeBatch() {
+    List<PendingPut> batch = new ArrayList<PendingPut>();
+    PendingPut pendingPut;
+    while (batch.size() < config.storeGroupCommitMaxBatchSize && (pendingPut = pendingPuts.poll()) != null) {
+      batch.add(pendingPut);
+    }
+    if (batch.size() == 0) {
+      return;
+    }
+    metrics.groupCommitBatchSize.update(batch.size());
+    metrics.groupCommitWaitTimeInMs.update(time.milliseconds() - batch.get(0).queuedAtMs);
+    List<PendingPut> written = new ArrayList<PendingPut>(batch.size());
+    ArrayList<IndexEntry> indexEntries = new ArrayList<IndexEntry>();
+    Set<StoreKey> keysInBatch = new HashSet<StoreKey>();
+    long currentIndexEndOffset = index.getCurrentEndOffset();
+    StoreException writeException = null;
+    for (PendingPut put : batch) {
+      if (writeException != null) {
+        put.exception = writeException;
+        continue;
+      }
+      List<MessageInfo> messageInfo = put.messageSet.getMessageSetInfo();
+      try {
+        // Validate that log end offset was not changed. If changed, check once again for existing keys in store.
+        // Keys written earlier in this batch are not in the index yet and are checked separately.
+        FileSpan fileSpan = null;
+        if (currentIndexEndOffset != put.indexEndOffsetBeforeCheck) {
+          fileSpan = new FileSpan(put.indexEndOffsetBeforeCheck, currentIndexEndOffset);
+        }
+        for (MessageInfo info : messageInfo) {
+          if (keysInBatch.contains(info.getStoreKey()) || (fileSpan != null
+              && index.findKey(info.getStoreKey(), fileSpan) != null)) {
+            throw new StoreException("Key already exists on filespan check", StoreErrorCodes.Already_Exist);
+          }
+        }
+      } catch (StoreException e) {
+        put.exception = e;
+        continue;
+      }
+      long writeStartOffset = log.getLogEndOffset();
+      try {
+        put.messageSet.writeTo(log);
+      } catch (CorruptMessageException e) {
+        if (log.getLogEndOffset() == writeStartOffset) {
+          // the log end offset did not move, so the puts that follow can still be written
+          put.exception = new StoreException("Corrupt message in message set put to store " + dataDir, e,
+              StoreErrorCodes.Data_Corrupt);
+          continue;
+        }
+        writeException =
+            new StoreException("IO error while trying to put blobs to store " + dataDir, e, StoreErrorCodes.IOError);
+      } catch (MessageSourceException e) {
+        StoreException exception =
+            new StoreException("Failed to read message set put to store " + dataDir, e, StoreErrorCodes.IOError);
+        if (log.getLogEndOffset() == writeStartOffset) {
+          put.exception = exception;
+          continue;
+        }
+        writeException = exception;
+      } catch (IOException e) {
+        writeException =
+            new StoreException("IO error while trying to put blobs to store " + dataDir, e, StoreErrorCodes.IOError);
+      } catch (Exception e) {
+        writeException = new StoreException("Unknown error while trying to put blobs to store " + dataDir, e,
+            StoreErrorCodes.Unknown_Error);
+      }
+      if (writeException != null) {
+        // the log end offset is no longer known to be at a message boundary, so none of the remaining puts can
+        // be written after this one
+        put.exception = writeException;
+        continue;
+      }
+      // the infos are looked up again as writing a message set may fill in the record offsets of its messages
+      for (MessageInfo info : put.messageSet.getMessageSetInfo()) {
+        IndexValue value = new IndexValue(info.getSize(), writeStartOffset, (byte) 0, info.getExpirationTimeInMs(),
+            writeStartOffset, info.getRecordOffsets());
+        indexEntries.add(new IndexEntry(info.getStoreKey(), value));
+        keysInBatch.add(info.getStoreKey());
+        writeStartOffset += info.getSize();
+      }
+      written.add(put);
+    }
+    logger.trace("Store : {} batch of {} message sets written to log", dataDir, written.size());
+    if (indexEntries.size() > 0) {
+      IndexValue lastValue = indexEntries.get(indexEntries.size() - 1).getValue();
+      FileSpan fileSpan =
+          new FileSpan(indexEntries.get(0).getValue().getOffset(), lastValue.getOffset() + lastValue.getSize());
+      try {
+        index.addToIndex(indexEntries, fileSpan);
+        logger.trace("Store : {} batch of {} message sets written to index ", dataDir, written.size());
+      } catch (StoreException e) {
+        for (PendingPut put : written) {
+          put.exception = e;
+        }
+      } catch (Exception e) {
+        StoreException exception = new StoreException("Unknown error while trying to put blobs to store " + dataDir,
+            e, StoreErrorCodes.Unknown_Error);
+        for (PendingPut put : written) {
+          put.exception = exception;
+        }
+      }
+    }
+    for (PendingPut put : batch) {
+      put.done = true;
     }
   }
 
@@ -209,6 +472,8 @@ public class BlobStore implements Store {
   public void delete(MessageWriteSet messageSetToDelete)
       throws StoreException {
     checkStarted();
+    checkHealth(true);
+    boolean ioError = false;
     final Timer.Context context = metrics.deleteResponse.time();
     try {
       List<MessageInfo> infoList = messageSetToDelete.getMessageSetInfo();
@@ -248,15 +513,17 @@ public class BlobStore implements Store {
         logger.trace("Store : {} delete has been marked in the index ", dataDir);
       }
     } catch (StoreException e) {
+      ioError = e.getErrorCode() == StoreErrorCodes.IOError;
       throw e;
     } catch (IOException e) {
+      ioError = true;
       throw new StoreException("IO error while trying to delete blobs from store " + dataDir, e,
           StoreErrorCodes.IOError);
     } catch (Exception e) {
       throw new StoreException("Unknown error while trying to delete blobs from store " + dataDir, e,
           StoreErrorCodes.Unknown_Error);
     } finally {
-      context.stop();
+      onOperationCompleted(DiskIOScheduler.IOClass.Foreground_Write, context.stop(), ioError);
     }
   }
 
@@ -264,6 +531,7 @@ public class BlobStore implements Store {
   public FindInfo findEntriesSince(FindToken token, long maxTotalSizeOfEntries)
       throws StoreException {
     checkStarted();
+    checkHealth(false);
     final Timer.Context context = metrics.findEntriesSinceResponse.time();
     try {
       return index.findEntriesSince(token, maxTotalSizeOfEntries);
@@ -276,6 +544,7 @@ public class BlobStore implements Store {
   public Set<StoreKey> findMissingKeys(List<StoreKey> keys)
       throws StoreException {
     checkStarted();
+    checkHealth(false);
     final Timer.Context context = metrics.findMissingKeysResponse.time();
     try {
       return index.findMissingKeys(keys);
@@ -288,6 +557,7 @@ public class BlobStore implements Store {
   public boolean isKeyDeleted(StoreKey key)
       throws StoreException {
     checkStarted();
+    checkHealth(false);
     final Timer.Context context = metrics.isKeyDeletedResponse.time();
     try {
       IndexValue value = index.findKey(key);
@@ -306,15 +576,32 @@ public class BlobStore implements Store {
     return log.getLogEndOffset();
   }
 
+  /**
+   * @return The stats of the blobs in the store, or null if stats are not kept
+   */
+  public BlobStoreStats getStats() {
+    return index == null ? null : index.getStats();
+  }
+
   @Override
   public void shutdown()
       throws StoreException {
+    // the compactor needs the lock to finish relocating a blob, so it has to be stopped before the lock is taken
+    BlobStoreCompactor compactorToStop = compactor;
+    if (compactorToStop != null) {
+      try {
+        compactorToStop.shutDown();
+      } catch (InterruptedException e) {
+        logger.error("Store : " + dataDir + " interrupted while waiting for compaction to stop", e);
+      }
+    }
     synchronized (lock) {
       checkStarted();
       try {
         logger.info("Store : " + dataDir + " shutting down");
         index.close();
         log.close();
+        compactor = null;
         started = false;
       } catch (Exception e) {
         logger.error("Store : " + dataDir + " shutdown of store failed for directory ", e);
@@ -328,10 +615,63 @@ public class BlobStore implements Store {
     }
   }
 
+  /**
+   * @param e The exception that an operation on the store failed with
+   * @return true if the operation failed because the store could not do I/O, rather than because the messages written
+   * to the store could not be read from where they come from
+   */
+  private static boolean isStoreIOError(StoreException e) {
+    return e.getErrorCode() == StoreErrorCodes.IOError && !(e.getCause() instanceof MessageSourceException);
+  }
+
+  /**
+   * Reports the latency of a foreground operation to the I/O scheduler of the disk, if there is one
+   * @param ioClass The class of the operation
+   * @param latencyNs The time the operation took
+   */
+  private void onOperationCompleted(DiskIOScheduler.IOClass ioClass, long latencyNs, boolean ioError) {
+    if (ioScheduler != null) {
+      ioScheduler.onForegroundIOCompleted(ioClass, latencyNs / Time.NsPerMs);
+    }
+    if (healthMonitor != null) {
+      healthMonitor.onOperationCompleted(dataDir, ioError, latencyNs / Time.NsPerMs);
+    }
+  }
+
+  /**
+   * Fails fast if the store or its disk is not healthy enough for an operation
+   * @param write Whether the operation writes to the store
+   * @throws StoreException
+   */
+  private void checkHealth(boolean write)
+      throws StoreException {
+    if (healthMonitor != null) {
+      healthMonitor.checkAvailable(dataDir, write);
+    }
+  }
+
   private void checkStarted()
       throws StoreException {
     if (!started) {
       throw new StoreException("Store not started", StoreErrorCodes.Store_Not_Started);
     }
   }
+
+  /**
+   * A put that is waiting to be written as part of a batch
+   */
+  private static class PendingPut {
+    final MessageWriteSet messageSet;
+    final long indexEndOffsetBeforeCheck;
+    final long queuedAtMs;
+    // written and read with the store lock held
+    boolean done = false;
+    StoreException exception = null;
+
+    PendingPut(MessageWriteSet messageSet, long indexEndOffsetBeforeCheck, long queuedAtMs) {
+      this.messageSet = messageSet;
+      this.indexEndOffsetBeforeCheck = indexEndOffsetBeforeCheck;
+      this.queuedAtMs = queuedAtMs;
+    }
+  }
 }
@@ -0,0 +1,309 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import com.codahale.metrics.Timer;
+import com.github.ambry.config.StoreConfig;
+import com.github.ambry.utils.Throttler;
+import com.github.ambry.utils.Time;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Reclaims the space held by deleted and expired blobs in a segmented log. The compactor picks the oldest log segment
+ * whose fraction of live data is below the configured threshold, copies the live blobs and the latest delete records
+ * in it to the end of the log, points the index at the new copies and then frees the segment. A freed segment is
+ * retired and its file is only deleted once no read holds a reference to it and at least a grace period has passed,
+ * so that reads that were already in flight against it can complete. Index segments that only cover freed log are
+ * dropped.
+ * <p/>
+ * A segment that holds the put record of a deleted blob that may still be read, because the delete is within the
+ * retention period or has not been processed by the hard delete thread yet, is not compacted until it can no longer
+ * be read.
+ * <p/>
+ * If the index tracks when blobs expire, the segments that hold blobs that have expired are looked at before the
+ * others, so that the space held by expired blobs comes back soon after they expire. Such a segment stays ahead of the
+ * others until it has been looked at and found to have too much live data, or has been compacted.
+ */
+class BlobStoreCompactor implements Runnable {
+  // the least time a retired segment is kept around before its file is deleted, even if no read holds it
+  static final long Retired_Segment_Grace_Period_Ms = 10 * Time.SecsPerMin * Time.MsPerSec;
+  // how long to wait before looking for a segment to compact if the last cycle found nothing to do
+  private static final long Sleep_Time_When_Idle_Ms = Time.SecsPerMin * Time.MsPerSec;
+  private static final long Throttler_Check_Interval_Ms = 10;
+
+  private final String dataDir;
+  private final Log log;
+  private final PersistentIndex index;
+  private final Object writeLock;
+  private final StoreConfig config;
+  private final StoreMetrics metrics;
+  private final Time time;
+  private final Throttler throttler;
+  private final DiskIOScheduler ioScheduler;
+  private final CountDownLatch shutdownLatch = new CountDownLatch(1);
+  private final AtomicBoolean running = new AtomicBoolean(true);
+  // the start offset of a segment to the size of the blobs in it that are known to have expired
+  private final Map<Long, Long> expiredBytesBySegment = new HashMap<Long, Long>();
+  private final Set<Long> segmentsWithExpiredBlobs = new LinkedHashSet<Long>();
+  private Logger logger = LoggerFactory.getLogger(getClass());
+
+  /**
+   * Creates a compactor for a store
+   * @param dataDir The data directory of the store
+   * @param log The segmented log of the store
+   * @param index The index of the store
+   * @param writeLock The lock that the store holds while writing to the log and the index
+   * @param config The store config
+   * @param metrics The store metrics
+   * @param ioScheduler The I/O scheduler of the disk that the store is on, or null if there is none
+   * @param time The time instance to use
+   */
+  BlobStoreCompactor(String dataDir, Log log, PersistentIndex index, Object writeLock, StoreConfig config,
+      StoreMetrics metrics, DiskIOScheduler ioScheduler, Time time) {
+    if (!log.isSegmented()) {
+      throw new IllegalArgumentException("Compaction requires a segmented log for store " + dataDir);
+    }
+    this.dataDir = dataDir;
+    this.log = log;
+    this.index = index;
+    this.writeLock = writeLock;
+    this.config = config;
+    this.metrics = metrics;
+    this.ioScheduler = ioScheduler;
+    this.time = time;
+    this.throttler =
+        new Throttler(config.storeCompactionBytesPerSec, Throttler_Check_Interval_Ms, true, time);
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running.get()) {
+        try {
+          boolean compacted = compact();
+          if (!compacted) {
+            synchronized (this) {
+              if (!running.get()) {
+                break;
+              }
+              time.wait(this, Sleep_Time_When_Idle_Ms);
+            }
+          }
+        } catch (StoreException e) {
+          if (e.getErrorCode() != StoreErrorCodes.Store_Shutting_Down) {
+            metrics.compactionExceptionsCount.inc();
+            logger.error("Compactor : {} caught store exception during compaction ", dataDir, e);
+          } else {
+            logger.trace("Compactor : {} caught exception during compaction ", dataDir, e);
+          }
+        } catch (IOException e) {
+          metrics.compactionExceptionsCount.inc();
+          logger.error("Compactor : {} caught io exception during compaction ", dataDir, e);
+        } catch (InterruptedException e) {
+          logger.trace("Compactor : {} caught exception during compaction ", dataDir, e);
+        }
+      }
+    } finally {
+      running.set(false);
+      shutdownLatch.countDown();
+    }
+  }
+
+  /**
+   * Runs one compaction cycle. Retired segments whose grace period has elapsed and that are no longer read are
+   * deleted and then, if a segment qualifies for compaction, its live blobs are relocated and the segment is freed.
+   * @return true if a segment was compacted, false if there was nothing to compact
+   * @throws StoreException
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  boolean compact()
+      throws StoreException, IOException, InterruptedException {
+    int deleted = log.deleteRetiredSegments(time.milliseconds(), Retired_Segment_Grace_Period_Ms);
+    if (deleted > 0) {
+      logger.info("Compactor : {} deleted {} retired segments", dataDir, deleted);
+    }
+    List<Long> segmentStartOffsets = log.getSegmentStartOffsets();
+    long segmentCapacity = log.getSegmentCapacityInBytes();
+    trackExpiredBlobs(segmentStartOffsets, segmentCapacity);
+    // segments that have not yet been processed by the hard delete thread cannot be freed since it may still need to
+    // read the records in them
+    long compactableEndOffset = log.getLogEndOffset();
+    if (index.hardDeleteThreadRunning()) {
+      compactableEndOffset = Math.min(compactableEndOffset, index.getHardDeleteProgress());
+    }
+    // the last segment is still being written to and is never compacted
+    long lastSegmentStartOffset = segmentStartOffsets.get(segmentStartOffsets.size() - 1);
+    Set<Long> candidates = new LinkedHashSet<Long>(segmentsWithExpiredBlobs);
+    candidates.addAll(segmentStartOffsets);
+    for (long startOffset : candidates) {
+      if (!running.get()) {
+        break;
+      }
+      long endOffset = startOffset + segmentCapacity;
+      if (startOffset >= lastSegmentStartOffset || endOffset > compactableEndOffset) {
+        continue;
+      }
+      List<IndexEntry> liveEntries = index.getLiveEntriesInRange(startOffset, endOffset);
+      if (liveEntries == null) {
+        continue;
+      }
+      long liveBytes = 0;
+      for (IndexEntry entry : liveEntries) {
+        liveBytes += entry.getValue().getSize();
+      }
+      segmentsWithExpiredBlobs.remove(startOffset);
+      if ((double) liveBytes / segmentCapacity <= config.storeCompactionMaxLiveRatio) {
+        compactSegment(startOffset, liveEntries);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the blobs that expired since the last cycle from the index and remembers the segments that hold them. The
+   * segments that are no longer in the log are forgotten.
+   * @param segmentStartOffsets The start offsets of the segments of the log, in order
+   * @param segmentCapacity The capacity of a segment
+   */
+  private void trackExpiredBlobs(List<Long> segmentStartOffsets, long segmentCapacity) {
+    Set<Long> liveSegmentStartOffsets = new HashSet<Long>(segmentStartOffsets);
+    expiredBytesBySegment.keySet().retainAll(liveSegmentStartOffsets);
+    segmentsWithExpiredBlobs.retainAll(liveSegmentStartOffsets);
+    for (IndexEntry entry : index.pollExpiredEntries(time.milliseconds())) {
+      long offset = entry.getValue().getOffset();
+      int position = Collections.binarySearch(segmentStartOffsets, offset);
+      if (position < 0) {
+        position = -position - 2;
+      }
+      if (position < 0 || offset >= segmentStartOffsets.get(position) + segmentCapacity) {
+        // the segment that held the blob has already been freed
+        continue;
+      }
+      long segmentStartOffset = segmentStartOffsets.get(position);
+      Long expiredBytes = expiredBytesBySegment.get(segmentStartOffset);
+      long size = entry.getValue().getSize();
+      expiredBytesBySegment.put(segmentStartOffset, expiredBytes == null ? size : expiredBytes + size);
+      segmentsWithExpiredBlobs.add(segmentStartOffset);
+    }
+  }
+
+  /**
+   * Relocates the given live blobs to the end of the log and frees the segment that starts at the given offset.
+   * @param startOffset The start offset of the segment to free
+   * @param liveEntries The index entries of the live blobs in the segment
+   */
+  private void compactSegment(long startOffset, List<IndexEntry> liveEntries)
+      throws StoreException, IOException, InterruptedException {
+    final Timer.Context context = metrics.compactionTime.time();
+    try {
+      logger.info("Compactor : {} compacting segment at {} with {} live records", dataDir, startOffset,
+          liveEntries.size());
+      long endOffset = startOffset + log.getSegmentCapacityInBytes();
+      index.startRelocation(startOffset, endOffset);
+      for (IndexEntry entry : liveEntries) {
+        if (!running.get()) {
+          throw new StoreException("Aborting compaction as store is shutting down",
+              StoreErrorCodes.Store_Shutting_Down);
+        }
+        relocate(entry);
+        throttler.maybeThrottle(entry.getValue().getSize());
+      }
+      // the new copies have to be durable before the space of the old ones can be given away
+      index.persistIndex();
+      index.endRelocation();
+      log.freeSegment(startOffset, time.milliseconds());
+      BlobStoreStats stats = index.getStats();
+      if (stats != null) {
+        stats.onRangeFreed(startOffset, endOffset);
+      }
+      int segmentsDropped = index.dropSegmentsBefore(log.getStartOffset());
+      if (segmentsDropped > 0) {
+        logger.info("Compactor : {} dropped {} index segments", dataDir, segmentsDropped);
+      }
+      metrics.compactionSegmentsFreed.inc();
+      Long expiredBytes = expiredBytesBySegment.remove(startOffset);
+      if (expiredBytes != null) {
+        metrics.compactionExpiredBytesReclaimed.inc(expiredBytes);
+      }
+    } finally {
+      context.stop();
+    }
+  }
+
+  /**
+   * Copies a live blob or the latest delete record of a blob to the end of the log and updates the index to point to
+   * the copy. The record is read without holding the write lock and is only written if it is still the latest record
+   * of its blob.
+   * @param entry The index entry of the record to relocate
+   */
+  private void relocate(IndexEntry entry)
+      throws StoreException, IOException, InterruptedException {
+    IndexValue value = entry.getValue();
+    if (ioScheduler != null) {
+      // the blob is read once and written once
+      ioScheduler.acquire(DiskIOScheduler.IOClass.Background, 2 * value.getSize());
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) value.getSize());
+    log.readInto(buffer, value.getOffset());
+    buffer.flip();
+    synchronized (writeLock) {
+      IndexValue latestValue = index.findKey(entry.getKey());
+      boolean isDelete = value.isFlagSet(IndexValue.Flags.Delete_Index);
+      if (latestValue == null || latestValue.isFlagSet(IndexValue.Flags.Delete_Index) != isDelete
+          || latestValue.getOffset() != value.getOffset()) {
+        logger.trace("Compactor : {} skipping relocation of {} as it changed", dataDir, entry.getKey());
+        return;
+      }
+      long newOffset = log.getLogEndOffset();
+      log.appendFrom(buffer);
+      // a copied delete record still refers to the put record of the blob
+      IndexValue newValue =
+          new IndexValue(value.getSize(), newOffset, latestValue.getFlags(), latestValue.getTimeToLiveInMs(),
+              isDelete ? latestValue.getOriginalMessageOffset() : newOffset, latestValue.getRecordOffsets());
+      index.addToIndex(new IndexEntry(entry.getKey(), newValue), new FileSpan(newOffset, log.getLogEndOffset()));
+    }
+    metrics.compactionBytesRelocated.inc(value.getSize());
+  }
+
+  /**
+   * Stops the compactor and waits for an ongoing compaction cycle to finish
+   * @throws InterruptedException
+   */
+  void shutDown()
+      throws InterruptedException {
+    if (running.get()) {
+      running.set(false);
+      synchronized (this) {
+        notify();
+      }
+      throttler.close();
+      shutdownLatch.await();
+    }
+  }
+}
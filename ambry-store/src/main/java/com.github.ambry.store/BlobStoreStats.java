@@ -0,0 +1,244 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import com.github.ambry.utils.Time;
+import com.github.ambry.utils.Utils;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+
+/**
+ * Statistics of the blobs of a store, kept up to date as the index of the store changes so that they never require a
+ * scan of the index or the log. The put records of the blobs are counted as live, expired or deleted, and grouped
+ * into buckets by the range of the log they are in. Since the log is only ever appended to, buckets that cover older
+ * ranges of the log hold older data.
+ * <p/>
+ * A put record is live if its blob is neither deleted nor expired, expired if its blob is not deleted but its ttl has
+ * passed and deleted if its blob has been deleted. Copies of put records that have been replaced by a newer copy of
+ * the same blob and the records of deletes are not counted.
+ */
+public class BlobStoreStats {
+  // expiring blobs are grouped by the minute in which they expire
+  private static final long Expiry_Granularity_Ms = Time.SecsPerMin * Time.MsPerSec;
+
+  private final long bucketSizeInBytes;
+  private final Time time;
+  // the start offset of a bucket to the records in the bucket
+  private final TreeMap<Long, Bucket> buckets = new TreeMap<Long, Bucket>();
+
+  /**
+   * @param bucketSizeInBytes The size of the range of the log covered by a bucket
+   * @param time The time instance used to decide which blobs have expired
+   */
+  BlobStoreStats(long bucketSizeInBytes, Time time) {
+    if (bucketSizeInBytes <= 0) {
+      throw new IllegalArgumentException("Bucket size has to be positive : " + bucketSizeInBytes);
+    }
+    this.bucketSizeInBytes = bucketSizeInBytes;
+    this.time = time;
+  }
+
+  /**
+   * @return The size of the range of the log covered by a bucket
+   */
+  public long getBucketSizeInBytes() {
+    return bucketSizeInBytes;
+  }
+
+  /**
+   * @return The stats of the whole store
+   */
+  public synchronized Counts getTotalCounts() {
+    long timeInMs = time.milliseconds();
+    Counts total = new Counts();
+    for (Bucket bucket : buckets.values()) {
+      total.add(bucket.getCounts(timeInMs));
+    }
+    return total;
+  }
+
+  /**
+   * @return The stats of every range of the log that holds any blobs, by the start offset of the range
+   */
+  public synchronized SortedMap<Long, Counts> getCountsByBucket() {
+    long timeInMs = time.milliseconds();
+    SortedMap<Long, Counts> countsByBucket = new TreeMap<Long, Counts>();
+    for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+      countsByBucket.put(entry.getKey(), entry.getValue().getCounts(timeInMs));
+    }
+    return countsByBucket;
+  }
+
+  /**
+   * Counts a put record that is now the latest record of its blob
+   * @param value The index value of the put record
+   */
+  synchronized void onPut(IndexValue value) {
+    long startOffset = getBucketStartOffset(value.getOffset());
+    Bucket bucket = buckets.get(startOffset);
+    if (bucket == null) {
+      bucket = new Bucket();
+      buckets.put(startOffset, bucket);
+    }
+    bucket.addLive(value.getSize(), value.getTimeToLiveInMs(), 1);
+  }
+
+  /**
+   * Stops counting a put record as live because its blob was deleted
+   * @param value The index value of the put record that was deleted
+   */
+  synchronized void onDelete(IndexValue value) {
+    Bucket bucket = buckets.get(getBucketStartOffset(value.getOffset()));
+    if (bucket != null) {
+      bucket.addLive(value.getSize(), value.getTimeToLiveInMs(), -1);
+      bucket.deletedBytes += value.getSize();
+      bucket.deletedCount++;
+    }
+  }
+
+  /**
+   * Stops counting a put record because a newer copy of its blob was written
+   * @param value The index value of the put record that was replaced
+   */
+  synchronized void onReplace(IndexValue value) {
+    Bucket bucket = buckets.get(getBucketStartOffset(value.getOffset()));
+    if (bucket != null) {
+      bucket.addLive(value.getSize(), value.getTimeToLiveInMs(), -1);
+    }
+  }
+
+  /**
+   * Counts a put record of a blob that had already been deleted when the stats were built
+   * @param value The index value of the put record
+   */
+  synchronized void onDeletedPut(IndexValue value) {
+    onPut(value);
+    onDelete(value);
+  }
+
+  /**
+   * Stops counting the records in a range of the log whose space has been reclaimed
+   * @param startOffset The start offset (inclusive) of the range
+   * @param endOffset The end offset (exclusive) of the range
+   */
+  synchronized void onRangeFreed(long startOffset, long endOffset) {
+    buckets.subMap(startOffset, true, endOffset, false).clear();
+  }
+
+  private long getBucketStartOffset(long offset) {
+    return offset - offset % bucketSizeInBytes;
+  }
+
+  /**
+   * The number and the total size of the live, expired and deleted put records in a part of a store
+   */
+  public static class Counts {
+    private long liveBytes = 0;
+    private long liveCount = 0;
+    private long expiredBytes = 0;
+    private long expiredCount = 0;
+    private long deletedBytes = 0;
+    private long deletedCount = 0;
+
+    public long getLiveBytes() {
+      return liveBytes;
+    }
+
+    public long getLiveCount() {
+      return liveCount;
+    }
+
+    public long getExpiredBytes() {
+      return expiredBytes;
+    }
+
+    public long getExpiredCount() {
+      return expiredCount;
+    }
+
+    public long getDeletedBytes() {
+      return deletedBytes;
+    }
+
+    public long getDeletedCount() {
+      return deletedCount;
+    }
+
+    private void add(Counts counts) {
+      liveBytes += counts.liveBytes;
+      liveCount += counts.liveCount;
+      expiredBytes += counts.expiredBytes;
+      expiredCount += counts.expiredCount;
+      deletedBytes += counts.deletedBytes;
+      deletedCount += counts.deletedCount;
+    }
+
+    @Override
+    public String toString() {
+      return "[liveBytes=" + liveBytes + ", liveCount=" + liveCount + ", expiredBytes=" + expiredBytes
+          + ", expiredCount=" + expiredCount + ", deletedBytes=" + deletedBytes + ", deletedCount=" + deletedCount
+          + "]";
+    }
+  }
+
+  /**
+   * The records in a range of the log. Live records that have a ttl are also tracked by the time at which they expire
+   * so that the expired ones can be told apart from the live ones at any time.
+   */
+  private static class Bucket {
+    private long liveBytes = 0;
+    private long liveCount = 0;
+    private long deletedBytes = 0;
+    private long deletedCount = 0;
+    // the time by which the blobs have expired to the total size and the number of the blobs
+    private final TreeMap<Long, long[]> expiringRecords = new TreeMap<Long, long[]>();
+
+    /**
+     * Adds a live record to the bucket, or removes one if count is negative
+     */
+    void addLive(long size, long timeToLiveInMs, int count) {
+      liveBytes += count * size;
+      liveCount += count;
+      if (timeToLiveInMs == Utils.Infinite_Time) {
+        return;
+      }
+      long expiredByTimeInMs = timeToLiveInMs - timeToLiveInMs % Expiry_Granularity_Ms + Expiry_Granularity_Ms;
+      long[] expiring = expiringRecords.get(expiredByTimeInMs);
+      if (expiring == null) {
+        expiring = new long[2];
+        expiringRecords.put(expiredByTimeInMs, expiring);
+      }
+      expiring[0] += count * size;
+      expiring[1] += count;
+      if (expiring[1] == 0) {
+        expiringRecords.remove(expiredByTimeInMs);
+      }
+    }
+
+    Counts getCounts(long timeInMs) {
+      Counts counts = new Counts();
+      for (long[] expired : expiringRecords.headMap(timeInMs, true).values()) {
+        counts.expiredBytes += expired[0];
+        counts.expiredCount += expired[1];
+      }
+      counts.liveBytes = liveBytes - counts.expiredBytes;
+      counts.liveCount = liveCount - counts.expiredCount;
+      counts.deletedBytes = deletedBytes;
+      counts.deletedCount = deletedCount;
+      return counts;
+    }
+  }
+}
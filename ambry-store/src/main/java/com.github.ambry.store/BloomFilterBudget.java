@@ -0,0 +1,206 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.github.ambry.utils.Utils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Bounds the memory held by the bloom filters of the sealed index segments of all the stores on a node. Segments
+ * report every filter they load and, once the filters take more than the budget, the filters of the segments that
+ * were looked up the least since the last time filters were dropped are dropped. The filters of regular bloom filters
+ * are on the heap, while those of blocked bloom filters are off heap, and both count against the budget. A dropped
+ * filter is loaded again from its bloom file by a thread of the budget once the segment is next looked up.
+ */
+public class BloomFilterBudget {
+  private final long maxBytes;
+  // the segments whose filters are loaded to the filters that they loaded
+  private final Map<IndexSegment, LoadedFilter> loadedFilters = new HashMap<IndexSegment, LoadedFilter>();
+  private long heapBytesInUse = 0;
+  private long offHeapBytesInUse = 0;
+  private final ExecutorService loadExecutor;
+  private final Counter filtersDropped;
+
+  /**
+   * @param maxBytes The max number of bytes that the loaded filters can take
+   * @param registry The registry to register the metrics of the budget with
+   */
+  public BloomFilterBudget(long maxBytes, MetricRegistry registry) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Bloom filter budget has to be positive : " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+    loadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        return Utils.newThread("bloom-filter-loader", runnable, true);
+      }
+    });
+    filtersDropped = registry.counter(MetricRegistry.name(BloomFilterBudget.class, "BloomFiltersDropped"));
+    registry.register(MetricRegistry.name(BloomFilterBudget.class, "BloomFilterHeapBytesInUse"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return getHeapBytesInUse();
+      }
+    });
+    registry.register(MetricRegistry.name(BloomFilterBudget.class, "BloomFilterOffHeapBytesInUse"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return getOffHeapBytesInUse();
+      }
+    });
+  }
+
+  /**
+   * Counts the filter that a segment loaded against the budget and drops the filters of the coldest other segments
+   * if the budget is exceeded. The filters are dropped after the budget is released, so that a segment can report a
+   * filter while holding its own locks.
+   * @param segment The segment that loaded its filter
+   * @param sizeInBytes The size of the filter
+   * @param offHeap Whether the bits of the filter are off heap
+   */
+  void onLoaded(IndexSegment segment, long sizeInBytes, boolean offHeap) {
+    List<IndexSegment> segmentsToDrop = new ArrayList<IndexSegment>();
+    synchronized (this) {
+      release(loadedFilters.put(segment, new LoadedFilter(segment, sizeInBytes, offHeap)));
+      if (offHeap) {
+        offHeapBytesInUse += sizeInBytes;
+      } else {
+        heapBytesInUse += sizeInBytes;
+      }
+      if (getBytesInUse() > maxBytes && loadedFilters.size() > 1) {
+        // the lookups are taken once, since they keep changing, and the filters are dropped from the coldest
+        LoadedFilter[] candidates = new LoadedFilter[loadedFilters.size() - 1];
+        int numCandidates = 0;
+        for (LoadedFilter loaded : loadedFilters.values()) {
+          if (loaded.segment != segment) {
+            loaded.lookups = loaded.segment.getBloomFilterLookups();
+            candidates[numCandidates++] = loaded;
+          }
+        }
+        Arrays.sort(candidates);
+        for (int i = 0; i < candidates.length && getBytesInUse() > maxBytes; i++) {
+          release(loadedFilters.remove(candidates[i].segment));
+          segmentsToDrop.add(candidates[i].segment);
+        }
+        // the segments that stay are judged on their lookups from now on
+        for (IndexSegment loaded : loadedFilters.keySet()) {
+          loaded.resetBloomFilterLookups();
+        }
+      }
+    }
+    for (IndexSegment segmentToDrop : segmentsToDrop) {
+      segmentToDrop.dropBloomFilter();
+    }
+    filtersDropped.inc(segmentsToDrop.size());
+  }
+
+  /**
+   * Loads the dropped filter of a segment again on a thread of the budget
+   * @param segment The segment whose filter has to be loaded
+   */
+  void scheduleLoad(final IndexSegment segment) {
+    try {
+      loadExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          segment.reloadBloomFilter();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the budget is closed and the segment stays without a filter
+    }
+  }
+
+  /**
+   * Stops counting the filter of a segment that is no longer used against the budget
+   * @param segment The segment
+   */
+  synchronized void remove(IndexSegment segment) {
+    release(loadedFilters.remove(segment));
+  }
+
+  /**
+   * Stops loading filters. Segments whose filters were dropped are searched without them from now on.
+   */
+  public void close() {
+    loadExecutor.shutdownNow();
+  }
+
+  /**
+   * @return The number of bytes taken by the loaded filters
+   */
+  synchronized long getBytesInUse() {
+    return heapBytesInUse + offHeapBytesInUse;
+  }
+
+  /**
+   * @return The number of bytes taken by the loaded filters whose bits are on the heap
+   */
+  synchronized long getHeapBytesInUse() {
+    return heapBytesInUse;
+  }
+
+  /**
+   * @return The number of bytes taken by the loaded filters whose bits are off heap
+   */
+  synchronized long getOffHeapBytesInUse() {
+    return offHeapBytesInUse;
+  }
+
+  private void release(LoadedFilter loaded) {
+    if (loaded == null) {
+      return;
+    }
+    if (loaded.offHeap) {
+      offHeapBytesInUse -= loaded.sizeInBytes;
+    } else {
+      heapBytesInUse -= loaded.sizeInBytes;
+    }
+  }
+
+  /**
+   * A filter that is counted against the budget, ordered by the lookups of its segment when filters were last picked
+   * to be dropped
+   */
+  private static class LoadedFilter implements Comparable<LoadedFilter> {
+    final IndexSegment segment;
+    final long sizeInBytes;
+    final boolean offHeap;
+    long lookups = 0;
+
+    LoadedFilter(IndexSegment segment, long sizeInBytes, boolean offHeap) {
+      this.segment = segment;
+      this.sizeInBytes = sizeInBytes;
+      this.offHeap = offHeap;
+    }
+
+    @Override
+    public int compareTo(LoadedFilter other) {
+      return lookups < other.lookups ? -1 : (lookups == other.lookups ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,365 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.github.ambry.config.StoreConfig;
+import com.github.ambry.utils.Time;
+import com.github.ambry.utils.Utils;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Tracks the health of a disk and of every store on it from the I/O errors and the latency of their operations.
+ * <p/>
+ * The operations of a store count towards the health of the store and of its disk. Once enough operations were seen
+ * in the current window, a store or a disk goes {@link HealthState#Offline} if too many of them failed with I/O
+ * errors, and {@link HealthState#Read_Only} if too many of them were slow. A store is as unhealthy as the worse of
+ * its own state and the state of its disk, so a failing disk takes all its stores out of service, including the ones
+ * that have not seen any errors yet. Operations on a store that is not healthy fail fast instead of waiting on the
+ * disk.
+ * <p/>
+ * A store or a disk that is not healthy is recovered by probes, which write, sync and read back a small file in its
+ * directory. It is healthy again after a configured number of probes in a row succeed without being slow. The file
+ * I/O of the probes runs on a thread of the monitor and a probe that does not complete in time counts as failed, so
+ * that a hung disk cannot hold up the caller. No other probe is started on the disk while one is still hung.
+ */
+public class DiskHealthMonitor {
+  /**
+   * The health states of a store or a disk, from the healthiest to the least healthy
+   */
+  public enum HealthState {
+    Healthy, Read_Only, Offline
+  }
+
+  private static final String Probe_File_Name = ".health_probe";
+  private static final int Probe_Size_In_Bytes = 4096;
+
+  private final String mountPath;
+  private final StoreConfig config;
+  private final Time time;
+  private final HealthTracker diskHealth;
+  // the health of every store on the disk, keyed by the data directory of the store
+  private final ConcurrentMap<String, HealthTracker> storeHealth = new ConcurrentHashMap<String, HealthTracker>();
+  private final Random random = new Random();
+  private final Counter stateChangeCount;
+  private final Counter rejectedOperationCount;
+  private final Counter probeFailureCount;
+  private final ExecutorService probeExecutor;
+  // the file I/O of the last probe, guarded by this
+  private Future<Boolean> lastProbe = null;
+  private Logger logger = LoggerFactory.getLogger(getClass());
+
+  /**
+   * Creates the health monitor of a disk
+   * @param mountPath The mount path of the disk, which is probed while the disk is not healthy
+   * @param config The store config that holds the health thresholds
+   * @param registry The registry to register the metrics of the monitor with
+   * @param time The time instance to use
+   */
+  public DiskHealthMonitor(String mountPath, StoreConfig config, MetricRegistry registry, Time time) {
+    this.mountPath = mountPath;
+    this.config = config;
+    this.time = time;
+    this.diskHealth = new HealthTracker(mountPath);
+    this.probeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        return Utils.newThread("disk-health-probe-" + DiskHealthMonitor.this.mountPath, runnable, true);
+      }
+    });
+    stateChangeCount = registry.counter(MetricRegistry.name(DiskHealthMonitor.class, mountPath + ".StateChangeCount"));
+    rejectedOperationCount =
+        registry.counter(MetricRegistry.name(DiskHealthMonitor.class, mountPath + ".RejectedOperationCount"));
+    probeFailureCount =
+        registry.counter(MetricRegistry.name(DiskHealthMonitor.class, mountPath + ".ProbeFailureCount"));
+    registry.register(MetricRegistry.name(DiskHealthMonitor.class, mountPath + ".DiskHealthState"),
+        new Gauge<Integer>() {
+          @Override
+          public Integer getValue() {
+            return diskHealth.state.ordinal();
+          }
+        });
+    registry.register(MetricRegistry.name(DiskHealthMonitor.class, mountPath + ".UnhealthyStoreCount"),
+        new Gauge<Integer>() {
+          @Override
+          public Integer getValue() {
+            int count = 0;
+            for (HealthTracker tracker : storeHealth.values()) {
+              if (tracker.state != HealthState.Healthy) {
+                count++;
+              }
+            }
+            return count;
+          }
+        });
+  }
+
+  /**
+   * Starts tracking the health of a store on the disk
+   * @param dataDir The data directory of the store
+   */
+  void registerStore(String dataDir) {
+    storeHealth.putIfAbsent(dataDir, new HealthTracker(dataDir));
+  }
+
+  /**
+   * @return The health state of the disk
+   */
+  public HealthState getDiskState() {
+    return diskHealth.state;
+  }
+
+  /**
+   * @param dataDir The data directory of the store
+   * @return The health state of the store, which is the worse of the state of the store and the state of the disk
+   */
+  public HealthState getStoreState(String dataDir) {
+    HealthTracker tracker = storeHealth.get(dataDir);
+    HealthState diskState = diskHealth.state;
+    if (tracker == null || tracker.state.compareTo(diskState) < 0) {
+      return diskState;
+    }
+    return tracker.state;
+  }
+
+  /**
+   * Fails fast if the store is not healthy enough for an operation
+   * @param dataDir The data directory of the store
+   * @param write Whether the operation writes to the store
+   * @throws StoreException if the store is offline, or if it is read only and the operation writes to it
+   */
+  void checkAvailable(String dataDir, boolean write)
+      throws StoreException {
+    HealthState state = getStoreState(dataDir);
+    if (state == HealthState.Offline) {
+      rejectedOperationCount.inc();
+      throw new StoreException("Store " + dataDir + " is offline", StoreErrorCodes.Store_Unavailable);
+    } else if (state == HealthState.Read_Only && write) {
+      rejectedOperationCount.inc();
+      throw new StoreException("Store " + dataDir + " is read only", StoreErrorCodes.Store_Read_Only);
+    }
+  }
+
+  /**
+   * Records the outcome of an operation of a store
+   * @param dataDir The data directory of the store
+   * @param ioError Whether the operation failed with an I/O error
+   * @param latencyMs The time the operation took
+   */
+  void onOperationCompleted(String dataDir, boolean ioError, long latencyMs) {
+    HealthTracker tracker = storeHealth.get(dataDir);
+    if (tracker != null) {
+      tracker.record(ioError, latencyMs);
+    }
+    diskHealth.record(ioError, latencyMs);
+  }
+
+  /**
+   * Probes the disk and every store on it that is not healthy
+   */
+  public void probe() {
+    diskHealth.probe();
+    for (HealthTracker tracker : storeHealth.values()) {
+      tracker.probe();
+    }
+  }
+
+  /**
+   * Stops the thread that runs the file I/O of the probes
+   */
+  public void close() {
+    probeExecutor.shutdownNow();
+  }
+
+  /**
+   * Probes a directory on the thread of the monitor and waits for the probe to complete, up to the probe timeout
+   * @param directory The directory to probe
+   * @return true if the probe succeeded in time and was not slow, false otherwise
+   */
+  private boolean runProbe(final String directory) {
+    Future<Boolean> probe;
+    synchronized (this) {
+      if (lastProbe != null && !lastProbe.isDone()) {
+        logger.warn("DiskHealthMonitor : {} not probing {} as the last probe of the disk is still running", mountPath,
+            directory);
+        return false;
+      }
+      try {
+        probe = probeExecutor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return probeDirectory(directory);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        logger.trace("DiskHealthMonitor : {} not probing {} as the monitor is closed", mountPath, directory);
+        return false;
+      }
+      lastProbe = probe;
+    }
+    try {
+      return probe.get(config.storeHealthProbeTimeoutMs, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      logger.warn("DiskHealthMonitor : {} probe of {} did not complete in {} ms", mountPath, directory,
+          config.storeHealthProbeTimeoutMs);
+      return false;
+    } catch (ExecutionException e) {
+      logger.warn("DiskHealthMonitor : {} probe of {} failed", mountPath, directory, e.getCause());
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Writes, syncs and reads back a small file in a directory
+   * @param directory The directory to probe
+   * @return true if the probe succeeded and was not slow, false otherwise
+   */
+  boolean probeDirectory(String directory) {
+    File probeFile = new File(directory, Probe_File_Name);
+    long startTimeMs = time.milliseconds();
+    try {
+      byte[] data = new byte[Probe_Size_In_Bytes];
+      random.nextBytes(data);
+      byte[] readBack = new byte[Probe_Size_In_Bytes];
+      RandomAccessFile file = new RandomAccessFile(probeFile, "rw");
+      try {
+        file.write(data);
+        file.getFD().sync();
+        file.seek(0);
+        file.readFully(readBack);
+      } finally {
+        file.close();
+      }
+      if (!Arrays.equals(data, readBack)) {
+        logger.warn("DiskHealthMonitor : {} probe of {} read back different data", mountPath, directory);
+        return false;
+      }
+      long latencyMs = time.milliseconds() - startTimeMs;
+      if (latencyMs > config.storeHealthSlowOperationThresholdMs) {
+        logger.warn("DiskHealthMonitor : {} probe of {} took {} ms", mountPath, directory, latencyMs);
+        return false;
+      }
+      return true;
+    } catch (IOException e) {
+      logger.warn("DiskHealthMonitor : {} probe of {} failed", mountPath, directory, e);
+      return false;
+    } finally {
+      probeFile.delete();
+    }
+  }
+
+  /**
+   * The health of a store or of the disk
+   */
+  private class HealthTracker {
+    private final String directory;
+    private volatile HealthState state = HealthState.Healthy;
+    // the counts of the current window and the successful probes in a row, guarded by this
+    private long windowStartMs;
+    private int operations = 0;
+    private int errors = 0;
+    private int slowOperations = 0;
+    private int probeSuccesses = 0;
+
+    HealthTracker(String directory) {
+      this.directory = directory;
+      this.windowStartMs = time.milliseconds();
+    }
+
+    /**
+     * Counts an operation in the current window and degrades the state if the window has crossed a threshold. The
+     * state is only ever improved by probes.
+     */
+    synchronized void record(boolean ioError, long latencyMs) {
+      long timeMs = time.milliseconds();
+      if (timeMs - windowStartMs >= config.storeHealthWindowSeconds * Time.MsPerSec) {
+        resetWindow(timeMs);
+      }
+      operations++;
+      if (ioError) {
+        errors++;
+      }
+      if (latencyMs > config.storeHealthSlowOperationThresholdMs) {
+        slowOperations++;
+      }
+      if (operations < config.storeHealthMinOperations) {
+        return;
+      }
+      if ((double) errors / operations > config.storeHealthMaxErrorRatio) {
+        changeState(HealthState.Offline);
+      } else if ((double) slowOperations / operations > config.storeHealthMaxSlowOperationRatio
+          && state == HealthState.Healthy) {
+        changeState(HealthState.Read_Only);
+      }
+    }
+
+    /**
+     * Probes the directory if the state is not healthy and recovers once enough probes in a row succeed
+     */
+    void probe() {
+      if (state == HealthState.Healthy) {
+        return;
+      }
+      boolean succeeded = runProbe(directory);
+      synchronized (this) {
+        if (!succeeded) {
+          probeFailureCount.inc();
+          probeSuccesses = 0;
+        } else if (++probeSuccesses >= config.storeHealthProbeSuccessesToRecover) {
+          resetWindow(time.milliseconds());
+          changeState(HealthState.Healthy);
+        }
+      }
+    }
+
+    private void changeState(HealthState newState) {
+      if (state != newState) {
+        logger.warn("DiskHealthMonitor : {} state of {} changed from {} to {}", mountPath, directory, state, newState);
+        state = newState;
+        probeSuccesses = 0;
+        stateChangeCount.inc();
+      }
+    }
+
+    private void resetWindow(long timeMs) {
+      windowStartMs = timeMs;
+      operations = 0;
+      errors = 0;
+      slowOperations = 0;
+    }
+  }
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.github.ambry.config.StoreConfig;
+import com.github.ambry.utils.Time;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Coordinates the I/O that all the stores on a disk issue. Every I/O belongs to one of the {@link IOClass}es.
+ * <p/>
+ * Foreground I/O is never delayed. Its latency is reported to the scheduler, which uses it to pace the rest.
+ * Replication and background maintenance (hard deletes, compaction and index flushes) draw from token buckets of
+ * their own. The replication budget is fixed. The background budget adapts once a second: it is halved while the
+ * average foreground latency is above the configured target, and grows again while it is below the target or there
+ * is no foreground I/O.
+ * <p/>
+ * A token bucket can go into debt, so an I/O that is larger than the bucket is admitted after the time it takes to
+ * earn the bytes it needs. Later I/Os of the class wait for that debt to be paid back.
+ */
+public class DiskIOScheduler {
+  /**
+   * The classes of I/O known to the scheduler
+   */
+  public enum IOClass {
+    Foreground_Read, Foreground_Write, Replication, Background
+  }
+
+  private static final long Adjustment_Interval_Ms = Time.MsPerSec;
+  // the fraction of the max background rate that is added back every interval in which foreground I/O is fast
+  private static final double Background_Rate_Increase_Fraction = 0.1;
+
+  private final String diskName;
+  private final Time time;
+  private final long foregroundLatencyTargetMs;
+  private final double minBackgroundBytesPerSec;
+  private final double maxBackgroundBytesPerSec;
+  private final TokenBucket replicationBucket;
+  private final TokenBucket backgroundBucket;
+  private final AtomicInteger[] queueDepths = new AtomicInteger[IOClass.values().length];
+  private final Histogram[] waitTimesInMs = new Histogram[IOClass.values().length];
+  private final Object waitGuard = new Object();
+  private final AtomicBoolean running = new AtomicBoolean(true);
+  private final Object latencyLock = new Object();
+  private long foregroundLatencySumMs = 0;
+  private long foregroundLatencySamples = 0;
+  private long lastAdjustmentTimeMs;
+  private Logger logger = LoggerFactory.getLogger(getClass());
+
+  /**
+   * Creates the scheduler of a disk
+   * @param diskName The name of the disk, used in logs and metric names
+   * @param config The store config that holds the budgets of the disk
+   * @param registry The registry to register the metrics of the scheduler with
+   * @param time The time instance to use
+   */
+  public DiskIOScheduler(String diskName, StoreConfig config, MetricRegistry registry, Time time) {
+    this.diskName = diskName;
+    this.time = time;
+    this.foregroundLatencyTargetMs = config.storeIoSchedulerForegroundLatencyTargetMs;
+    this.maxBackgroundBytesPerSec = config.storeIoSchedulerBackgroundMaxBytesPerSec;
+    this.minBackgroundBytesPerSec =
+        Math.min(config.storeIoSchedulerBackgroundMinBytesPerSec, config.storeIoSchedulerBackgroundMaxBytesPerSec);
+    replicationBucket = config.storeIoSchedulerReplicationBytesPerSec > 0 ? new TokenBucket(
+        config.storeIoSchedulerReplicationBytesPerSec) : null;
+    backgroundBucket = new TokenBucket(maxBackgroundBytesPerSec);
+    lastAdjustmentTimeMs = time.milliseconds();
+    for (IOClass ioClass : IOClass.values()) {
+      final AtomicInteger queueDepth = new AtomicInteger(0);
+      queueDepths[ioClass.ordinal()] = queueDepth;
+      registry.register(MetricRegistry.name(DiskIOScheduler.class, diskName + "." + ioClass + "QueueDepth"),
+          new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+              return queueDepth.get();
+            }
+          });
+      waitTimesInMs[ioClass.ordinal()] =
+          registry.histogram(MetricRegistry.name(DiskIOScheduler.class, diskName + "." + ioClass + "WaitTimeInMs"));
+    }
+    registry.register(MetricRegistry.name(DiskIOScheduler.class, diskName + ".BackgroundBytesPerSec"),
+        new Gauge<Double>() {
+          @Override
+          public Double getValue() {
+            return getBackgroundBytesPerSec();
+          }
+        });
+  }
+
+  /**
+   * Waits until the budget of a class of I/O allows the given number of bytes to be read or written. Foreground I/O
+   * is admitted right away.
+   * @param ioClass The class of the I/O
+   * @param bytes The number of bytes that are about to be read or written
+   * @throws InterruptedException
+   */
+  public void acquire(IOClass ioClass, long bytes)
+      throws InterruptedException {
+    maybeAdjustBackgroundRate();
+    TokenBucket bucket = getBucket(ioClass);
+    AtomicInteger queueDepth = queueDepths[ioClass.ordinal()];
+    long startTimeMs = time.milliseconds();
+    queueDepth.incrementAndGet();
+    try {
+      long waitTimeMs = bucket == null ? 0 : bucket.take(bytes);
+      if (waitTimeMs > 0) {
+        synchronized (waitGuard) {
+          if (running.get()) {
+            time.wait(waitGuard, waitTimeMs);
+          }
+        }
+      }
+    } finally {
+      queueDepth.decrementAndGet();
+      waitTimesInMs[ioClass.ordinal()].update(time.milliseconds() - startTimeMs);
+    }
+  }
+
+  /**
+   * Charges I/O that has to happen without delay, like a flush that others are waiting for, to the budget of its
+   * class. I/O of the class that comes later waits for the bytes charged.
+   * @param ioClass The class of the I/O
+   * @param bytes The number of bytes that were read or written
+   */
+  public void charge(IOClass ioClass, long bytes) {
+    TokenBucket bucket = getBucket(ioClass);
+    if (bucket != null) {
+      bucket.take(bytes);
+    }
+  }
+
+  /**
+   * Reports the latency of a foreground operation. This is what the rate of background I/O is adjusted to.
+   * @param ioClass The class of the operation, either {@link IOClass#Foreground_Read} or
+   *                {@link IOClass#Foreground_Write}
+   * @param latencyMs The time the operation took
+   */
+  public void onForegroundIOCompleted(IOClass ioClass, long latencyMs) {
+    if (ioClass != IOClass.Foreground_Read && ioClass != IOClass.Foreground_Write) {
+      throw new IllegalArgumentException("Not a foreground class of I/O : " + ioClass);
+    }
+    synchronized (latencyLock) {
+      foregroundLatencySumMs += latencyMs;
+      foregroundLatencySamples++;
+    }
+    maybeAdjustBackgroundRate();
+  }
+
+  /**
+   * @return The current rate of background I/O in bytes per second
+   */
+  public double getBackgroundBytesPerSec() {
+    return backgroundBucket.getRatePerSec();
+  }
+
+  /**
+   * Releases all the I/O that is waiting for its budget and stops delaying I/O
+   */
+  public void close() {
+    synchronized (waitGuard) {
+      running.set(false);
+      waitGuard.notifyAll();
+    }
+  }
+
+  private TokenBucket getBucket(IOClass ioClass) {
+    switch (ioClass) {
+      case Replication:
+        return replicationBucket;
+      case Background:
+        return backgroundBucket;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Adjusts the rate of background I/O to the average foreground latency if an adjustment interval has passed
+   */
+  private void maybeAdjustBackgroundRate() {
+    synchronized (latencyLock) {
+      long nowMs = time.milliseconds();
+      if (nowMs - lastAdjustmentTimeMs < Adjustment_Interval_Ms) {
+        return;
+      }
+      double ratePerSec = backgroundBucket.getRatePerSec();
+      boolean foregroundSlow = foregroundLatencySamples > 0
+          && foregroundLatencySumMs / foregroundLatencySamples > foregroundLatencyTargetMs;
+      double newRatePerSec;
+      if (foregroundSlow) {
+        newRatePerSec = Math.max(minBackgroundBytesPerSec, ratePerSec / 2);
+      } else {
+        newRatePerSec = Math.min(maxBackgroundBytesPerSec,
+            ratePerSec + maxBackgroundBytesPerSec * Background_Rate_Increase_Fraction);
+      }
+      if (newRatePerSec != ratePerSec) {
+        logger.trace("DiskIOScheduler : {} changing background rate from {} to {} bytes per sec", diskName,
+            ratePerSec, newRatePerSec);
+        backgroundBucket.setRatePerSec(newRatePerSec);
+      }
+      foregroundLatencySumMs = 0;
+      foregroundLatencySamples = 0;
+      lastAdjustmentTimeMs = nowMs;
+    }
+  }
+
+  /**
+   * A token bucket that holds at most a second worth of bytes
+   */
+  private class TokenBucket {
+    private double ratePerSec;
+    private double tokens;
+    private long lastRefillTimeNs;
+
+    TokenBucket(double ratePerSec) {
+      this.ratePerSec = ratePerSec;
+      this.tokens = ratePerSec;
+      this.lastRefillTimeNs = time.nanoseconds();
+    }
+
+    /**
+     * Takes bytes out of the bucket
+     * @param bytes The number of bytes to take
+     * @return The time in ms until the bucket is out of debt, 0 if it is not in debt
+     */
+    synchronized long take(long bytes) {
+      refill();
+      tokens -= bytes;
+      return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * Time.MsPerSec / ratePerSec);
+    }
+
+    synchronized double getRatePerSec() {
+      return ratePerSec;
+    }
+
+    synchronized void setRatePerSec(double ratePerSec) {
+      refill();
+      this.ratePerSec = ratePerSec;
+      tokens = Math.min(tokens, ratePerSec);
+    }
+
+    private void refill() {
+      long nowNs = time.nanoseconds();
+      tokens = Math.min(ratePerSec, tokens + (nowNs - lastRefillTimeNs) * ratePerSec / Time.NsPerSec);
+      lastRefillTimeNs = nowNs;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import com.github.ambry.utils.Utils;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * An in memory index of the live blobs of a store that have a ttl, grouped into buckets by the time at which they
+ * expire. It is used to cheaply find the blobs that expired within a period of time without reading the index
+ * segments.
+ * <p/>
+ * The index has to be told about every change to the index of the store through {@link #add(StoreKey, IndexValue)}.
+ * Blobs are handed out by {@link #pollExpiredEntries(long)} once all the blobs in their bucket have expired and are
+ * then no longer tracked.
+ * <p/>
+ * The number of blobs tracked is capped. Once the cap is reached, the blobs that expire last are dropped and blobs
+ * that expire at or after them are not tracked until the index has drained to half the cap. Blobs that are not
+ * tracked are still found by the regular scan of the compactor, only later.
+ */
+class ExpiryIndex {
+  private final long bucketSizeInMs;
+  private final int maxEntries;
+  // the start time of a bucket to the blobs that expire within the bucket
+  private final TreeMap<Long, Map<StoreKey, IndexValue>> buckets = new TreeMap<Long, Map<StoreKey, IndexValue>>();
+  private long bytesPendingExpiry = 0;
+  private int numEntries = 0;
+  // blobs in the buckets that start at or after this time are not tracked since the index has been full
+  private long untrackedBucketStartTime = Long.MAX_VALUE;
+
+  /**
+   * @param bucketSizeInMs The period of time covered by a bucket
+   * @param maxEntries The max number of blobs that are tracked
+   */
+  ExpiryIndex(long bucketSizeInMs, int maxEntries) {
+    if (bucketSizeInMs <= 0) {
+      throw new IllegalArgumentException("Bucket size has to be positive : " + bucketSizeInMs);
+    }
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("Max entries has to be positive : " + maxEntries);
+    }
+    this.bucketSizeInMs = bucketSizeInMs;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Updates the index with the latest value of a key. Blobs that have a ttl are tracked until they expire and blobs
+   * that are deleted are no longer tracked.
+   * @param key The key
+   * @param value The latest index value of the key
+   */
+  synchronized void add(StoreKey key, IndexValue value) {
+    if (value.getTimeToLiveInMs() == Utils.Infinite_Time) {
+      return;
+    }
+    long bucketStartTime = getBucketStartTime(value.getTimeToLiveInMs());
+    Map<StoreKey, IndexValue> bucket = buckets.get(bucketStartTime);
+    if (value.isFlagSet(IndexValue.Flags.Delete_Index)) {
+      IndexValue removedValue = bucket == null ? null : bucket.remove(key);
+      if (removedValue != null) {
+        bytesPendingExpiry -= removedValue.getSize();
+        numEntries--;
+        if (bucket.isEmpty()) {
+          buckets.remove(bucketStartTime);
+        }
+      }
+    } else if (bucketStartTime < untrackedBucketStartTime) {
+      if (bucket == null) {
+        bucket = new HashMap<StoreKey, IndexValue>();
+        buckets.put(bucketStartTime, bucket);
+      }
+      // the value is copied as the index may modify its values in place
+      IndexValue previousValue = bucket.put(key,
+          new IndexValue(value.getSize(), value.getOffset(), value.getFlags(), value.getTimeToLiveInMs()));
+      if (previousValue != null) {
+        bytesPendingExpiry -= previousValue.getSize();
+      } else {
+        numEntries++;
+      }
+      bytesPendingExpiry += value.getSize();
+      while (numEntries > maxEntries) {
+        dropLastBucket();
+      }
+    }
+  }
+
+  /**
+   * Removes and returns the blobs of all the buckets that ended at or before the given time. All of them have expired
+   * at that time.
+   * @param timeInMs The current time
+   * @return The index entries of the blobs that have expired, in no particular order
+   */
+  synchronized List<IndexEntry> pollExpiredEntries(long timeInMs) {
+    List<IndexEntry> expiredEntries = new ArrayList<IndexEntry>();
+    Iterator<Map.Entry<Long, Map<StoreKey, IndexValue>>> iterator =
+        buckets.headMap(timeInMs - bucketSizeInMs, true).entrySet().iterator();
+    while (iterator.hasNext()) {
+      for (Map.Entry<StoreKey, IndexValue> entry : iterator.next().getValue().entrySet()) {
+        expiredEntries.add(new IndexEntry(entry.getKey(), entry.getValue()));
+        bytesPendingExpiry -= entry.getValue().getSize();
+        numEntries--;
+      }
+      iterator.remove();
+    }
+    if (numEntries <= maxEntries / 2) {
+      untrackedBucketStartTime = Long.MAX_VALUE;
+    }
+    return expiredEntries;
+  }
+
+  /**
+   * @return The total size of the blobs that are tracked by the index
+   */
+  synchronized long getBytesPendingExpiry() {
+    return bytesPendingExpiry;
+  }
+
+  /**
+   * @return The number of blobs that are tracked by the index
+   */
+  synchronized int getEntryCount() {
+    return numEntries;
+  }
+
+  /**
+   * Stops tracking the blobs that expire last, along with any blobs that expire after them
+   */
+  private void dropLastBucket() {
+    Map.Entry<Long, Map<StoreKey, IndexValue>> lastBucket = buckets.pollLastEntry();
+    for (IndexValue value : lastBucket.getValue().values()) {
+      bytesPendingExpiry -= value.getSize();
+    }
+    numEntries -= lastBucket.getValue().size();
+    untrackedBucketStartTime = lastBucket.getKey();
+  }
+
+  private long getBucketStartTime(long timeToLiveInMs) {
+    return timeToLiveInMs - timeToLiveInMs % bucketSizeInMs;
+  }
+}
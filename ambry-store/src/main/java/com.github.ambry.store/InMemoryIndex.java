@@ -180,7 +180,7 @@ public class InMemoryIndex {
     verifyFileEndOffset(fileSpan);
     index.put(entry.getKey(), entry.getValue());
     this.logEndOffset.set(fileSpan.getEndOffset());
-    journal.addEntry(entry.getValue().getOffset(), entry.getKey());
+    journal.addEntry(entry.getValue().getOffset(), entry.getKey(), entry.getValue());
   }
 
   /**
@@ -193,7 +193,7 @@ public class InMemoryIndex {
     verifyFileEndOffset(fileSpan);
     for (IndexEntry entry : entries) {
       index.put(entry.getKey(), entry.getValue());
-      journal.addEntry(entry.getValue().getOffset(), entry.getKey());
+      journal.addEntry(entry.getValue().getOffset(), entry.getKey(), entry.getValue());
     }
     this.logEndOffset.set(fileSpan.getEndOffset());
   }
@@ -227,7 +227,7 @@ public class InMemoryIndex {
     value.setNewSize(fileSpan.getEndOffset() - fileSpan.getStartOffset());
     index.put(id, value);
     this.logEndOffset.set(fileSpan.getEndOffset());
-    journal.addEntry(fileSpan.getStartOffset(), id);
+    journal.addEntry(fileSpan.getStartOffset(), id, value);
   }
 
   /**
@@ -16,8 +16,10 @@ package com.github.ambry.store;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.List;
@@ -27,10 +29,16 @@ import java.util.concurrent.atomic.AtomicInteger;
 class JournalEntry {
   private long offset;
   private StoreKey key;
+  private IndexValue value;
 
   public JournalEntry(long offset, StoreKey key) {
+    this(offset, key, null);
+  }
+
+  public JournalEntry(long offset, StoreKey key, IndexValue value) {
     this.offset = offset;
     this.key = key;
+    this.value = value;
   }
 
   public long getOffset() {
@@ -40,14 +48,25 @@ class JournalEntry {
   public StoreKey getKey() {
     return key;
   }
+
+  /**
+   * @return The latest index value of the key when the entry was read from the journal or null if the journal no
+   *         longer had a value for the key. The value must not be modified.
+   */
+  public IndexValue getValue() {
+    return value;
+  }
 }
 
 /**
- * An in memory journal used to track the most recent blobs for a store.
+ * An in memory journal used to track the most recent blobs for a store. Along with the keys, the journal holds the
+ * latest index value of every key that it has an entry for, so that the entries returned by the journal can be
+ * turned into message infos without looking the keys up in the index.
  */
 class InMemoryJournal implements Journal {
 
   private final ConcurrentSkipListMap<Long, StoreKey> journal;
+  private final ConcurrentHashMap<StoreKey, JournalValue> values;
   private final int maxEntriesToJournal;
   private final int maxEntriesToReturn;
   private AtomicInteger currentNumberOfEntries;
@@ -62,6 +81,7 @@ class InMemoryJournal implements Journal {
    */
   public InMemoryJournal(String dataDir, int maxEntriesToJournal, int maxEntriesToReturn) {
     journal = new ConcurrentSkipListMap<Long, StoreKey>();
+    values = new ConcurrentHashMap<StoreKey, JournalValue>();
     this.maxEntriesToJournal = maxEntriesToJournal;
     this.maxEntriesToReturn = maxEntriesToReturn;
     this.currentNumberOfEntries = new AtomicInteger(0);
@@ -73,18 +93,24 @@ class InMemoryJournal implements Journal {
    * @param offset The offset that the key pertains to. The journal verifies that the provided offset is monotonically
    *               increasing.
    * @param key The key that the entry in the journal refers to.
+   * @param value The latest index value of the key. The journal keeps a copy of it.
    */
   @Override
-  public void addEntry(long offset, StoreKey key) {
-    if (key == null || offset < 0) {
+  public void addEntry(long offset, StoreKey key, IndexValue value) {
+    if (key == null || value == null || offset < 0) {
       throw new IllegalArgumentException("Invalid arguments passed to add to the journal");
     }
 
     if (currentNumberOfEntries.get() == maxEntriesToJournal) {
-      journal.remove(journal.firstKey());
+      Map.Entry<Long, StoreKey> oldest = journal.pollFirstEntry();
+      releaseValue(oldest.getValue());
       currentNumberOfEntries.decrementAndGet();
     }
-    journal.put(offset, key);
+    retainValue(key, value);
+    StoreKey replacedKey = journal.put(offset, key);
+    if (replacedKey != null) {
+      releaseValue(replacedKey);
+    }
     logger.trace("Journal : " + dataDir + " offset " + offset + " key " + key);
     currentNumberOfEntries.incrementAndGet();
     logger.trace("Journal : " + dataDir + " number of entries " + currentNumberOfEntries.get());
@@ -120,7 +146,8 @@ class InMemoryJournal implements Journal {
     int entriesAdded = 0;
     for (Map.Entry<Long, StoreKey> entry : subsetMap.entrySet()) {
       if (inclusive || entry.getKey() != offset) {
-        journalEntries.add(new JournalEntry(entry.getKey(), entry.getValue()));
+        JournalValue value = values.get(entry.getValue());
+        journalEntries.add(new JournalEntry(entry.getKey(), entry.getValue(), value == null ? null : value.value));
         entriesAdded++;
         if (entriesAdded == entriesToReturn) {
           break;
@@ -149,4 +176,62 @@ class InMemoryJournal implements Journal {
     Map.Entry<Long, StoreKey> last = journal.lastEntry();
     return last == null ? -1 : last.getKey();
   }
+
+  /**
+   * Sets the latest value of a key and counts the journal entry about to be added for it. The value of the key is
+   * swapped for a new one, so that readers always see a value and its entry count as they were set together.
+   * @param key The key
+   * @param value The latest index value of the key
+   */
+  private void retainValue(StoreKey key, IndexValue value) {
+    ByteBuffer bytes = value.getBytes().duplicate();
+    bytes.clear();
+    byte[] valueCopy = new byte[bytes.remaining()];
+    bytes.get(valueCopy);
+    IndexValue indexValue = new IndexValue(ByteBuffer.wrap(valueCopy));
+    while (true) {
+      JournalValue journalValue = values.get(key);
+      if (journalValue == null) {
+        if (values.putIfAbsent(key, new JournalValue(indexValue, 1)) == null) {
+          return;
+        }
+      } else if (values.replace(key, journalValue, new JournalValue(indexValue, journalValue.entries + 1))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Uncounts a journal entry of a key that left the journal and drops the value of the key once the journal has no
+   * more entries for it.
+   * @param key The key of the entry that left the journal
+   */
+  private void releaseValue(StoreKey key) {
+    while (true) {
+      JournalValue journalValue = values.get(key);
+      if (journalValue == null) {
+        return;
+      } else if (journalValue.entries == 1) {
+        if (values.remove(key, journalValue)) {
+          return;
+        }
+      } else if (values.replace(key, journalValue, new JournalValue(journalValue.value, journalValue.entries - 1))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * The latest value of a key along with the number of entries the journal holds for the key. Journal values are
+   * never modified once they are in the journal.
+   */
+  private static class JournalValue {
+    private final IndexValue value;
+    private final int entries;
+
+    JournalValue(IndexValue value, int entries) {
+      this.value = value;
+      this.entries = entries;
+    }
+  }
 }
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A bounded, least recently used cache of the latest index value of a key along with the start offset of the index
+ * segment that holds it. The cache only holds positive lookups.
+ * <p/>
+ * The keys are spread over stripes that each have their own lock and their own share of the capacity, so that
+ * lookups of different keys rarely contend.
+ * <p/>
+ * A lookup that misses the cache reads the index segments without holding any lock. To ensure that such a lookup
+ * does not cache a value that was replaced while it was reading, callers call {@link #startLookup(StoreKey)} before
+ * they read the segments, which leaves a marker for the key in the cache, and pass the marker to
+ * {@link #put(StoreKey, IndexValue, long, LookupMarker)}. Invalidating a key removes its marker, so a put only
+ * goes through if the key was not invalidated since its lookup started. Invalidations of other keys do not affect it.
+ */
+class IndexLookupCache {
+  private static final int Max_Stripes = 16;
+  private static final int Min_Entries_Per_Stripe = 64;
+
+  private final Stripe[] stripes;
+  private final StoreMetrics metrics;
+
+  /**
+   * @param maxEntries The max number of keys to cache
+   * @param metrics The store metrics used to track hits, misses and evictions
+   */
+  IndexLookupCache(int maxEntries, StoreMetrics metrics) {
+    this.metrics = metrics;
+    int numStripes = Math.max(1, Math.min(Max_Stripes, maxEntries / Min_Entries_Per_Stripe));
+    stripes = new Stripe[numStripes];
+    for (int i = 0; i < numStripes; i++) {
+      // the capacity is split as evenly as possible over the stripes
+      stripes[i] = new Stripe(maxEntries / numStripes + (i < maxEntries % numStripes ? 1 : 0));
+    }
+  }
+
+  /**
+   * @param key The key to look up
+   * @return The cached value of the key or null if it is not cached
+   */
+  CachedValue get(StoreKey key) {
+    Stripe stripe = getStripe(key);
+    Object entry;
+    synchronized (stripe) {
+      entry = stripe.entries.get(key);
+    }
+    if (entry instanceof CachedValue) {
+      metrics.indexLookupCacheHitCount.inc();
+      return (CachedValue) entry;
+    }
+    metrics.indexLookupCacheMissCount.inc();
+    return null;
+  }
+
+  /**
+   * Leaves a marker for a key whose value is about to be read from the index segments. Must be called before the
+   * segments are read.
+   * @param key The key that is looked up
+   * @return The marker to pass to {@link #put(StoreKey, IndexValue, long, LookupMarker)} or
+   * {@link #endLookup(StoreKey, LookupMarker)}
+   */
+  LookupMarker startLookup(StoreKey key) {
+    Stripe stripe = getStripe(key);
+    LookupMarker marker = new LookupMarker();
+    synchronized (stripe) {
+      // a concurrent lookup of the same key that started earlier will not be able to cache its value, which is fine
+      stripe.entries.put(key, marker);
+    }
+    return marker;
+  }
+
+  /**
+   * Caches the value of a key unless the key was invalidated since the lookup that read the value started
+   * @param key The key
+   * @param value The latest value of the key
+   * @param segmentStartOffset The start offset of the index segment that holds the value
+   * @param marker The marker returned by {@link #startLookup(StoreKey)} before the index segments were read
+   */
+  void put(StoreKey key, IndexValue value, long segmentStartOffset, LookupMarker marker) {
+    Stripe stripe = getStripe(key);
+    synchronized (stripe) {
+      if (stripe.entries.get(key) == marker) {
+        stripe.entries.put(key, new CachedValue(value, segmentStartOffset));
+      }
+    }
+  }
+
+  /**
+   * Removes the marker of a lookup that found nothing to cache
+   * @param key The key
+   * @param marker The marker returned by {@link #startLookup(StoreKey)}
+   */
+  void endLookup(StoreKey key, LookupMarker marker) {
+    Stripe stripe = getStripe(key);
+    synchronized (stripe) {
+      if (stripe.entries.get(key) == marker) {
+        stripe.entries.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Removes a key from the cache. Must be called after the index has been updated for the key.
+   * @param key The key whose value has changed
+   */
+  void invalidate(StoreKey key) {
+    Stripe stripe = getStripe(key);
+    synchronized (stripe) {
+      stripe.entries.remove(key);
+    }
+  }
+
+  /**
+   * Removes all the keys from the cache. Must be called after the index segments that hold the cached values have
+   * been replaced.
+   */
+  void clear() {
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.entries.clear();
+      }
+    }
+  }
+
+  private Stripe getStripe(StoreKey key) {
+    int hash = key.hashCode();
+    // spread the high bits of the hash so that keys that only differ in them end up in different stripes
+    hash ^= (hash >>> 16);
+    return stripes[(hash & Integer.MAX_VALUE) % stripes.length];
+  }
+
+  /**
+   * A least recently used map of keys to their cached values or to the markers of lookups in progress
+   */
+  private class Stripe {
+    private final LinkedHashMap<StoreKey, Object> entries;
+
+    Stripe(final int maxEntries) {
+      entries = new LinkedHashMap<StoreKey, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<StoreKey, Object> eldest) {
+          if (size() > maxEntries) {
+            metrics.indexLookupCacheEvictionCount.inc();
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+  }
+
+  /**
+   * Marks a key whose value is being read from the index segments
+   */
+  static class LookupMarker {
+    private LookupMarker() {
+    }
+  }
+
+  /**
+   * The cached value of a key along with the start offset of the index segment that holds it
+   */
+  static class CachedValue {
+    private final byte[] value;
+    private final long segmentStartOffset;
+
+    private CachedValue(IndexValue value, long segmentStartOffset) {
+      ByteBuffer bytes = value.getBytes().duplicate();
+      bytes.clear();
+      this.value = new byte[bytes.remaining()];
+      bytes.get(this.value);
+      this.segmentStartOffset = segmentStartOffset;
+    }
+
+    /**
+     * @return A copy of the cached value that the caller is free to modify
+     */
+    IndexValue getValue() {
+      return new IndexValue(ByteBuffer.wrap(value.clone()));
+    }
+
+    long getSegmentStartOffset() {
+      return segmentStartOffset;
+    }
+  }
+}
@@ -14,6 +14,7 @@
 package com.github.ambry.store;
 
 import com.github.ambry.config.StoreConfig;
+import com.github.ambry.utils.BlockedBloomFilter;
 import com.github.ambry.utils.ByteBufferInputStream;
 import com.github.ambry.utils.CrcInputStream;
 import com.github.ambry.utils.CrcOutputStream;
@@ -23,6 +24,7 @@ import com.github.ambry.utils.SystemTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -34,10 +36,10 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentNavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.SortedMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -51,8 +53,9 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * can either be read only and memory mapped or writable and in memory.
  * The segment uses a bloom filter to optimize reads from disk. If the
  * index is read only, a key is searched by doing a binary search on
- * the memory mapped file. If the index is in memory, a normal map
- * lookup is performed to find key.
+ * the memory mapped file. If the index is in memory, the key is looked
+ * up in the in memory entries, which are held either in a skip list or
+ * packed off heap depending on the store config.
  */
 class IndexSegment {
   private AtomicLong startOffset;
@@ -64,7 +67,20 @@ class IndexSegment {
   private Logger logger = LoggerFactory.getLogger(getClass());
   private AtomicLong sizeWritten;
   private StoreKeyFactory factory;
-  private IFilter bloomFilter;
+  private volatile IFilter bloomFilter;
+  // set once the filter of a mapped segment has been dropped to stay within the bloom filter budget
+  private volatile boolean bloomFilterDropped = false;
+  private volatile BloomFilterBudget bloomFilterBudget = null;
+  private final Object bloomFilterLock = new Object();
+  // set while a load of the dropped filter is waiting to be run by the budget
+  private final AtomicBoolean bloomFilterLoadPending = new AtomicBoolean(false);
+  // the number of lookups of the filter of the mapped segment since the budget last dropped filters
+  private final AtomicLong bloomFilterLookups = new AtomicLong(0);
+  // the keys of lookups of the mapped segment that passed the filter and those of them that were not found
+  private final AtomicLong bloomPositiveCount = new AtomicLong(0);
+  private final AtomicLong bloomFalsePositiveCount = new AtomicLong(0);
+  private final boolean blockedBloomFilter;
+  private final double bloomFalsePositiveProbability;
   private final static int Key_Size_Invalid_Value = -1;
   private final static int Value_Size_Invalid_Value = -1;
 
@@ -73,6 +89,8 @@ class IndexSegment {
   private final static int Value_Size_Field_Length = 4;
   private final static int Crc_Field_Length = 8;
   private final static int Log_End_Offset_Field_Length = 8;
+  private final static int Entries_Start_Offset =
+      Version_Field_Length + Key_Size_Field_Length + Value_Size_Field_Length + Log_End_Offset_Field_Length;
   private final static int Index_Size_Excluding_Entries =
       Version_Field_Length + Key_Size_Field_Length + Value_Size_Field_Length + Log_End_Offset_Field_Length
           + Crc_Field_Length;
@@ -80,10 +98,14 @@ class IndexSegment {
   private int keySize;
   private int valueSize;
   private File bloomFile;
+  private long lastSegmentStartOffset;
   private long prevSegmentEndOffset = 0;
   private AtomicLong lastModifiedTimeSec; // an approximation of the last modified time.
   private AtomicInteger numberOfItems;
-  protected ConcurrentSkipListMap<StoreKey, IndexValue> index = null;
+  protected IndexSegmentEntries index = null;
+  private int fencePointerInterval;
+  // the serialized key of every fencePointerInterval-th entry of the mapped segment, null if the segment is not mapped
+  private volatile ByteBuffer fenceKeys = null;
   private final StoreMetrics metrics;
 
   /**
@@ -102,15 +124,18 @@ class IndexSegment {
     bloomFile = new File(dataDir, startOffset + "_" + PersistentIndex.Bloom_File_Name_Suffix);
     this.rwLock = new ReentrantReadWriteLock();
     this.startOffset = new AtomicLong(startOffset);
+    this.lastSegmentStartOffset = startOffset;
     this.endOffset = new AtomicLong(-1);
-    index = new ConcurrentSkipListMap<StoreKey, IndexValue>();
+    this.factory = factory;
+    index = newIndexSegmentEntries(config);
     mapped = new AtomicBoolean(false);
     sizeWritten = new AtomicLong(0);
-    this.factory = factory;
     this.keySize = keySize;
     this.valueSize = valueSize;
-    bloomFilter = FilterFactory
-        .getFilter(config.storeIndexMaxNumberOfInmemElements, config.storeIndexBloomMaxFalsePositiveProbability);
+    this.fencePointerInterval = config.storeIndexFencePointerInterval;
+    blockedBloomFilter = config.storeIndexBloomBlocked;
+    bloomFalsePositiveProbability = config.storeIndexBloomMaxFalsePositiveProbability;
+    bloomFilter = newBloomFilter(config.storeIndexMaxNumberOfInmemElements);
     numberOfItems = new AtomicInteger(0);
     this.metrics = metrics;
     this.lastModifiedTimeSec = new AtomicLong(0);
@@ -130,9 +155,9 @@ class IndexSegment {
       StoreMetrics metrics, Journal journal)
       throws StoreException {
     try {
-      int startIndex = indexFile.getName().indexOf("_", 0);
-      String startOffsetValue = indexFile.getName().substring(0, startIndex);
-      startOffset = new AtomicLong(Long.parseLong(startOffsetValue));
+      startOffset = new AtomicLong(getStartOffset(indexFile));
+      lastSegmentStartOffset = getLastSegmentStartOffset(indexFile);
+      bloomFile = getBloomFile(indexFile);
       endOffset = new AtomicLong(-1);
       this.indexFile = indexFile;
       this.lastModifiedTimeSec = new AtomicLong(indexFile.lastModified() / 1000);
@@ -141,29 +166,17 @@ class IndexSegment {
       sizeWritten = new AtomicLong(0);
       numberOfItems = new AtomicInteger(0);
       mapped = new AtomicBoolean(false);
+      fencePointerInterval = config.storeIndexFencePointerInterval;
+      blockedBloomFilter = config.storeIndexBloomBlocked;
+      bloomFalsePositiveProbability = config.storeIndexBloomMaxFalsePositiveProbability;
       if (isMapped) {
         map(false);
         // Load the bloom filter for this index
         // We need to load the bloom filter only for mapped indexes
-        bloomFile = new File(indexFile.getParent(), startOffset + "_" + PersistentIndex.Bloom_File_Name_Suffix);
-        CrcInputStream crcBloom = new CrcInputStream(new FileInputStream(bloomFile));
-        DataInputStream stream = new DataInputStream(crcBloom);
-        bloomFilter = FilterFactory.deserialize(stream);
-        long crcValue = crcBloom.getValue();
-        if (crcValue != stream.readLong()) {
-          // TODO metrics
-          // we don't recover the filter. we just by pass the filter. Crc corrections will be done
-          // by the scrubber
-          bloomFilter = null;
-          logger.error("IndexSegment : {} error validating crc for bloom filter for {}", indexFile.getAbsolutePath(),
-              bloomFile.getAbsolutePath());
-        }
-        stream.close();
+        bloomFilter = loadBloomFilter();
       } else {
-        index = new ConcurrentSkipListMap<StoreKey, IndexValue>();
-        bloomFilter = FilterFactory
-            .getFilter(config.storeIndexMaxNumberOfInmemElements, config.storeIndexBloomMaxFalsePositiveProbability);
-        bloomFile = new File(indexFile.getParent(), startOffset + "_" + PersistentIndex.Bloom_File_Name_Suffix);
+        index = newIndexSegmentEntries(config);
+        bloomFilter = newBloomFilter(config.storeIndexMaxNumberOfInmemElements);
         try {
           readFromFile(indexFile, journal);
         } catch (StoreException e) {
@@ -185,6 +198,199 @@ class IndexSegment {
     this.metrics = metrics;
   }
 
+  /**
+   * Creates an empty bloom filter of the type configured for the index
+   * @param numElements The number of keys the filter is sized for
+   * @return The bloom filter
+   */
+  private IFilter newBloomFilter(long numElements) {
+    return newBloomFilter(numElements, blockedBloomFilter, bloomFalsePositiveProbability);
+  }
+
+  private static IFilter newBloomFilter(long numElements, boolean blocked, double maxFalsePositiveProbability) {
+    if (blocked) {
+      return FilterFactory.getBlockedFilter(numElements, maxFalsePositiveProbability);
+    }
+    return FilterFactory.getFilter(numElements, maxFalsePositiveProbability);
+  }
+
+  /**
+   * Reads the bloom filter of the segment from its file
+   * @return The bloom filter, or null if the file is corrupt
+   * @throws IOException
+   */
+  private IFilter loadBloomFilter()
+      throws IOException {
+    CrcInputStream crcBloom = new CrcInputStream(new BufferedInputStream(new FileInputStream(bloomFile)));
+    DataInputStream stream = new DataInputStream(crcBloom);
+    try {
+      IFilter filter = FilterFactory.deserialize(stream);
+      long crcValue = crcBloom.getValue();
+      if (crcValue != stream.readLong()) {
+        // TODO metrics
+        // we don't recover the filter. we just by pass the filter. Crc corrections will be done
+        // by the scrubber
+        logger.error("IndexSegment : {} error validating crc for bloom filter for {}", indexFile.getAbsolutePath(),
+            bloomFile.getAbsolutePath());
+        filter.close();
+        return null;
+      }
+      return filter;
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Gets the bloom filter of a mapped segment. A filter that was dropped is loaded again in the background by the
+   * budget of the segment, and the segment is searched without a filter until then.
+   * @return The bloom filter, or null if the segment has no usable filter
+   */
+  private IFilter getBloomFilter() {
+    bloomFilterLookups.incrementAndGet();
+    IFilter filter = bloomFilter;
+    if (filter == null && bloomFilterDropped) {
+      BloomFilterBudget budget = bloomFilterBudget;
+      if (budget != null && bloomFilterLoadPending.compareAndSet(false, true)) {
+        budget.scheduleLoad(this);
+      }
+    }
+    return filter;
+  }
+
+  /**
+   * Loads the bloom filter of a mapped segment again if it was dropped and counts it against the budget of the
+   * segment. Nothing is loaded for a segment that has been released from its budget.
+   */
+  void reloadBloomFilter() {
+    IFilter filter = null;
+    BloomFilterBudget budget;
+    synchronized (bloomFilterLock) {
+      bloomFilterLoadPending.set(false);
+      budget = bloomFilterBudget;
+      if (!bloomFilterDropped || budget == null) {
+        return;
+      }
+      try {
+        filter = loadBloomFilter();
+      } catch (IOException e) {
+        // the segment is searched without a filter from now on
+        logger.error("IndexSegment : {} error while loading bloom filter from {}", indexFile.getAbsolutePath(),
+            bloomFile.getAbsolutePath(), e);
+      }
+      bloomFilter = filter;
+      bloomFilterDropped = false;
+    }
+    metrics.bloomFilterLoadCount.inc();
+    if (filter != null) {
+      budget.onLoaded(this, filter.getSizeInBytes(), filter instanceof BlockedBloomFilter);
+    }
+  }
+
+  /**
+   * Sets the budget that the bloom filter of this segment counts against once the segment is mapped. The filter is
+   * counted against the budget right away if it is loaded. A segment that is no longer used has to be released from
+   * its budget by setting it to null.
+   * @param budget The budget, or null if the filter of this segment is not bounded by any budget
+   */
+  void setBloomFilterBudget(BloomFilterBudget budget) {
+    BloomFilterBudget previousBudget = bloomFilterBudget;
+    bloomFilterBudget = budget;
+    if (previousBudget != null) {
+      previousBudget.remove(this);
+    }
+    IFilter filter = bloomFilter;
+    if (budget != null && mapped.get() && filter != null) {
+      budget.onLoaded(this, filter.getSizeInBytes(), filter instanceof BlockedBloomFilter);
+    }
+  }
+
+  /**
+   * Drops the bloom filter of a mapped segment. It is loaded again from its file when it is next needed.
+   */
+  void dropBloomFilter() {
+    synchronized (bloomFilterLock) {
+      if (mapped.get()) {
+        bloomFilter = null;
+        bloomFilterDropped = true;
+      }
+    }
+  }
+
+  /**
+   * @return The number of lookups of the bloom filter of the mapped segment since the lookups were last reset
+   */
+  long getBloomFilterLookups() {
+    return bloomFilterLookups.get();
+  }
+
+  void resetBloomFilterLookups() {
+    bloomFilterLookups.set(0);
+  }
+
+  /**
+   * @return The number of keys that the bloom filter of the mapped segment, or the lack of one, let through to a
+   * search of the segment
+   */
+  long getBloomPositiveCount() {
+    return bloomPositiveCount.get();
+  }
+
+  /**
+   * @return The number of keys that were searched in the mapped segment after passing its bloom filter, or the lack
+   * of one, but were not found
+   */
+  long getBloomFalsePositiveCount() {
+    return bloomFalsePositiveCount.get();
+  }
+
+  /**
+   * Creates the structure that holds the entries of this segment while it is in memory
+   * @param config The store config that determines the representation of the entries
+   * @return The structure to hold the entries of this segment
+   */
+  private IndexSegmentEntries newIndexSegmentEntries(StoreConfig config) {
+    if (config.storeIndexPackedInMemorySegment) {
+      return new PackedIndexSegmentEntries(factory, config.storeIndexMaxNumberOfInmemElements);
+    }
+    return new SkipListIndexSegmentEntries();
+  }
+
+  /**
+   * Gets the start offset of the segment that an index file belongs to. The name of an index file is the start offset
+   * of its segment followed by, for a segment that was created by merging segments, the start offset of the most
+   * recent segment that was merged into it.
+   * @param indexFile The index file of the segment
+   * @return The start offset of the segment
+   */
+  static long getStartOffset(File indexFile) {
+    String name = indexFile.getName();
+    return Long.parseLong(name.substring(0, name.indexOf("_")));
+  }
+
+  /**
+   * Gets the start offset of the most recent segment that was merged into the segment that an index file belongs to.
+   * @param indexFile The index file of the segment
+   * @return The start offset of the most recent segment that was merged into the segment or the start offset of the
+   * segment if it was not created by merging segments
+   */
+  static long getLastSegmentStartOffset(File indexFile) {
+    String[] parts = indexFile.getName().split("_");
+    return parts.length > 2 ? Long.parseLong(parts[1]) : Long.parseLong(parts[0]);
+  }
+
+  /**
+   * Gets the bloom filter file that goes with an index file
+   * @param indexFile The index file of the segment
+   * @return The bloom filter file of the segment
+   */
+  static File getBloomFile(File indexFile) {
+    String name = indexFile.getName();
+    return new File(indexFile.getParent(),
+        name.substring(0, name.length() - PersistentIndex.Index_File_Name_Suffix.length())
+            + PersistentIndex.Bloom_File_Name_Suffix);
+  }
+
   /**
    * The start offset that this segment represents
    * @return The start offset that this segment represents
@@ -193,6 +399,16 @@ class IndexSegment {
     return startOffset.get();
   }
 
+  /**
+   * The start offset of the most recent segment that was merged into this segment. For a segment that was not created
+   * by merging segments, this is the same as its start offset. Tokens that point into this segment refer to it by
+   * this offset, so a token that refers to it by a lower offset was handed out before the merge.
+   * @return The start offset of the most recent segment that was merged into this segment
+   */
+  public long getLastSegmentStartOffset() {
+    return lastSegmentStartOffset;
+  }
+
   /**
    * The end offset that this segment represents
    * @return The end offset that this segment represents
@@ -242,8 +458,8 @@ class IndexSegment {
   }
 
   /**
-   * Finds an entry given a key. It finds from the in memory map or
-   * does a binary search on the mapped persistent segment
+   * Finds an entry given a key. It finds from the in memory map or does a binary search on the mapped persistent
+   * segment
    * @param keyToFind The key to find
    * @return The blob index value that represents the key or null if not found
    * @throws StoreException
@@ -256,36 +472,96 @@ class IndexSegment {
         return index.get(keyToFind);
       } else {
         // check bloom filter first
+        IFilter bloomFilter = getBloomFilter();
         if (bloomFilter == null || bloomFilter.isPresent(ByteBuffer.wrap(keyToFind.toBytes()))) {
           metrics.bloomPositiveCount.inc(1);
+          bloomPositiveCount.incrementAndGet();
           logger.trace(bloomFilter == null
               ? "IndexSegment {} bloom filter empty. Searching file with start offset {} and for key {} "
               : "IndexSegment {} found in bloom filter for index with start offset {} and for key {} ",
               indexFile.getAbsolutePath(), startOffset.get(), keyToFind);
-          // binary search on the mapped file
           ByteBuffer duplicate = mmap.duplicate();
-          int low = 0;
-          int high = numberOfEntries(duplicate) - 1;
-          logger.trace("binary search low : {} high : {}", low, high);
+          int position = findIndex(keyToFind, duplicate);
+          if (position != -1) {
+            byte[] buf = new byte[valueSize];
+            duplicate.position(getEntryPosition(position) + keySize);
+            duplicate.get(buf);
+            return new IndexValue(ByteBuffer.wrap(buf));
+          }
+          metrics.bloomFalsePositiveCount.inc(1);
+          bloomFalsePositiveCount.incrementAndGet();
+        }
+        return null;
+      }
+    } catch (IOException e) {
+      throw new StoreException("IndexSegment : " + indexFile.getAbsolutePath() + " IO error while searching", e,
+          StoreErrorCodes.IOError);
+    } finally {
+      rwLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the keys from the given batch that are not present in this segment. The keys are first filtered through
+   * the bloom filter and the remaining keys are then searched in key order, with every search starting where the
+   * previous one ended, so the segment is walked at most once for the whole batch.
+   * @param sortedKeys The keys to look for, in ascending order
+   * @return The keys that are not present in this segment, in ascending order
+   * @throws StoreException
+   */
+  public List<StoreKey> getMissingKeys(List<StoreKey> sortedKeys)
+      throws StoreException {
+    List<StoreKey> missingKeys = new ArrayList<StoreKey>(sortedKeys.size());
+    try {
+      rwLock.readLock().lock();
+      if (!(mapped.get())) {
+        for (StoreKey key : sortedKeys) {
+          if (index.get(key) == null) {
+            missingKeys.add(key);
+          }
+        }
+      } else {
+        ByteBuffer duplicate = mmap.duplicate();
+        int low = 0;
+        int totalEntries = numberOfEntries(duplicate);
+        IFilter bloomFilter = getBloomFilter();
+        for (StoreKey key : sortedKeys) {
+          if (bloomFilter != null && !bloomFilter.isPresent(ByteBuffer.wrap(key.toBytes()))) {
+            missingKeys.add(key);
+            continue;
+          }
+          metrics.bloomPositiveCount.inc(1);
+          bloomPositiveCount.incrementAndGet();
+          if (key.supportsSerializedComparison()) {
+            if (findSerializedIndex(key, duplicate) == -1) {
+              metrics.bloomFalsePositiveCount.inc(1);
+              bloomFalsePositiveCount.incrementAndGet();
+              missingKeys.add(key);
+            }
+            continue;
+          }
+          // the keys are sorted, so this key cannot be before the position where the previous key was searched
+          int high = totalEntries - 1;
+          boolean found = false;
           while (low <= high) {
-            int mid = (int) (Math.ceil(high / 2.0 + low / 2.0));
-            StoreKey found = getKeyAt(duplicate, mid);
-            logger.trace("Index Segment {} binary search - key found on iteration {}", indexFile.getAbsolutePath(),
-                found);
-            int result = found.compareTo(keyToFind);
+            int mid = (low + high) >>> 1;
+            int result = getKeyAt(duplicate, mid).compareTo(key);
             if (result == 0) {
-              byte[] buf = new byte[valueSize];
-              duplicate.get(buf);
-              return new IndexValue(ByteBuffer.wrap(buf));
+              found = true;
+              low = mid + 1;
+              break;
             } else if (result < 0) {
               low = mid + 1;
             } else {
               high = mid - 1;
             }
           }
-          metrics.bloomFalsePositiveCount.inc(1);
+          if (!found) {
+            metrics.bloomFalsePositiveCount.inc(1);
+            bloomFalsePositiveCount.incrementAndGet();
+            missingKeys.add(key);
+          }
         }
-        return null;
       }
     } catch (IOException e) {
       throw new StoreException("IndexSegment : " + indexFile.getAbsolutePath() + " IO error while searching", e,
@@ -293,22 +569,99 @@ class IndexSegment {
     } finally {
       rwLock.readLock().unlock();
     }
+    return missingKeys;
   }
 
   private int numberOfEntries(ByteBuffer mmap) {
     return (mmap.capacity() - Index_Size_Excluding_Entries) / (keySize + valueSize);
   }
 
+  private int getEntryPosition(int index) {
+    return Entries_Start_Offset + index * (keySize + valueSize);
+  }
+
   private StoreKey getKeyAt(ByteBuffer mmap, int index)
       throws IOException {
-    mmap.position(
-        Version_Field_Length + Key_Size_Field_Length + Value_Size_Field_Length + Log_End_Offset_Field_Length + (index
-            * (keySize + valueSize)));
+    mmap.position(getEntryPosition(index));
     return factory.getStoreKey(new DataInputStream(new ByteBufferInputStream(mmap)));
   }
 
+  /**
+   * Copies the serialized key of every fencePointerInterval-th entry of the mapped segment
+   * @param mmap The mapped segment
+   * @return The fence keys in ascending order or null if fence keys are disabled
+   */
+  private ByteBuffer loadFenceKeys(ByteBuffer mmap) {
+    if (fencePointerInterval <= 0) {
+      return null;
+    }
+    int numberOfFences = (numberOfEntries(mmap) + fencePointerInterval - 1) / fencePointerInterval;
+    ByteBuffer fences = ByteBuffer.allocate(numberOfFences * keySize);
+    for (int i = 0; i < numberOfFences; i++) {
+      int position = getEntryPosition(i * fencePointerInterval);
+      mmap.limit(position + keySize);
+      mmap.position(position);
+      fences.put(mmap);
+      mmap.limit(mmap.capacity());
+    }
+    fences.flip();
+    return fences;
+  }
+
+  /**
+   * Finds the position of a key in the mapped segment by comparing it with the serialized keys in the segment, so no
+   * keys are deserialized. If the segment has fence keys, they are searched first for the block that can hold the key
+   * and only the entries of that block are read from the segment.
+   * @param keyToFind The key to find. It must support serialized comparison.
+   * @param mmap The mapped segment
+   * @return The position of the key in the segment or -1 if the segment does not have the key
+   */
+  private int findSerializedIndex(StoreKey keyToFind, ByteBuffer mmap) {
+    int low = 0;
+    int high = numberOfEntries(mmap) - 1;
+    ByteBuffer fences = fenceKeys;
+    if (fences != null) {
+      // find the last fence key that is not greater than the key to find
+      int fenceLow = 0;
+      int fenceHigh = fences.capacity() / keySize - 1;
+      int block = -1;
+      while (fenceLow <= fenceHigh) {
+        int mid = (fenceLow + fenceHigh) >>> 1;
+        int result = keyToFind.compareToSerialized(fences, mid * keySize);
+        if (result == 0) {
+          return mid * fencePointerInterval;
+        } else if (result > 0) {
+          block = mid;
+          fenceLow = mid + 1;
+        } else {
+          fenceHigh = mid - 1;
+        }
+      }
+      if (block == -1) {
+        return -1;
+      }
+      low = block * fencePointerInterval + 1;
+      high = Math.min(high, (block + 1) * fencePointerInterval - 1);
+    }
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int result = keyToFind.compareToSerialized(mmap, getEntryPosition(mid));
+      if (result == 0) {
+        return mid;
+      } else if (result > 0) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return -1;
+  }
+
   private int findIndex(StoreKey keyToFind, ByteBuffer mmap)
       throws IOException {
+    if (keyToFind.supportsSerializedComparison()) {
+      return findSerializedIndex(keyToFind, mmap);
+    }
     // binary search on the mapped file
     int low = 0;
     int high = numberOfEntries(mmap) - 1;
@@ -347,7 +700,7 @@ class IndexSegment {
           + "originalMessageOffset {} fileEndOffset {}", indexFile.getAbsolutePath(), entry.getKey(),
           entry.getValue().getOffset(), entry.getValue().getSize(), entry.getValue().getTimeToLiveInMs(),
           entry.getValue().getOriginalMessageOffset(), fileEndOffset);
-      if (index.put(entry.getKey(), entry.getValue()) == null) {
+      if (index.put(entry.getKey(), entry.getValue())) {
         numberOfItems.incrementAndGet();
         sizeWritten.addAndGet(entry.getKey().sizeInBytes() + IndexValue.Index_Value_Size_In_Bytes);
         bloomFilter.add(ByteBuffer.wrap(entry.getKey().toBytes()));
@@ -393,7 +746,7 @@ class IndexSegment {
             + "originalMessageOffset {} fileEndOffset {}", indexFile.getAbsolutePath(), entry.getKey(),
             entry.getValue().getOffset(), entry.getValue().getSize(), entry.getValue().getTimeToLiveInMs(),
             entry.getValue().getOriginalMessageOffset(), fileEndOffset);
-        if (index.put(entry.getKey(), entry.getValue()) == null) {
+        if (index.put(entry.getKey(), entry.getValue())) {
           numberOfItems.incrementAndGet();
           sizeWritten.addAndGet(entry.getKey().sizeInBytes() + IndexValue.Index_Value_Size_In_Bytes);
           bloomFilter.add(ByteBuffer.wrap(entry.getKey().toBytes()));
@@ -440,7 +793,7 @@ class IndexSegment {
     try {
       rwLock.readLock().lock();
       if (mapped.get()) {
-        throw new UnsupportedOperationException("Operation supported only on unmapped indexes");
+        return numberOfEntries(mmap.duplicate());
       }
       return numberOfItems.get();
     } finally {
@@ -487,7 +840,9 @@ class IndexSegment {
         writer.writeLong(safeEndPoint);
 
         // write the entries
-        for (Map.Entry<StoreKey, IndexValue> entry : index.entrySet()) {
+        Iterator<IndexEntry> entries = index.iterator(null);
+        while (entries.hasNext()) {
+          IndexEntry entry = entries.next();
           if (entry.getValue().getOffset() + entry.getValue().getSize() <= safeEndPoint) {
             writer.write(entry.getKey().toBytes());
             writer.write(entry.getValue().getBytes().array());
@@ -515,6 +870,61 @@ class IndexSegment {
     }
   }
 
+  /**
+   * Writes a segment that holds the given entries to disk in the format described in {@link #writeIndexToFile(long)},
+   * along with a bloom filter for its keys. Both files are written to temporary files that are renamed once they are
+   * complete, with the bloom filter going first, so that an index file that is found on disk is always complete and
+   * has its bloom filter next to it.
+   * @param indexFile The index file to write
+   * @param entries The entries of the segment, in key order
+   * @param keySize The key size of the segment
+   * @param valueSize The value size of the segment
+   * @param logEndOffset The log end offset that the segment represents
+   * @param config The store config used to size the bloom filter
+   * @throws IOException
+   */
+  static void writeToFile(File indexFile, SortedMap<StoreKey, IndexValue> entries, int keySize, int valueSize,
+      long logEndOffset, StoreConfig config)
+      throws IOException {
+    IFilter filter = newBloomFilter(entries.size(), config.storeIndexBloomBlocked,
+        config.storeIndexBloomMaxFalsePositiveProbability);
+    File bloomFile = getBloomFile(indexFile);
+    File tempBloomFile = new File(bloomFile.getAbsolutePath() + ".tmp");
+    File tempIndexFile = new File(indexFile.getAbsolutePath() + ".tmp");
+    FileOutputStream fileStream = new FileOutputStream(tempIndexFile);
+    CrcOutputStream crc = new CrcOutputStream(fileStream);
+    DataOutputStream writer = new DataOutputStream(crc);
+    try {
+      writer.writeShort(PersistentIndex.version);
+      writer.writeInt(keySize);
+      writer.writeInt(valueSize);
+      writer.writeLong(logEndOffset);
+      for (Map.Entry<StoreKey, IndexValue> entry : entries.entrySet()) {
+        byte[] keyBytes = entry.getKey().toBytes();
+        writer.write(keyBytes);
+        writer.write(entry.getValue().getBytes().array());
+        filter.add(ByteBuffer.wrap(keyBytes));
+      }
+      writer.writeLong(crc.getValue());
+      fileStream.getChannel().force(true);
+    } finally {
+      writer.close();
+    }
+    FileOutputStream bloomFileStream = new FileOutputStream(tempBloomFile);
+    CrcOutputStream crcBloom = new CrcOutputStream(bloomFileStream);
+    DataOutputStream bloomWriter = new DataOutputStream(crcBloom);
+    try {
+      FilterFactory.serialize(filter, bloomWriter);
+      bloomWriter.writeLong(crcBloom.getValue());
+      bloomFileStream.getChannel().force(true);
+    } finally {
+      bloomWriter.close();
+    }
+    if (!tempBloomFile.renameTo(bloomFile) || !tempIndexFile.renameTo(indexFile)) {
+      throw new IOException("IndexSegment : " + indexFile.getAbsolutePath() + " could not rename temporary files");
+    }
+  }
+
   /**
    * Memory maps the segment of index. Optionally, it also persist the bloom filter to disk
    * @param persistBloom True, if the bloom filter needs to be persisted. False otherwise.
@@ -539,6 +949,7 @@ class IndexSegment {
           throw new StoreException("IndexSegment : " + indexFile.getAbsolutePath() +
               " unknown version in index file", StoreErrorCodes.Index_Version_Error);
       }
+      fenceKeys = loadFenceKeys(mmap.duplicate());
       mapped.set(true);
       index = null;
     } finally {
@@ -548,11 +959,27 @@ class IndexSegment {
     // we should be fine reading bloom filter here without synchronization as the index is read only
     // we only persist the bloom filter once during its entire lifetime
     if (persistBloom) {
+      // the filter of the in memory segment is sized for the max number of entries of a segment, so a filter that is
+      // sized for the entries the segment ended up with is built from the mapped keys
+      ByteBuffer duplicate = mmap.duplicate();
+      int numEntries = numberOfEntries(duplicate);
+      IFilter filter = newBloomFilter(Math.max(numEntries, 1));
+      for (int i = 0; i < numEntries; i++) {
+        duplicate.limit(getEntryPosition(i) + keySize);
+        duplicate.position(getEntryPosition(i));
+        filter.add(duplicate);
+        duplicate.limit(duplicate.capacity());
+      }
       CrcOutputStream crcStream = new CrcOutputStream(new FileOutputStream(bloomFile));
       DataOutputStream stream = new DataOutputStream(crcStream);
-      FilterFactory.serialize(bloomFilter, stream);
-      long crcValue = crcStream.getValue();
-      stream.writeLong(crcValue);
+      try {
+        FilterFactory.serialize(filter, stream);
+        long crcValue = crcStream.getValue();
+        stream.writeLong(crcValue);
+      } finally {
+        stream.close();
+      }
+      bloomFilter = filter;
     }
   }
 
@@ -580,7 +1007,8 @@ class IndexSegment {
           long maxEndOffset = Long.MIN_VALUE;
           while (stream.available() > Crc_Field_Length) {
             StoreKey key = factory.getStoreKey(stream);
-            byte[] value = new byte[IndexValue.Index_Value_Size_In_Bytes];
+            // values written in an older format are converted to the current one as they are read
+            byte[] value = new byte[valueSize];
             stream.read(value);
             IndexValue blobValue = new IndexValue(ByteBuffer.wrap(value));
             // ignore entries that have offsets outside the log end offset that this index represents
@@ -594,9 +1022,9 @@ class IndexSegment {
               if (blobValue.getOffset() != blobValue.getOriginalMessageOffset()
                   && blobValue.getOriginalMessageOffset() >= startOffset.get()) {
                 // we add an entry for the original message offset if it is within the same index segment
-                journal.addEntry(blobValue.getOriginalMessageOffset(), key);
+                journal.addEntry(blobValue.getOriginalMessageOffset(), key, blobValue);
               }
-              journal.addEntry(blobValue.getOffset(), key);
+              journal.addEntry(blobValue.getOffset(), key, blobValue);
               sizeWritten.addAndGet(key.sizeInBytes() + IndexValue.Index_Value_Size_In_Bytes);
               numberOfItems.incrementAndGet();
               if (blobValue.getOffset() + blobValue.getSize() > maxEndOffset) {
@@ -623,6 +1051,7 @@ class IndexSegment {
             throw new StoreException("IndexSegment : " + indexFile.getAbsolutePath() + " crc check does not match",
                 StoreErrorCodes.Index_Creation_Failure);
           }
+          this.valueSize = IndexValue.Index_Value_Size_In_Bytes;
           break;
         default:
           throw new StoreException("IndexSegment : " + indexFile.getAbsolutePath() +
@@ -636,6 +1065,35 @@ class IndexSegment {
     }
   }
 
+  /**
+   * Adds all the entries in this segment, in key order, to the given list
+   * @param entries The list to which the entries of this segment need to be added
+   * @throws IOException
+   */
+  public void getIndexEntries(List<IndexEntry> entries)
+      throws IOException {
+    try {
+      rwLock.readLock().lock();
+      if (mapped.get()) {
+        ByteBuffer readBuf = mmap.duplicate();
+        int totalEntries = numberOfEntries(readBuf);
+        for (int i = 0; i < totalEntries; i++) {
+          StoreKey key = getKeyAt(readBuf, i);
+          byte[] buf = new byte[valueSize];
+          readBuf.get(buf);
+          entries.add(new IndexEntry(key, new IndexValue(ByteBuffer.wrap(buf))));
+        }
+      } else {
+        Iterator<IndexEntry> iterator = index.iterator(null);
+        while (iterator.hasNext()) {
+          entries.add(iterator.next());
+        }
+      }
+    } finally {
+      rwLock.readLock().unlock();
+    }
+  }
+
   /**
    * Gets all the entries upto maxEntries from the start of a given key (exclusive) or all entries if key is null,
    * till maxTotalSizeOfEntriesInBytes
@@ -680,11 +1138,9 @@ class IndexSegment {
             " index not found for key " + key);
       }
     } else {
-      ConcurrentNavigableMap<StoreKey, IndexValue> tempMap = index;
-      if (key != null) {
-        tempMap = index.tailMap(key, true);
-      }
-      for (Map.Entry<StoreKey, IndexValue> entry : tempMap.entrySet()) {
+      Iterator<IndexEntry> iterator = index.iterator(key);
+      while (iterator.hasNext()) {
+        IndexEntry entry = iterator.next();
         if (key == null || entry.getKey().compareTo(key) != 0) {
           MessageInfo info = new MessageInfo(entry.getKey(), entry.getValue().getSize(),
               entry.getValue().isFlagSet(IndexValue.Flags.Delete_Index), entry.getValue().getTimeToLiveInMs());
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import java.util.Iterator;
+
+
+/**
+ * The sorted key to value entries held by an index segment while it is writable and in memory. Implementations
+ * support a single writer concurrently with any number of readers. Iteration is weakly consistent: entries added
+ * while iterating may or may not be returned.
+ */
+interface IndexSegmentEntries {
+
+  /**
+   * @param key The key to find
+   * @return The value of the key or null if the key is not present
+   */
+  IndexValue get(StoreKey key);
+
+  /**
+   * Adds an entry or replaces the value of an existing key
+   * @param key The key of the entry
+   * @param value The value of the entry
+   * @return true if the key was not present before, false if its value was replaced
+   */
+  boolean put(StoreKey key, IndexValue value);
+
+  /**
+   * @return The number of entries
+   */
+  int size();
+
+  /**
+   * Removes all the entries
+   */
+  void clear();
+
+  /**
+   * Returns an iterator over the entries in key order
+   * @param fromKey The key to start from (inclusive). If null, the iteration starts at the first entry.
+   * @return An iterator over the entries starting at fromKey
+   */
+  Iterator<IndexEntry> iterator(StoreKey fromKey);
+}
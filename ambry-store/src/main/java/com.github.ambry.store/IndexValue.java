@@ -30,17 +30,41 @@ public class IndexValue {
   private static int Flag_Size_In_Bytes = 1;
   private static int Time_To_Live_Size_In_Bytes = 8;
   private static int Original_Message_Offset_Size_In_Bytes = 8;
-
-  public static int Index_Value_Size_In_Bytes = Blob_Size_In_Bytes +
+  private static int Record_Offset_Size_In_Bytes = 4;
+  private static int Record_Offset_Count = 3;
+  private static int Unknown_Record_Offset = -1;
+
+  /**
+   * The size of the values written before the record offsets of a message were kept in the index
+   */
+  public static int Index_Value_Size_In_Bytes_V0 = Blob_Size_In_Bytes +
       Offset_Size_In_Bytes +
       Flag_Size_In_Bytes +
       Time_To_Live_Size_In_Bytes +
       Original_Message_Offset_Size_In_Bytes;
 
+  public static int Index_Value_Size_In_Bytes =
+      Index_Value_Size_In_Bytes_V0 + Record_Offset_Count * Record_Offset_Size_In_Bytes;
+
   private ByteBuffer value;
 
+  /**
+   * Creates a value from its serialized form. A value of {@link #Index_Value_Size_In_Bytes_V0} bytes is converted to
+   * the current format, with the record offsets of its message unknown.
+   * @param value The serialized value
+   */
   public IndexValue(ByteBuffer value) {
-    if (value.capacity() != Index_Value_Size_In_Bytes) {
+    if (value.capacity() == Index_Value_Size_In_Bytes_V0) {
+      ByteBuffer converted = ByteBuffer.allocate(Index_Value_Size_In_Bytes);
+      ByteBuffer source = value.duplicate();
+      source.clear();
+      converted.put(source);
+      for (int i = 0; i < Record_Offset_Count; i++) {
+        converted.putInt(Unknown_Record_Offset);
+      }
+      converted.position(0);
+      value = converted;
+    } else if (value.capacity() != Index_Value_Size_In_Bytes) {
       throw new IllegalArgumentException("Invalid buffer size");
     }
     this.value = value;
@@ -51,12 +75,29 @@ public class IndexValue {
   }
 
   public IndexValue(long size, long offset, byte flags, long timeToLiveInMs, long originalMessageOffset) {
+    this(size, offset, flags, timeToLiveInMs, originalMessageOffset, null);
+  }
+
+  /**
+   * @param recordOffsets The offsets, relative to the start of the message, at which its blob properties, user
+   *                      metadata and blob records start, or null if they are not known. Offsets that do not fit the
+   *                      value are stored as unknown.
+   */
+  public IndexValue(long size, long offset, byte flags, long timeToLiveInMs, long originalMessageOffset,
+      long[] recordOffsets) {
     value = ByteBuffer.allocate(Index_Value_Size_In_Bytes);
     value.putLong(size);
     value.putLong(offset);
     value.put(flags);
     value.putLong(timeToLiveInMs);
     value.putLong(originalMessageOffset);
+    boolean known = recordOffsets != null && recordOffsets.length == Record_Offset_Count;
+    for (int i = 0; known && i < Record_Offset_Count; i++) {
+      known = recordOffsets[i] >= 0 && recordOffsets[i] <= Integer.MAX_VALUE;
+    }
+    for (int i = 0; i < Record_Offset_Count; i++) {
+      value.putInt(known ? (int) recordOffsets[i] : Unknown_Record_Offset);
+    }
     value.position(0);
   }
 
@@ -92,6 +133,21 @@ public class IndexValue {
     return value.getLong(Blob_Size_In_Bytes + Offset_Size_In_Bytes + Flag_Size_In_Bytes + Time_To_Live_Size_In_Bytes);
   }
 
+  /**
+   * @return The offsets, relative to the start of the message, at which its blob properties, user metadata and blob
+   *         records start, or null if they are not known
+   */
+  public long[] getRecordOffsets() {
+    long[] recordOffsets = new long[Record_Offset_Count];
+    for (int i = 0; i < Record_Offset_Count; i++) {
+      recordOffsets[i] = value.getInt(Index_Value_Size_In_Bytes_V0 + i * Record_Offset_Size_In_Bytes);
+      if (recordOffsets[i] == Unknown_Record_Offset) {
+        return null;
+      }
+    }
+    return recordOffsets;
+  }
+
   public void setFlag(Flags flag) {
     value.put(Blob_Size_In_Bytes + Offset_Size_In_Bytes, (byte) (getFlags() | (1 << flag.ordinal())));
   }
@@ -18,15 +18,16 @@ import java.util.List;
 
 /**
  * Represents the journal used by the index. The journal supports methods to add <offset, StoreKey> pair
- * and to get entries starting from an offset.
+ * and to get entries starting from an offset. The entries returned carry the latest index value of their key.
  */
 interface Journal {
   /**
    * Adds an <offset, key> pair to the journal.
    * @param offset The log offset to add to the journal
    * @param key The key at this offset in the log
+   * @param value The latest index value of the key
    */
-  public void addEntry(long offset, StoreKey key);
+  public void addEntry(long offset, StoreKey key, IndexValue value);
 
   /**
    * Gets entries since an offset in the journal
@@ -13,16 +13,21 @@
  */
 package com.github.ambry.store;
 
-import com.github.ambry.utils.Utils;
+import com.github.ambry.utils.SystemTime;
+import com.github.ambry.utils.Time;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 
@@ -31,52 +36,168 @@ import java.util.concurrent.atomic.AtomicLong;
  * For pre-allocated files, this tracks the end of valid file to ensure appends happen correctly.
  * It provides ability to read from arbitrary offset into the file. It can also provide a static view
  * of the log for a given set of offset,size pairs.
+ * <p/>
+ * The log is made up of one or more fixed size {@link LogSegment}s that together cover a contiguous range of logical
+ * offsets. If the segment size is not smaller than the capacity, the log is a single preallocated file. Otherwise new
+ * segments are allocated as the log grows and old segments can be freed (once compaction has moved all live data out
+ * of them), which returns their space to the store. Records may span segment boundaries.
  */
 public class Log implements Read, Write {
 
   private AtomicLong currentWriteOffset;
-  private final FileChannel fileChannel;
-  private final File file;
+  private final File dataDir;
   private final long capacityInBytes;
+  private final long segmentCapacityInBytes;
+  private final int maxNumberOfSegments;
+  private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<Long, LogSegment>();
+  private final ConcurrentSkipListMap<Long, LogSegment> retiredSegments = new ConcurrentSkipListMap<Long, LogSegment>();
   private static final String Log_File_Name = "log_current";
+  private static final String Log_Segment_File_Name_Suffix = "log";
   private Logger logger = LoggerFactory.getLogger(getClass());
   private final StoreMetrics metrics;
+  private final Time time;
+  private final MappedReadWindows readWindows;
+  // state of the group sync, guarded by syncLock
+  private final Object syncLock = new Object();
+  private long syncedEndOffset = 0;
+  private boolean syncInProgress = false;
+  private int numQueuedForSync = 0;
+
+  private class LogSegmentFilter implements FilenameFilter {
+    @Override
+    public boolean accept(File dir, String name) {
+      return name.endsWith("_" + Log_Segment_File_Name_Suffix);
+    }
+  }
 
   public Log(String dataDir, long capacityInBytes, StoreMetrics metrics)
       throws IOException {
-    file = new File(dataDir, Log_File_Name);
-    if (!file.exists()) {
-      // if the file does not exist, preallocate it
-      Utils.preAllocateFileIfNeeded(file, capacityInBytes);
-    }
+    this(dataDir, capacityInBytes, capacityInBytes, metrics);
+  }
+
+  /**
+   * Creates a log
+   * @param dataDir The directory that holds the log files
+   * @param capacityInBytes The total number of bytes the log can hold on disk
+   * @param segmentCapacityInBytes The size of each log segment. If this is not smaller than capacityInBytes, the log
+   *                               is a single preallocated file.
+   * @param metrics The store metrics
+   * @throws IOException
+   */
+  public Log(String dataDir, long capacityInBytes, long segmentCapacityInBytes, StoreMetrics metrics)
+      throws IOException {
+    this(dataDir, capacityInBytes, segmentCapacityInBytes, 0, 0, metrics);
+  }
+
+  /**
+   * Creates a log
+   * @param dataDir The directory that holds the log files
+   * @param capacityInBytes The total number of bytes the log can hold on disk
+   * @param segmentCapacityInBytes The size of each log segment. If this is not smaller than capacityInBytes, the log
+   *                               is a single preallocated file.
+   * @param mappedReadWindowSizeInBytes The size of the memory mapped windows that reads are served from. If this is
+   *                                    zero, reads are transferred from the log files.
+   * @param maxMappedReadWindows The max number of memory mapped read windows
+   * @param metrics The store metrics
+   * @throws IOException
+   */
+  public Log(String dataDir, long capacityInBytes, long segmentCapacityInBytes, int mappedReadWindowSizeInBytes,
+      int maxMappedReadWindows, StoreMetrics metrics)
+      throws IOException {
+    this(dataDir, capacityInBytes, segmentCapacityInBytes, mappedReadWindowSizeInBytes, maxMappedReadWindows, metrics,
+        SystemTime.getInstance());
+  }
+
+  /**
+   * Creates a log
+   * @param dataDir The directory that holds the log files
+   * @param capacityInBytes The total number of bytes the log can hold on disk
+   * @param segmentCapacityInBytes The size of each log segment. If this is not smaller than capacityInBytes, the log
+   *                               is a single preallocated file.
+   * @param mappedReadWindowSizeInBytes The size of the memory mapped windows that reads are served from. If this is
+   *                                    zero, reads are transferred from the log files.
+   * @param maxMappedReadWindows The max number of memory mapped read windows
+   * @param metrics The store metrics
+   * @param time The time instance to use
+   * @throws IOException
+   */
+  public Log(String dataDir, long capacityInBytes, long segmentCapacityInBytes, int mappedReadWindowSizeInBytes,
+      int maxMappedReadWindows, StoreMetrics metrics, Time time)
+      throws IOException {
+    this.dataDir = new File(dataDir);
+    this.time = time;
     this.capacityInBytes = capacityInBytes;
-    fileChannel = Utils.openChannel(file, true);
-    logger.trace("Log : {} file size on start {} ", dataDir, fileChannel.size());
+    this.metrics = metrics;
+    File singleLogFile = new File(dataDir, Log_File_Name);
+    File[] segmentFiles = this.dataDir.listFiles(new LogSegmentFilter());
+    if (segmentCapacityInBytes <= 0 || segmentCapacityInBytes >= capacityInBytes) {
+      if (segmentFiles != null && segmentFiles.length > 0) {
+        // the index refers to the data in the segments, which a single file log would not see
+        throw new IllegalArgumentException("Log : " + dataDir + " holds a segmented log and cannot be opened as a "
+            + "single file log");
+      }
+      this.segmentCapacityInBytes = capacityInBytes;
+      this.maxNumberOfSegments = 1;
+      LogSegment segment = new LogSegment(singleLogFile, 0, capacityInBytes);
+      segments.put(segment.getStartOffset(), segment);
+    } else {
+      this.segmentCapacityInBytes = segmentCapacityInBytes;
+      this.maxNumberOfSegments = (int) (capacityInBytes / segmentCapacityInBytes);
+      if (singleLogFile.exists()) {
+        // the index refers to the data in the single file, which a segmented log would not see
+        throw new IllegalArgumentException("Log : " + dataDir + " holds a single file log and cannot be opened as a "
+            + "segmented log");
+      }
+      if (segmentFiles != null) {
+        for (File segmentFile : segmentFiles) {
+          long startOffset = getSegmentStartOffset(segmentFile);
+          segments.put(startOffset, new LogSegment(segmentFile, startOffset, segmentCapacityInBytes));
+        }
+      }
+      if (segments.size() == 0) {
+        allocateSegment(0);
+      }
+    }
+    logger.trace("Log : {} number of segments on start {} log size {}", dataDir, segments.size(), sizeInBytes());
     // A log's write offset will always be set to the start of the log.
     // External components is responsible for setting it the right value
-    currentWriteOffset = new AtomicLong(0);
-    this.metrics = metrics;
+    currentWriteOffset = new AtomicLong(segments.firstKey());
+    readWindows = mappedReadWindowSizeInBytes > 0 ? new MappedReadWindows(mappedReadWindowSizeInBytes,
+        maxMappedReadWindows, metrics) : null;
   }
 
+  /**
+   * Returns a view of the given messages in the log. The view holds a reference to every segment that backs the
+   * messages, so that they are not deleted before {@link MessageReadSet#release()} is called on the view.
+   * @param readOptions The messages to view
+   * @return The view of the messages
+   * @throws IOException if a message is not backed by the log
+   */
   StoreMessageReadSet getView(List<BlobReadOptions> readOptions)
       throws IOException {
-    return new StoreMessageReadSet(file, fileChannel, readOptions, currentWriteOffset.get());
+    return new StoreMessageReadSet(this, readOptions, currentWriteOffset.get());
   }
 
+  /**
+   * @return The logical offset immediately after the last byte that the currently allocated segments can hold
+   * @throws IOException
+   */
   public long sizeInBytes()
       throws IOException {
-    return fileChannel.size();
+    if (isSegmented()) {
+      return segments.lastEntry().getValue().getEndOffset();
+    }
+    return segments.firstEntry().getValue().sizeInBytes();
   }
 
   public void setLogEndOffset(long endOffset)
       throws IOException {
-    long fileSize = fileChannel.size();
-    if (endOffset < 0 || endOffset > fileSize) {
-      throw new IllegalArgumentException("Log : " + file.getAbsolutePath() + " endOffset " + endOffset +
+    long fileSize = sizeInBytes();
+    if (endOffset < segments.firstKey() || endOffset > fileSize) {
+      throw new IllegalArgumentException("Log : " + dataDir.getAbsolutePath() + " endOffset " + endOffset +
           " outside the file size " + fileSize);
     }
-    fileChannel.position(endOffset);
-    logger.trace("Log : {} setting log end offset {}", file.getAbsolutePath(), endOffset);
+    logger.trace("Log : {} setting log end offset {}", dataDir.getAbsolutePath(), endOffset);
     this.currentWriteOffset.set(endOffset);
   }
 
@@ -84,18 +205,70 @@ public class Log implements Read, Write {
     return currentWriteOffset.get();
   }
 
+  /**
+   * @return true if the log is made up of more than one segment file.
+   */
+  public boolean isSegmented() {
+    return maxNumberOfSegments > 1;
+  }
+
+  /**
+   * @return The size of each segment in the log
+   */
+  public long getSegmentCapacityInBytes() {
+    return segmentCapacityInBytes;
+  }
+
+  /**
+   * @return The number of bytes of disk space held by the log. For a single file log this is the end offset of the
+   * log as that is how much of the preallocated file is in use.
+   */
+  public long getUsedCapacityInBytes() {
+    if (isSegmented()) {
+      return (long) segments.size() * segmentCapacityInBytes;
+    }
+    return currentWriteOffset.get();
+  }
+
+  /**
+   * @return The start offset of the first segment of the log. Everything before it has been freed.
+   */
+  long getStartOffset() {
+    return segments.firstKey();
+  }
+
+  /**
+   * Returns true if the given offset was in a segment that has since been freed. The data at such an offset can no
+   * longer be read once reads that were already in flight against the segment are done.
+   * @param offset The offset to check
+   * @return true if the offset is below the end of the log and not backed by any segment that is in use
+   */
+  boolean isOffsetFreed(long offset) {
+    if (!isSegmented() || offset >= currentWriteOffset.get()) {
+      return false;
+    }
+    Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+    return entry == null || offset >= entry.getValue().getEndOffset();
+  }
+
+  /**
+   * @return The start offsets of all the segments that currently make up the log in ascending order
+   */
+  List<Long> getSegmentStartOffsets() {
+    return new ArrayList<Long>(segments.keySet());
+  }
+
   @Override
   public int appendFrom(ByteBuffer buffer)
       throws IOException {
-    if (currentWriteOffset.get() + buffer.remaining() > capacityInBytes) {
-      metrics.overflowWriteError.inc(1);
-      throw new IllegalArgumentException(
-          "Log : " + file.getAbsolutePath() + " error trying to append to log from buffer since new data size " +
-              buffer.remaining() + " exceeds total log size " + capacityInBytes);
+    long writeOffset = currentWriteOffset.get();
+    ensureCapacity(writeOffset, buffer.remaining(), "buffer");
+    int bytesWritten = 0;
+    while (buffer.hasRemaining()) {
+      bytesWritten += getSegment(writeOffset + bytesWritten).write(buffer, writeOffset + bytesWritten);
     }
-    int bytesWritten = fileChannel.write(buffer, currentWriteOffset.get());
     currentWriteOffset.addAndGet(bytesWritten);
-    logger.trace("Log: {} bytes appended to the log from bytebuffer byteswritten : {}", file.getAbsolutePath(),
+    logger.trace("Log: {} bytes appended to the log from bytebuffer byteswritten : {}", dataDir.getAbsolutePath(),
         bytesWritten);
     return bytesWritten;
   }
@@ -103,19 +276,17 @@ public class Log implements Read, Write {
   @Override
   public void appendFrom(ReadableByteChannel channel, long size)
       throws IOException {
-    logger.trace("Log : {} currentWriteOffset {} capacityInBytes {} sizeToAppend {}", file.getAbsolutePath(),
+    logger.trace("Log : {} currentWriteOffset {} capacityInBytes {} sizeToAppend {}", dataDir.getAbsolutePath(),
         currentWriteOffset, capacityInBytes, size);
-    if (currentWriteOffset.get() + size > capacityInBytes) {
-      metrics.overflowWriteError.inc(1);
-      throw new IllegalArgumentException("Log : " + file.getAbsolutePath() + " error trying to append to log " +
-          "from channel since new data size " + size + "exceeds total log size " + capacityInBytes);
-    }
+    long writeOffset = currentWriteOffset.get();
+    ensureCapacity(writeOffset, size, "channel");
     long bytesWritten = 0;
     while (bytesWritten < size) {
-      bytesWritten += fileChannel.transferFrom(channel, currentWriteOffset.get() + bytesWritten, size - bytesWritten);
+      bytesWritten += getSegment(writeOffset + bytesWritten)
+          .transferFrom(channel, writeOffset + bytesWritten, size - bytesWritten);
     }
     currentWriteOffset.addAndGet(bytesWritten);
-    logger.trace("Log : {} bytes appended to the log from read channel bytesWritten: {}", file.getAbsolutePath(),
+    logger.trace("Log : {} bytes appended to the log from read channel bytesWritten: {}", dataDir.getAbsolutePath(),
         bytesWritten);
   }
 
@@ -123,18 +294,37 @@ public class Log implements Read, Write {
   public void writeFrom(ReadableByteChannel channel, long offset, long size)
       throws IOException {
     logger.trace("Log : {} currentWriteOffset {} capacityInBytes {} sizeToAppend {} offset to append at {}",
-        file.getAbsolutePath(), currentWriteOffset, capacityInBytes, size, offset);
+        dataDir.getAbsolutePath(), currentWriteOffset, capacityInBytes, size, offset);
     if (offset < 0 || offset + size > currentWriteOffset.get()) {
       metrics.overflowWriteError.inc(1);
-      throw new IllegalArgumentException("Log : " + file.getAbsolutePath() + " error trying to write to log " +
+      throw new IllegalArgumentException("Log : " + dataDir.getAbsolutePath() + " error trying to write to log " +
           "from channel since new data size " + size + "exceeds log end offset " + currentWriteOffset.get());
     }
     long bytesWritten = 0;
     while (bytesWritten < size) {
-      bytesWritten += fileChannel.transferFrom(channel, offset + bytesWritten, size - bytesWritten);
+      bytesWritten +=
+          getSegment(offset + bytesWritten).transferFrom(channel, offset + bytesWritten, size - bytesWritten);
+    }
+    logger.trace("Log : {} bytes written to the log from read channel at {}, bytesWritten: {}",
+        dataDir.getAbsolutePath(), offset, bytesWritten);
+  }
+
+  /**
+   * Transfers bytes from the log to the given channel. The transfer may be short if the range spans segments or, if
+   * reads are served from memory mapped windows, if the range spans windows.
+   * @param offset The log offset to start the transfer from
+   * @param size The maximum number of bytes to transfer
+   * @param channel The channel to transfer to
+   * @return The number of bytes transferred
+   * @throws IOException
+   */
+  long transferTo(long offset, long size, WritableByteChannel channel)
+      throws IOException {
+    LogSegment segment = getSegment(offset);
+    if (readWindows != null) {
+      return readWindows.writeTo(segment, offset, size, channel);
     }
-    logger.trace("Log : {} bytes written to the log from read channel at {}, bytesWritten: {}", file.getAbsolutePath(),
-        offset, bytesWritten);
+    return segment.transferTo(offset, size, channel);
   }
 
   /**
@@ -142,12 +332,78 @@ public class Log implements Read, Write {
    */
   void close()
       throws IOException {
-    fileChannel.close();
+    if (readWindows != null) {
+      readWindows.clear();
+    }
+    for (LogSegment segment : segments.values()) {
+      segment.close();
+    }
+    for (LogSegment segment : retiredSegments.values()) {
+      segment.close();
+    }
   }
 
+  /**
+   * Flushes all the segments that have been written to since the last flush
+   * @throws IOException
+   */
   public void flush()
       throws IOException {
-    fileChannel.force(true);
+    for (LogSegment segment : segments.values()) {
+      segment.flush();
+    }
+  }
+
+  /**
+   * Waits until all the bytes of the log before the given offset have been synced to disk. Only one sync runs at a
+   * time and a sync covers everything that was written to the log before it started, so the callers that arrive
+   * while a sync is in progress are all made durable by the next one.
+   * @param endOffset The offset up to which the log has to be durable
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void sync(long endOffset)
+      throws IOException, InterruptedException {
+    synchronized (syncLock) {
+      if (syncedEndOffset >= endOffset) {
+        return;
+      }
+      numQueuedForSync++;
+    }
+    while (true) {
+      long syncEndOffset;
+      int batchSize;
+      synchronized (syncLock) {
+        while (syncInProgress && syncedEndOffset < endOffset) {
+          syncLock.wait();
+        }
+        if (syncedEndOffset >= endOffset) {
+          return;
+        }
+        syncInProgress = true;
+        syncEndOffset = getLogEndOffset();
+        batchSize = numQueuedForSync;
+        numQueuedForSync = 0;
+      }
+      boolean synced = false;
+      long startTimeMs = time.milliseconds();
+      try {
+        for (LogSegment segment : segments.values()) {
+          segment.flush(false);
+        }
+        synced = true;
+      } finally {
+        metrics.fsyncTimeInMs.update(time.milliseconds() - startTimeMs);
+        metrics.fsyncBatchSize.update(batchSize);
+        synchronized (syncLock) {
+          if (synced) {
+            syncedEndOffset = Math.max(syncedEndOffset, syncEndOffset);
+          }
+          syncInProgress = false;
+          syncLock.notifyAll();
+        }
+      }
+    }
   }
 
   @Override
@@ -156,11 +412,157 @@ public class Log implements Read, Write {
     if (sizeInBytes() < position || (position + buffer.remaining() > sizeInBytes())) {
       metrics.overflowReadError.inc(1);
       logger.error("Log: {} Error trying to read outside the log range. log end position {} input buffer size {}",
-          file.getAbsolutePath(), sizeInBytes(), buffer.remaining());
-      throw new IllegalArgumentException("Log : " + file.getAbsolutePath() + " error trying to read outside " +
+          dataDir.getAbsolutePath(), sizeInBytes(), buffer.remaining());
+      throw new IllegalArgumentException("Log : " + dataDir.getAbsolutePath() + " error trying to read outside " +
           "the log range. log end position " + sizeInBytes() + " input buffer size " + buffer.remaining());
     }
-    fileChannel.read(buffer, position);
+    long readOffset = position;
+    while (buffer.hasRemaining()) {
+      LogSegment segment = acquireSegment(readOffset);
+      try {
+        readOffset += segment.read(buffer, readOffset);
+      } finally {
+        segment.release();
+      }
+    }
   }
-}
 
+  /**
+   * Takes a reference to every segment that backs the given range of the log. A retired segment is not deleted while
+   * a reference to it is held.
+   * @param offset The logical offset at which the range starts
+   * @param size The size of the range
+   * @return The segments that back the range. Each of them must be released once it is no longer read.
+   * @throws IOException if the range is not backed by the log
+   */
+  List<LogSegment> acquireSegments(long offset, long size)
+      throws IOException {
+    List<LogSegment> acquired = new ArrayList<LogSegment>();
+    try {
+      long segmentOffset = offset;
+      while (segmentOffset < offset + size) {
+        LogSegment segment = acquireSegment(segmentOffset);
+        acquired.add(segment);
+        segmentOffset = segment.getEndOffset();
+      }
+      return acquired;
+    } catch (IOException e) {
+      for (LogSegment segment : acquired) {
+        segment.release();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Removes the segment with the given start offset from the log. The segment is retired rather than deleted right
+   * away so that reads that hold a reference to it can complete. Retired segments are deleted by
+   * {@link #deleteRetiredSegments(long, long)}.
+   * @param startOffset The start offset of the segment to free
+   * @param timeMs The current time
+   * @throws IllegalArgumentException if the segment does not exist, holds the end of the log or is the last segment
+   */
+  void freeSegment(long startOffset, long timeMs) {
+    LogSegment segment = segments.get(startOffset);
+    if (segment == null || segment.getEndOffset() > currentWriteOffset.get() || startOffset == segments.lastKey()) {
+      throw new IllegalArgumentException(
+          "Log : " + dataDir.getAbsolutePath() + " cannot free segment with start offset " + startOffset);
+    }
+    segment.retire(timeMs);
+    retiredSegments.put(startOffset, segment);
+    segments.remove(startOffset);
+    logger.info("Log : {} retired segment {}", dataDir.getAbsolutePath(), segment.getFile().getAbsolutePath());
+  }
+
+  /**
+   * Closes and deletes the files of segments that have been retired for longer than the grace period and that no read
+   * holds a reference to. A segment that is still referenced is left for a later call.
+   * @param timeMs The current time
+   * @param gracePeriodMs The minimum time that a segment must have been retired before it is deleted
+   * @return The number of segments deleted
+   * @throws IOException
+   */
+  int deleteRetiredSegments(long timeMs, long gracePeriodMs)
+      throws IOException {
+    int deleted = 0;
+    for (Map.Entry<Long, LogSegment> entry : retiredSegments.entrySet()) {
+      LogSegment segment = entry.getValue();
+      if (timeMs - segment.getRetiredAtMs() < gracePeriodMs) {
+        continue;
+      }
+      if (!segment.markDeletedIfUnreferenced()) {
+        logger.info("Log : {} retired segment {} is still held by {} reads, not deleting it yet",
+            dataDir.getAbsolutePath(), segment.getFile().getAbsolutePath(), segment.getReferenceCount());
+        continue;
+      }
+      retiredSegments.remove(entry.getKey());
+      if (readWindows != null) {
+        readWindows.drop(segment.getStartOffset(), segment.getEndOffset());
+      }
+      segment.close();
+      if (!segment.getFile().delete()) {
+        throw new IOException("Log : " + dataDir.getAbsolutePath() + " could not delete retired segment " +
+            segment.getFile().getAbsolutePath());
+      }
+      deleted++;
+      logger.info("Log : {} deleted segment {}", dataDir.getAbsolutePath(), segment.getFile().getAbsolutePath());
+    }
+    return deleted;
+  }
+
+  /**
+   * Allocates segments as required so that size bytes can be appended at writeOffset.
+   */
+  private void ensureCapacity(long writeOffset, long size, String source)
+      throws IOException {
+    long requiredEndOffset = writeOffset + size;
+    long allocatedEndOffset = segments.lastEntry().getValue().getEndOffset();
+    long segmentsNeeded = requiredEndOffset <= allocatedEndOffset ? 0
+        : (requiredEndOffset - allocatedEndOffset + segmentCapacityInBytes - 1) / segmentCapacityInBytes;
+    if (segments.size() + segmentsNeeded > maxNumberOfSegments) {
+      metrics.overflowWriteError.inc(1);
+      throw new IllegalArgumentException(
+          "Log : " + dataDir.getAbsolutePath() + " error trying to append to log from " + source
+              + " since new data size " + size + " exceeds total log size " + capacityInBytes);
+    }
+    for (int i = 0; i < segmentsNeeded; i++) {
+      allocateSegment(segments.lastEntry().getValue().getEndOffset());
+    }
+  }
+
+  private void allocateSegment(long startOffset)
+      throws IOException {
+    File segmentFile = new File(dataDir, startOffset + "_" + Log_Segment_File_Name_Suffix);
+    LogSegment segment = new LogSegment(segmentFile, startOffset, segmentCapacityInBytes);
+    segments.put(startOffset, segment);
+    logger.info("Log : {} allocated segment {}", dataDir.getAbsolutePath(), segmentFile.getAbsolutePath());
+  }
+
+  private LogSegment acquireSegment(long offset)
+      throws IOException {
+    LogSegment segment = getSegment(offset);
+    if (!segment.acquire()) {
+      throw new IOException(
+          "Log : " + dataDir.getAbsolutePath() + " offset " + offset + " is backed by a deleted log segment");
+    }
+    return segment;
+  }
+
+  private LogSegment getSegment(long offset)
+      throws IOException {
+    Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+    if (entry == null || offset >= entry.getValue().getEndOffset()) {
+      entry = retiredSegments.floorEntry(offset);
+      if (entry == null || offset >= entry.getValue().getEndOffset()) {
+        throw new IOException(
+            "Log : " + dataDir.getAbsolutePath() + " offset " + offset + " is not backed by any log segment");
+      }
+    }
+    return entry.getValue();
+  }
+
+  private long getSegmentStartOffset(File segmentFile) {
+    String name = segmentFile.getName();
+    return Long.parseLong(name.substring(0, name.indexOf("_")));
+  }
+}
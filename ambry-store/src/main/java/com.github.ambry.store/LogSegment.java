@@ -0,0 +1,289 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import com.github.ambry.utils.Utils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A single preallocated file that backs a contiguous range of the log. A segment covers the logical log offsets
+ * [startOffset, startOffset + capacityInBytes). All the offsets accepted by this class are logical log offsets and
+ * are translated to positions within the underlying file.
+ */
+class LogSegment {
+  private final File file;
+  private final FileChannel fileChannel;
+  private final long startOffset;
+  private final long capacityInBytes;
+  private volatile long retiredAtMs = -1;
+  // the number of reads that hold the segment and whether it has been deleted, guarded by the lock of the segment
+  private int references = 0;
+  private boolean deleted = false;
+  // the number of writes to the segment and the number of them that the last successful flush covered
+  private final AtomicLong writeCount = new AtomicLong(0);
+  private long flushedWriteCount = 0;
+  // the size of the file as of the last successful flush
+  private long flushedFileSize;
+  private Logger logger = LoggerFactory.getLogger(getClass());
+
+  /**
+   * Creates or opens a log segment. If the file does not exist, it is preallocated.
+   * @param file The file that backs this segment
+   * @param startOffset The logical log offset of the first byte in this segment
+   * @param capacityInBytes The number of bytes this segment can hold
+   * @throws IOException
+   */
+  LogSegment(File file, long startOffset, long capacityInBytes)
+      throws IOException {
+    if (!file.exists()) {
+      // if the file does not exist, preallocate it
+      Utils.preAllocateFileIfNeeded(file, capacityInBytes);
+    }
+    this.file = file;
+    this.startOffset = startOffset;
+    this.capacityInBytes = capacityInBytes;
+    this.fileChannel = Utils.openChannel(file, true);
+    this.flushedFileSize = fileChannel.size();
+    logger.trace("LogSegment : {} start offset {} file size on start {}", file.getAbsolutePath(), startOffset,
+        fileChannel.size());
+  }
+
+  /**
+   * @return The logical log offset of the first byte in this segment
+   */
+  long getStartOffset() {
+    return startOffset;
+  }
+
+  /**
+   * @return The logical log offset immediately after the last byte this segment can hold
+   */
+  long getEndOffset() {
+    return startOffset + capacityInBytes;
+  }
+
+  /**
+   * @return The number of bytes this segment can hold
+   */
+  long getCapacityInBytes() {
+    return capacityInBytes;
+  }
+
+  /**
+   * @return The file that backs this segment
+   */
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * @return The size of the underlying file
+   * @throws IOException
+   */
+  long sizeInBytes()
+      throws IOException {
+    return fileChannel.size();
+  }
+
+  /**
+   * Writes as much of the buffer as fits in this segment starting at the given logical offset.
+   * @return The number of bytes written
+   */
+  int write(ByteBuffer buffer, long offset)
+      throws IOException {
+    int toWrite = (int) Math.min(buffer.remaining(), getEndOffset() - offset);
+    ByteBuffer slice = buffer.duplicate();
+    slice.limit(slice.position() + toWrite);
+    int written = 0;
+    while (slice.hasRemaining()) {
+      written += fileChannel.write(slice, toPosition(offset) + written);
+    }
+    buffer.position(buffer.position() + written);
+    writeCount.incrementAndGet();
+    return written;
+  }
+
+  /**
+   * Transfers up to size bytes from the channel into this segment starting at the given logical offset. The number
+   * of bytes transferred is bounded by the end of the segment.
+   * @return The number of bytes transferred
+   */
+  long transferFrom(ReadableByteChannel channel, long offset, long size)
+      throws IOException {
+    long toWrite = Math.min(size, getEndOffset() - offset);
+    long written = 0;
+    while (written < toWrite) {
+      written += fileChannel.transferFrom(channel, toPosition(offset) + written, toWrite - written);
+    }
+    writeCount.incrementAndGet();
+    return written;
+  }
+
+  /**
+   * Transfers up to size bytes from this segment starting at the given logical offset to the channel. The number of
+   * bytes transferred is bounded by the end of the segment.
+   * @return The number of bytes transferred
+   */
+  long transferTo(long offset, long size, WritableByteChannel channel)
+      throws IOException {
+    return fileChannel.transferTo(toPosition(offset), Math.min(size, getEndOffset() - offset), channel);
+  }
+
+  /**
+   * Maps a range of this segment into memory for reading. The range is cut short at the end of the file so that the
+   * file is never extended.
+   * @param offset The logical offset at which the range starts
+   * @param size The size of the range
+   * @return A read only buffer over the range
+   * @throws IOException
+   */
+  MappedByteBuffer map(long offset, long size)
+      throws IOException {
+    long position = toPosition(offset);
+    return fileChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size, fileChannel.size() - position));
+  }
+
+  /**
+   * Reads as much of the buffer as fits in this segment starting at the given logical offset.
+   * @return The number of bytes read
+   */
+  int read(ByteBuffer buffer, long offset)
+      throws IOException {
+    int toRead = (int) Math.min(buffer.remaining(), getEndOffset() - offset);
+    ByteBuffer slice = buffer.duplicate();
+    slice.limit(slice.position() + toRead);
+    int read = 0;
+    while (slice.hasRemaining()) {
+      int bytesRead = fileChannel.read(slice, toPosition(offset) + read);
+      if (bytesRead < 0) {
+        throw new IOException("LogSegment : " + file.getAbsolutePath() + " reached end of file at " + offset);
+      }
+      read += bytesRead;
+    }
+    buffer.position(buffer.position() + read);
+    return read;
+  }
+
+  /**
+   * Flushes the segment to disk if it has been written to since the last flush
+   */
+  void flush()
+      throws IOException {
+    flush(true);
+  }
+
+  /**
+   * Flushes the segment to disk if it has been written to since the last successful flush. A flush that is called
+   * while another one is in progress waits for it, so that it does not return before the writes are on disk.
+   * @param metadata Whether the metadata of the file has to be flushed even if the size of the file has not changed.
+   *                 The file is preallocated without changing its size, so appends grow the file and its metadata is
+   *                 always flushed if the size has changed since the last flush, as the data written past the old
+   *                 size could not be read back after a crash otherwise.
+   */
+  synchronized void flush(boolean metadata)
+      throws IOException {
+    long writes = writeCount.get();
+    if (writes != flushedWriteCount) {
+      // the size is read after the writes are counted, so it covers all of them
+      long fileSize = fileChannel.size();
+      fileChannel.force(metadata || fileSize != flushedFileSize);
+      flushedWriteCount = writes;
+      flushedFileSize = fileSize;
+    }
+  }
+
+  /**
+   * Closes the segment
+   */
+  void close()
+      throws IOException {
+    fileChannel.close();
+  }
+
+  /**
+   * Marks this segment as retired. A retired segment no longer accepts new reads through the log but remains open
+   * until the reads that hold a reference to it have released it.
+   * @param timeMs The time at which the segment was retired
+   */
+  void retire(long timeMs) {
+    retiredAtMs = timeMs;
+  }
+
+  /**
+   * @return The time at which this segment was retired or -1 if it is still in use.
+   */
+  long getRetiredAtMs() {
+    return retiredAtMs;
+  }
+
+  /**
+   * Takes a reference to this segment for a read. The segment is not deleted while any reference to it is held.
+   * @return true if the reference was taken, false if the segment has already been deleted
+   */
+  synchronized boolean acquire() {
+    if (deleted) {
+      return false;
+    }
+    references++;
+    return true;
+  }
+
+  /**
+   * Releases a reference taken by {@link #acquire()}
+   */
+  synchronized void release() {
+    if (references == 0) {
+      throw new IllegalStateException("LogSegment : " + file.getAbsolutePath() + " released more often than acquired");
+    }
+    references--;
+  }
+
+  /**
+   * @return The number of references to this segment
+   */
+  synchronized int getReferenceCount() {
+    return references;
+  }
+
+  /**
+   * Marks this segment as deleted if no read holds a reference to it. No reference can be taken once it is marked.
+   * @return true if the segment was marked as deleted, false if it is still referenced
+   */
+  synchronized boolean markDeletedIfUnreferenced() {
+    if (references > 0) {
+      return false;
+    }
+    deleted = true;
+    return true;
+  }
+
+  private long toPosition(long offset) {
+    if (offset < startOffset || offset > getEndOffset()) {
+      throw new IllegalArgumentException(
+          "LogSegment : " + file.getAbsolutePath() + " offset " + offset + " outside segment range [" + startOffset
+              + ", " + getEndOffset() + ")");
+    }
+    return offset - startOffset;
+  }
+}
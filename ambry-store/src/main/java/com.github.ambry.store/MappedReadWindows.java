@@ -0,0 +1,168 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import com.github.ambry.utils.Utils;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A bounded set of read only memory mapped windows over the segments of a log. Reads are served by writing the mapped
+ * memory straight to the destination channel. This avoids the intermediate buffer that FileChannel.transferTo uses
+ * for channels that it cannot transfer to directly, such as SSL channels, and the file read of every small read.
+ * Windows are aligned to the window size within their segment and the least recently used window is dropped when a
+ * new one is needed.
+ * <p/>
+ * Windows are reference counted. The set holds a reference to each window it keeps and every read holds one while it
+ * copies from the window. A window is unmapped as soon as it has been dropped and the last read of it is done, since
+ * accessing an unmapped buffer crashes the process.
+ */
+class MappedReadWindows {
+  private final long windowSizeInBytes;
+  private final LinkedHashMap<Long, Window> windows;
+  private final StoreMetrics metrics;
+  // the number of windows that are mapped, including the dropped ones that are still being read
+  private int mappedWindowCount = 0;
+
+  /**
+   * A mapped window and the number of references to it. Guarded by the lock of the set.
+   */
+  private static class Window {
+    private final MappedByteBuffer buffer;
+    private int references = 1;
+
+    Window(MappedByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * @param windowSizeInBytes The size of each window
+   * @param maxWindows The max number of windows that are kept mapped
+   * @param metrics The store metrics
+   */
+  MappedReadWindows(long windowSizeInBytes, final int maxWindows, StoreMetrics metrics) {
+    this.windowSizeInBytes = windowSizeInBytes;
+    this.metrics = metrics;
+    this.windows = new LinkedHashMap<Long, Window>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Window> eldest) {
+        if (size() > maxWindows) {
+          release(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Writes up to size bytes of the segment starting at the given logical offset to the channel. The write stops at
+   * the end of the window that holds the offset, so it may be short.
+   * @param segment The segment that holds the offset
+   * @param offset The logical offset to start writing from
+   * @param size The max number of bytes to write
+   * @param channel The channel to write to
+   * @return The number of bytes written
+   * @throws IOException
+   */
+  long writeTo(LogSegment segment, long offset, long size, WritableByteChannel channel)
+      throws IOException {
+    long segmentStartOffset = segment.getStartOffset();
+    long windowStartOffset =
+        segmentStartOffset + (offset - segmentStartOffset) / windowSizeInBytes * windowSizeInBytes;
+    Window window = acquireWindow(segment, windowStartOffset);
+    try {
+      ByteBuffer buffer = window.buffer.duplicate();
+      int position = (int) (offset - windowStartOffset);
+      buffer.limit(position + (int) Math.min(size, buffer.capacity() - position));
+      buffer.position(position);
+      return channel.write(buffer);
+    } finally {
+      synchronized (this) {
+        release(window);
+      }
+    }
+  }
+
+  /**
+   * Drops the windows that start in the given range of the log. Must be called before the segment that backs the
+   * range is closed.
+   * @param startOffset The logical offset at which the range starts
+   * @param endOffset The logical offset immediately after the range
+   */
+  synchronized void drop(long startOffset, long endOffset) {
+    Iterator<Map.Entry<Long, Window>> iterator = windows.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Long, Window> entry = iterator.next();
+      if (entry.getKey() >= startOffset && entry.getKey() < endOffset) {
+        iterator.remove();
+        release(entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Drops all the windows
+   */
+  synchronized void clear() {
+    for (Window window : windows.values()) {
+      release(window);
+    }
+    windows.clear();
+  }
+
+  /**
+   * @return The number of windows that are mapped, including the ones that have been dropped but are still being read
+   */
+  synchronized int getMappedWindowCount() {
+    return mappedWindowCount;
+  }
+
+  private synchronized Window acquireWindow(LogSegment segment, long windowStartOffset)
+      throws IOException {
+    Window window = windows.get(windowStartOffset);
+    if (window == null) {
+      metrics.mappedReadWindowMissCount.inc();
+      window = new Window(
+          segment.map(windowStartOffset, Math.min(windowSizeInBytes, segment.getEndOffset() - windowStartOffset)));
+      mappedWindowCount++;
+      // the reference of the read is taken before the window is added, as adding it may drop it right away
+      window.references++;
+      windows.put(windowStartOffset, window);
+    } else {
+      metrics.mappedReadWindowHitCount.inc();
+      window.references++;
+    }
+    return window;
+  }
+
+  /**
+   * Releases a reference to the window and unmaps it if that was the last one. Must be called with the lock held.
+   * @param window The window to release
+   */
+  private void release(Window window) {
+    window.references--;
+    if (window.references == 0) {
+      Utils.unmap(window.buffer);
+      mappedWindowCount--;
+    }
+  }
+}
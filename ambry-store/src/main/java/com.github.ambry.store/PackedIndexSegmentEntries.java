@@ -0,0 +1,256 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import com.github.ambry.utils.ByteBufferInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * Index segment entries packed into off heap buffers. The serialized keys and values are stored in fixed size slots
+ * in the order in which they were added and a primitive array of slot numbers is kept sorted by key. This avoids
+ * the key, value and skip list node objects that are otherwise held for every entry. Keys that support serialized
+ * comparison are compared with the stored bytes directly. Other keys are deserialized when they are compared, which
+ * makes lookups cost about the same as a binary search on a memory mapped segment.
+ * All the keys must have the same size, which holds for the keys of an index segment.
+ */
+class PackedIndexSegmentEntries implements IndexSegmentEntries {
+  private final StoreKeyFactory factory;
+  private final int valueSize = IndexValue.Index_Value_Size_In_Bytes;
+  private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+  private int keySize = -1;
+  private int capacity;
+  private ByteBuffer keys = null;
+  private ByteBuffer values = null;
+  private int[] sortedSlots;
+  private int count = 0;
+  // incremented on every change to the sorted order so that iterators can find their position again
+  private int modCount = 0;
+
+  /**
+   * @param factory The store key factory used to deserialize keys
+   * @param initialCapacity The number of entries to allocate space for up front. The space grows as required.
+   */
+  PackedIndexSegmentEntries(StoreKeyFactory factory, int initialCapacity) {
+    this.factory = factory;
+    this.capacity = Math.max(initialCapacity, 1);
+    this.sortedSlots = new int[capacity];
+  }
+
+  @Override
+  public IndexValue get(StoreKey key) {
+    try {
+      rwLock.readLock().lock();
+      int position = search(key);
+      return position >= 0 ? getValueAt(sortedSlots[position]) : null;
+    } finally {
+      rwLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean put(StoreKey key, IndexValue value) {
+    try {
+      rwLock.writeLock().lock();
+      if (keys == null) {
+        keySize = key.sizeInBytes();
+        keys = ByteBuffer.allocateDirect(capacity * keySize);
+        values = ByteBuffer.allocateDirect(capacity * valueSize);
+      } else if (key.sizeInBytes() != keySize) {
+        throw new IllegalArgumentException(
+            "Key " + key + " of size " + key.sizeInBytes() + " does not match the key size " + keySize);
+      }
+      int position = search(key);
+      if (position >= 0) {
+        putValueAt(sortedSlots[position], value);
+        return false;
+      }
+      if (count == capacity) {
+        grow();
+      }
+      int slot = count;
+      ByteBuffer keyBuf = keys.duplicate();
+      keyBuf.position(slot * keySize);
+      keyBuf.put(key.toBytes());
+      putValueAt(slot, value);
+      int insertionPoint = -(position + 1);
+      System.arraycopy(sortedSlots, insertionPoint, sortedSlots, insertionPoint + 1, count - insertionPoint);
+      sortedSlots[insertionPoint] = slot;
+      count++;
+      modCount++;
+      return true;
+    } finally {
+      rwLock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    try {
+      rwLock.readLock().lock();
+      return count;
+    } finally {
+      rwLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void clear() {
+    try {
+      rwLock.writeLock().lock();
+      count = 0;
+      modCount++;
+    } finally {
+      rwLock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Iterator<IndexEntry> iterator(final StoreKey fromKey) {
+    return new Iterator<IndexEntry>() {
+      private int position = -1;
+      private int expectedModCount;
+      private StoreKey lastKey = null;
+
+      @Override
+      public boolean hasNext() {
+        try {
+          rwLock.readLock().lock();
+          reposition();
+          return position < count;
+        } finally {
+          rwLock.readLock().unlock();
+        }
+      }
+
+      @Override
+      public IndexEntry next() {
+        try {
+          rwLock.readLock().lock();
+          reposition();
+          if (position >= count) {
+            throw new NoSuchElementException();
+          }
+          int slot = sortedSlots[position++];
+          lastKey = getKeyAt(slot);
+          return new IndexEntry(lastKey, getValueAt(slot));
+        } finally {
+          rwLock.readLock().unlock();
+        }
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Index segment entries cannot be removed through an iterator");
+      }
+
+      /**
+       * Finds the position of the next entry if the sorted order changed since it was last computed
+       */
+      private void reposition() {
+        if (position != -1 && expectedModCount == modCount) {
+          return;
+        }
+        if (lastKey != null) {
+          int found = search(lastKey);
+          position = found >= 0 ? found + 1 : -(found + 1);
+        } else if (fromKey != null) {
+          int found = search(fromKey);
+          position = found >= 0 ? found : -(found + 1);
+        } else {
+          position = 0;
+        }
+        expectedModCount = modCount;
+      }
+    };
+  }
+
+  /**
+   * Binary searches the sorted slots for the key. Must be called with the lock held.
+   * @return The position of the key in the sorted order if present, or (-(insertion point) - 1) otherwise
+   */
+  private int search(StoreKey key) {
+    int low = 0;
+    int high = count - 1;
+    boolean serializedComparison = key.supportsSerializedComparison();
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int result = serializedComparison ? -key.compareToSerialized(keys, sortedSlots[mid] * keySize)
+          : getKeyAt(sortedSlots[mid]).compareTo(key);
+      if (result == 0) {
+        return mid;
+      } else if (result < 0) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private StoreKey getKeyAt(int slot) {
+    ByteBuffer keyBuf = keys.duplicate();
+    keyBuf.position(slot * keySize);
+    keyBuf.limit(slot * keySize + keySize);
+    try {
+      return factory.getStoreKey(new DataInputStream(new ByteBufferInputStream(keyBuf)));
+    } catch (IOException e) {
+      // the bytes were serialized from a valid key by this class
+      throw new IllegalStateException("Failed to deserialize key in slot " + slot, e);
+    }
+  }
+
+  private IndexValue getValueAt(int slot) {
+    byte[] buf = new byte[valueSize];
+    ByteBuffer valueBuf = values.duplicate();
+    valueBuf.position(slot * valueSize);
+    valueBuf.get(buf);
+    return new IndexValue(ByteBuffer.wrap(buf));
+  }
+
+  private void putValueAt(int slot, IndexValue value) {
+    ByteBuffer valueBuf = values.duplicate();
+    valueBuf.position(slot * valueSize);
+    ByteBuffer bytes = value.getBytes().duplicate();
+    bytes.clear();
+    valueBuf.put(bytes);
+  }
+
+  /**
+   * Doubles the space available for entries
+   */
+  private void grow() {
+    int newCapacity = capacity * 2;
+    ByteBuffer newKeys = ByteBuffer.allocateDirect(newCapacity * keySize);
+    ByteBuffer oldKeys = keys.duplicate();
+    oldKeys.position(0).limit(count * keySize);
+    newKeys.put(oldKeys);
+    ByteBuffer newValues = ByteBuffer.allocateDirect(newCapacity * valueSize);
+    ByteBuffer oldValues = values.duplicate();
+    oldValues.position(0).limit(count * valueSize);
+    newValues.put(oldValues);
+    int[] newSortedSlots = new int[newCapacity];
+    System.arraycopy(sortedSlots, 0, newSortedSlots, 0, count);
+    keys = newKeys;
+    values = newValues;
+    sortedSlots = newSortedSlots;
+    capacity = newCapacity;
+  }
+}
@@ -33,15 +33,19 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -64,11 +68,21 @@ public class PersistentIndex {
   public static final String Bloom_File_Name_Suffix = "bloom";
   private static final String Clean_Shutdown_Filename = "cleanshutdown";
   private static final String Cleanup_Token_Filename = "cleanuptoken";
+  private static final String Recovery_Checkpoint_Filename = "recoverycheckpoint";
+  private static final String Relocation_Source_Filename = "relocationsource";
   public static final short version = 0;
   public static final short Cleanup_Token_Version_V1 = 0;
+  public static final short Recovery_Checkpoint_Version_V1 = 0;
+  // values in V2 checkpoints include the record offsets of their messages
+  public static final short Recovery_Checkpoint_Version_V2 = 1;
+  public static final short Relocation_Source_Version_V1 = 0;
 
   protected Scheduler scheduler;
-  protected ConcurrentSkipListMap<Long, IndexSegment> indexes = new ConcurrentSkipListMap<Long, IndexSegment>();
+  // replaced as a whole when several segments have to change at once, so that readers never see a mix of the two
+  protected volatile ConcurrentSkipListMap<Long, IndexSegment> indexes =
+      new ConcurrentSkipListMap<Long, IndexSegment>();
+  // held while adding a segment to or replacing the map of segments after startup
+  private final Object indexesLock = new Object();
   protected Journal journal;
 
   private long maxInMemoryIndexSizeInBytes;
@@ -77,6 +91,14 @@ public class PersistentIndex {
   private String dataDir;
   private Logger logger = LoggerFactory.getLogger(getClass());
   private IndexPersistor persistor;
+  private IndexSegmentMerger merger;
+  private RecoveryCheckpointer checkpointer;
+  // the entries that were added since the index was last persisted, in log order. Only kept for the checkpoint.
+  private final LinkedList<IndexEntry> unpersistedEntries = new LinkedList<IndexEntry>();
+  private long persistedIndexEndOffset = 0;
+  // the range of the log that compaction was copying blobs out of when the store went down, if it was
+  private long relocationSourceStartOffset = -1;
+  private long relocationSourceEndOffset = -1;
   protected HardDeleteThread hardDeleter;
   private Thread hardDeleteThread;
   private MessageStoreHardDelete hardDelete;
@@ -88,6 +110,11 @@ public class PersistentIndex {
   private long logEndOffsetOnStartup;
   private final StoreMetrics metrics;
   private Time time;
+  private IndexLookupCache lookupCache = null;
+  private ExpiryIndex expiryIndex = null;
+  private BlobStoreStats stats = null;
+  private DiskIOScheduler ioScheduler;
+  private BloomFilterBudget bloomFilterBudget;
 
   private class IndexFilter implements FilenameFilter {
     @Override
@@ -109,8 +136,25 @@ public class PersistentIndex {
   public PersistentIndex(String datadir, Scheduler scheduler, Log log, StoreConfig config, StoreKeyFactory factory,
       MessageStoreRecovery recovery, MessageStoreHardDelete hardDelete, StoreMetrics metrics, Time time)
       throws StoreException {
+    this(datadir, scheduler, log, config, factory, recovery, hardDelete, metrics, null, null, time);
+  }
+
+  /**
+   * Creates a new persistent index whose background I/O is paced by the I/O scheduler of its disk
+   * @param ioScheduler The I/O scheduler of the disk that the index is on. If this is null, the background I/O of
+   *                    the index is not paced.
+   * @param bloomFilterBudget The budget that the bloom filters of the sealed segments of the index are counted
+   *                          against. If this is null, the filters of all the segments are always loaded.
+   * @throws StoreException
+   */
+  public PersistentIndex(String datadir, Scheduler scheduler, Log log, StoreConfig config, StoreKeyFactory factory,
+      MessageStoreRecovery recovery, MessageStoreHardDelete hardDelete, StoreMetrics metrics,
+      DiskIOScheduler ioScheduler, BloomFilterBudget bloomFilterBudget, Time time)
+      throws StoreException {
     try {
       this.time = time;
+      this.ioScheduler = ioScheduler;
+      this.bloomFilterBudget = bloomFilterBudget;
       this.scheduler = scheduler;
       this.metrics = metrics;
       this.log = log;
@@ -118,7 +162,16 @@ public class PersistentIndex {
       File[] indexFiles = indexDir.listFiles(new IndexFilter());
       this.factory = factory;
       this.config = config;
+      if (config.storeIndexLookupCacheMaxEntries > 0) {
+        lookupCache = new IndexLookupCache(config.storeIndexLookupCacheMaxEntries, metrics);
+      }
+      if (config.storeEnableCompaction && config.storeCompactionExpiryBucketSizeSeconds > 0 && log.isSegmented()) {
+        expiryIndex = new ExpiryIndex((long) config.storeCompactionExpiryBucketSizeSeconds * Time.MsPerSec,
+            config.storeCompactionExpiryIndexMaxEntries);
+      }
       persistor = new IndexPersistor();
+      merger = new IndexSegmentMerger();
+      checkpointer = new RecoveryCheckpointer();
       hardDeleter = new HardDeleteThread();
       this.hardDelete = hardDelete;
       storeJournalFactory = Utils.getObj(config.storeJournalFactory);
@@ -135,47 +188,66 @@ public class PersistentIndex {
             throw new NullPointerException("arguments to compare two files is null");
           }
           // File name pattern for index is offset_name. We extract the offset from
-          // name to compare
-          int o1Index = o1.getName().indexOf("_", 0);
-          long o1Offset = Long.parseLong(o1.getName().substring(0, o1Index));
-          int o2Index = o2.getName().indexOf("_", 0);
-          long o2Offset = Long.parseLong(o2.getName().substring(0, o2Index));
-          if (o1Offset == o2Offset) {
-            return 0;
-          } else if (o1Offset < o2Offset) {
-            return -1;
-          } else {
-            return 1;
+          // name to compare. If two files have the same offset, the one that was created by merging more segments
+          // comes first
+          int result = Long.compare(IndexSegment.getStartOffset(o1), IndexSegment.getStartOffset(o2));
+          if (result == 0) {
+            result =
+                Long.compare(IndexSegment.getLastSegmentStartOffset(o2), IndexSegment.getLastSegmentStartOffset(o1));
           }
+          return result;
         }
       });
 
-      for (int i = 0; i < indexFiles.length; i++) {
+      // If the store went down while segments were being merged, the segments that were merged may still be around.
+      // They are covered by the merged segment and are removed.
+      List<File> segmentFiles = new ArrayList<File>();
+      long lastCoveredSegmentStartOffset = -1;
+      for (File indexFile : indexFiles) {
+        if (IndexSegment.getStartOffset(indexFile) <= lastCoveredSegmentStartOffset) {
+          logger.info("Index : {} deleting index segment {} that was merged into another segment", datadir, indexFile);
+          deleteSegmentFiles(indexFile);
+        } else {
+          segmentFiles.add(indexFile);
+          lastCoveredSegmentStartOffset = IndexSegment.getLastSegmentStartOffset(indexFile);
+        }
+      }
+
+      for (int i = 0; i < segmentFiles.size(); i++) {
         boolean map = false;
         // We map all the indexes except the most recent index segment.
         // The recent index segment would go through recovery after they have been
         // read into memory
-        if (i < indexFiles.length - 1) {
+        if (i < segmentFiles.size() - 1) {
           map = true;
         }
-        IndexSegment info = new IndexSegment(indexFiles[i], map, factory, config, metrics, journal);
-        logger
-            .info("Index : {} loaded index segment {} with start offset {} and end offset {} ", datadir, indexFiles[i],
-                info.getStartOffset(), info.getEndOffset());
+        IndexSegment info = new IndexSegment(segmentFiles.get(i), map, factory, config, metrics, journal);
+        if (map) {
+          info.setBloomFilterBudget(bloomFilterBudget);
+        }
+        logger.info("Index : {} loaded index segment {} with start offset {} and end offset {} ", datadir,
+            segmentFiles.get(i), info.getStartOffset(), info.getEndOffset());
         indexes.put(info.getStartOffset(), info);
       }
       this.dataDir = datadir;
+      if (expiryIndex != null) {
+        loadExpiryIndex();
+      }
       logger.info("Index : " + datadir + " log end offset of index  before recovery " + log.getLogEndOffset());
       // perform recovery if required
       final Timer.Context context = metrics.recoveryTime.time();
-      // Recover the last messages in the log into the index, if any.
-      if (indexes.size() > 0) {
-        IndexSegment lastSegment = indexes.lastEntry().getValue();
-        // recover last segment
-        recover(lastSegment, log.sizeInBytes(), recovery);
-      } else {
-        recover(null, log.sizeInBytes(), recovery);
+      IndexSegment lastSegment = indexes.size() > 0 ? indexes.lastEntry().getValue() : null;
+      persistedIndexEndOffset = getRecoveryStartOffset(lastSegment);
+      File checkpointFile = new File(datadir, Recovery_Checkpoint_Filename);
+      if (config.storeIndexRecoveryCheckpointIntervalSeconds > 0) {
+        // the entries in the checkpoint do not have to be recovered from the log
+        lastSegment = replayRecoveryCheckpoint(lastSegment, checkpointFile);
+      } else if (checkpointFile.exists()) {
+        checkpointFile.delete();
       }
+      readRelocationSource();
+      // Recover the last messages in the log into the index, if any.
+      recover(lastSegment, log.sizeInBytes(), recovery);
       context.stop();
       // set the log end offset to the recovered offset from the index after initializing it
       log.setLogEndOffset(getCurrentEndOffset());
@@ -188,6 +260,13 @@ public class PersistentIndex {
       logger.info("Index : " + datadir + " Starting hard delete recovery");
       hardDeleter.performRecovery();
       logger.info("Index : " + datadir + " Finished performing hard delete recovery");
+      if (config.storeEnableStats) {
+        // a bucket of the stats covers a log segment so that the stats of a segment go away with it
+        long bucketSizeInBytes =
+            log.isSegmented() ? log.getSegmentCapacityInBytes() : config.storeStatsBucketSizeInBytes;
+        stats = new BlobStoreStats(bucketSizeInBytes, time);
+        loadStats();
+      }
 
       this.maxInMemoryIndexSizeInBytes = config.storeIndexMaxMemorySizeBytes;
       this.maxInMemoryNumElements = config.storeIndexMaxNumberOfInmemElements;
@@ -204,6 +283,15 @@ public class PersistentIndex {
       this.scheduler.schedule("index persistor", persistor,
           config.storeDataFlushDelaySeconds + new Random().nextInt(Time.SecsPerMin),
           config.storeDataFlushIntervalSeconds, TimeUnit.SECONDS);
+      if (config.storeIndexRecoveryCheckpointIntervalSeconds > 0) {
+        this.scheduler.schedule("index recovery checkpointer", checkpointer,
+            config.storeIndexRecoveryCheckpointIntervalSeconds, config.storeIndexRecoveryCheckpointIntervalSeconds,
+            TimeUnit.SECONDS);
+      }
+      if (config.storeIndexSegmentMergeMaxEntries > 0) {
+        this.scheduler.schedule("index segment merger", merger, config.storeIndexSegmentMergeIntervalSeconds,
+            config.storeIndexSegmentMergeIntervalSeconds, TimeUnit.SECONDS);
+      }
 
       if (config.storeEnableHardDelete) {
         logger.info("Index : " + datadir + " Starting hard delete thread ");
@@ -213,6 +301,13 @@ public class PersistentIndex {
         hardDeleter.close();
       }
       metrics.initializeHardDeleteMetric(this, log);
+      metrics.initializeBloomFilterMetric(this);
+      if (expiryIndex != null) {
+        metrics.initializeExpiryIndexMetric(expiryIndex);
+      }
+      if (stats != null) {
+        metrics.initializeStatsMetric(stats);
+      }
     } catch (StoreException e) {
       throw e;
     } catch (Exception e) {
@@ -232,11 +327,7 @@ public class PersistentIndex {
   private void recover(IndexSegment segmentToRecover, long endOffset, MessageStoreRecovery recovery)
       throws StoreException, IOException {
     // fix the start offset in the log for recovery.
-    long startOffsetForRecovery = 0;
-    if (segmentToRecover != null) {
-      startOffsetForRecovery =
-          segmentToRecover.getEndOffset() == -1 ? segmentToRecover.getStartOffset() : segmentToRecover.getEndOffset();
-    }
+    long startOffsetForRecovery = getRecoveryStartOffset(segmentToRecover);
     logger.info("Index : {} performing recovery on index with start offset {} and end offset {}", dataDir,
         startOffsetForRecovery, endOffset);
     List<MessageInfo> messagesRecovered = recovery.recover(log, startOffsetForRecovery, endOffset, factory);
@@ -258,7 +349,11 @@ public class PersistentIndex {
       if (value != null) {
         // if the key already exists in the index, update it if it is deleted
         logger.info("Index : {} msg already exist with key {}", dataDir, info.getStoreKey());
-        if (value.isFlagSet(IndexValue.Flags.Delete_Index)) {
+        if (value.isFlagSet(IndexValue.Flags.Delete_Index) && info.isDeleted() && isRelocatedCopy(value, info)) {
+          // the message is a copy of a delete record that was relocated by compaction
+          value = new IndexValue(info.getSize(), runningOffset, value.getFlags(), value.getTimeToLiveInMs(),
+              value.getOriginalMessageOffset(), value.getRecordOffsets());
+        } else if (value.isFlagSet(IndexValue.Flags.Delete_Index)) {
           // key already has a deleted entry in the index!
           logger.error("Index: {} recovered msg {} is for a key that is already deleted in the index: "
               + "index offset {} Original Offset {}", dataDir, info, value.getOffset(),
@@ -268,24 +363,36 @@ public class PersistentIndex {
           value.setFlag(IndexValue.Flags.Delete_Index);
           value.setNewOffset(runningOffset);
           value.setNewSize(info.getSize());
+        } else if (isRelocatedCopy(value, info)) {
+          // the message is a copy of a live blob that was relocated by compaction
+          value = new IndexValue(info.getSize(), runningOffset, value.getFlags(), value.getTimeToLiveInMs(),
+              runningOffset, value.getRecordOffsets());
         } else {
           throw new StoreException("Illegal message state during recovery. ", StoreErrorCodes.Initialization_Error);
         }
         validateFileSpan(new FileSpan(runningOffset, runningOffset + info.getSize()));
         segmentToRecover.addEntry(new IndexEntry(info.getStoreKey(), value), runningOffset + info.getSize());
-        journal.addEntry(runningOffset, info.getStoreKey());
+        addUnpersistedEntry(new IndexEntry(info.getStoreKey(), value));
+        updateExpiryIndex(info.getStoreKey(), value);
+        journal.addEntry(runningOffset, info.getStoreKey(), value);
+        invalidateCachedValue(info.getStoreKey());
         if (value.getOriginalMessageOffset() != runningOffset && value.getOriginalMessageOffset() >= segmentToRecover
             .getStartOffset()) {
-          journal.addEntry(value.getOriginalMessageOffset(), info.getStoreKey());
+          journal.addEntry(value.getOriginalMessageOffset(), info.getStoreKey(), value);
         }
         logger.info("Index : {} updated message with key {} size {} ttl {} deleted {}", dataDir, info.getStoreKey(),
             value.getSize(), value.getTimeToLiveInMs(), info.isDeleted());
       } else {
         // create a new entry in the index
-        IndexValue newValue = new IndexValue(info.getSize(), runningOffset, info.getExpirationTimeInMs());
+        IndexValue newValue =
+            new IndexValue(info.getSize(), runningOffset, (byte) 0, info.getExpirationTimeInMs(), runningOffset,
+                info.getRecordOffsets());
         validateFileSpan(new FileSpan(runningOffset, runningOffset + info.getSize()));
         segmentToRecover.addEntry(new IndexEntry(info.getStoreKey(), newValue), runningOffset + info.getSize());
-        journal.addEntry(runningOffset, info.getStoreKey());
+        addUnpersistedEntry(new IndexEntry(info.getStoreKey(), newValue));
+        updateExpiryIndex(info.getStoreKey(), newValue);
+        journal.addEntry(runningOffset, info.getStoreKey(), newValue);
+        invalidateCachedValue(info.getStoreKey());
         logger.info("Index : {} adding new message to index with key {} size {} ttl {} deleted {}", dataDir,
             info.getStoreKey(), info.getSize(), info.getExpirationTimeInMs(), info.isDeleted());
       }
@@ -293,6 +400,228 @@ public class PersistentIndex {
     }
   }
 
+  /**
+   * Gets the offset in the log from which the given segment has to be recovered
+   * @param segmentToRecover The last segment of the index or null if there are no segments
+   * @return The offset in the log from which recovery has to start
+   */
+  private long getRecoveryStartOffset(IndexSegment segmentToRecover) {
+    if (segmentToRecover == null) {
+      return 0;
+    }
+    return segmentToRecover.getEndOffset() == -1 ? segmentToRecover.getStartOffset() : segmentToRecover.getEndOffset();
+  }
+
+  /**
+   * Records that compaction is about to copy the records in the given range of the log to the end of the log. The
+   * copies look like duplicates of the originals, so recovery only takes a record in the part of the log that it
+   * recovers for a copy made by compaction if the record that the index points to is in this range. The range is
+   * durable before this returns.
+   * @param startOffset The start offset (inclusive) of the range that records are copied out of
+   * @param endOffset The end offset (exclusive) of the range that records are copied out of
+   * @throws StoreException
+   */
+  void startRelocation(long startOffset, long endOffset)
+      throws StoreException {
+    File relocationSourceFile = new File(dataDir, Relocation_Source_Filename);
+    File tempFile = new File(relocationSourceFile.getAbsolutePath() + ".tmp");
+    try {
+      FileOutputStream fileStream = new FileOutputStream(tempFile);
+      CrcOutputStream crc = new CrcOutputStream(fileStream);
+      DataOutputStream writer = new DataOutputStream(crc);
+      try {
+        writer.writeShort(Relocation_Source_Version_V1);
+        writer.writeLong(startOffset);
+        writer.writeLong(endOffset);
+        writer.writeLong(crc.getValue());
+        fileStream.getChannel().force(true);
+      } finally {
+        writer.close();
+      }
+      if (!tempFile.renameTo(relocationSourceFile)) {
+        throw new IOException("Could not rename " + tempFile + " to " + relocationSourceFile);
+      }
+    } catch (IOException e) {
+      throw new StoreException("IO error while recording relocation source for index " + dataDir, e,
+          StoreErrorCodes.IOError);
+    }
+  }
+
+  /**
+   * Forgets the range recorded by {@link #startRelocation(long, long)} once the copies have been persisted in the
+   * index
+   */
+  void endRelocation() {
+    File relocationSourceFile = new File(dataDir, Relocation_Source_Filename);
+    if (relocationSourceFile.exists() && !relocationSourceFile.delete()) {
+      logger.error("Index : {} could not delete {}", dataDir, relocationSourceFile);
+    }
+  }
+
+  /**
+   * Reads the range of the log that compaction was copying records out of when the store went down, if it was
+   * @throws IOException
+   */
+  private void readRelocationSource()
+      throws IOException {
+    File relocationSourceFile = new File(dataDir, Relocation_Source_Filename);
+    if (!relocationSourceFile.exists()) {
+      return;
+    }
+    CrcInputStream crcStream = new CrcInputStream(new FileInputStream(relocationSourceFile));
+    DataInputStream stream = new DataInputStream(crcStream);
+    try {
+      short version = stream.readShort();
+      long startOffset = stream.readLong();
+      long endOffset = stream.readLong();
+      long crc = crcStream.getValue();
+      if (version != Relocation_Source_Version_V1 || crc != stream.readLong()) {
+        logger.error("Index : {} ignoring relocation source that is corrupt or of unknown version {}", dataDir,
+            version);
+        return;
+      }
+      relocationSourceStartOffset = startOffset;
+      relocationSourceEndOffset = endOffset;
+      logger.info("Index : {} compaction was relocating records from {} to {}", dataDir, startOffset, endOffset);
+    } catch (IOException e) {
+      logger.error("Index : {} ignoring relocation source that could not be read", dataDir, e);
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Returns true if a recovered message is a copy of the record that the index points to, made by compaction
+   * @param value The value of the key of the message in the index
+   * @param info The recovered message
+   * @return true if the record the index points to was being relocated and is of the same size as the message
+   */
+  private boolean isRelocatedCopy(IndexValue value, MessageInfo info) {
+    return value.getOffset() >= relocationSourceStartOffset && value.getOffset() < relocationSourceEndOffset
+        && value.getSize() == info.getSize();
+  }
+
+  /**
+   * Adds the entries in the recovery checkpoint that follow the end of the persisted index to the last segment, so
+   * that only the part of the log that follows the checkpoint has to be recovered. The checkpoint is ignored if it is
+   * corrupt or if it does not continue from the end of the persisted index.
+   * @param segmentToRecover The last segment of the index. If this is null, a new segment is created when needed
+   * @param checkpointFile The file that holds the recovery checkpoint
+   * @return The last segment of the index after the entries in the checkpoint were added to it
+   * @throws StoreException
+   * @throws IOException
+   */
+  private IndexSegment replayRecoveryCheckpoint(IndexSegment segmentToRecover, File checkpointFile)
+      throws StoreException, IOException {
+    if (!checkpointFile.exists()) {
+      return segmentToRecover;
+    }
+    long indexEndOffset = getRecoveryStartOffset(segmentToRecover);
+    long checkpointStartOffset;
+    long checkpointEndOffset;
+    List<IndexEntry> entries = new ArrayList<IndexEntry>();
+    CrcInputStream crcStream = new CrcInputStream(new FileInputStream(checkpointFile));
+    DataInputStream stream = new DataInputStream(crcStream);
+    try {
+      short version = stream.readShort();
+      int valueSize;
+      switch (version) {
+        case Recovery_Checkpoint_Version_V1:
+          valueSize = IndexValue.Index_Value_Size_In_Bytes_V0;
+          break;
+        case Recovery_Checkpoint_Version_V2:
+          valueSize = IndexValue.Index_Value_Size_In_Bytes;
+          break;
+        default:
+          logger.error("Index : {} ignoring recovery checkpoint with unknown version {}", dataDir, version);
+          return segmentToRecover;
+      }
+      checkpointStartOffset = stream.readLong();
+      checkpointEndOffset = stream.readLong();
+      int numEntries = stream.readInt();
+      for (int i = 0; i < numEntries; i++) {
+        StoreKey key = factory.getStoreKey(stream);
+        byte[] value = new byte[valueSize];
+        stream.readFully(value);
+        entries.add(new IndexEntry(key, new IndexValue(ByteBuffer.wrap(value))));
+      }
+      long crc = crcStream.getValue();
+      if (crc != stream.readLong()) {
+        logger.error("Index : {} ignoring recovery checkpoint as its crc does not match", dataDir);
+        return segmentToRecover;
+      }
+    } catch (IOException e) {
+      logger.error("Index : {} ignoring recovery checkpoint that could not be read", dataDir, e);
+      return segmentToRecover;
+    } finally {
+      stream.close();
+    }
+    if (checkpointStartOffset > indexEndOffset || checkpointEndOffset <= indexEndOffset
+        || checkpointEndOffset > log.sizeInBytes()) {
+      logger.info("Index : {} not using recovery checkpoint from {} to {} for index that ends at {}", dataDir,
+          checkpointStartOffset, checkpointEndOffset, indexEndOffset);
+      return segmentToRecover;
+    }
+    logger.info("Index : {} replaying recovery checkpoint from {} to {} for index that ends at {}", dataDir,
+        checkpointStartOffset, checkpointEndOffset, indexEndOffset);
+    for (IndexEntry entry : entries) {
+      IndexValue value = entry.getValue();
+      if (value.getOffset() < indexEndOffset) {
+        // already in the persisted index
+        continue;
+      }
+      if (segmentToRecover == null) {
+        segmentToRecover = new IndexSegment(dataDir, indexEndOffset, factory, entry.getKey().sizeInBytes(),
+            IndexValue.Index_Value_Size_In_Bytes, config, metrics);
+        indexes.put(indexEndOffset, segmentToRecover);
+      }
+      FileSpan fileSpan = new FileSpan(value.getOffset(), value.getOffset() + value.getSize());
+      validateFileSpan(fileSpan);
+      segmentToRecover.addEntry(entry, fileSpan.getEndOffset());
+      addUnpersistedEntry(entry);
+      updateExpiryIndex(entry.getKey(), value);
+      journal.addEntry(value.getOffset(), entry.getKey(), value);
+      if (value.getOriginalMessageOffset() != value.getOffset()
+          && value.getOriginalMessageOffset() >= segmentToRecover.getStartOffset()) {
+        journal.addEntry(value.getOriginalMessageOffset(), entry.getKey(), value);
+      }
+      metrics.recoveryCheckpointEntriesReplayed.inc();
+    }
+    return segmentToRecover;
+  }
+
+  /**
+   * Remembers an entry that was added to the index until the index is persisted, so that it can be written to the
+   * recovery checkpoint
+   * @param entry The entry that was added to the index
+   */
+  private void addUnpersistedEntry(IndexEntry entry) {
+    if (config.storeIndexRecoveryCheckpointIntervalSeconds > 0) {
+      // the value is copied as the index may modify its values in place
+      IndexValue value = new IndexValue(ByteBuffer.wrap(entry.getValue().getBytes().array().clone()));
+      synchronized (unpersistedEntries) {
+        unpersistedEntries.add(new IndexEntry(entry.getKey(), value));
+      }
+    }
+  }
+
+  /**
+   * Drops the remembered entries that are now part of the persisted index
+   * @param indexEndOffset The end offset up to which the index has been persisted
+   */
+  private void onIndexPersisted(long indexEndOffset) {
+    synchronized (unpersistedEntries) {
+      persistedIndexEndOffset = indexEndOffset;
+      while (!unpersistedEntries.isEmpty()) {
+        IndexValue value = unpersistedEntries.getFirst().getValue();
+        if (value.getOffset() + value.getSize() > indexEndOffset) {
+          break;
+        }
+        unpersistedEntries.removeFirst();
+      }
+    }
+  }
+
   /**
    * Adds a new entry to the index
    * @param entry The entry to be added to the index
@@ -301,16 +630,146 @@ public class PersistentIndex {
    */
   public void addToIndex(IndexEntry entry, FileSpan fileSpan)
       throws StoreException {
+    addToIndex(entry, fileSpan, stats == null ? null : findKey(entry.getKey()));
+  }
+
+  /**
+   * Adds a new entry to the index
+   * @param entry The entry to be added to the index
+   * @param fileSpan The file span that this entry represents in the log
+   * @param previousValue The value of the key in the index before the entry is added. Only required if stats are
+   *                      kept.
+   * @throws StoreException
+   */
+  private void addToIndex(IndexEntry entry, FileSpan fileSpan, IndexValue previousValue)
+      throws StoreException {
     validateFileSpan(fileSpan);
     if (needToRollOverIndex(entry)) {
       IndexSegment info = new IndexSegment(dataDir, entry.getValue().getOffset(), factory, entry.getKey().sizeInBytes(),
           IndexValue.Index_Value_Size_In_Bytes, config, metrics);
       info.addEntry(entry, fileSpan.getEndOffset());
-      indexes.put(info.getStartOffset(), info);
+      synchronized (indexesLock) {
+        indexes.put(info.getStartOffset(), info);
+      }
     } else {
       indexes.lastEntry().getValue().addEntry(entry, fileSpan.getEndOffset());
     }
-    journal.addEntry(entry.getValue().getOffset(), entry.getKey());
+    addUnpersistedEntry(entry);
+    updateExpiryIndex(entry.getKey(), entry.getValue());
+    journal.addEntry(entry.getValue().getOffset(), entry.getKey(), entry.getValue());
+    invalidateCachedValue(entry.getKey());
+    updateStats(entry.getValue(), previousValue);
+  }
+
+  /**
+   * Builds the stats from the entries of the index segments once the index has been recovered. The put entries are
+   * checked against the latest value of their key. A put entry that was replaced by a delete in the same segment is
+   * no longer in the index and the size of its record is read from the log.
+   * @throws StoreException
+   * @throws IOException
+   */
+  private void loadStats()
+      throws StoreException, IOException {
+    List<IndexEntry> segmentEntries = new ArrayList<IndexEntry>();
+    for (IndexSegment segment : indexes.values()) {
+      segmentEntries.clear();
+      segment.getIndexEntries(segmentEntries);
+      for (IndexEntry entry : segmentEntries) {
+        IndexValue value = entry.getValue();
+        if (!value.isFlagSet(IndexValue.Flags.Delete_Index)) {
+          IndexValue latestValue = findKey(entry.getKey());
+          if (!latestValue.isFlagSet(IndexValue.Flags.Delete_Index)) {
+            if (latestValue.getOffset() == value.getOffset()) {
+              stats.onPut(value);
+            }
+          } else if (latestValue.getOriginalMessageOffset() == value.getOffset()) {
+            stats.onDeletedPut(value);
+          }
+        } else if (value.getOriginalMessageOffset() >= segment.getStartOffset()
+            && value.getOriginalMessageOffset() != value.getOffset()) {
+          try {
+            MessageInfo info = hardDelete.getMessageInfo(log, value.getOriginalMessageOffset(), factory);
+            stats.onDeletedPut(new IndexValue(info.getSize(), value.getOriginalMessageOffset(),
+                value.getTimeToLiveInMs()));
+          } catch (IOException e) {
+            // the space of the record has already been reclaimed
+            logger.trace("Index : {} not counting deleted record at {} that could not be read", dataDir,
+                value.getOriginalMessageOffset(), e);
+          }
+        }
+      }
+    }
+    logger.info("Index : {} loaded stats {}", dataDir, stats.getTotalCounts());
+  }
+
+  /**
+   * Tells the stats, if they are kept, about a new value of a key
+   * @param value The new value of the key
+   * @param previousValue The value of the key before the new value was added, or null if there was none
+   */
+  private void updateStats(IndexValue value, IndexValue previousValue) {
+    if (stats == null) {
+      return;
+    }
+    boolean previousIsPut = previousValue != null && !previousValue.isFlagSet(IndexValue.Flags.Delete_Index);
+    if (value.isFlagSet(IndexValue.Flags.Delete_Index)) {
+      if (previousIsPut) {
+        stats.onDelete(previousValue);
+      }
+    } else {
+      if (previousIsPut) {
+        stats.onReplace(previousValue);
+      }
+      stats.onPut(value);
+    }
+  }
+
+  /**
+   * @return The stats of the blobs in the store, or null if they are not kept
+   */
+  BlobStoreStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Builds the expiry index from the entries of the index segments that were loaded. The segments are read from the
+   * oldest to the newest so that the latest value of every key is the one that is tracked.
+   * @throws IOException
+   */
+  private void loadExpiryIndex()
+      throws IOException {
+    List<IndexEntry> segmentEntries = new ArrayList<IndexEntry>();
+    for (IndexSegment segment : indexes.values()) {
+      segmentEntries.clear();
+      segment.getIndexEntries(segmentEntries);
+      for (IndexEntry entry : segmentEntries) {
+        expiryIndex.add(entry.getKey(), entry.getValue());
+      }
+    }
+    logger.info("Index : {} loaded expiry index with {} bytes pending expiry", dataDir,
+        expiryIndex.getBytesPendingExpiry());
+  }
+
+  /**
+   * Tells the expiry index, if there is one, about the latest value of a key
+   * @param key The key that was added to the index
+   * @param value The latest value of the key
+   */
+  private void updateExpiryIndex(StoreKey key, IndexValue value) {
+    if (expiryIndex != null) {
+      expiryIndex.add(key, value);
+    }
+  }
+
+  /**
+   * Removes the cached value of a key from the lookup cache, if there is one. This has to be called whenever the
+   * index or the log record of a key changes.
+   * @param key The key whose cached value needs to be removed
+   */
+  private void invalidateCachedValue(StoreKey key) {
+    if (lookupCache != null) {
+      lookupCache.invalidate(key);
+    }
   }
 
   /**
@@ -397,6 +856,23 @@ public class PersistentIndex {
     return findKey(key, null);
   }
 
+  /**
+   * Gets the latest value of the key of a journal entry. The value carried by the entry is used if there is one, and
+   * the index is only searched if the journal no longer had a value for the key when the entry was read.
+   * @param entry The journal entry
+   * @return The latest index value of the key of the entry
+   * @throws StoreException
+   */
+  private IndexValue getLatestValue(JournalEntry entry)
+      throws StoreException {
+    IndexValue value = entry.getValue();
+    if (value == null) {
+      metrics.journalValueMissCount.inc();
+      value = findKey(entry.getKey());
+    }
+    return value;
+  }
+
   /**
    * Finds the value associated with a key if it is present in the index within the passed in filespan.
    * Filespan represents the start offset and end offset in the log.
@@ -408,17 +884,37 @@ public class PersistentIndex {
   public IndexValue findKey(StoreKey key, FileSpan fileSpan)
       throws StoreException {
     final Timer.Context context = metrics.findTime.time();
+    IndexLookupCache.LookupMarker lookupMarker = null;
+    // the segments are read from one version of the map even if segments are merged in the meantime
+    ConcurrentSkipListMap<Long, IndexSegment> segments = indexes;
     try {
+      if (lookupCache != null) {
+        IndexLookupCache.CachedValue cachedValue = lookupCache.get(key);
+        if (cachedValue != null) {
+          // The cached value is the latest value of the key and comes from the newest segment that has the key.
+          // It also answers a search within a file span unless the span ends before that segment.
+          long segmentStartOffset = cachedValue.getSegmentStartOffset();
+          if (fileSpan == null || segmentStartOffset <= segments.floorKey(fileSpan.getEndOffset())) {
+            if (fileSpan != null && segmentStartOffset < floorSegmentEntry(fileSpan.getStartOffset()).getKey()) {
+              // none of the segments in the span is new enough to have the key
+              return null;
+            }
+            return cachedValue.getValue();
+          }
+        }
+        if (fileSpan == null) {
+          lookupMarker = lookupCache.startLookup(key);
+        }
+      }
       ConcurrentNavigableMap<Long, IndexSegment> segmentsMapToSearch = null;
       if (fileSpan == null) {
         logger.trace("Searching for " + key + " in the entire index");
-        segmentsMapToSearch = indexes.descendingMap();
+        segmentsMapToSearch = segments.descendingMap();
       } else {
         logger.trace("Searching for " + key + " in index with filespan ranging from " + fileSpan.getStartOffset() +
             " to " + fileSpan.getEndOffset());
-        segmentsMapToSearch = indexes
-            .subMap(indexes.floorKey(fileSpan.getStartOffset()), true, indexes.floorKey(fileSpan.getEndOffset()), true)
-            .descendingMap();
+        segmentsMapToSearch = segments.subMap(floorSegmentEntry(fileSpan.getStartOffset()).getKey(), true,
+            segments.floorKey(fileSpan.getEndOffset()), true).descendingMap();
         metrics.segmentSizeForExists.update(segmentsMapToSearch.size());
       }
       for (Map.Entry<Long, IndexSegment> entry : segmentsMapToSearch.entrySet()) {
@@ -427,10 +923,17 @@ public class PersistentIndex {
         if (value != null) {
           logger.trace("Index : {} found value offset {} size {} ttl {}", dataDir, value.getOffset(), value.getSize(),
               value.getTimeToLiveInMs());
+          if (lookupMarker != null) {
+            lookupCache.put(key, value, entry.getKey(), lookupMarker);
+          }
           return value;
         }
       }
     } finally {
+      if (lookupMarker != null) {
+        // the marker is still in place if the lookup found nothing or failed
+        lookupCache.endLookup(key, lookupMarker);
+      }
       context.stop();
     }
     return null;
@@ -452,11 +955,12 @@ public class PersistentIndex {
       throw new StoreException("Id " + id + " already deleted in index " + dataDir, StoreErrorCodes.ID_Deleted);
     }
     IndexValue newValue =
-        new IndexValue(value.getSize(), value.getOffset(), value.getFlags(), value.getTimeToLiveInMs());
+        new IndexValue(value.getSize(), value.getOffset(), value.getFlags(), value.getTimeToLiveInMs(),
+            value.getOffset(), value.getRecordOffsets());
     newValue.setFlag(IndexValue.Flags.Delete_Index);
     newValue.setNewOffset(fileSpan.getStartOffset());
     newValue.setNewSize(fileSpan.getEndOffset() - fileSpan.getStartOffset());
-    addToIndex(new IndexEntry(id, newValue), fileSpan);
+    addToIndex(new IndexEntry(id, newValue), fileSpan, value);
   }
 
   /**
@@ -472,7 +976,8 @@ public class PersistentIndex {
     if (value == null) {
       throw new StoreException("Id " + id + " not present in index " + dataDir, StoreErrorCodes.ID_Not_Found);
     } else if (value.isFlagSet(IndexValue.Flags.Delete_Index)) {
-      if (getOptions.contains(StoreGetOptions.Store_Include_Deleted)) {
+      if (getOptions.contains(StoreGetOptions.Store_Include_Deleted)
+          && !log.isOffsetFreed(value.getOriginalMessageOffset())) {
         // The delete entry in the index does not contain the information about the size of the original blob. So we
         // use the Message format to read and provide the information. The range in log that we provide starts at the
         // original message offset and ends at the delete message's start offset (the original message surely cannot go
@@ -480,7 +985,7 @@ public class PersistentIndex {
         try {
           MessageInfo deletedBlobInfo = hardDelete.getMessageInfo(log, value.getOriginalMessageOffset(), factory);
           return new BlobReadOptions(value.getOriginalMessageOffset(), deletedBlobInfo.getSize(),
-              deletedBlobInfo.getExpirationTimeInMs(), deletedBlobInfo.getStoreKey());
+              deletedBlobInfo.getExpirationTimeInMs(), deletedBlobInfo.getStoreKey(), value.getRecordOffsets());
         } catch (IOException e) {
           throw new StoreException("IOError when reading delete blob info from the log " + dataDir, e,
               StoreErrorCodes.IOError);
@@ -488,10 +993,13 @@ public class PersistentIndex {
       } else {
         throw new StoreException("Id " + id + " has been deleted in index " + dataDir, StoreErrorCodes.ID_Deleted);
       }
-    } else if (isExpired(value) && !getOptions.contains(StoreGetOptions.Store_Include_Expired)) {
+    } else if (isExpired(value) && (!getOptions.contains(StoreGetOptions.Store_Include_Expired) || log
+        .isOffsetFreed(value.getOffset()))) {
+      // the space of an expired blob may have been reclaimed already
       throw new StoreException("Id " + id + " has expired ttl in index " + dataDir, StoreErrorCodes.TTL_Expired);
     }
-    return new BlobReadOptions(value.getOffset(), value.getSize(), value.getTimeToLiveInMs(), id);
+    return new BlobReadOptions(value.getOffset(), value.getSize(), value.getTimeToLiveInMs(), id,
+        value.getRecordOffsets());
   }
 
   private boolean isExpired(IndexValue value){
@@ -507,13 +1015,21 @@ public class PersistentIndex {
    */
   public Set<StoreKey> findMissingKeys(List<StoreKey> keys)
       throws StoreException {
-    Set<StoreKey> missingKeys = new HashSet<StoreKey>();
-    for (StoreKey key : keys) {
-      if (findKey(key) == null) {
-        missingKeys.add(key);
+    // sort the keys once so that every segment can be searched for the whole batch in a single pass
+    List<StoreKey> keysToFind = new ArrayList<StoreKey>(keys.size());
+    for (StoreKey key : new HashSet<StoreKey>(keys)) {
+      if (lookupCache == null || lookupCache.get(key) == null) {
+        keysToFind.add(key);
+      }
+    }
+    Collections.sort(keysToFind);
+    for (IndexSegment segment : indexes.descendingMap().values()) {
+      if (keysToFind.size() == 0) {
+        break;
       }
+      keysToFind = segment.getMissingKeys(keysToFind);
     }
-    return missingKeys;
+    return new HashSet<StoreKey>(keysToFind);
   }
 
   /**
@@ -580,7 +1096,7 @@ public class PersistentIndex {
           long currentTotalSizeOfEntries = 0;
           long lastEntrySize = 0;
           for (JournalEntry entry : entries) {
-            IndexValue value = findKey(entry.getKey());
+            IndexValue value = getLatestValue(entry);
             messageEntries.add(
                 new MessageInfo(entry.getKey(), value.getSize(), value.isFlagSet(IndexValue.Flags.Delete_Index),
                     value.getTimeToLiveInMs()));
@@ -612,7 +1128,7 @@ public class PersistentIndex {
         } else {
           // Find index segment closest to the token offset.
           // Get entries starting from the first key in this offset.
-          Map.Entry<Long, IndexSegment> entry = indexes.floorEntry(offsetToStart);
+          Map.Entry<Long, IndexSegment> entry = floorSegmentEntry(offsetToStart);
           StoreFindToken newToken = null;
           if (entry != null && entry.getKey() != indexes.lastKey()) {
             startTimeInMs = time.milliseconds();
@@ -705,7 +1221,10 @@ public class PersistentIndex {
   private StoreFindToken findEntriesFromSegmentStartOffset(long initialSegmentStartOffset, StoreKey key,
       List<MessageInfo> messageEntries, FindEntriesCondition findEntriesCondition)
       throws IOException, StoreException {
-    long segmentStartOffset = initialSegmentStartOffset;
+    // the segment that the token refers to may have been merged into an earlier segment or dropped along with the log
+    // it covered since the token was handed out
+    Map.Entry<Long, IndexSegment> segmentEntry = floorSegmentEntry(initialSegmentStartOffset);
+    long segmentStartOffset = segmentEntry.getKey();
     if (segmentStartOffset == indexes.lastKey()) {
       // We would never have given away a token with a segmentStartOffset of the latest segment.
       throw new IllegalArgumentException("Index : " + dataDir +
@@ -715,21 +1234,34 @@ public class PersistentIndex {
     long newTokenSegmentStartOffset = StoreFindToken.Uninitialized_Offset;
     long newTokenOffsetInJournal = StoreFindToken.Uninitialized_Offset;
 
-    IndexSegment segmentToProcess = indexes.get(segmentStartOffset);
+    IndexSegment segmentToProcess = segmentEntry.getValue();
     AtomicLong currentTotalSizeOfEntries = new AtomicLong(0);
 
+    if (key != null && segmentStartOffset > initialSegmentStartOffset) {
+      // the segment was dropped, so none of the keys of the segment that is read now were read yet
+      key = null;
+    } else if (key != null && segmentToProcess.getLastSegmentStartOffset() > initialSegmentStartOffset) {
+      /* The token was handed out before the segment it refers to was merged with the segments that followed it. The
+         keys of those segments are interleaved with the keys that were already read, so the merged segment has to be
+         read in full. */
+      logger.trace("Index : " + dataDir + " findEntriesFromOffset segment start offset " + initialSegmentStartOffset
+          + " was merged into segment with start offset " + segmentStartOffset + ", reading it in full");
+      key = null;
+    }
+
     /* First, get keys from the segment corresponding to the passed in segment start offset if the token has a non-null
        key. Otherwise, since all the keys starting from the offset have to be read, skip this and check in the journal
        first. */
     if (key != null) {
       if (segmentToProcess.getEntriesSince(key, findEntriesCondition, messageEntries, currentTotalSizeOfEntries)) {
         // if we did fetch entries from this segment, set the new token info accordingly.
-        newTokenSegmentStartOffset = segmentStartOffset;
+        newTokenSegmentStartOffset = segmentToProcess.getLastSegmentStartOffset();
       }
       logger.trace("Index : " + dataDir + " findEntriesFromOffset segment start offset " + segmentStartOffset +
           " with key " + key + " total entries received " + messageEntries.size());
-      segmentStartOffset = indexes.higherKey(segmentStartOffset);
-      segmentToProcess = indexes.get(segmentStartOffset);
+      segmentEntry = indexes.higherEntry(segmentStartOffset);
+      segmentStartOffset = segmentEntry.getKey();
+      segmentToProcess = segmentEntry.getValue();
     }
 
     while (findEntriesCondition.proceed(currentTotalSizeOfEntries.get(), segmentToProcess.getLastModifiedTime())) {
@@ -745,14 +1277,13 @@ public class PersistentIndex {
           if (entry.getOffset() > currentSegment.getEndOffset()) {
             /* The offset is of the next segment. If the next segment's last modified time makes
             it ineligible, skip */
-            long nextSegmentStartOffset = indexes.higherKey(currentSegment.getStartOffset());
-            currentSegment = indexes.get(nextSegmentStartOffset);
+            currentSegment = indexes.higherEntry(currentSegment.getStartOffset()).getValue();
             if (!findEntriesCondition.proceed(currentTotalSizeOfEntries.get(), currentSegment.getLastModifiedTime())) {
               break;
             }
           }
           newTokenOffsetInJournal = entry.getOffset();
-          IndexValue value = findKey(entry.getKey());
+          IndexValue value = getLatestValue(entry);
           messageEntries.add(
               new MessageInfo(entry.getKey(), value.getSize(), value.isFlagSet(IndexValue.Flags.Delete_Index),
                   value.getTimeToLiveInMs()));
@@ -778,12 +1309,13 @@ public class PersistentIndex {
       } else {
         // Read and populate from the first key in the segment with this segmentStartOffset
         if (segmentToProcess.getEntriesSince(null, findEntriesCondition, messageEntries, currentTotalSizeOfEntries)) {
-          newTokenSegmentStartOffset = segmentStartOffset;
+          newTokenSegmentStartOffset = segmentToProcess.getLastSegmentStartOffset();
         }
         logger.trace("Index : " + dataDir + " findEntriesFromOffset segment start offset " + segmentStartOffset +
             " with all the keys, total entries received " + messageEntries.size());
-        segmentStartOffset = indexes.higherKey(segmentStartOffset);
-        segmentToProcess = indexes.get(segmentStartOffset);
+        segmentEntry = indexes.higherEntry(segmentStartOffset);
+        segmentStartOffset = segmentEntry.getKey();
+        segmentToProcess = segmentEntry.getValue();
       }
     }
 
@@ -867,12 +1399,16 @@ public class PersistentIndex {
    */
   public void close()
       throws StoreException {
+    merger.close();
     persistor.write();
     try {
       hardDeleter.shutDown();
     } catch (Exception e) {
       logger.error("Index : " + dataDir + " error while persisting cleanup token ", e);
     }
+    for (IndexSegment segment : indexes.values()) {
+      segment.setBloomFilterBudget(null);
+    }
     File cleanShutdownFile = new File(dataDir, Clean_Shutdown_Filename);
     try {
       cleanShutdownFile.createNewFile();
@@ -906,6 +1442,163 @@ public class PersistentIndex {
     }
   }
 
+  /**
+   * Returns the index entries of the records that overlap the given range of the log and have to be preserved before
+   * the range can be reclaimed. These are the put records of the blobs that are neither deleted nor expired and whose
+   * latest put record is the one that overlaps the range, and the delete records that are the latest record of their
+   * blob. The delete records are kept so that a deleted blob is never brought back by replication.
+   * <p/>
+   * The range cannot be reclaimed at all while it holds the put record of a deleted blob that may still be read,
+   * either because the delete is still within the retention period or because the hard delete thread has not yet
+   * processed it. The put record of a deleted blob whose size is not known from the index is taken to overlap the
+   * range if it starts before the end of the range.
+   * @param startOffset The start offset (inclusive) of the range in the log
+   * @param endOffset The end offset (exclusive) of the range in the log
+   * @return The latest index entries of the records to preserve in the range, in the order of their offsets in the
+   * log, or null if the range cannot be reclaimed yet
+   * @throws StoreException
+   */
+  List<IndexEntry> getLiveEntriesInRange(long startOffset, long endOffset)
+      throws StoreException {
+    List<IndexEntry> liveEntries = new ArrayList<IndexEntry>();
+    Map.Entry<Long, IndexSegment> firstSegmentEntry = floorSegmentEntry(startOffset);
+    if (firstSegmentEntry == null) {
+      return liveEntries;
+    }
+    List<IndexEntry> segmentEntries = new ArrayList<IndexEntry>();
+    try {
+      for (IndexSegment segment : indexes.subMap(firstSegmentEntry.getKey(), true, endOffset, false).values()) {
+        segmentEntries.clear();
+        segment.getIndexEntries(segmentEntries);
+        for (IndexEntry entry : segmentEntries) {
+          IndexValue value = entry.getValue();
+          IndexValue latestValue = findKey(entry.getKey());
+          if (latestValue == null) {
+            continue;
+          }
+          boolean overlaps = value.getOffset() < endOffset && value.getOffset() + value.getSize() > startOffset;
+          if (latestValue.isFlagSet(IndexValue.Flags.Delete_Index)) {
+            long putOffset = latestValue.getOriginalMessageOffset();
+            boolean putOverlaps;
+            if (!value.isFlagSet(IndexValue.Flags.Delete_Index) && value.getOffset() == putOffset) {
+              putOverlaps = overlaps;
+            } else {
+              putOverlaps = putOffset < endOffset && !log.isOffsetFreed(putOffset);
+            }
+            if (putOverlaps && isDeletedPutRetained(latestValue)) {
+              logger.trace("Index : {} range from {} to {} holds deleted blob {} that may still be read", dataDir,
+                  startOffset, endOffset, entry.getKey());
+              return null;
+            }
+            if (overlaps && value.isFlagSet(IndexValue.Flags.Delete_Index)
+                && latestValue.getOffset() == value.getOffset()) {
+              liveEntries.add(new IndexEntry(entry.getKey(), latestValue));
+            }
+          } else if (overlaps && !isExpired(latestValue) && latestValue.getOffset() == value.getOffset()) {
+            liveEntries.add(new IndexEntry(entry.getKey(), latestValue));
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new StoreException("IO error while reading entries in range for index " + dataDir, e,
+          StoreErrorCodes.IOError);
+    }
+    Collections.sort(liveEntries, new Comparator<IndexEntry>() {
+      @Override
+      public int compare(IndexEntry o1, IndexEntry o2) {
+        return Long.compare(o1.getValue().getOffset(), o2.getValue().getOffset());
+      }
+    });
+    return liveEntries;
+  }
+
+  /**
+   * Returns true if the put record of a deleted blob may still be read. Deleted blobs can be read until the delete
+   * falls out of the retention period and, if hard deletes are enabled, until the hard delete thread has processed
+   * the delete.
+   * @param deleteValue The index value of the delete
+   * @return true if the put record of the blob has to be kept
+   */
+  private boolean isDeletedPutRetained(IndexValue deleteValue) {
+    if (hardDeleteThreadRunning() && deleteValue.getOffset() >= getHardDeleteProgress()) {
+      return true;
+    }
+    Map.Entry<Long, IndexSegment> segmentEntry = indexes.floorEntry(deleteValue.getOffset());
+    long retentionSeconds = (long) config.storeDeletedMessageRetentionDays * Time.SecsPerDay;
+    return segmentEntry == null || segmentEntry.getValue().getLastModifiedTime() > time.seconds() - retentionSeconds;
+  }
+
+  /**
+   * Returns the segment that covers the given offset. Segments whose log has been reclaimed are dropped from the
+   * index, so for an offset before the first segment, the first segment is returned.
+   * @param offset The offset in the log
+   * @return The segment with the largest start offset that is not larger than the offset, or the first segment. Null
+   * if there are no segments.
+   */
+  private Map.Entry<Long, IndexSegment> floorSegmentEntry(long offset) {
+    Map.Entry<Long, IndexSegment> entry = indexes.floorEntry(offset);
+    return entry == null ? indexes.firstEntry() : entry;
+  }
+
+  /**
+   * Returns the index entries of the blobs that have expired since the last call, as tracked by the expiry index. A
+   * blob is only returned once the whole bucket of the expiry index that it belongs to has expired. The entries are
+   * not checked against the latest state of the index.
+   * @param timeInMs The current time
+   * @return The index entries of the blobs that have expired. Empty if expiring blobs are not tracked.
+   */
+  List<IndexEntry> pollExpiredEntries(long timeInMs) {
+    return expiryIndex == null ? Collections.<IndexEntry>emptyList() : expiryIndex.pollExpiredEntries(timeInMs);
+  }
+
+  /**
+   * Flushes the log and persists the index to disk
+   * @throws StoreException
+   */
+  void persistIndex()
+      throws StoreException {
+    persistor.write();
+  }
+
+  /**
+   * Drops the sealed segments at the start of the index that only cover log that has been reclaimed
+   * @param logStartOffset The offset before which all of the log has been reclaimed
+   * @return the number of segments that were dropped
+   */
+  int dropSegmentsBefore(long logStartOffset) {
+    return merger.dropSegmentsBefore(logStartOffset);
+  }
+
+  /**
+   * Merges the sealed segments of the index
+   * @return the number of segments that were merged into other segments
+   * @throws StoreException
+   */
+  int mergeIndexSegments()
+      throws StoreException {
+    return merger.merge();
+  }
+
+  /**
+   * Flushes the log and writes the recovery checkpoint
+   * @throws StoreException
+   */
+  void writeRecoveryCheckpoint()
+      throws StoreException {
+    checkpointer.write();
+  }
+
+  /**
+   * Deletes the index file of a segment along with its bloom filter
+   * @param indexFile The index file of the segment
+   */
+  private void deleteSegmentFiles(File indexFile) {
+    File bloomFile = IndexSegment.getBloomFile(indexFile);
+    if ((indexFile.exists() && !indexFile.delete()) || (bloomFile.exists() && !bloomFile.delete())) {
+      logger.error("Index : {} could not delete the files of index segment {}", dataDir, indexFile);
+    }
+  }
+
   /**
    * Finds all the deleted entries from the given start token. The token defines the start position in the index from
    * where entries needs to be fetched
@@ -945,17 +1638,16 @@ public class PersistentIndex {
         long offsetEnd = offsetToStart;
         if (entries != null) {
           // Case 2: offset based, and offset still in journal
-          IndexSegment currentSegment = indexes.floorEntry(offsetToStart).getValue();
+          IndexSegment currentSegment = floorSegmentEntry(offsetToStart).getValue();
           for (JournalEntry entry : entries) {
             if (entry.getOffset() > currentSegment.getEndOffset()) {
-              long nextSegmentStartOffset = indexes.higherKey(currentSegment.getStartOffset());
-              currentSegment = indexes.get(nextSegmentStartOffset);
+              currentSegment = indexes.higherEntry(currentSegment.getStartOffset()).getValue();
             }
             if (endTimeSeconds < currentSegment.getLastModifiedTime()) {
               break;
             }
 
-            IndexValue value = findKey(entry.getKey());
+            IndexValue value = getLatestValue(entry);
             boolean deleteEntry = value.isFlagSet(IndexValue.Flags.Delete_Index);
             if (deleteEntry) {
               messageEntries
@@ -966,7 +1658,7 @@ public class PersistentIndex {
           newToken = new StoreFindToken(offsetEnd, sessionId);
         } else {
           // Case 3: offset based, but offset out of journal
-          Map.Entry<Long, IndexSegment> entry = indexes.floorEntry(offsetToStart);
+          Map.Entry<Long, IndexSegment> entry = floorSegmentEntry(offsetToStart);
           if (entry != null && entry.getKey() != indexes.lastKey()) {
             newToken = findEntriesFromSegmentStartOffset(entry.getKey(), null, messageEntries,
                 new FindEntriesCondition(maxTotalSizeOfEntries, endTimeSeconds));
@@ -1031,10 +1723,12 @@ public class PersistentIndex {
             logger.trace("Index : " + dataDir + " writing prev index with end offset " + prevInfo.getEndOffset());
             prevInfo.writeIndexToFile(prevInfo.getEndOffset());
             prevInfo.map(true);
+            prevInfo.setBloomFilterBudget(bloomFilterBudget);
             Map.Entry<Long, IndexSegment> infoEntry = indexes.lowerEntry(prevInfo.getStartOffset());
             prevInfo = infoEntry != null ? infoEntry.getValue() : null;
           }
           currentInfo.writeIndexToFile(currentIndexEndOffsetBeforeFlush);
+          onIndexPersisted(currentIndexEndOffsetBeforeFlush);
         }
       } catch (IOException e) {
         throw new StoreException("IO error while writing index to file", e, StoreErrorCodes.IOError);
@@ -1045,6 +1739,12 @@ public class PersistentIndex {
 
     public void run() {
       try {
+        if (ioScheduler != null) {
+          // the flush is not delayed as the hard deletes and the recovery checkpoint wait for it, but it is charged
+          // to the background budget of the disk so that other background work makes room for it
+          long logBytesToFlush = log.getLogEndOffset() - persistedIndexEndOffset;
+          ioScheduler.charge(DiskIOScheduler.IOClass.Background, Math.max(0, logBytesToFlush));
+        }
         write();
       } catch (Exception e) {
         logger.error("Index : " + dataDir + " error while persisting the index to disk ", e);
@@ -1052,6 +1752,253 @@ public class PersistentIndex {
     }
   }
 
+  /**
+   * Writes the entries that were added to the index since it was last persisted to a recovery checkpoint. The
+   * checkpoint holds the range of the log that it covers and the entries in that range, protected by a crc:
+   *  - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+   * | version | startoffset | endoffset | numentries |  key 1  | value 1 |  ...  |  key n  | value n | crc      |
+   * |(2 bytes)|  (8 bytes)  | (8 bytes) |  (4 bytes) |(n bytes)|(n bytes)|       |(n bytes)|(n bytes)| (8 bytes)|
+   *  - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+   * Since the checkpoint is much smaller than the index segments, it can be written much more often than the index
+   * is persisted, and a restart after a crash only has to recover the part of the log that follows it.
+   */
+  class RecoveryCheckpointer implements Runnable {
+
+    /**
+     * Flushes the log and writes the recovery checkpoint
+     * @throws StoreException
+     */
+    synchronized void write()
+        throws StoreException {
+      final Timer.Context context = metrics.recoveryCheckpointTime.time();
+      try {
+        long startOffset;
+        List<IndexEntry> entries;
+        synchronized (unpersistedEntries) {
+          startOffset = persistedIndexEndOffset;
+          entries = new ArrayList<IndexEntry>(unpersistedEntries);
+        }
+        long endOffset = startOffset;
+        if (entries.size() > 0) {
+          IndexValue lastValue = entries.get(entries.size() - 1).getValue();
+          endOffset = Math.max(endOffset, lastValue.getOffset() + lastValue.getSize());
+        }
+        // the records of the entries have to be durable before the checkpoint can refer to them
+        log.flush();
+        File checkpointFile = new File(dataDir, Recovery_Checkpoint_Filename);
+        File tempFile = new File(checkpointFile.getAbsolutePath() + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(tempFile);
+        CrcOutputStream crc = new CrcOutputStream(fileStream);
+        DataOutputStream writer = new DataOutputStream(crc);
+        try {
+          writer.writeShort(Recovery_Checkpoint_Version_V2);
+          writer.writeLong(startOffset);
+          writer.writeLong(endOffset);
+          writer.writeInt(entries.size());
+          for (IndexEntry entry : entries) {
+            writer.write(entry.getKey().toBytes());
+            writer.write(entry.getValue().getBytes().array());
+          }
+          writer.writeLong(crc.getValue());
+          fileStream.getChannel().force(true);
+        } finally {
+          writer.close();
+        }
+        if (!tempFile.renameTo(checkpointFile)) {
+          throw new IOException("Could not rename " + tempFile + " to " + checkpointFile);
+        }
+        logger.trace("Index : {} wrote recovery checkpoint from {} to {} with {} entries", dataDir, startOffset,
+            endOffset, entries.size());
+      } catch (IOException e) {
+        throw new StoreException("IO error while writing recovery checkpoint for index " + dataDir, e,
+            StoreErrorCodes.IOError);
+      } finally {
+        context.stop();
+      }
+    }
+
+    public void run() {
+      try {
+        write();
+      } catch (Exception e) {
+        logger.error("Index : " + dataDir + " error while writing the recovery checkpoint ", e);
+      }
+    }
+  }
+
+  /**
+   * Merges runs of adjacent sealed index segments into larger segments to bound the number of segments that lookups
+   * have to go through. Within a run, only the latest entry of every key is kept. A merged segment takes the place of
+   * the oldest segment in its run and covers the log up to the end of the newest one. Its file name also records the
+   * start offset of the newest segment in the run, which is how tokens and the recovery on startup tell it apart from
+   * the segments that were merged into it.
+   * <p/>
+   * Only mapped segments that are older than the entries in the journal are merged, so the last segment and the
+   * segments that are still being persisted are never touched.
+   */
+  class IndexSegmentMerger implements Runnable {
+    private boolean running = true;
+
+    /**
+     * Merges the sealed segments of the index
+     * @return the number of segments that were merged into other segments
+     * @throws StoreException
+     */
+    synchronized int merge()
+        throws StoreException {
+      int segmentsMerged = 0;
+      if (!running || indexes.size() == 0) {
+        return segmentsMerged;
+      }
+      long journalFirstOffset = journal.getFirstOffset();
+      long lastSegmentStartOffset = indexes.lastKey();
+      List<IndexSegment> run = new ArrayList<IndexSegment>();
+      long entriesInRun = 0;
+      for (IndexSegment segment : new ArrayList<IndexSegment>(indexes.values())) {
+        if (!running || !segment.isMapped() || segment.getStartOffset() == lastSegmentStartOffset
+            || journalFirstOffset == -1 || segment.getEndOffset() > journalFirstOffset) {
+          break;
+        }
+        int entries = segment.getNumberOfItems();
+        if (run.size() > 0 && (entriesInRun + entries > config.storeIndexSegmentMergeMaxEntries
+            || segment.getKeySize() != run.get(0).getKeySize())) {
+          segmentsMerged += mergeRun(run);
+          run.clear();
+          entriesInRun = 0;
+        }
+        run.add(segment);
+        entriesInRun += entries;
+      }
+      if (running) {
+        segmentsMerged += mergeRun(run);
+      }
+      return segmentsMerged;
+    }
+
+    /**
+     * Merges a run of adjacent segments into one and installs it in the index in place of the run
+     * @param run The segments to merge, oldest first
+     * @return the number of segments that were merged into the oldest segment of the run
+     * @throws StoreException
+     */
+    private int mergeRun(List<IndexSegment> run)
+        throws StoreException {
+      if (run.size() < 2) {
+        return 0;
+      }
+      final Timer.Context context = metrics.indexSegmentMergeTime.time();
+      IndexSegment firstSegment = run.get(0);
+      IndexSegment lastSegment = run.get(run.size() - 1);
+      File mergedFile = new File(dataDir,
+          firstSegment.getStartOffset() + "_" + lastSegment.getLastSegmentStartOffset() + "_" + Index_File_Name_Suffix);
+      try {
+        // the segments are added oldest first, so the latest entry of a key replaces the ones it supersedes
+        SortedMap<StoreKey, IndexValue> mergedEntries = new TreeMap<StoreKey, IndexValue>();
+        List<IndexEntry> segmentEntries = new ArrayList<IndexEntry>();
+        long totalEntries = 0;
+        for (IndexSegment segment : run) {
+          segmentEntries.clear();
+          segment.getIndexEntries(segmentEntries);
+          for (IndexEntry entry : segmentEntries) {
+            mergedEntries.put(entry.getKey(), entry.getValue());
+          }
+          totalEntries += segmentEntries.size();
+        }
+        // the entries of older segments were converted to the current value format when they were read
+        IndexSegment.writeToFile(mergedFile, mergedEntries, firstSegment.getKeySize(),
+            IndexValue.Index_Value_Size_In_Bytes, lastSegment.getEndOffset(), config);
+        // the merged segment is as old as the newest segment in it as far as time based scans are concerned
+        mergedFile.setLastModified(lastSegment.getLastModifiedTime() * Time.MsPerSec);
+        IndexSegment mergedSegment = new IndexSegment(mergedFile, true, factory, config, metrics, journal);
+        mergedSegment.setBloomFilterBudget(bloomFilterBudget);
+        synchronized (indexesLock) {
+          ConcurrentSkipListMap<Long, IndexSegment> newIndexes = new ConcurrentSkipListMap<Long, IndexSegment>(indexes);
+          newIndexes.put(mergedSegment.getStartOffset(), mergedSegment);
+          for (IndexSegment segment : run.subList(1, run.size())) {
+            newIndexes.remove(segment.getStartOffset());
+          }
+          // a reader goes through either the segments of the run or the merged segment, never both or neither
+          indexes = newIndexes;
+        }
+        for (IndexSegment segment : run) {
+          segment.setBloomFilterBudget(null);
+        }
+        if (lookupCache != null) {
+          // the cached values refer to the segments that were just replaced
+          lookupCache.clear();
+        }
+        // readers that already got hold of the old segments can still read them as the files stay mapped
+        for (IndexSegment segment : run) {
+          deleteSegmentFiles(segment.getFile());
+        }
+        logger.info("Index : {} merged {} segments from start offset {} to {} into {} with {} entries", dataDir,
+            run.size(), firstSegment.getStartOffset(), lastSegment.getStartOffset(), mergedFile, mergedEntries.size());
+        metrics.indexSegmentsMergedCount.inc(run.size() - 1);
+        metrics.indexSegmentMergeEntriesDropped.inc(totalEntries - mergedEntries.size());
+        return run.size() - 1;
+      } catch (IOException e) {
+        metrics.indexSegmentMergeExceptionsCount.inc();
+        deleteSegmentFiles(mergedFile);
+        throw new StoreException("IO error while merging index segments into " + mergedFile, e,
+            StoreErrorCodes.IOError);
+      } finally {
+        context.stop();
+      }
+    }
+
+    /**
+     * Drops the sealed segments at the start of the index that only cover log that has been reclaimed. Every record in
+     * such a segment either is no longer the latest record of its blob or has been copied forward by compaction, so
+     * the segment holds no information that is still needed. Segments whose entries are still in the journal and the
+     * last two segments are never dropped.
+     * @param logStartOffset The offset before which all of the log has been reclaimed
+     * @return the number of segments that were dropped
+     */
+    synchronized int dropSegmentsBefore(long logStartOffset) {
+      int segmentsDropped = 0;
+      long journalFirstOffset = journal.getFirstOffset();
+      if (!running || indexes.size() == 0 || journalFirstOffset == -1) {
+        return segmentsDropped;
+      }
+      long lastSegmentStartOffset = indexes.lastKey();
+      for (IndexSegment segment : new ArrayList<IndexSegment>(indexes.values())) {
+        Long nextSegmentStartOffset = indexes.higherKey(segment.getStartOffset());
+        if (!running || !segment.isMapped() || nextSegmentStartOffset == null
+            || nextSegmentStartOffset == lastSegmentStartOffset || segment.getEndOffset() > logStartOffset
+            || segment.getEndOffset() > journalFirstOffset) {
+          break;
+        }
+        indexes.remove(segment.getStartOffset());
+        segment.setBloomFilterBudget(null);
+        // readers that already got hold of the segment can still read it as the files stay mapped
+        deleteSegmentFiles(segment.getFile());
+        segmentsDropped++;
+        logger.info("Index : {} dropped segment {} that covers reclaimed log up to {}", dataDir, segment.getFile(),
+            segment.getEndOffset());
+      }
+      if (segmentsDropped > 0 && lookupCache != null) {
+        // the cached values may refer to the segments that were just dropped
+        lookupCache.clear();
+      }
+      return segmentsDropped;
+    }
+
+    /**
+     * Stops the merger and waits for an ongoing merge to finish
+     */
+    synchronized void close() {
+      running = false;
+    }
+
+    public void run() {
+      try {
+        merge();
+      } catch (Exception e) {
+        logger.error("Index : " + dataDir + " error while merging index segments ", e);
+      }
+    }
+  }
+
   /**
    * An object of this class contains all the information required for performing the hard delete recovery for the
    * associated blob. This is the information that is persisted from time to time.
@@ -1201,11 +2148,13 @@ public class PersistentIndex {
      * A class to hold the information required to write hard delete stream to the Log.
      */
     private class LogWriteInfo {
+      StoreKey key;
       ReadableByteChannel channel;
       long offset;
       long size;
 
-      LogWriteInfo(ReadableByteChannel channel, long offset, long size) {
+      LogWriteInfo(StoreKey key, ReadableByteChannel channel, long offset, long size) {
+        this.key = key;
         this.channel = channel;
         this.offset = offset;
         this.size = size;
@@ -1236,25 +2185,30 @@ public class PersistentIndex {
         /* Next, perform the log write. The token file does not have to be persisted again as only entries that are
            currently in it are being hard deleted as part of recovery. */
         StoreMessageReadSet readSet = log.getView(readOptionsList);
-        Iterator<HardDeleteInfo> hardDeleteIterator = hardDelete
-            .getHardDeleteMessages(readSet, factory, hardDeleteRecoveryRange.getMessageStoreRecoveryInfoList());
-
-        Iterator<BlobReadOptions> readOptionsIterator = readOptionsList.iterator();
-        while (hardDeleteIterator.hasNext()) {
-          if (!running.get()) {
-            throw new StoreException("Aborting hard deletes as store is shutting down",
-                StoreErrorCodes.Store_Shutting_Down);
-          }
-          HardDeleteInfo hardDeleteInfo = hardDeleteIterator.next();
-          BlobReadOptions readOptions = readOptionsIterator.next();
-          if (hardDeleteInfo == null) {
-            metrics.hardDeleteFailedCount.inc(1);
-          } else {
-            log.writeFrom(hardDeleteInfo.getHardDeleteChannel(),
-                readOptions.getOffset() + hardDeleteInfo.getStartOffsetInMessage(),
-                hardDeleteInfo.getHardDeletedMessageSize());
-            metrics.hardDeleteDoneCount.inc(1);
+        try {
+          Iterator<HardDeleteInfo> hardDeleteIterator = hardDelete
+              .getHardDeleteMessages(readSet, factory, hardDeleteRecoveryRange.getMessageStoreRecoveryInfoList());
+
+          Iterator<BlobReadOptions> readOptionsIterator = readOptionsList.iterator();
+          while (hardDeleteIterator.hasNext()) {
+            if (!running.get()) {
+              throw new StoreException("Aborting hard deletes as store is shutting down",
+                  StoreErrorCodes.Store_Shutting_Down);
+            }
+            HardDeleteInfo hardDeleteInfo = hardDeleteIterator.next();
+            BlobReadOptions readOptions = readOptionsIterator.next();
+            if (hardDeleteInfo == null) {
+              metrics.hardDeleteFailedCount.inc(1);
+            } else {
+              log.writeFrom(hardDeleteInfo.getHardDeleteChannel(),
+                  readOptions.getOffset() + hardDeleteInfo.getStartOffsetInMessage(),
+                  hardDeleteInfo.getHardDeletedMessageSize());
+              invalidateCachedValue(readOptions.getStoreKey());
+              metrics.hardDeleteDoneCount.inc(1);
+            }
           }
+        } finally {
+          readSet.release();
         }
       } catch (IOException e) {
         metrics.hardDeleteExceptionsCount.inc();
@@ -1435,6 +2389,11 @@ public class PersistentIndex {
             BlobReadOptions readInfo = getBlobReadInfo(info.getStoreKey(), getOptions);
             readOptionsList.add(readInfo);
           } catch (StoreException e) {
+            if (e.getErrorCode() == StoreErrorCodes.ID_Deleted) {
+              // the put record has been reclaimed by compaction, which copied the delete record forward
+              logger.trace("Put record of blobid {} was reclaimed before the hard delete, ignoring", info.getStoreKey());
+              continue;
+            }
             logger.error("Failed to read blob info for blobid {} during hard deletes, ignoring. Caught exception {}",
                 info.getStoreKey(), e);
             metrics.hardDeleteExceptionsCount.inc();
@@ -1444,45 +2403,53 @@ public class PersistentIndex {
         List<LogWriteInfo> logWriteInfoList = new ArrayList<LogWriteInfo>();
 
         StoreMessageReadSet readSet = log.getView(readOptionsList);
-        Iterator<HardDeleteInfo> hardDeleteIterator = hardDelete.getHardDeleteMessages(readSet, factory, null);
-        Iterator<BlobReadOptions> readOptionsIterator = readOptionsList.iterator();
-
-        /* Next, get the information to persist hard delete recovery info. Get all the information and save it, as only
-         * after the whole range is persisted can we start with the actual log write */
-        while (hardDeleteIterator.hasNext()) {
-          if (!running.get()) {
-            throw new StoreException("Aborting hard deletes as store is shutting down",
-                StoreErrorCodes.Store_Shutting_Down);
+        try {
+          Iterator<HardDeleteInfo> hardDeleteIterator = hardDelete.getHardDeleteMessages(readSet, factory, null);
+          Iterator<BlobReadOptions> readOptionsIterator = readOptionsList.iterator();
+
+          /* Next, get the information to persist hard delete recovery info. Get all the information and save it, as
+           * only after the whole range is persisted can we start with the actual log write */
+          while (hardDeleteIterator.hasNext()) {
+            if (!running.get()) {
+              throw new StoreException("Aborting hard deletes as store is shutting down",
+                  StoreErrorCodes.Store_Shutting_Down);
+            }
+            HardDeleteInfo hardDeleteInfo = hardDeleteIterator.next();
+            BlobReadOptions readOptions = readOptionsIterator.next();
+            if (hardDeleteInfo == null) {
+              metrics.hardDeleteFailedCount.inc(1);
+            } else {
+              hardDeleteRecoveryRange.addMessageInfo(readOptions, hardDeleteInfo.getRecoveryInfo());
+              logWriteInfoList.add(new LogWriteInfo(readOptions.getStoreKey(), hardDeleteInfo.getHardDeleteChannel(),
+                  readOptions.getOffset() + hardDeleteInfo.getStartOffsetInMessage(),
+                  hardDeleteInfo.getHardDeletedMessageSize()));
+            }
           }
-          HardDeleteInfo hardDeleteInfo = hardDeleteIterator.next();
-          BlobReadOptions readOptions = readOptionsIterator.next();
-          if (hardDeleteInfo == null) {
-            metrics.hardDeleteFailedCount.inc(1);
-          } else {
-            hardDeleteRecoveryRange.addMessageInfo(readOptions, hardDeleteInfo.getRecoveryInfo());
-            logWriteInfoList.add(new LogWriteInfo(hardDeleteInfo.getHardDeleteChannel(),
-                readOptions.getOffset() + hardDeleteInfo.getStartOffsetInMessage(),
-                hardDeleteInfo.getHardDeletedMessageSize()));
+
+          if (readOptionsIterator.hasNext()) {
+            metrics.hardDeleteExceptionsCount.inc(1);
+            throw new IllegalStateException("More number of blobReadOptions than hardDeleteMessages");
           }
-        }
 
-        if (readOptionsIterator.hasNext()) {
-          metrics.hardDeleteExceptionsCount.inc(1);
-          throw new IllegalStateException("More number of blobReadOptions than hardDeleteMessages");
-        }
+          persistCleanupToken();
 
-        persistCleanupToken();
+          /* Finally, write the hard delete stream into the Log */
+          for (LogWriteInfo logWriteInfo : logWriteInfoList) {
+            if (!running.get()) {
+              throw new StoreException("Aborting hard deletes as store is shutting down",
+                  StoreErrorCodes.Store_Shutting_Down);
+            }
 
-        /* Finally, write the hard delete stream into the Log */
-        for (LogWriteInfo logWriteInfo : logWriteInfoList) {
-          if (!running.get()) {
-            throw new StoreException("Aborting hard deletes as store is shutting down",
-                StoreErrorCodes.Store_Shutting_Down);
+            if (ioScheduler != null) {
+              ioScheduler.acquire(DiskIOScheduler.IOClass.Background, logWriteInfo.size);
+            }
+            log.writeFrom(logWriteInfo.channel, logWriteInfo.offset, logWriteInfo.size);
+            invalidateCachedValue(logWriteInfo.key);
+            metrics.hardDeleteDoneCount.inc(1);
+            throttler.maybeThrottle(logWriteInfo.size);
           }
-
-          log.writeFrom(logWriteInfo.channel, logWriteInfo.offset, logWriteInfo.size);
-          metrics.hardDeleteDoneCount.inc(1);
-          throttler.maybeThrottle(logWriteInfo.size);
+        } finally {
+          readSet.release();
         }
       } catch (InterruptedException e) {
         if (running.get()) {
@@ -1562,7 +2529,9 @@ public class PersistentIndex {
       } else if (token.getOffset() != StoreFindToken.Uninitialized_Offset) {
         return token.getOffset();
       } else {
-        return token.getIndexStartOffset();
+        // the token may point into a merged segment whose keys are not all processed yet
+        Long segmentStartOffset = indexes.floorKey(token.getIndexStartOffset());
+        return segmentStartOffset == null ? token.getIndexStartOffset() : segmentStartOffset;
       }
     }
 
@@ -1634,6 +2603,21 @@ public class PersistentIndex {
     return hardDeleter.getProgress();
   }
 
+  /**
+   * @return The highest ratio of false positives to positives of the bloom filter of any segment of the index, which
+   * points out segments whose filters are missing or do not fit their keys
+   */
+  double getMaxBloomFalsePositiveRatio() {
+    double maxRatio = 0;
+    for (IndexSegment segment : indexes.values()) {
+      long positives = segment.getBloomPositiveCount();
+      if (positives > 0) {
+        maxRatio = Math.max(maxRatio, (double) segment.getBloomFalsePositiveCount() / positives);
+      }
+    }
+    return maxRatio;
+  }
+
   /**
    * Returns true if the hard delete thread is currently running.
    * @return true if running, false otherwise.
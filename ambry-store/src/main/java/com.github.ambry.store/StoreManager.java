@@ -21,10 +21,21 @@ import com.github.ambry.config.StoreConfig;
 import com.github.ambry.utils.Scheduler;
 import com.github.ambry.utils.Time;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,6 +50,14 @@ public class StoreManager {
   private MetricRegistry registry;
   private List<ReplicaId> replicas;
   private ConcurrentMap<PartitionId, Store> stores;
+  // the I/O scheduler of every disk, keyed by mount path. Empty if I/O scheduling is disabled.
+  private ConcurrentMap<String, DiskIOScheduler> ioSchedulers;
+  // the health monitor of every disk, keyed by mount path. Empty if health monitoring is disabled.
+  private ConcurrentMap<String, DiskHealthMonitor> healthMonitors;
+  // runs the probes of the health monitors, with a thread for every disk. Null if health monitoring is disabled.
+  private Scheduler healthProbeScheduler = null;
+  // the budget for the bloom filters of all the stores. Null if the filters are not bounded.
+  private BloomFilterBudget bloomFilterBudget = null;
   private Logger logger = LoggerFactory.getLogger(getClass());
   private StoreKeyFactory factory;
   private MessageStoreRecovery recovery;
@@ -53,10 +72,15 @@ public class StoreManager {
     this.registry = registry;
     this.replicas = replicas;
     this.stores = new ConcurrentHashMap<PartitionId, Store>();
+    this.ioSchedulers = new ConcurrentHashMap<String, DiskIOScheduler>();
+    this.healthMonitors = new ConcurrentHashMap<String, DiskHealthMonitor>();
     this.factory = factory;
     this.recovery = recovery;
     this.hardDelete = hardDelete;
     this.time = time;
+    if (config.storeIndexBloomMaxMemoryBytes > 0) {
+      bloomFilterBudget = new BloomFilterBudget(config.storeIndexBloomMaxMemoryBytes, registry);
+    }
     verifyConfigs();
   }
 
@@ -71,37 +95,185 @@ public class StoreManager {
     }
   }
 
+  /**
+   * Creates and starts the stores of all the replicas on this node. Stores are started in parallel, with the number
+   * of stores that are started at the same time bounded both for the node and for every disk.
+   * @throws StoreException if any of the stores could not be started, in which case none of the stores are left
+   * running
+   */
   public void start()
       throws StoreException {
     logger.info("Starting store manager");
-    // iterate through the replicas for this node and create the stores
+    long startTimeMs = time.milliseconds();
+    // group the replicas by the disk they are on
+    Map<String, Queue<ReplicaId>> replicasByDisk = new HashMap<String, Queue<ReplicaId>>();
     for (ReplicaId replica : replicas) {
       // check if mount path exist
       File file = new File(replica.getMountPath());
       if (!file.exists()) {
         throw new IllegalStateException("Mount path does not exist " + replica.getMountPath());
       }
-      // Partition id is used as the id of a store.
-      String storeId = replica.getPartitionId().toString();
-      Store store =
-          new BlobStore(storeId, config, scheduler, registry, replica.getReplicaPath(), replica.getCapacityInBytes(),
-              factory, recovery, hardDelete, time);
-      store.start();
-      stores.put(replica.getPartitionId(), store);
+      Queue<ReplicaId> replicasOnDisk = replicasByDisk.get(replica.getMountPath());
+      if (replicasOnDisk == null) {
+        replicasOnDisk = new ConcurrentLinkedQueue<ReplicaId>();
+        replicasByDisk.put(replica.getMountPath(), replicasOnDisk);
+        if (config.storeEnableIoScheduler) {
+          ioSchedulers.put(replica.getMountPath(), new DiskIOScheduler(replica.getMountPath(), config, registry, time));
+        }
+        if (config.storeEnableHealthMonitor) {
+          healthMonitors
+              .put(replica.getMountPath(), new DiskHealthMonitor(replica.getMountPath(), config, registry, time));
+        }
+      }
+      replicasOnDisk.add(replica);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(config.storeStartupNumThreads);
+    AtomicBoolean failed = new AtomicBoolean(false);
+    List<Future<Void>> startupResults = new ArrayList<Future<Void>>();
+    for (Queue<ReplicaId> replicasOnDisk : replicasByDisk.values()) {
+      int numStarters = Math.min(config.storeStartupNumThreadsPerDisk, replicasOnDisk.size());
+      for (int i = 0; i < numStarters; i++) {
+        startupResults.add(executor.submit(new StoreStarter(replicasOnDisk, failed)));
+      }
+    }
+    executor.shutdown();
+    StoreException startupException = null;
+    try {
+      for (Future<Void> startupResult : startupResults) {
+        try {
+          startupResult.get();
+        } catch (ExecutionException e) {
+          if (startupException == null) {
+            startupException = e.getCause() instanceof StoreException ? (StoreException) e.getCause()
+                : new StoreException("Error while starting stores", e.getCause(), StoreErrorCodes.Initialization_Error);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      throw new StoreException("Interrupted while starting stores", e, StoreErrorCodes.Initialization_Error);
+    }
+    if (startupException != null) {
+      // the stores that did start are not handed out, so they have to be shut down here
+      for (Store store : stores.values()) {
+        try {
+          store.shutdown();
+        } catch (StoreException e) {
+          logger.error("Error while shutting down store after a failed startup", e);
+        }
+      }
+      stores.clear();
+      throw startupException;
+    }
+    if (healthMonitors.size() > 0) {
+      // the probes do not run on the shared scheduler as probes of a hung disk would hold up its threads
+      healthProbeScheduler = new Scheduler(healthMonitors.size(), "disk-health-prober-", true);
+      healthProbeScheduler.startup();
+      for (final DiskHealthMonitor healthMonitor : healthMonitors.values()) {
+        healthProbeScheduler.schedule("disk health prober", new Runnable() {
+          @Override
+          public void run() {
+            healthMonitor.probe();
+          }
+        }, config.storeHealthProbeIntervalSeconds, config.storeHealthProbeIntervalSeconds, TimeUnit.SECONDS);
+      }
     }
-    logger.info("Starting store manager complete");
+    logger.info("Starting store manager complete. Started {} stores in {} ms", stores.size(),
+        time.milliseconds() - startTimeMs);
   }
 
   public Store getStore(PartitionId id) {
     return stores.get(id);
   }
 
+  /**
+   * Gets the stats of the live, expired and deleted blobs of a store
+   * @param id The partition of the store
+   * @return The stats of the store, or null if the store does not exist or stats are not kept
+   */
+  public BlobStoreStats getStoreStats(PartitionId id) {
+    BlobStore store = (BlobStore) stores.get(id);
+    return store == null ? null : store.getStats();
+  }
+
+  /**
+   * Gets the I/O scheduler that is shared by the stores on a disk. Work that writes to a store on behalf of another
+   * node, like replication, acquires its budget from this scheduler before writing.
+   * @param mountPath The mount path of the disk
+   * @return The I/O scheduler of the disk, or null if I/O scheduling is disabled
+   */
+  public DiskIOScheduler getDiskIOScheduler(String mountPath) {
+    return ioSchedulers.get(mountPath);
+  }
+
+  /**
+   * Gets the health monitor that tracks the health of a disk and of the stores on it
+   * @param mountPath The mount path of the disk
+   * @return The health monitor of the disk, or null if health monitoring is disabled
+   */
+  public DiskHealthMonitor getDiskHealthMonitor(String mountPath) {
+    return healthMonitors.get(mountPath);
+  }
+
   public void shutdown()
       throws StoreException {
     logger.info("Shutting down store manager");
+    // release the background work that waits for its budget so that the stores can shut down quickly
+    for (DiskIOScheduler ioScheduler : ioSchedulers.values()) {
+      ioScheduler.close();
+    }
+    for (DiskHealthMonitor healthMonitor : healthMonitors.values()) {
+      healthMonitor.close();
+    }
+    if (healthProbeScheduler != null) {
+      healthProbeScheduler.shutdown();
+    }
+    if (bloomFilterBudget != null) {
+      bloomFilterBudget.close();
+    }
     for (Map.Entry<PartitionId, Store> entry : stores.entrySet()) {
       entry.getValue().shutdown();
     }
     logger.info("Shutting down store manager complete");
   }
+
+  /**
+   * Creates and starts, one after another, the stores of the replicas on a disk. The replicas of a disk are shared by
+   * all the starters of that disk. A starter stops as soon as any store on the node fails to start.
+   */
+  private class StoreStarter implements Callable<Void> {
+    private final Queue<ReplicaId> replicasOnDisk;
+    private final AtomicBoolean failed;
+
+    StoreStarter(Queue<ReplicaId> replicasOnDisk, AtomicBoolean failed) {
+      this.replicasOnDisk = replicasOnDisk;
+      this.failed = failed;
+    }
+
+    @Override
+    public Void call()
+        throws StoreException {
+      ReplicaId replica;
+      while (!failed.get() && (replica = replicasOnDisk.poll()) != null) {
+        long startTimeMs = time.milliseconds();
+        // Partition id is used as the id of a store.
+        String storeId = replica.getPartitionId().toString();
+        try {
+          Store store = new BlobStore(storeId, config, scheduler, registry, replica.getReplicaPath(),
+              replica.getCapacityInBytes(), factory, recovery, hardDelete, ioSchedulers.get(replica.getMountPath()),
+              healthMonitors.get(replica.getMountPath()), bloomFilterBudget, time);
+          store.start();
+          stores.put(replica.getPartitionId(), store);
+        } catch (StoreException e) {
+          failed.set(true);
+          throw e;
+        } catch (RuntimeException e) {
+          failed.set(true);
+          throw e;
+        }
+        logger.info("Started store {} in {} ms", storeId, time.milliseconds() - startTimeMs);
+      }
+      return null;
+    }
+  }
 }
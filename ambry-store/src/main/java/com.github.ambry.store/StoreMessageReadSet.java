@@ -17,10 +17,9 @@ import java.io.DataInputStream;
 import java.nio.ByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.io.File;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -33,6 +32,7 @@ class BlobReadOptions implements Comparable<BlobReadOptions> {
   private final Long size;
   private final Long ttl;
   private final StoreKey storeKey;
+  private final long[] recordOffsets;
   private Logger logger = LoggerFactory.getLogger(getClass());
 
   private static final short version = 0;
@@ -42,10 +42,23 @@ class BlobReadOptions implements Comparable<BlobReadOptions> {
   private static final short TTL_Length = 8;
 
   BlobReadOptions(long offset, long size, long ttl, StoreKey storeKey) {
+    this(offset, size, ttl, storeKey, null);
+  }
+
+  /**
+   * @param offset The offset of the message in the log
+   * @param size The size of the message
+   * @param ttl The time at which the message expires
+   * @param storeKey The key of the message
+   * @param recordOffsets The offsets at which the records of the message start relative to the start of the message,
+   *                      or null if they are not known
+   */
+  BlobReadOptions(long offset, long size, long ttl, StoreKey storeKey, long[] recordOffsets) {
     this.offset = offset;
     this.size = size;
     this.ttl = ttl;
     this.storeKey = storeKey;
+    this.recordOffsets = recordOffsets;
     logger.trace("BlobReadOption offset {} size {} ttl {} storeKey {}", offset, size, ttl, storeKey);
   }
 
@@ -65,6 +78,10 @@ class BlobReadOptions implements Comparable<BlobReadOptions> {
     return storeKey;
   }
 
+  public long[] getRecordOffsets() {
+    return recordOffsets;
+  }
+
   public MessageInfo getMessageInfo() {
     return new MessageInfo(storeKey, size, ttl);
   }
@@ -107,17 +124,18 @@ class BlobReadOptions implements Comparable<BlobReadOptions> {
 
 /**
  * An implementation of MessageReadSet that maintains a list of
- * offsets from the underlying file channel
+ * offsets from the underlying file channel. The set holds a reference to every log segment that backs its messages
+ * until it is released, so that compaction does not delete a segment while the messages in it are being read.
  */
 class StoreMessageReadSet implements MessageReadSet {
 
   private final List<BlobReadOptions> readOptions;
-  private final FileChannel fileChannel;
-  private final File file;
+  private final Log log;
+  private final List<LogSegment> segments = new ArrayList<LogSegment>();
+  private boolean released = false;
   private Logger logger = LoggerFactory.getLogger(getClass());
 
-  public StoreMessageReadSet(File file, FileChannel fileChannel, List<BlobReadOptions> readOptions,
-      long fileEndPosition)
+  public StoreMessageReadSet(Log log, List<BlobReadOptions> readOptions, long fileEndPosition)
       throws IOException {
 
     Collections.sort(readOptions);
@@ -125,11 +143,18 @@ class StoreMessageReadSet implements MessageReadSet {
       if (!readOption.validateFileEndOffset(fileEndPosition)) {
         throw new IllegalArgumentException("Invalid offset size pairs");
       }
-      logger.trace("MessageReadSet entry file: {} readOption: {} ", file.getAbsolutePath(), readOption);
+      logger.trace("MessageReadSet entry readOption: {} ", readOption);
     }
     this.readOptions = readOptions;
-    this.fileChannel = fileChannel;
-    this.file = file;
+    this.log = log;
+    try {
+      for (BlobReadOptions readOption : readOptions) {
+        segments.addAll(log.acquireSegments(readOption.getOffset(), readOption.getSize()));
+      }
+    } catch (IOException e) {
+      release();
+      throw e;
+    }
   }
 
   @Override
@@ -141,8 +166,8 @@ class StoreMessageReadSet implements MessageReadSet {
     long startOffset = readOptions.get(index).getOffset() + relativeOffset;
     long sizeToRead = Math.min(maxSize, readOptions.get(index).getSize() - relativeOffset);
     logger.trace("Blob Message Read Set position {} count {}", startOffset, sizeToRead);
-    long written = fileChannel.transferTo(startOffset, sizeToRead, channel);
-    logger.trace("Written {} bytes to the write channel from the file channel : {}", written, file.getAbsolutePath());
+    long written = log.transferTo(startOffset, sizeToRead, channel);
+    logger.trace("Written {} bytes to the write channel from the log", written);
     return written;
   }
 
@@ -154,7 +179,7 @@ class StoreMessageReadSet implements MessageReadSet {
   @Override
   public long sizeInBytes(int index) {
     if (index >= readOptions.size()) {
-      throw new IndexOutOfBoundsException("index out of the messageset for file " + file.getAbsolutePath());
+      throw new IndexOutOfBoundsException("index out of the messageset");
     }
     return readOptions.get(index).getSize();
   }
@@ -162,8 +187,27 @@ class StoreMessageReadSet implements MessageReadSet {
   @Override
   public StoreKey getKeyAt(int index) {
     if (index >= readOptions.size()) {
-      throw new IndexOutOfBoundsException("index out of the messageset for file " + file.getAbsolutePath());
+      throw new IndexOutOfBoundsException("index out of the messageset");
     }
     return readOptions.get(index).getStoreKey();
   }
+
+  @Override
+  public long[] getRecordOffsetsAt(int index) {
+    if (index >= readOptions.size()) {
+      throw new IndexOutOfBoundsException("index out of the messageset");
+    }
+    return readOptions.get(index).getRecordOffsets();
+  }
+
+  @Override
+  public synchronized void release() {
+    if (!released) {
+      released = true;
+      for (LogSegment segment : segments) {
+        segment.release();
+      }
+      segments.clear();
+    }
+  }
 }
@@ -42,18 +42,45 @@ public class StoreMetrics {
   public final Counter nonzeroMessageRecovery;
   public final Counter bloomPositiveCount;
   public final Counter bloomFalsePositiveCount;
+  public final Counter bloomFilterLoadCount;
   public final Counter keySizeMismatchCount;
+  public final Counter indexLookupCacheHitCount;
+  public final Counter indexLookupCacheMissCount;
+  public final Counter indexLookupCacheEvictionCount;
   public final Counter hardDeleteDoneCount;
   public final Counter hardDeleteFailedCount;
   public final Counter hardDeleteIncompleteRecoveryCount;
   public final Counter hardDeleteExceptionsCount;
+  public final Timer compactionTime;
+  public final Counter compactionBytesRelocated;
+  public final Counter compactionSegmentsFreed;
+  public final Counter compactionExceptionsCount;
+  public final Counter compactionExpiredBytesReclaimed;
+  public final Timer recoveryCheckpointTime;
+  public final Counter recoveryCheckpointEntriesReplayed;
+  public final Timer indexSegmentMergeTime;
+  public final Counter indexSegmentsMergedCount;
+  public final Counter indexSegmentMergeEntriesDropped;
+  public final Counter indexSegmentMergeExceptionsCount;
+  public final Counter mappedReadWindowHitCount;
+  public final Counter mappedReadWindowMissCount;
+  public final Counter journalValueMissCount;
   public Gauge<Long> currentCapacityUsed;
   public Gauge<Long> currentHardDeleteProgress;
   public Gauge<Long> hardDeleteThreadRunning;
   public Gauge<Long> hardDeleteCaughtUp;
+  public Gauge<Long> bytesPendingExpiry;
+  public Gauge<Long> liveBytes;
+  public Gauge<Long> expiredBytes;
+  public Gauge<Long> deletedBytes;
   public final Histogram segmentSizeForExists;
+  public final Histogram groupCommitBatchSize;
+  public final Histogram groupCommitWaitTimeInMs;
+  public final Histogram fsyncTimeInMs;
+  public final Histogram fsyncBatchSize;
   public Gauge<Double> percentageUsedCapacity;
   public Gauge<Double> percentageHardDeleteCompleted;
+  public Gauge<Double> maxSegmentBloomFalsePositiveRatio;
   private final MetricRegistry registry;
   private final String name;
 
@@ -81,6 +108,7 @@ public class StoreMetrics {
     bloomPositiveCount = registry.counter(MetricRegistry.name(IndexSegment.class, name + "BloomPositiveCount"));
     bloomFalsePositiveCount =
         registry.counter(MetricRegistry.name(IndexSegment.class, name + "BloomFalsePositiveCount"));
+    bloomFilterLoadCount = registry.counter(MetricRegistry.name(IndexSegment.class, name + "BloomFilterLoadCount"));
     keySizeMismatchCount = registry.counter(MetricRegistry.name(IndexSegment.class, name + "KeySizeMismatchCount"));
     hardDeleteDoneCount = registry.counter(MetricRegistry.name(PersistentIndex.class, name + "HardDeleteDoneCount"));
     hardDeleteFailedCount =
@@ -89,26 +117,107 @@ public class StoreMetrics {
         registry.counter(MetricRegistry.name(PersistentIndex.class, name + "HardDeleteIncompleteRecoveryCount"));
     hardDeleteExceptionsCount =
         registry.counter(MetricRegistry.name(PersistentIndex.class, name + "HardDeleteExceptionsCount"));
+    compactionTime = registry.timer(MetricRegistry.name(BlobStoreCompactor.class, name + "CompactionTime"));
+    compactionBytesRelocated =
+        registry.counter(MetricRegistry.name(BlobStoreCompactor.class, name + "CompactionBytesRelocated"));
+    compactionSegmentsFreed =
+        registry.counter(MetricRegistry.name(BlobStoreCompactor.class, name + "CompactionSegmentsFreed"));
+    compactionExceptionsCount =
+        registry.counter(MetricRegistry.name(BlobStoreCompactor.class, name + "CompactionExceptionsCount"));
+    compactionExpiredBytesReclaimed =
+        registry.counter(MetricRegistry.name(BlobStoreCompactor.class, name + "CompactionExpiredBytesReclaimed"));
+    recoveryCheckpointTime =
+        registry.timer(MetricRegistry.name(PersistentIndex.class, name + "IndexRecoveryCheckpointTime"));
+    recoveryCheckpointEntriesReplayed =
+        registry.counter(MetricRegistry.name(PersistentIndex.class, name + "IndexRecoveryCheckpointEntriesReplayed"));
+    indexSegmentMergeTime =
+        registry.timer(MetricRegistry.name(PersistentIndex.class, name + "IndexSegmentMergeTime"));
+    indexSegmentsMergedCount =
+        registry.counter(MetricRegistry.name(PersistentIndex.class, name + "IndexSegmentsMergedCount"));
+    indexSegmentMergeEntriesDropped =
+        registry.counter(MetricRegistry.name(PersistentIndex.class, name + "IndexSegmentMergeEntriesDropped"));
+    indexSegmentMergeExceptionsCount =
+        registry.counter(MetricRegistry.name(PersistentIndex.class, name + "IndexSegmentMergeExceptionsCount"));
+    mappedReadWindowHitCount = registry.counter(MetricRegistry.name(Log.class, name + "MappedReadWindowHitCount"));
+    mappedReadWindowMissCount = registry.counter(MetricRegistry.name(Log.class, name + "MappedReadWindowMissCount"));
+    journalValueMissCount =
+        registry.counter(MetricRegistry.name(PersistentIndex.class, name + "JournalValueMissCount"));
+    indexLookupCacheHitCount =
+        registry.counter(MetricRegistry.name(PersistentIndex.class, name + "IndexLookupCacheHitCount"));
+    indexLookupCacheMissCount =
+        registry.counter(MetricRegistry.name(PersistentIndex.class, name + "IndexLookupCacheMissCount"));
+    indexLookupCacheEvictionCount =
+        registry.counter(MetricRegistry.name(PersistentIndex.class, name + "IndexLookupCacheEvictionCount"));
     segmentSizeForExists = registry.histogram(MetricRegistry.name(IndexSegment.class, name + "SegmentSizeForExists"));
+    groupCommitBatchSize = registry.histogram(MetricRegistry.name(BlobStore.class, name + "GroupCommitBatchSize"));
+    groupCommitWaitTimeInMs =
+        registry.histogram(MetricRegistry.name(BlobStore.class, name + "GroupCommitWaitTimeInMs"));
+    fsyncTimeInMs = registry.histogram(MetricRegistry.name(Log.class, name + "FsyncTimeInMs"));
+    fsyncBatchSize = registry.histogram(MetricRegistry.name(Log.class, name + "FsyncBatchSize"));
   }
 
   public void initializeCapacityUsedMetric(final Log log, final long capacityInBytes) {
     currentCapacityUsed = new Gauge<Long>() {
       @Override
       public Long getValue() {
-        return log.getLogEndOffset();
+        return log.getUsedCapacityInBytes();
       }
     };
     registry.register(MetricRegistry.name(Log.class, name + "CurrentCapacityUsed"), currentCapacityUsed);
     percentageUsedCapacity = new Gauge<Double>() {
       @Override
       public Double getValue() {
-        return ((double) log.getLogEndOffset() / capacityInBytes) * 100;
+        return ((double) log.getUsedCapacityInBytes() / capacityInBytes) * 100;
       }
     };
     registry.register(MetricRegistry.name(Log.class, name + "PercentageUsedCapacity"), percentageUsedCapacity);
   }
 
+  public void initializeExpiryIndexMetric(final ExpiryIndex expiryIndex) {
+    bytesPendingExpiry = new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return expiryIndex.getBytesPendingExpiry();
+      }
+    };
+    registry.register(MetricRegistry.name(PersistentIndex.class, name + "BytesPendingExpiry"), bytesPendingExpiry);
+  }
+
+  public void initializeStatsMetric(final BlobStoreStats stats) {
+    liveBytes = new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return stats.getTotalCounts().getLiveBytes();
+      }
+    };
+    registry.register(MetricRegistry.name(BlobStore.class, name + "LiveBytes"), liveBytes);
+    expiredBytes = new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return stats.getTotalCounts().getExpiredBytes();
+      }
+    };
+    registry.register(MetricRegistry.name(BlobStore.class, name + "ExpiredBytes"), expiredBytes);
+    deletedBytes = new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return stats.getTotalCounts().getDeletedBytes();
+      }
+    };
+    registry.register(MetricRegistry.name(BlobStore.class, name + "DeletedBytes"), deletedBytes);
+  }
+
+  public void initializeBloomFilterMetric(final PersistentIndex index) {
+    maxSegmentBloomFalsePositiveRatio = new Gauge<Double>() {
+      @Override
+      public Double getValue() {
+        return index.getMaxBloomFalsePositiveRatio();
+      }
+    };
+    registry.register(MetricRegistry.name(IndexSegment.class, name + "MaxSegmentBloomFalsePositiveRatio"),
+        maxSegmentBloomFalsePositiveRatio);
+  }
+
   public void initializeHardDeleteMetric(final PersistentIndex index, final Log log) {
     currentHardDeleteProgress = new Gauge<Long>() {
       @Override
@@ -0,0 +1,310 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.ambry.config.StoreConfig;
+import com.github.ambry.config.VerifiableProperties;
+import com.github.ambry.utils.MockTime;
+import com.github.ambry.utils.Scheduler;
+import com.github.ambry.utils.SystemTime;
+import com.github.ambry.utils.Time;
+import com.github.ambry.utils.Utils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class BlobStoreCompactorTest {
+  private static final long Log_Capacity = 5000;
+  private static final long Segment_Capacity = 1000;
+
+  private File dataDir;
+  private Scheduler scheduler;
+  private StoreConfig config;
+  private StoreMetrics metrics;
+  private MockTime time;
+  private Log log;
+  private PersistentIndex index;
+  private BlobStoreCompactor compactor;
+  private final Object writeLock = new Object();
+  private final byte[] logData = new byte[(int) Log_Capacity];
+  // the put records written by the test, by offset
+  private final HashMap<Long, MessageInfo> putRecords = new HashMap<Long, MessageInfo>();
+
+  /**
+   * Creates a temporary file
+   */
+  File tempFile()
+      throws IOException {
+    File f = File.createTempFile("ambry", ".tmp");
+    f.deleteOnExit();
+    return f;
+  }
+
+  @Before
+  public void setup()
+      throws Exception {
+    dataDir = new File(tempFile().getParent(), "compactor_" + new Random().nextInt(Integer.MAX_VALUE));
+    Assert.assertTrue(dataDir.mkdir());
+    dataDir.deleteOnExit();
+    Properties props = new Properties();
+    props.setProperty("store.segment.size.in.bytes", Long.toString(Segment_Capacity));
+    props.setProperty("store.enable.compaction", "true");
+    // no throttling
+    props.setProperty("store.compaction.bytes.per.sec", Integer.toString(Integer.MAX_VALUE));
+    config = new StoreConfig(new VerifiableProperties(props));
+    metrics = new StoreMetrics(dataDir.getAbsolutePath(), new MetricRegistry());
+    time = new MockTime(SystemTime.getInstance().milliseconds());
+    scheduler = new Scheduler(1, false);
+    scheduler.startup();
+    new Random().nextBytes(logData);
+    log = new Log(dataDir.getAbsolutePath(), Log_Capacity, Segment_Capacity, metrics);
+    index = createIndex(new DummyMessageStoreRecovery());
+    compactor = new BlobStoreCompactor(dataDir.getAbsolutePath(), log, index, writeLock, config, metrics, null, time);
+  }
+
+  @After
+  public void cleanup()
+      throws Exception {
+    index.close();
+    log.close();
+    scheduler.shutdown();
+  }
+
+  /**
+   * Tests that a segment holding the put record of a deleted blob is only compacted after the delete has fallen out of
+   * the retention period, that the live blobs and delete records are preserved by compaction and that the deleted blob
+   * can no longer be read after its space has been reclaimed.
+   * @throws Exception
+   */
+  @Test
+  public void compactionRespectsDeletedBlobRetentionTest()
+      throws Exception {
+    // segment 0: put of blob1 (deleted later), puts of blob2 and blob3 (live)
+    MockId blob1 = new MockId("blob1");
+    MockId blob2 = new MockId("blob2");
+    MockId blob3 = new MockId("blob3");
+    put(blob1, 600, Utils.Infinite_Time);
+    put(blob2, 200, Utils.Infinite_Time);
+    put(blob3, 200, Utils.Infinite_Time);
+    // segment 1: delete of blob1, put of blob4 (live) and put of blob5 (expired)
+    MockId blob4 = new MockId("blob4");
+    MockId blob5 = new MockId("blob5");
+    delete(blob1, 100);
+    put(blob4, 400, Utils.Infinite_Time);
+    put(blob5, 500, time.milliseconds() - 1);
+    // segment 2: put of blob6, keeps the others from being the last segment
+    MockId blob6 = new MockId("blob6");
+    put(blob6, 100, Utils.Infinite_Time);
+    Assert.assertEquals(3, log.getSegmentStartOffsets().size());
+
+    // the deleted blob can still be read within the retention period, so its segment is left alone
+    Assert.assertFalse(compactor.compact());
+    Assert.assertEquals(3, log.getSegmentStartOffsets().size());
+    BlobReadOptions readOptions =
+        index.getBlobReadInfo(blob1, EnumSet.of(StoreGetOptions.Store_Include_Deleted));
+    Assert.assertEquals(0, readOptions.getOffset());
+
+    time.currentMilliseconds += (config.storeDeletedMessageRetentionDays + 1) * Time.SecsPerDay * Time.MsPerSec;
+    Assert.assertTrue(compactor.compact());
+    Assert.assertFalse(log.getSegmentStartOffsets().contains(0L));
+    verifyRead(blob2, 600, 200);
+    verifyRead(blob3, 800, 200);
+    Assert.assertEquals(2100, index.findKey(blob2).getOffset());
+    Assert.assertEquals(2300, index.findKey(blob3).getOffset());
+    try {
+      index.getBlobReadInfo(blob1, EnumSet.of(StoreGetOptions.Store_Include_Deleted));
+      Assert.fail("The put record of a deleted blob that has been reclaimed should not be readable");
+    } catch (StoreException e) {
+      Assert.assertEquals(StoreErrorCodes.ID_Deleted, e.getErrorCode());
+    }
+
+    // the second segment is compacted too and its delete record is carried forward
+    Assert.assertTrue(compactor.compact());
+    Assert.assertFalse(log.getSegmentStartOffsets().contains(1000L));
+    IndexValue deleteValue = index.findKey(blob1);
+    Assert.assertTrue(deleteValue.isFlagSet(IndexValue.Flags.Delete_Index));
+    Assert.assertEquals(2500, deleteValue.getOffset());
+    Assert.assertEquals(0, deleteValue.getOriginalMessageOffset());
+    verifyRead(blob4, 1100, 400);
+    Assert.assertEquals(2600, index.findKey(blob4).getOffset());
+    try {
+      index.getBlobReadInfo(blob5, EnumSet.of(StoreGetOptions.Store_Include_Expired));
+      Assert.fail("An expired blob that has been reclaimed should not be readable");
+    } catch (StoreException e) {
+      Assert.assertEquals(StoreErrorCodes.TTL_Expired, e.getErrorCode());
+    }
+    Assert.assertFalse(compactor.compact());
+  }
+
+  /**
+   * Tests that the segments that hold expired blobs are compacted ahead of the other segments, even if there are more
+   * of them than can be compacted in one cycle
+   * @throws Exception
+   */
+  @Test
+  public void expiredSegmentsCompactedFirstTest()
+      throws Exception {
+    Properties props = new Properties();
+    props.setProperty("store.segment.size.in.bytes", Long.toString(Segment_Capacity));
+    props.setProperty("store.enable.compaction", "true");
+    props.setProperty("store.compaction.bytes.per.sec", Integer.toString(Integer.MAX_VALUE));
+    props.setProperty("store.compaction.expiry.bucket.size.seconds", "1");
+    config = new StoreConfig(new VerifiableProperties(props));
+    index.close();
+    index = createIndex(new DummyMessageStoreRecovery());
+    compactor = new BlobStoreCompactor(dataDir.getAbsolutePath(), log, index, writeLock, config, metrics, null, time);
+
+    // segment 0: put of blob1 (deleted later) and put of blob2 (live)
+    MockId blob1 = new MockId("blob1");
+    put(blob1, 600, Utils.Infinite_Time);
+    put(new MockId("blob2"), 400, Utils.Infinite_Time);
+    // segments 1 and 2: blobs that expire, along with the delete of blob1
+    long expiresAtMs = time.milliseconds() + Time.MsPerSec;
+    delete(blob1, 100);
+    put(new MockId("blob3"), 900, expiresAtMs);
+    put(new MockId("blob4"), 1000, expiresAtMs);
+    // segment 3: keeps the others from being the last segment
+    put(new MockId("blob5"), 100, Utils.Infinite_Time);
+    Assert.assertEquals(4, log.getSegmentStartOffsets().size());
+
+    // all of segments 0, 1 and 2 can be compacted, but the ones that hold expired blobs go first
+    time.currentMilliseconds += (config.storeDeletedMessageRetentionDays + 1) * Time.SecsPerDay * Time.MsPerSec;
+    Assert.assertTrue(compactor.compact());
+    Assert.assertTrue(compactor.compact());
+    List<Long> segmentStartOffsets = log.getSegmentStartOffsets();
+    Assert.assertTrue(segmentStartOffsets.contains(0L));
+    Assert.assertFalse(segmentStartOffsets.contains(Segment_Capacity));
+    Assert.assertFalse(segmentStartOffsets.contains(2 * Segment_Capacity));
+    Assert.assertTrue(compactor.compact());
+    Assert.assertFalse(log.getSegmentStartOffsets().contains(0L));
+  }
+
+  /**
+   * Tests that recovery only treats a duplicate of a blob in the log as a copy made by compaction if the relocation of
+   * the segment that holds the blob was recorded
+   * @throws Exception
+   */
+  @Test
+  public void recoveryOfRelocatedBlobsTest()
+      throws Exception {
+    final MockId blob1 = new MockId("blob1");
+    put(blob1, 600, Utils.Infinite_Time);
+    put(new MockId("blob2"), 500, Utils.Infinite_Time);
+    index.persistIndex();
+    index.close();
+
+    // a copy of blob1 whose relocation was not recorded is a duplicate put
+    appendData(0, 600);
+    MessageStoreRecovery recovery = new MessageStoreRecovery() {
+      @Override
+      public List<MessageInfo> recover(Read read, long startOffset, long endOffset, StoreKeyFactory factory)
+          throws IOException {
+        List<MessageInfo> infos = new ArrayList<MessageInfo>();
+        infos.add(new MessageInfo(blob1, 600));
+        return infos;
+      }
+    };
+    try {
+      index = createIndex(recovery);
+      Assert.fail("Recovery of a duplicate put should have failed");
+    } catch (StoreException e) {
+      Assert.assertEquals(StoreErrorCodes.Initialization_Error, e.getErrorCode());
+    }
+
+    // once the relocation is recorded, the copy is taken to be the blob
+    index = createIndex(new DummyMessageStoreRecovery());
+    index.startRelocation(0, Segment_Capacity);
+    index.close();
+    index = createIndex(recovery);
+    Assert.assertEquals(1100, index.findKey(blob1).getOffset());
+    index.endRelocation();
+  }
+
+  private PersistentIndex createIndex(MessageStoreRecovery recovery)
+      throws StoreException {
+    return new PersistentIndex(dataDir.getAbsolutePath(), scheduler, log, config, new MockIdFactory(), recovery,
+        new DummyMessageStoreHardDelete(putRecords), new StoreMetrics(dataDir.getAbsolutePath(), new MetricRegistry()),
+        time);
+  }
+
+  /**
+   * Appends a put record of the given size to the log and adds it to the index
+   * @param id The id of the blob
+   * @param size The size of the record
+   * @param expiresAtMs The time at which the blob expires or {@link Utils#Infinite_Time}
+   * @throws Exception
+   */
+  private void put(MockId id, long size, long expiresAtMs)
+      throws Exception {
+    long offset = log.getLogEndOffset();
+    appendData(offset, size);
+    putRecords.put(offset, new MessageInfo(id, size, expiresAtMs));
+    index.addToIndex(new IndexEntry(id, new IndexValue(size, offset, expiresAtMs)),
+        new FileSpan(offset, log.getLogEndOffset()));
+  }
+
+  /**
+   * Appends a delete record of the given size to the log and marks the blob as deleted in the index
+   * @param id The id of the blob
+   * @param size The size of the record
+   * @throws Exception
+   */
+  private void delete(MockId id, long size)
+      throws Exception {
+    long offset = log.getLogEndOffset();
+    appendData(offset, size);
+    index.markAsDeleted(id, new FileSpan(offset, log.getLogEndOffset()));
+  }
+
+  /**
+   * Appends the bytes of {@link #logData} that start at the given offset to the log
+   * @param dataOffset The offset in {@link #logData} to append from
+   * @param size The number of bytes to append
+   * @throws IOException
+   */
+  private void appendData(long dataOffset, long size)
+      throws IOException {
+    log.appendFrom(ByteBuffer.wrap(logData, (int) dataOffset, (int) size));
+  }
+
+  /**
+   * Verifies that the blob the index points to holds the bytes that were originally written at the given offset
+   * @param id The id of the blob
+   * @param originalOffset The offset that the blob was originally written at
+   * @param size The size of the blob
+   * @throws Exception
+   */
+  private void verifyRead(MockId id, long originalOffset, long size)
+      throws Exception {
+    BlobReadOptions readOptions = index.getBlobReadInfo(id, EnumSet.noneOf(StoreGetOptions.class));
+    Assert.assertEquals(size, readOptions.getSize());
+    ByteBuffer buffer = ByteBuffer.allocate((int) size);
+    log.readInto(buffer, readOptions.getOffset());
+    byte[] expected = new byte[(int) size];
+    System.arraycopy(logData, (int) originalOffset, expected, 0, (int) size);
+    Assert.assertArrayEquals(expected, buffer.array());
+  }
+}
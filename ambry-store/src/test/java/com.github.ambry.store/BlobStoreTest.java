@@ -31,11 +31,14 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -149,6 +152,313 @@ public class BlobStoreTest {
     }
   }
 
+  /**
+   * Tests that the record offsets given with a put are handed out with the messages that are read back, also after the
+   * store was restarted, and that messages put without them are read back without them
+   * @throws Exception
+   */
+  @Test
+  public void storeRecordOffsetsTest()
+      throws Exception {
+    MockClusterMap map = null;
+    try {
+      Scheduler scheduler = new Scheduler(4, "thread", false);
+      scheduler.startup();
+      StoreConfig config = new StoreConfig(new VerifiableProperties(new Properties()));
+      map = new MockClusterMap();
+      DataNodeId dataNodeId1 = map.getDataNodeIds().get(0);
+      List<ReplicaId> replicaIds = map.getReplicaIds(map.getDataNodeId("localhost", dataNodeId1.getPort()));
+      String storeId = replicaIds.get(0).getPartitionId().toString();
+      Store store = new BlobStore(storeId, config, scheduler, new MetricRegistry(), replicaIds.get(0).getReplicaPath(),
+          replicaIds.get(0).getCapacityInBytes(), new MockIdFactory(), new DummyMessageStoreRecovery(),
+          new DummyMessageStoreHardDelete(), SystemTime.getInstance());
+      store.start();
+      byte[] bufToWrite = new byte[3000];
+      new Random().nextBytes(bufToWrite);
+      MockId blobId1 = new MockId("id1");
+      MockId blobId2 = new MockId("id2");
+      MockId blobId3 = new MockId("id3");
+      long[] recordOffsets1 = new long[]{10, 20, 30};
+      long[] recordOffsets2 = new long[]{40, 50, 60};
+      ArrayList<MessageInfo> listInfo = new ArrayList<MessageInfo>(3);
+      listInfo.add(new MessageInfo(blobId1, 1000, Utils.Infinite_Time, recordOffsets1));
+      listInfo.add(new MessageInfo(blobId2, 1000, Utils.Infinite_Time, recordOffsets2));
+      listInfo.add(new MessageInfo(blobId3, 1000));
+      store.put(new MockMessageWriteSet(ByteBuffer.wrap(bufToWrite), listInfo));
+
+      ArrayList<StoreKey> keys = new ArrayList<StoreKey>();
+      keys.add(blobId1);
+      keys.add(blobId2);
+      keys.add(blobId3);
+      verifyRecordOffsets(store, keys, recordOffsets1, recordOffsets2);
+      store.shutdown();
+
+      // the offsets are kept in the index, so they are still known once the store is started again
+      store = new BlobStore(storeId, config, scheduler, new MetricRegistry(), replicaIds.get(0).getReplicaPath(),
+          replicaIds.get(0).getCapacityInBytes(), new MockIdFactory(), new DummyMessageStoreRecovery(),
+          new DummyMessageStoreHardDelete(), SystemTime.getInstance());
+      store.start();
+      verifyRecordOffsets(store, keys, recordOffsets1, recordOffsets2);
+      store.shutdown();
+      scheduler.shutdown();
+    } finally {
+      if (map != null) {
+        map.cleanup();
+      }
+    }
+  }
+
+  private void verifyRecordOffsets(Store store, List<StoreKey> keys, long[] recordOffsets1, long[] recordOffsets2)
+      throws StoreException {
+    MessageReadSet readSet = store.get(keys, EnumSet.noneOf(StoreGetOptions.class)).getMessageReadSet();
+    try {
+      Assert.assertEquals(3, readSet.count());
+      for (int i = 0; i < readSet.count(); i++) {
+        if (readSet.getKeyAt(i).equals(keys.get(0))) {
+          Assert.assertArrayEquals(recordOffsets1, readSet.getRecordOffsetsAt(i));
+        } else if (readSet.getKeyAt(i).equals(keys.get(1))) {
+          Assert.assertArrayEquals(recordOffsets2, readSet.getRecordOffsetsAt(i));
+        } else {
+          Assert.assertNull(readSet.getRecordOffsetsAt(i));
+        }
+      }
+    } finally {
+      readSet.release();
+    }
+  }
+
+  @Test
+  public void storeGroupCommitPutTest()
+      throws Exception {
+    MockClusterMap map = null;
+    try {
+      Scheduler scheduler = new Scheduler(4, "thread", false);
+      scheduler.startup();
+      Properties props = new Properties();
+      props.setProperty("store.enable.group.commit", "true");
+      props.setProperty("store.group.commit.max.batch.size", "4");
+      props.setProperty("store.group.commit.window.ms", "5");
+      VerifiableProperties verifyProperty = new VerifiableProperties(props);
+      verifyProperty.verify();
+      StoreConfig config = new StoreConfig(verifyProperty);
+      map = new MockClusterMap();
+      DataNodeId dataNodeId1 = map.getDataNodeIds().get(0);
+      StoreKeyFactory factory = Utils.getObj("com.github.ambry.store.MockIdFactory");
+      List<ReplicaId> replicaIds = map.getReplicaIds(map.getDataNodeId("localhost", dataNodeId1.getPort()));
+      String storeId = replicaIds.get(0).getPartitionId().toString();
+      final Store store =
+          new BlobStore(storeId, config, scheduler, new MetricRegistry(), replicaIds.get(0).getReplicaPath(),
+              replicaIds.get(0).getCapacityInBytes(), factory, new DummyMessageStoreRecovery(),
+              new DummyMessageStoreHardDelete(), SystemTime.getInstance());
+      store.start();
+
+      // put blobs concurrently, with every blob being put twice
+      final int numBlobs = 10;
+      final byte[][] blobs = new byte[numBlobs][];
+      final List<StoreErrorCodes> errors = Collections.synchronizedList(new ArrayList<StoreErrorCodes>());
+      final CountDownLatch startLatch = new CountDownLatch(1);
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < numBlobs * 2; i++) {
+        final int blobIndex = i % numBlobs;
+        if (i < numBlobs) {
+          blobs[blobIndex] = new byte[100 + blobIndex];
+          new Random().nextBytes(blobs[blobIndex]);
+        }
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              startLatch.await();
+              ArrayList<MessageInfo> listInfo = new ArrayList<MessageInfo>(1);
+              listInfo.add(new MessageInfo(new MockId("id" + blobIndex), blobs[blobIndex].length));
+              store.put(new MockMessageWriteSet(ByteBuffer.wrap(blobs[blobIndex]), listInfo));
+            } catch (StoreException e) {
+              errors.add(e.getErrorCode());
+            } catch (InterruptedException e) {
+              errors.add(StoreErrorCodes.Unknown_Error);
+            }
+          }
+        });
+        thread.start();
+        threads.add(thread);
+      }
+      startLatch.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      // exactly one of the two puts of every blob should have failed
+      Assert.assertEquals(numBlobs, errors.size());
+      for (StoreErrorCodes error : errors) {
+        Assert.assertEquals(StoreErrorCodes.Already_Exist, error);
+      }
+
+      // every blob should be readable and intact
+      for (int i = 0; i < numBlobs; i++) {
+        ArrayList<StoreKey> keys = new ArrayList<StoreKey>();
+        keys.add(new MockId("id" + i));
+        StoreInfo info = store.get(keys, EnumSet.noneOf(StoreGetOptions.class));
+        MessageReadSet readSet = info.getMessageReadSet();
+        Assert.assertEquals(blobs[i].length, readSet.sizeInBytes(0));
+        byte[] output = new byte[blobs[i].length];
+        readSet.writeTo(0, Channels.newChannel(new ByteBufferOutputStream(ByteBuffer.wrap(output))), 0,
+            output.length);
+        Assert.assertArrayEquals(blobs[i], output);
+      }
+      store.shutdown();
+    } finally {
+      if (map != null) {
+        map.cleanup();
+      }
+    }
+  }
+
+  @Test
+  public void storeGroupCommitLonePutTest()
+      throws Exception {
+    MockClusterMap map = null;
+    try {
+      Scheduler scheduler = new Scheduler(4, "thread", false);
+      scheduler.startup();
+      Properties props = new Properties();
+      props.setProperty("store.enable.group.commit", "true");
+      props.setProperty("store.group.commit.window.ms", "1000");
+      VerifiableProperties verifyProperty = new VerifiableProperties(props);
+      verifyProperty.verify();
+      StoreConfig config = new StoreConfig(verifyProperty);
+      map = new MockClusterMap();
+      DataNodeId dataNodeId1 = map.getDataNodeIds().get(0);
+      StoreKeyFactory factory = Utils.getObj("com.github.ambry.store.MockIdFactory");
+      List<ReplicaId> replicaIds = map.getReplicaIds(map.getDataNodeId("localhost", dataNodeId1.getPort()));
+      String storeId = replicaIds.get(0).getPartitionId().toString();
+      final AtomicInteger waits = new AtomicInteger(0);
+      MockTime time = new MockTime(SystemTime.getInstance().milliseconds()) {
+        @Override
+        public void wait(Object o, long ms)
+            throws InterruptedException {
+          waits.incrementAndGet();
+          super.wait(o, ms);
+        }
+
+        @Override
+        public void sleep(long ms)
+            throws InterruptedException {
+          waits.incrementAndGet();
+          super.sleep(ms);
+        }
+      };
+      Store store = new BlobStore(storeId, config, scheduler, new MetricRegistry(), replicaIds.get(0).getReplicaPath(),
+          replicaIds.get(0).getCapacityInBytes(), factory, new DummyMessageStoreRecovery(),
+          new DummyMessageStoreHardDelete(), time);
+      store.start();
+
+      // a put that no other put can join is written without waiting for the group commit window
+      byte[] blob = new byte[100];
+      new Random().nextBytes(blob);
+      ArrayList<MessageInfo> listInfo = new ArrayList<MessageInfo>(1);
+      listInfo.add(new MessageInfo(new MockId("id1"), blob.length));
+      store.put(new MockMessageWriteSet(ByteBuffer.wrap(blob), listInfo));
+      Assert.assertEquals(0, waits.get());
+      ArrayList<StoreKey> keys = new ArrayList<StoreKey>();
+      keys.add(new MockId("id1"));
+      StoreInfo info = store.get(keys, EnumSet.noneOf(StoreGetOptions.class));
+      Assert.assertEquals(blob.length, info.getMessageReadSet().sizeInBytes(0));
+      store.shutdown();
+    } finally {
+      if (map != null) {
+        map.cleanup();
+      }
+    }
+  }
+
+  /**
+   * Tests that a put that fails because its messages cannot be read from their source fails with
+   * {@link StoreErrorCodes#IOError} but does not count against the health of the store, with or without group commit,
+   * while a put that fails to do I/O does
+   * @throws Exception
+   */
+  @Test
+  public void storePutSourceFailureTest()
+      throws Exception {
+    for (boolean groupCommit : new boolean[]{false, true}) {
+      MockClusterMap map = null;
+      DiskHealthMonitor healthMonitor = null;
+      try {
+        Scheduler scheduler = new Scheduler(4, "thread", false);
+        scheduler.startup();
+        Properties props = new Properties();
+        props.setProperty("store.enable.group.commit", Boolean.toString(groupCommit));
+        props.setProperty("store.health.min.operations", "4");
+        props.setProperty("store.health.max.error.ratio", "0.5");
+        VerifiableProperties verifyProperty = new VerifiableProperties(props);
+        verifyProperty.verify();
+        StoreConfig config = new StoreConfig(verifyProperty);
+        map = new MockClusterMap();
+        DataNodeId dataNodeId1 = map.getDataNodeIds().get(0);
+        StoreKeyFactory factory = Utils.getObj("com.github.ambry.store.MockIdFactory");
+        List<ReplicaId> replicaIds = map.getReplicaIds(map.getDataNodeId("localhost", dataNodeId1.getPort()));
+        String storeId = replicaIds.get(0).getPartitionId().toString();
+        String dataDir = replicaIds.get(0).getReplicaPath();
+        healthMonitor = new DiskHealthMonitor(replicaIds.get(0).getMountPath(), config, new MetricRegistry(),
+            SystemTime.getInstance());
+        Store store = new BlobStore(storeId, config, scheduler, new MetricRegistry(), dataDir,
+            replicaIds.get(0).getCapacityInBytes(), factory, new DummyMessageStoreRecovery(),
+            new DummyMessageStoreHardDelete(), null, healthMonitor, null, SystemTime.getInstance());
+        store.start();
+
+        for (int i = 0; i < 6; i++) {
+          try {
+            store.put(new FailingMessageWriteSet(new MessageSourceException("Source failed", new IOException())));
+            Assert.fail("Put should have failed as its messages could not be read");
+          } catch (StoreException e) {
+            Assert.assertEquals(StoreErrorCodes.IOError, e.getErrorCode());
+          }
+        }
+        Assert.assertEquals(DiskHealthMonitor.HealthState.Healthy, healthMonitor.getStoreState(dataDir));
+
+        // the failures to write outnumber all the other operations once the seventh fails
+        for (int i = 0; i < 7; i++) {
+          try {
+            store.put(new FailingMessageWriteSet(new IOException("Write failed")));
+            Assert.fail("Put should have failed as its messages could not be written");
+          } catch (StoreException e) {
+            Assert.assertEquals(StoreErrorCodes.IOError, e.getErrorCode());
+          }
+        }
+        Assert.assertEquals(DiskHealthMonitor.HealthState.Offline, healthMonitor.getStoreState(dataDir));
+        store.shutdown();
+      } finally {
+        if (healthMonitor != null) {
+          healthMonitor.close();
+        }
+        if (map != null) {
+          map.cleanup();
+        }
+      }
+    }
+  }
+
+  /**
+   * A message set of one message that fails with the given exception before anything is written
+   */
+  private static class FailingMessageWriteSet implements MessageWriteSet {
+    private final IOException exception;
+
+    FailingMessageWriteSet(IOException exception) {
+      this.exception = exception;
+    }
+
+    @Override
+    public long writeTo(Write writeChannel)
+        throws IOException {
+      throw exception;
+    }
+
+    @Override
+    public List<MessageInfo> getMessageSetInfo() {
+      return Collections.singletonList(new MessageInfo(new MockId("id1"), 100));
+    }
+  }
+
   @Test
   public void storeGetTest()
       throws IOException {
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.ambry.config.StoreConfig;
+import com.github.ambry.config.VerifiableProperties;
+import com.github.ambry.utils.MockTime;
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class DiskHealthMonitorTest {
+
+  private File createDirectory(File parent) {
+    File directory = new File(parent, "health_" + new Random().nextInt(Integer.MAX_VALUE));
+    Assert.assertTrue(directory.mkdir());
+    directory.deleteOnExit();
+    return directory;
+  }
+
+  private DiskHealthMonitor createMonitor(String mountPath, MockTime time) {
+    Properties props = new Properties();
+    props.setProperty("store.health.window.seconds", "10");
+    props.setProperty("store.health.min.operations", "4");
+    props.setProperty("store.health.max.error.ratio", "0.5");
+    props.setProperty("store.health.slow.operation.threshold.ms", "100");
+    props.setProperty("store.health.max.slow.operation.ratio", "0.5");
+    props.setProperty("store.health.probe.successes.to.recover", "2");
+    StoreConfig config = new StoreConfig(new VerifiableProperties(props));
+    return new DiskHealthMonitor(mountPath, config, new MetricRegistry(), time);
+  }
+
+  private void verifyAvailable(DiskHealthMonitor monitor, String dataDir, boolean write,
+      StoreErrorCodes expectedError) {
+    try {
+      monitor.checkAvailable(dataDir, write);
+      Assert.assertNull("Operation should have failed with " + expectedError, expectedError);
+    } catch (StoreException e) {
+      Assert.assertEquals(expectedError, e.getErrorCode());
+    }
+  }
+
+  @Test
+  public void testStoreHealth()
+      throws IOException, InterruptedException {
+    File tempFile = File.createTempFile("ambry", ".tmp");
+    tempFile.deleteOnExit();
+    File mountPath = createDirectory(tempFile.getParentFile());
+    String store1 = createDirectory(mountPath).getAbsolutePath();
+    String store2 = createDirectory(mountPath).getAbsolutePath();
+    MockTime time = new MockTime(0);
+    DiskHealthMonitor monitor = createMonitor(mountPath.getAbsolutePath(), time);
+    monitor.registerStore(store1);
+    monitor.registerStore(store2);
+
+    // errors below the min number of operations do not change the state
+    for (int i = 0; i < 3; i++) {
+      monitor.onOperationCompleted(store1, true, 1);
+    }
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Healthy, monitor.getStoreState(store1));
+    // the errors are forgotten once the window is over
+    time.sleep(10 * 1000);
+    for (int i = 0; i < 4; i++) {
+      monitor.onOperationCompleted(store1, i == 0, 1);
+    }
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Healthy, monitor.getStoreState(store1));
+    for (int i = 0; i < 4; i++) {
+      monitor.onOperationCompleted(store1, false, 1);
+    }
+
+    // a store with slow operations goes read only
+    for (int i = 0; i < 6; i++) {
+      monitor.onOperationCompleted(store2, false, 1000);
+    }
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Read_Only, monitor.getStoreState(store2));
+    verifyAvailable(monitor, store2, false, null);
+    verifyAvailable(monitor, store2, true, StoreErrorCodes.Store_Read_Only);
+    // the slow operations of a store do not make the other stores on the disk unhealthy unless the disk is slow too
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Healthy, monitor.getStoreState(store1));
+    verifyAvailable(monitor, store1, true, null);
+
+    // a store with too many errors goes offline
+    for (int i = 0; i < 7; i++) {
+      monitor.onOperationCompleted(store2, true, 1);
+    }
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Offline, monitor.getStoreState(store2));
+    verifyAvailable(monitor, store2, false, StoreErrorCodes.Store_Unavailable);
+
+    // the store recovers once enough probes in a row succeed
+    monitor.probe();
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Offline, monitor.getStoreState(store2));
+    monitor.probe();
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Healthy, monitor.getStoreState(store2));
+    verifyAvailable(monitor, store2, true, null);
+    Assert.assertFalse("The probe file should have been deleted", new File(store2, ".health_probe").exists());
+  }
+
+  @Test
+  public void testDiskHealth()
+      throws IOException {
+    File tempFile = File.createTempFile("ambry", ".tmp");
+    tempFile.deleteOnExit();
+    File mountPath = createDirectory(tempFile.getParentFile());
+    String store1 = createDirectory(mountPath).getAbsolutePath();
+    String store2 = createDirectory(mountPath).getAbsolutePath();
+    String store3 = createDirectory(mountPath).getAbsolutePath();
+    MockTime time = new MockTime(0);
+    DiskHealthMonitor monitor = createMonitor(mountPath.getAbsolutePath(), time);
+    monitor.registerStore(store1);
+    monitor.registerStore(store2);
+    monitor.registerStore(store3);
+
+    // errors spread across the stores of a disk take all of them offline even though no store saw enough of them
+    monitor.onOperationCompleted(store1, true, 1);
+    monitor.onOperationCompleted(store1, true, 1);
+    monitor.onOperationCompleted(store2, true, 1);
+    monitor.onOperationCompleted(store2, true, 1);
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Offline, monitor.getDiskState());
+    for (String store : new String[]{store1, store2, store3}) {
+      Assert.assertEquals(DiskHealthMonitor.HealthState.Offline, monitor.getStoreState(store));
+      verifyAvailable(monitor, store, false, StoreErrorCodes.Store_Unavailable);
+    }
+
+    // probes of the disk bring all the stores back
+    monitor.probe();
+    monitor.probe();
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Healthy, monitor.getDiskState());
+    for (String store : new String[]{store1, store2, store3}) {
+      Assert.assertEquals(DiskHealthMonitor.HealthState.Healthy, monitor.getStoreState(store));
+    }
+
+    // a failing probe starts the count of successful probes over
+    for (int i = 0; i < 4; i++) {
+      monitor.onOperationCompleted(store3, true, 1);
+    }
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Offline, monitor.getDiskState());
+    monitor.probe();
+    // the probe cannot write its file if a directory is in the way
+    Assert.assertTrue(new File(mountPath, ".health_probe").mkdir());
+    monitor.probe();
+    monitor.probe();
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Offline, monitor.getDiskState());
+    monitor.probe();
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Healthy, monitor.getDiskState());
+  }
+
+  /**
+   * Tests that a probe that hangs counts as failed once it times out, that the disk is not probed again while the
+   * probe is hung and that probes go on once it completes
+   * @throws Exception
+   */
+  @Test
+  public void testProbeTimeout()
+      throws Exception {
+    File tempFile = File.createTempFile("ambry", ".tmp");
+    tempFile.deleteOnExit();
+    File mountPath = createDirectory(tempFile.getParentFile());
+    Properties props = new Properties();
+    props.setProperty("store.health.min.operations", "1");
+    props.setProperty("store.health.probe.successes.to.recover", "1");
+    props.setProperty("store.health.probe.timeout.ms", "100");
+    StoreConfig config = new StoreConfig(new VerifiableProperties(props));
+    final CountDownLatch probeReleased = new CountDownLatch(1);
+    final AtomicInteger probesStarted = new AtomicInteger(0);
+    DiskHealthMonitor monitor = new DiskHealthMonitor(mountPath.getAbsolutePath(), config, new MetricRegistry(),
+        new MockTime(0)) {
+      @Override
+      boolean probeDirectory(String directory) {
+        probesStarted.incrementAndGet();
+        try {
+          probeReleased.await();
+        } catch (InterruptedException e) {
+          return false;
+        }
+        return super.probeDirectory(directory);
+      }
+    };
+    monitor.onOperationCompleted(mountPath.getAbsolutePath(), true, 1);
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Offline, monitor.getDiskState());
+
+    // the hung probe times out and the disk stays offline
+    monitor.probe();
+    Assert.assertEquals(1, probesStarted.get());
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Offline, monitor.getDiskState());
+    // no other probe is started while it is hung
+    monitor.probe();
+    Assert.assertEquals(1, probesStarted.get());
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Offline, monitor.getDiskState());
+
+    // once the hung probe completes, the disk is probed again and recovers
+    probeReleased.countDown();
+    long deadlineMs = System.currentTimeMillis() + 10000;
+    while (monitor.getDiskState() != DiskHealthMonitor.HealthState.Healthy && System.currentTimeMillis() < deadlineMs) {
+      monitor.probe();
+    }
+    Assert.assertEquals(DiskHealthMonitor.HealthState.Healthy, monitor.getDiskState());
+    Assert.assertTrue(probesStarted.get() >= 2);
+    monitor.close();
+  }
+}
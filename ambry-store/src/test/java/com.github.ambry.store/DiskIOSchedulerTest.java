@@ -0,0 +1,118 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.ambry.config.StoreConfig;
+import com.github.ambry.config.VerifiableProperties;
+import com.github.ambry.utils.MockTime;
+import java.util.Properties;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class DiskIOSchedulerTest {
+
+  private DiskIOScheduler createScheduler(MetricRegistry registry, MockTime time) {
+    Properties props = new Properties();
+    props.setProperty("store.io.scheduler.replication.bytes.per.sec", "500");
+    props.setProperty("store.io.scheduler.background.max.bytes.per.sec", "1000");
+    props.setProperty("store.io.scheduler.background.min.bytes.per.sec", "100");
+    props.setProperty("store.io.scheduler.foreground.latency.target.ms", "50");
+    StoreConfig config = new StoreConfig(new VerifiableProperties(props));
+    return new DiskIOScheduler("disk", config, registry, time);
+  }
+
+  @Test
+  public void testBudgets()
+      throws InterruptedException {
+    MetricRegistry registry = new MetricRegistry();
+    MockTime time = new MockTime(0);
+    DiskIOScheduler scheduler = createScheduler(registry, time);
+
+    // foreground I/O is never delayed
+    scheduler.acquire(DiskIOScheduler.IOClass.Foreground_Read, 1000000);
+    scheduler.acquire(DiskIOScheduler.IOClass.Foreground_Write, 1000000);
+    Assert.assertEquals(0, time.milliseconds());
+
+    // a full bucket admits a second worth of bytes right away
+    scheduler.acquire(DiskIOScheduler.IOClass.Background, 1000);
+    Assert.assertEquals(0, time.milliseconds());
+    // the next I/O waits until the bytes it needs have been earned
+    scheduler.acquire(DiskIOScheduler.IOClass.Background, 500);
+    Assert.assertEquals(500, time.milliseconds());
+
+    // replication has a budget of its own
+    scheduler.acquire(DiskIOScheduler.IOClass.Replication, 500);
+    Assert.assertEquals(500, time.milliseconds());
+    scheduler.acquire(DiskIOScheduler.IOClass.Replication, 250);
+    Assert.assertEquals(1000, time.milliseconds());
+
+    // charged bytes are not delayed but delay the I/O that comes after them
+    time.currentNanoSeconds = time.currentMilliseconds * 1000000;
+    scheduler.charge(DiskIOScheduler.IOClass.Background, 1000);
+    Assert.assertEquals(1000, time.milliseconds());
+    scheduler.acquire(DiskIOScheduler.IOClass.Background, 100);
+    Assert.assertTrue(time.milliseconds() > 1000);
+
+    Assert.assertEquals(2, registry.histogram(
+        MetricRegistry.name(DiskIOScheduler.class, "disk." + DiskIOScheduler.IOClass.Replication + "WaitTimeInMs"))
+        .getCount());
+    Assert.assertEquals(0, registry.getGauges()
+        .get(MetricRegistry.name(DiskIOScheduler.class, "disk." + DiskIOScheduler.IOClass.Background + "QueueDepth"))
+        .getValue());
+
+    // once closed, nothing waits
+    scheduler.close();
+    long timeBeforeAcquire = time.milliseconds();
+    scheduler.acquire(DiskIOScheduler.IOClass.Background, 100000);
+    Assert.assertEquals(timeBeforeAcquire, time.milliseconds());
+  }
+
+  @Test
+  public void testBackgroundRateAdjustment() {
+    MockTime time = new MockTime(0);
+    DiskIOScheduler scheduler = createScheduler(new MetricRegistry(), time);
+    Assert.assertEquals(1000, scheduler.getBackgroundBytesPerSec(), 0);
+
+    // the rate is only adjusted once an interval has passed
+    scheduler.onForegroundIOCompleted(DiskIOScheduler.IOClass.Foreground_Read, 100);
+    Assert.assertEquals(1000, scheduler.getBackgroundBytesPerSec(), 0);
+
+    // slow foreground operations halve the background rate, down to the min rate
+    double[] expectedRates = {500, 250, 125, 100, 100};
+    for (double expectedRate : expectedRates) {
+      time.currentMilliseconds += 1000;
+      scheduler.onForegroundIOCompleted(DiskIOScheduler.IOClass.Foreground_Write, 100);
+      Assert.assertEquals(expectedRate, scheduler.getBackgroundBytesPerSec(), 0);
+    }
+
+    // fast foreground operations let the rate grow back up to the max rate
+    time.currentMilliseconds += 1000;
+    scheduler.onForegroundIOCompleted(DiskIOScheduler.IOClass.Foreground_Read, 10);
+    Assert.assertEquals(200, scheduler.getBackgroundBytesPerSec(), 0);
+    for (int i = 0; i < 10; i++) {
+      time.currentMilliseconds += 1000;
+      scheduler.onForegroundIOCompleted(DiskIOScheduler.IOClass.Foreground_Read, 10);
+    }
+    Assert.assertEquals(1000, scheduler.getBackgroundBytesPerSec(), 0);
+
+    try {
+      scheduler.onForegroundIOCompleted(DiskIOScheduler.IOClass.Background, 10);
+      Assert.fail("Background I/O should not be reported as foreground I/O");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -17,6 +17,8 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class InMemoryJournalTest {
@@ -24,16 +26,16 @@ public class InMemoryJournalTest {
   @Test
   public void testJournalOperation() {
     InMemoryJournal journal = new InMemoryJournal("test", 10, 5);
-    journal.addEntry(0, new MockId("id1"));
-    journal.addEntry(1000, new MockId("id2"));
-    journal.addEntry(2000, new MockId("id3"));
-    journal.addEntry(3000, new MockId("id4"));
-    journal.addEntry(4000, new MockId("id5"));
-    journal.addEntry(5000, new MockId("id6"));
-    journal.addEntry(6000, new MockId("id7"));
-    journal.addEntry(7000, new MockId("id8"));
-    journal.addEntry(8000, new MockId("id9"));
-    journal.addEntry(9000, new MockId("id10"));
+    journal.addEntry(0, new MockId("id1"), new IndexValue(1000, 0));
+    journal.addEntry(1000, new MockId("id2"), new IndexValue(1000, 1000));
+    journal.addEntry(2000, new MockId("id3"), new IndexValue(1000, 2000));
+    journal.addEntry(3000, new MockId("id4"), new IndexValue(1000, 3000));
+    journal.addEntry(4000, new MockId("id5"), new IndexValue(1000, 4000));
+    journal.addEntry(5000, new MockId("id6"), new IndexValue(1000, 5000));
+    journal.addEntry(6000, new MockId("id7"), new IndexValue(1000, 6000));
+    journal.addEntry(7000, new MockId("id8"), new IndexValue(1000, 7000));
+    journal.addEntry(8000, new MockId("id9"), new IndexValue(1000, 8000));
+    journal.addEntry(9000, new MockId("id10"), new IndexValue(1000, 9000));
     List<JournalEntry> entries = journal.getEntriesSince(0, true);
     Assert.assertEquals(entries.get(0).getOffset(), 0);
     Assert.assertEquals(entries.get(0).getKey(), new MockId("id1"));
@@ -52,7 +54,7 @@ public class InMemoryJournalTest {
     Assert.assertEquals(entries.get(1).getOffset(), 9000);
     Assert.assertEquals(entries.get(1).getKey(), new MockId("id10"));
     Assert.assertEquals(entries.size(), 2);
-    journal.addEntry(10000, new MockId("id11"));
+    journal.addEntry(10000, new MockId("id11"), new IndexValue(1000, 10000));
     entries = journal.getEntriesSince(0, true);
     Assert.assertNull(entries);
     entries = journal.getEntriesSince(1000, false);
@@ -62,4 +64,101 @@ public class InMemoryJournalTest {
     Assert.assertEquals(entries.get(4).getOffset(), 6000);
     Assert.assertEquals(entries.get(4).getKey(), new MockId("id7"));
   }
+
+  @Test
+  public void testJournalValues() {
+    InMemoryJournal journal = new InMemoryJournal("test", 4, 4);
+    journal.addEntry(0, new MockId("id1"), new IndexValue(1000, 0, 12345));
+    journal.addEntry(1000, new MockId("id2"), new IndexValue(1000, 1000));
+    List<JournalEntry> entries = journal.getEntriesSince(0, true);
+    Assert.assertEquals(2, entries.size());
+    Assert.assertEquals(1000, entries.get(0).getValue().getSize());
+    Assert.assertEquals(0, entries.get(0).getValue().getOffset());
+    Assert.assertEquals(12345, entries.get(0).getValue().getTimeToLiveInMs());
+    Assert.assertFalse(entries.get(0).getValue().isFlagSet(IndexValue.Flags.Delete_Index));
+    Assert.assertEquals(1000, entries.get(1).getValue().getOffset());
+
+    // a delete of id1 updates the value returned for its older entry as well
+    IndexValue deleteValue = new IndexValue(1000, 0, 12345);
+    deleteValue.setFlag(IndexValue.Flags.Delete_Index);
+    deleteValue.setNewOffset(2000);
+    deleteValue.setNewSize(100);
+    journal.addEntry(2000, new MockId("id1"), deleteValue);
+    // the journal keeps a copy of the value
+    deleteValue.setNewSize(200);
+    entries = journal.getEntriesSince(0, true);
+    Assert.assertEquals(3, entries.size());
+    for (int i : new int[]{0, 2}) {
+      Assert.assertEquals(new MockId("id1"), entries.get(i).getKey());
+      Assert.assertTrue(entries.get(i).getValue().isFlagSet(IndexValue.Flags.Delete_Index));
+      Assert.assertEquals(2000, entries.get(i).getValue().getOffset());
+      Assert.assertEquals(100, entries.get(i).getValue().getSize());
+      Assert.assertEquals(12345, entries.get(i).getValue().getTimeToLiveInMs());
+    }
+
+    // pushing out the first entry of id1 keeps its value for the entry that is left
+    journal.addEntry(3000, new MockId("id3"), new IndexValue(1000, 3000));
+    journal.addEntry(4000, new MockId("id4"), new IndexValue(1000, 4000));
+    entries = journal.getEntriesSince(1000, true);
+    Assert.assertEquals(4, entries.size());
+    Assert.assertEquals(new MockId("id1"), entries.get(1).getKey());
+    Assert.assertTrue(entries.get(1).getValue().isFlagSet(IndexValue.Flags.Delete_Index));
+
+    // once all the entries of a key are pushed out, a value is only returned for keys still in the journal
+    journal.addEntry(5000, new MockId("id5"), new IndexValue(1000, 5000));
+    journal.addEntry(6000, new MockId("id6"), new IndexValue(1000, 6000));
+    entries = journal.getEntriesSince(3000, true);
+    Assert.assertEquals(4, entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      Assert.assertEquals(new MockId("id" + (i + 3)), entries.get(i).getKey());
+      Assert.assertEquals(3000 + i * 1000, entries.get(i).getValue().getOffset());
+    }
+  }
+
+  /**
+   * Tests that readers of the journal see the values of keys as they were added while the journal is being written to
+   * @throws Exception
+   */
+  @Test
+  public void testConcurrentJournalValues()
+      throws Exception {
+    final InMemoryJournal journal = new InMemoryJournal("test", 8, 8);
+    final int numEntries = 20000;
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    journal.addEntry(0, new MockId("id0"), new IndexValue(0, 0));
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!done.get() && failure.get() == null) {
+          List<JournalEntry> entries = journal.getEntriesSince(journal.getFirstOffset(), true);
+          if (entries == null) {
+            continue;
+          }
+          for (JournalEntry entry : entries) {
+            IndexValue value = entry.getValue();
+            // every value was added with a size equal to its offset
+            if (value != null && value.getSize() != value.getOffset()) {
+              failure.set("Value of " + entry.getKey() + " has size " + value.getSize() + " and offset "
+                  + value.getOffset());
+            }
+          }
+        }
+      }
+    });
+    reader.start();
+    for (int i = 1; i < numEntries; i++) {
+      // a few keys are added over and over so that their values keep changing
+      journal.addEntry(i, new MockId("id" + (i % 5)), new IndexValue(i, i));
+    }
+    done.set(true);
+    reader.join();
+    Assert.assertNull(failure.get(), failure.get());
+    List<JournalEntry> entries = journal.getEntriesSince(numEntries - 8, true);
+    Assert.assertEquals(8, entries.size());
+    for (JournalEntry entry : entries) {
+      // the value of a key is its latest one
+      Assert.assertTrue(entry.getValue().getOffset() >= numEntries - 5);
+    }
+  }
 }
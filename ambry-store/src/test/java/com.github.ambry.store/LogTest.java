@@ -13,6 +13,7 @@
  */
 package com.github.ambry.store;
 
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
 import org.junit.Assert;
 import org.junit.Test;
@@ -22,8 +23,15 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 import com.github.ambry.utils.ByteBufferInputStream;
+import com.github.ambry.utils.ByteBufferOutputStream;
+import com.github.ambry.utils.MockTime;
 import com.github.ambry.metrics.MetricsRegistryMap;
 import com.github.ambry.metrics.ReadableMetricsRegistry;
 
@@ -224,4 +232,407 @@ public class LogTest {
       Assert.assertEquals(true, false);
     }
   }
+
+  @Test
+  public void segmentedLogTest()
+      throws IOException {
+    File tempFile = tempFile();
+    File dataDir = new File(tempFile.getParent(), "segmented_log_" + new Random().nextInt(Integer.MAX_VALUE));
+    Assert.assertTrue(dataDir.mkdir());
+    dataDir.deleteOnExit();
+    MetricRegistry registry = new MetricRegistry();
+    Log logTest = new Log(dataDir.getAbsolutePath(), 5000, 1000, new StoreMetrics(dataDir.getAbsolutePath(), registry));
+    Assert.assertTrue(logTest.isSegmented());
+    Assert.assertEquals(1, logTest.getSegmentStartOffsets().size());
+    Assert.assertEquals(1000, logTest.getUsedCapacityInBytes());
+    byte[] testbuf = new byte[1500];
+    new Random().nextBytes(testbuf);
+    // append across a segment boundary
+    int written = logTest.appendFrom(ByteBuffer.wrap(testbuf));
+    Assert.assertEquals(1500, written);
+    Assert.assertEquals(1500, logTest.getLogEndOffset());
+    Assert.assertEquals(2, logTest.getSegmentStartOffsets().size());
+    logTest.appendFrom(Channels.newChannel(new ByteBufferInputStream(ByteBuffer.wrap(testbuf))), 1500);
+    Assert.assertEquals(3000, logTest.getLogEndOffset());
+    Assert.assertEquals(3, logTest.getSegmentStartOffsets().size());
+    Assert.assertEquals(3000, logTest.getUsedCapacityInBytes());
+
+    // read across segment boundaries
+    ByteBuffer result = ByteBuffer.allocate(1500);
+    logTest.readInto(result, 0);
+    Assert.assertArrayEquals(testbuf, result.array());
+    result.clear();
+    logTest.readInto(result, 1500);
+    Assert.assertArrayEquals(testbuf, result.array());
+
+    // the segment holding the end of the log cannot be freed
+    try {
+      logTest.freeSegment(2000, 0);
+      Assert.fail("Freeing the last segment should have failed");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    // a freed segment remains readable until it is deleted
+    logTest.freeSegment(0, 0);
+    Assert.assertEquals(2, logTest.getSegmentStartOffsets().size());
+    Assert.assertEquals(2000, logTest.getUsedCapacityInBytes());
+    result.clear();
+    logTest.readInto(result, 0);
+    Assert.assertArrayEquals(testbuf, result.array());
+    Assert.assertEquals(0, logTest.deleteRetiredSegments(999, 1000));
+    Assert.assertEquals(1, logTest.deleteRetiredSegments(1000, 1000));
+    Assert.assertFalse(new File(dataDir, "0_log").exists());
+    result.clear();
+    try {
+      logTest.readInto(result, 0);
+      Assert.fail("Reading from a deleted segment should have failed");
+    } catch (IOException e) {
+      // expected
+    }
+
+    // the freed space can be reused by appends
+    logTest.appendFrom(ByteBuffer.wrap(testbuf));
+    logTest.appendFrom(ByteBuffer.wrap(testbuf));
+    Assert.assertEquals(6000, logTest.getLogEndOffset());
+    Assert.assertEquals(5, logTest.getSegmentStartOffsets().size());
+    try {
+      logTest.appendFrom(ByteBuffer.wrap(testbuf));
+      Assert.fail("Append beyond the capacity of the log should have failed");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(1, registry.getCounters().
+          get("com.github.ambry.store.Log." + dataDir.getAbsolutePath() + ".OverflowWriteError").getCount());
+    }
+    logTest.flush();
+    logTest.close();
+
+    // the segments are loaded back on restart
+    logTest = new Log(dataDir.getAbsolutePath(), 5000, 1000, new StoreMetrics(dataDir.getAbsolutePath(), registry));
+    Assert.assertEquals(5, logTest.getSegmentStartOffsets().size());
+    Assert.assertEquals(1000, logTest.getLogEndOffset());
+    logTest.setLogEndOffset(6000);
+    result.clear();
+    logTest.readInto(result, 4500);
+    Assert.assertArrayEquals(testbuf, result.array());
+    logTest.close();
+    for (File file : dataDir.listFiles()) {
+      file.delete();
+    }
+  }
+
+  /**
+   * Tests that a retired segment is not deleted while a view of the log holds it, even after the grace period
+   * @throws IOException
+   */
+  @Test
+  public void retiredSegmentReferenceTest()
+      throws IOException {
+    File tempFile = tempFile();
+    File dataDir = new File(tempFile.getParent(), "referenced_log_" + new Random().nextInt(Integer.MAX_VALUE));
+    Assert.assertTrue(dataDir.mkdir());
+    dataDir.deleteOnExit();
+    MetricRegistry registry = new MetricRegistry();
+    Log logTest = new Log(dataDir.getAbsolutePath(), 5000, 1000, new StoreMetrics(dataDir.getAbsolutePath(), registry));
+    byte[] testbuf = new byte[2500];
+    new Random().nextBytes(testbuf);
+    logTest.appendFrom(ByteBuffer.wrap(testbuf));
+
+    // a view of a message that spans the first two segments holds both of them
+    List<BlobReadOptions> readOptions = new ArrayList<BlobReadOptions>();
+    readOptions.add(new BlobReadOptions(500, 1000, -1, new MockId("id1")));
+    MessageReadSet readSet = logTest.getView(readOptions);
+    logTest.freeSegment(0, 0);
+    logTest.freeSegment(1000, 0);
+    Assert.assertEquals(0, logTest.deleteRetiredSegments(1000, 1000));
+    Assert.assertTrue(new File(dataDir, "0_log").exists());
+    Assert.assertTrue(new File(dataDir, "1000_log").exists());
+
+    // the view can still be read after the grace period
+    ByteBuffer result = ByteBuffer.allocate(1000);
+    WritableByteChannel channel = Channels.newChannel(new ByteBufferOutputStream(result));
+    long written = 0;
+    while (written < 1000) {
+      written += readSet.writeTo(0, channel, written, 1000 - written);
+    }
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals(testbuf[500 + i], result.get(i));
+    }
+
+    // the segments are deleted once the view has been released, releasing it again has no effect
+    readSet.release();
+    readSet.release();
+    Assert.assertEquals(2, logTest.deleteRetiredSegments(1000, 1000));
+    Assert.assertFalse(new File(dataDir, "0_log").exists());
+    Assert.assertFalse(new File(dataDir, "1000_log").exists());
+    // no view can be taken of a deleted segment
+    try {
+      logTest.getView(readOptions);
+      Assert.fail("Taking a view of a deleted segment should have failed");
+    } catch (IOException e) {
+      // expected
+    }
+    logTest.close();
+    for (File file : dataDir.listFiles()) {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void logLayoutMismatchTest()
+      throws IOException {
+    File tempFile = tempFile();
+    File dataDir = new File(tempFile.getParent(), "layout_log_" + new Random().nextInt(Integer.MAX_VALUE));
+    Assert.assertTrue(dataDir.mkdir());
+    dataDir.deleteOnExit();
+    StoreMetrics metrics = new StoreMetrics(dataDir.getAbsolutePath(), new MetricRegistry());
+    // a single file log cannot be opened as a segmented log
+    Log logTest = new Log(dataDir.getAbsolutePath(), 5000, metrics);
+    logTest.close();
+    try {
+      new Log(dataDir.getAbsolutePath(), 5000, 1000, metrics);
+      Assert.fail("Opening a single file log as a segmented log should have failed");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    for (File file : dataDir.listFiles()) {
+      file.delete();
+    }
+    // a segmented log cannot be opened as a single file log
+    logTest = new Log(dataDir.getAbsolutePath(), 5000, 1000, metrics);
+    logTest.close();
+    try {
+      new Log(dataDir.getAbsolutePath(), 5000, metrics);
+      Assert.fail("Opening a segmented log as a single file log should have failed");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    for (File file : dataDir.listFiles()) {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void mappedReadTest()
+      throws IOException {
+    File tempFile = tempFile();
+    File dataDir = new File(tempFile.getParent(), "mapped_read_log_" + new Random().nextInt(Integer.MAX_VALUE));
+    Assert.assertTrue(dataDir.mkdir());
+    dataDir.deleteOnExit();
+    MetricRegistry registry = new MetricRegistry();
+    String metricPrefix = "com.github.ambry.store.Log." + dataDir.getAbsolutePath();
+    // windows of 300 bytes over segments of 1000 bytes, of which at most 2 are kept
+    Log logTest = new Log(dataDir.getAbsolutePath(), 5000, 1000, 300, 2,
+        new StoreMetrics(dataDir.getAbsolutePath(), registry));
+    byte[] testbuf = new byte[2500];
+    new Random().nextBytes(testbuf);
+    logTest.appendFrom(ByteBuffer.wrap(testbuf));
+
+    // a transfer stops at the end of a window
+    ByteBuffer result = ByteBuffer.allocate(2500);
+    Assert.assertEquals(200, logTest.transferTo(100, 2400, Channels.newChannel(new ByteBufferOutputStream(result))));
+    // read everything through a view, which has to go through all the windows and segments
+    List<BlobReadOptions> readOptions = new ArrayList<BlobReadOptions>();
+    readOptions.add(new BlobReadOptions(0, 2500, -1, new MockId("id1")));
+    MessageReadSet readSet = logTest.getView(readOptions);
+    result.clear();
+    WritableByteChannel channel = Channels.newChannel(new ByteBufferOutputStream(result));
+    long written = 0;
+    while (written < 2500) {
+      written += readSet.writeTo(0, channel, written, 2500 - written);
+    }
+    Assert.assertArrayEquals(testbuf, result.array());
+    readSet.release();
+    // only the first window was still mapped from the earlier transfer, the 9 others had to be mapped
+    long misses = registry.getCounters().get(metricPrefix + ".MappedReadWindowMissCount").getCount();
+    Assert.assertEquals(10, misses);
+    // the last window is still mapped
+    result.clear();
+    Assert.assertEquals(100, logTest.transferTo(2400, 100, Channels.newChannel(new ByteBufferOutputStream(result))));
+    Assert.assertEquals(misses, registry.getCounters().get(metricPrefix + ".MappedReadWindowMissCount").getCount());
+    for (int i = 0; i < 100; i++) {
+      Assert.assertEquals(testbuf[2400 + i], result.get(i));
+    }
+
+    // the windows of a deleted segment are dropped with it
+    logTest.freeSegment(0, 0);
+    result.clear();
+    Assert.assertEquals(100, logTest.transferTo(0, 100, Channels.newChannel(new ByteBufferOutputStream(result))));
+    Assert.assertEquals(1, logTest.deleteRetiredSegments(0, 0));
+    try {
+      logTest.transferTo(0, 100, Channels.newChannel(new ByteBufferOutputStream(result)));
+      Assert.fail("Reading from a deleted segment should have failed");
+    } catch (IOException e) {
+      // expected
+    }
+    logTest.close();
+    for (File file : dataDir.listFiles()) {
+      file.delete();
+    }
+  }
+
+  /**
+   * Tests that mapped read windows are unmapped once they have been dropped and are no longer being read
+   * @throws IOException
+   */
+  @Test
+  public void mappedReadWindowsUnmapTest()
+      throws IOException {
+    File tempFile = tempFile();
+    File dataDir = new File(tempFile.getParent(), "mapped_windows_log_" + new Random().nextInt(Integer.MAX_VALUE));
+    Assert.assertTrue(dataDir.mkdir());
+    dataDir.deleteOnExit();
+    final LogSegment segment = new LogSegment(new File(dataDir, "0_log"), 0, 1000);
+    byte[] testbuf = new byte[1000];
+    new Random().nextBytes(testbuf);
+    segment.write(ByteBuffer.wrap(testbuf), 0);
+    // windows of 300 bytes, of which at most 2 are kept
+    final MappedReadWindows windows =
+        new MappedReadWindows(300, 2, new StoreMetrics(dataDir.getAbsolutePath(), new MetricRegistry()));
+    ByteBuffer result = ByteBuffer.allocate(1000);
+    WritableByteChannel channel = Channels.newChannel(new ByteBufferOutputStream(result));
+    Assert.assertEquals(300, windows.writeTo(segment, 0, 1000, channel));
+    Assert.assertEquals(300, windows.writeTo(segment, 300, 700, channel));
+    Assert.assertEquals(2, windows.getMappedWindowCount());
+    // the least recently used window is unmapped when a third one is mapped
+    Assert.assertEquals(300, windows.writeTo(segment, 600, 400, channel));
+    Assert.assertEquals(2, windows.getMappedWindowCount());
+    Assert.assertArrayEquals(Arrays.copyOfRange(testbuf, 0, 900), Arrays.copyOfRange(result.array(), 0, 900));
+
+    // a window that is dropped while it is being read stays mapped until the read is done
+    final ByteBuffer lastWindowResult = ByteBuffer.allocate(100);
+    final int[] mappedWindowCountDuringRead = new int[1];
+    WritableByteChannel droppingChannel = new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) {
+        windows.drop(0, 1000);
+        mappedWindowCountDuringRead[0] = windows.getMappedWindowCount();
+        int written = src.remaining();
+        lastWindowResult.put(src);
+        return written;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    Assert.assertEquals(100, windows.writeTo(segment, 900, 100, droppingChannel));
+    Assert.assertEquals(1, mappedWindowCountDuringRead[0]);
+    Assert.assertEquals(0, windows.getMappedWindowCount());
+    Assert.assertArrayEquals(Arrays.copyOfRange(testbuf, 900, 1000), lastWindowResult.array());
+
+    Assert.assertEquals(300,
+        windows.writeTo(segment, 0, 300, Channels.newChannel(new ByteBufferOutputStream(ByteBuffer.allocate(300)))));
+    Assert.assertEquals(1, windows.getMappedWindowCount());
+    windows.clear();
+    Assert.assertEquals(0, windows.getMappedWindowCount());
+    segment.close();
+    for (File file : dataDir.listFiles()) {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void syncTest()
+      throws Exception {
+    File tempFile = tempFile();
+    File dataDir = new File(tempFile.getParent(), "sync_log_" + new Random().nextInt(Integer.MAX_VALUE));
+    Assert.assertTrue(dataDir.mkdir());
+    dataDir.deleteOnExit();
+    MetricRegistry registry = new MetricRegistry();
+    String metricPrefix = "com.github.ambry.store.Log." + dataDir.getAbsolutePath();
+    final Log logTest =
+        new Log(dataDir.getAbsolutePath(), 5000, 1000, new StoreMetrics(dataDir.getAbsolutePath(), registry));
+    byte[] testbuf = new byte[1500];
+    new Random().nextBytes(testbuf);
+    logTest.appendFrom(ByteBuffer.wrap(testbuf));
+    logTest.sync(logTest.getLogEndOffset());
+    Assert.assertEquals(1, registry.getHistograms().get(metricPrefix + ".FsyncTimeInMs").getCount());
+    Assert.assertEquals(1, registry.getHistograms().get(metricPrefix + ".FsyncBatchSize").getCount());
+    // a caller whose writes are already durable does not sync again
+    logTest.sync(1000);
+    Assert.assertEquals(1, registry.getHistograms().get(metricPrefix + ".FsyncTimeInMs").getCount());
+
+    // concurrent callers share syncs
+    logTest.appendFrom(ByteBuffer.wrap(testbuf));
+    final long endOffset = logTest.getLogEndOffset();
+    final AtomicReference<Exception> exception = new AtomicReference<Exception>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 10; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            logTest.sync(endOffset);
+          } catch (Exception e) {
+            exception.set(e);
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertNull(exception.get());
+    long syncs = registry.getHistograms().get(metricPrefix + ".FsyncTimeInMs").getCount() - 1;
+    // all the callers wait for the same writes, so the first sync covers all of them
+    Assert.assertEquals(1, syncs);
+    long[] batchSizes = registry.getHistograms().get(metricPrefix + ".FsyncBatchSize").getSnapshot().getValues();
+    long callers = 0;
+    for (long batchSize : batchSizes) {
+      callers += batchSize;
+    }
+    // callers that arrive while the sync is in progress are covered by it without being part of its batch
+    Assert.assertTrue("A caller should be counted in at most one batch", callers >= 2 && callers <= 11);
+    logTest.close();
+    for (File file : dataDir.listFiles()) {
+      file.delete();
+    }
+  }
+
+  /**
+   * Tests that syncs are timed with the time instance given to the log
+   * @throws Exception
+   */
+  @Test
+  public void syncTimeTest()
+      throws Exception {
+    File tempFile = tempFile();
+    File dataDir = new File(tempFile.getParent(), "sync_time_log_" + new Random().nextInt(Integer.MAX_VALUE));
+    Assert.assertTrue(dataDir.mkdir());
+    dataDir.deleteOnExit();
+    MetricRegistry registry = new MetricRegistry();
+    String metricPrefix = "com.github.ambry.store.Log." + dataDir.getAbsolutePath();
+    // a time that moves forward by 7 ms every time it is read
+    MockTime time = new MockTime(0) {
+      @Override
+      public long milliseconds() {
+        currentMilliseconds += 7;
+        return currentMilliseconds;
+      }
+    };
+    Log logTest =
+        new Log(dataDir.getAbsolutePath(), 5000, 1000, 0, 0, new StoreMetrics(dataDir.getAbsolutePath(), registry),
+            time);
+    byte[] testbuf = new byte[1500];
+    new Random().nextBytes(testbuf);
+    logTest.appendFrom(ByteBuffer.wrap(testbuf));
+    logTest.sync(logTest.getLogEndOffset());
+    Histogram fsyncTime = registry.getHistograms().get(metricPrefix + ".FsyncTimeInMs");
+    Assert.assertEquals(1, fsyncTime.getCount());
+    Assert.assertEquals(7, fsyncTime.getSnapshot().getMax());
+    // the data written is readable after being synced
+    ByteBuffer result = ByteBuffer.allocate(1500);
+    logTest.readInto(result, 0);
+    Assert.assertArrayEquals(testbuf, result.array());
+    logTest.close();
+    for (File file : dataDir.listFiles()) {
+      file.delete();
+    }
+  }
 }
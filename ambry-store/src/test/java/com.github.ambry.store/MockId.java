@@ -23,15 +23,18 @@ import java.nio.ByteBuffer;
 public class MockId extends StoreKey {
 
   private String id;
+  private byte[] idBytes;
   private static final int Id_Size_In_Bytes = 2;
 
   public MockId(String id) {
     this.id = id;
+    this.idBytes = id.getBytes();
   }
 
   public MockId(DataInputStream stream)
       throws IOException {
     id = Utils.readShortString(stream);
+    idBytes = id.getBytes();
   }
 
   @Override
@@ -66,6 +69,16 @@ public class MockId extends StoreKey {
     return id.compareTo(otherId.id);
   }
 
+  @Override
+  public boolean supportsSerializedComparison() {
+    return true;
+  }
+
+  @Override
+  public int compareToSerialized(ByteBuffer buffer, int position) {
+    return compareBytes(idBytes, buffer, position + Id_Size_In_Bytes, buffer.getShort(position));
+  }
+
   @Override
   public int hashCode() {
     return Utils.hashcode(new Object[]{id});
@@ -25,12 +25,14 @@ import java.util.List;
 class MockJournal extends InMemoryJournal {
   private List<Long> savedOffsets;
   private List<StoreKey> savedKeys;
+  private List<IndexValue> savedValues;
   boolean paused;
 
   public MockJournal(String dataDir, int maxEntriesToJournal, int maxEntriesToReturn) {
     super(dataDir, maxEntriesToJournal, maxEntriesToReturn);
     savedOffsets = new ArrayList<Long>();
     savedKeys = new ArrayList<StoreKey>();
+    savedValues = new ArrayList<IndexValue>();
     paused = false;
   }
 
@@ -40,18 +42,20 @@ class MockJournal extends InMemoryJournal {
 
   public void resume() {
     for (int i = 0; i < savedOffsets.size(); i++) {
-      super.addEntry(savedOffsets.get(i), savedKeys.get(i));
+      super.addEntry(savedOffsets.get(i), savedKeys.get(i), savedValues.get(i));
     }
     paused = false;
   }
 
   @Override
-  public void addEntry(long offset, StoreKey key) {
+  public void addEntry(long offset, StoreKey key, IndexValue value) {
     if (paused) {
       savedOffsets.add(offset);
       savedKeys.add(key);
+      savedValues.add(new IndexValue(value.getSize(), value.getOffset(), value.getFlags(), value.getTimeToLiveInMs(),
+          value.getOriginalMessageOffset()));
     } else {
-      super.addEntry(offset, key);
+      super.addEntry(offset, key, value);
     }
   }
 }
@@ -20,12 +20,17 @@ import com.github.ambry.config.VerifiableProperties;
 import com.github.ambry.metrics.MetricsRegistryMap;
 import com.github.ambry.metrics.ReadableMetricsRegistry;
 import com.github.ambry.utils.ByteBufferInputStream;
+import com.github.ambry.utils.CrcOutputStream;
 import com.github.ambry.utils.MockTime;
 import com.github.ambry.utils.Scheduler;
 import com.github.ambry.utils.SystemTime;
 import com.github.ambry.utils.Time;
 import com.github.ambry.utils.Utils;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
@@ -39,7 +44,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Random;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Assert;
@@ -133,6 +140,88 @@ public class PersistentIndexTest {
     }
   }
 
+  @Test
+  public void testPackedSegmentInfo()
+      throws Exception {
+    StoreKeyFactory factory = Utils.getObj("com.github.ambry.store.MockIdFactory");
+    Properties props = new Properties();
+    props.setProperty("store.index.packed.in.memory.segment", "true");
+    // start small to exercise the growth of the packed buffers
+    props.setProperty("store.index.max.number.of.inmem.elements", "2");
+    StoreConfig packedConfig = new StoreConfig(new VerifiableProperties(props));
+    StoreConfig config = new StoreConfig(new VerifiableProperties(new Properties()));
+    File packedDir = new File(tempFile().getParent(), "packed_" + new Random().nextInt(Integer.MAX_VALUE));
+    File skipListDir = new File(tempFile().getParent(), "skiplist_" + new Random().nextInt(Integer.MAX_VALUE));
+    Assert.assertTrue(packedDir.mkdir());
+    Assert.assertTrue(skipListDir.mkdir());
+    packedDir.deleteOnExit();
+    skipListDir.deleteOnExit();
+    StoreMetrics metrics = new StoreMetrics(packedDir.getAbsolutePath(), new MetricRegistry());
+    int keySize = new MockId("id0").sizeInBytes();
+    IndexSegment packed =
+        new IndexSegment(packedDir.getAbsolutePath(), 0, factory, keySize, IndexValue.Index_Value_Size_In_Bytes,
+            packedConfig, metrics);
+    IndexSegment skipList =
+        new IndexSegment(skipListDir.getAbsolutePath(), 0, factory, keySize, IndexValue.Index_Value_Size_In_Bytes,
+            config, metrics);
+    // add keys out of order
+    int[] order = {5, 2, 8, 0, 9, 3, 7, 1, 6, 4};
+    for (int i = 0; i < order.length; i++) {
+      IndexEntry entry = new IndexEntry(new MockId("id" + order[i]), new IndexValue(100, i * 100, (byte) 0));
+      packed.addEntry(entry, (i + 1) * 100);
+      skipList.addEntry(entry, (i + 1) * 100);
+    }
+    // replace the value of an existing key
+    IndexValue deleted = new IndexValue(100, 0, (byte) 0);
+    deleted.setFlag(IndexValue.Flags.Delete_Index);
+    deleted.setNewOffset(1000);
+    packed.addEntry(new IndexEntry(new MockId("id5"), deleted), 1100);
+    skipList.addEntry(new IndexEntry(new MockId("id5"), deleted), 1100);
+    Assert.assertEquals(10, packed.getNumberOfItems());
+
+    for (int i = 0; i < order.length; i++) {
+      MockId id = new MockId("id" + i);
+      Assert.assertEquals(skipList.find(id).getOffset(), packed.find(id).getOffset());
+      Assert.assertEquals(skipList.find(id).getFlags(), packed.find(id).getFlags());
+    }
+    Assert.assertTrue(packed.find(new MockId("id5")).isFlagSet(IndexValue.Flags.Delete_Index));
+    Assert.assertNull(packed.find(new MockId("id10")));
+
+    // entries are returned in key order
+    List<MessageInfo> entries = new ArrayList<MessageInfo>();
+    packed.getEntriesSince(new MockId("id3"), new FindEntriesCondition(300), entries, new AtomicLong(0));
+    Assert.assertEquals(3, entries.size());
+    Assert.assertEquals(new MockId("id4"), entries.get(0).getStoreKey());
+    Assert.assertEquals(new MockId("id5"), entries.get(1).getStoreKey());
+    Assert.assertTrue(entries.get(1).isDeleted());
+    Assert.assertEquals(new MockId("id6"), entries.get(2).getStoreKey());
+
+    // the persisted format is the same for both representations
+    packed.writeIndexToFile(1100);
+    skipList.writeIndexToFile(1100);
+    Assert.assertArrayEquals(readFully(skipList.getFile()), readFully(packed.getFile()));
+    IndexSegment reloaded = new IndexSegment(packed.getFile(), false, factory, packedConfig, metrics,
+        new InMemoryJournal("test", 20, 20));
+    for (int i = 0; i < order.length; i++) {
+      MockId id = new MockId("id" + i);
+      Assert.assertEquals(skipList.find(id).getOffset(), reloaded.find(id).getOffset());
+    }
+    packed.map(false);
+    Assert.assertEquals(600, packed.find(new MockId("id7")).getOffset());
+  }
+
+  private byte[] readFully(File file)
+      throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    DataInputStream stream = new DataInputStream(new FileInputStream(file));
+    try {
+      stream.readFully(bytes);
+    } finally {
+      stream.close();
+    }
+    return bytes;
+  }
+
   @Test
   public void testSegmentInfo()
       throws IOException {
@@ -227,6 +316,19 @@ public class PersistentIndexTest {
       Assert.assertEquals(infonew.find(blobId8).getOffset(), 7000);
 
       info.map(false);
+      // test finding missing keys in the mapped segment
+      List<StoreKey> sortedKeys = new ArrayList<StoreKey>();
+      sortedKeys.add(new MockId("id0"));
+      sortedKeys.add(blobId1);
+      sortedKeys.add(new MockId("id10"));
+      sortedKeys.add(blobId5);
+      sortedKeys.add(blobId9);
+      sortedKeys.add(new MockId("idz"));
+      List<StoreKey> missingKeys = info.getMissingKeys(sortedKeys);
+      Assert.assertEquals(3, missingKeys.size());
+      Assert.assertEquals(new MockId("id0"), missingKeys.get(0));
+      Assert.assertEquals(new MockId("id10"), missingKeys.get(1));
+      Assert.assertEquals(new MockId("idz"), missingKeys.get(2));
       Assert.assertEquals(info.find(blobId1).getSize(), 1000);
       Assert.assertEquals(info.find(blobId1).getOffset(), 0);
       Assert.assertEquals(info.find(blobId2).getSize(), 1000);
@@ -271,6 +373,131 @@ public class PersistentIndexTest {
     }
   }
 
+  @Test
+  public void testSegmentFenceKeys()
+      throws Exception {
+    StoreKeyFactory factory = Utils.getObj("com.github.ambry.store.MockIdFactory");
+    Properties props = new Properties();
+    props.put("store.index.fence.pointer.interval", "2");
+    StoreConfig config = new StoreConfig(new VerifiableProperties(props));
+    String dataDir = tempFile().getParent();
+    StoreMetrics metrics = new StoreMetrics(dataDir, new MetricRegistry());
+    IndexSegment info = new IndexSegment(dataDir, 0, factory, new MockId("id1").sizeInBytes(),
+        IndexValue.Index_Value_Size_In_Bytes, config, metrics);
+    // every key but id6, so that a missing key falls inside a block
+    String[] ids = {"id1", "id2", "id3", "id4", "id5", "id7", "id8", "id9"};
+    for (int i = 0; i < ids.length; i++) {
+      info.addEntry(new IndexEntry(new MockId(ids[i]), new IndexValue(100, i * 100, (byte) 0)), (i + 1) * 100);
+    }
+    info.writeIndexToFile(ids.length * 100);
+    info.map(true);
+    for (int i = 0; i < ids.length; i++) {
+      IndexValue value = info.find(new MockId(ids[i]));
+      Assert.assertNotNull(value);
+      Assert.assertEquals(i * 100, value.getOffset());
+      Assert.assertEquals(100, value.getSize());
+    }
+    Assert.assertNull(info.find(new MockId("id0")));
+    Assert.assertNull(info.find(new MockId("id6")));
+    Assert.assertNull(info.find(new MockId("idz")));
+    Assert.assertNull(info.find(new MockId("id10")));
+
+    List<StoreKey> sortedKeys = new ArrayList<StoreKey>();
+    sortedKeys.add(new MockId("id0"));
+    sortedKeys.add(new MockId("id2"));
+    sortedKeys.add(new MockId("id6"));
+    sortedKeys.add(new MockId("id7"));
+    sortedKeys.add(new MockId("idz"));
+    List<StoreKey> missingKeys = info.getMissingKeys(sortedKeys);
+    Assert.assertEquals(3, missingKeys.size());
+    Assert.assertEquals(new MockId("id0"), missingKeys.get(0));
+    Assert.assertEquals(new MockId("id6"), missingKeys.get(1));
+    Assert.assertEquals(new MockId("idz"), missingKeys.get(2));
+
+    List<MessageInfo> entries = new ArrayList<MessageInfo>();
+    info.getEntriesSince(new MockId("id4"), new FindEntriesCondition(10000), entries, new AtomicLong(0));
+    Assert.assertEquals(4, entries.size());
+    Assert.assertEquals(new MockId("id5"), entries.get(0).getStoreKey());
+
+    // a segment loaded from disk builds the same fence keys
+    IndexSegment loaded =
+        new IndexSegment(info.getFile(), true, factory, config, metrics, new InMemoryJournal("test", 5, 5));
+    for (int i = 0; i < ids.length; i++) {
+      Assert.assertEquals(i * 100, loaded.find(new MockId(ids[i])).getOffset());
+    }
+    Assert.assertNull(loaded.find(new MockId("id6")));
+  }
+
+  @Test
+  public void testIndexValueRecordOffsets()
+      throws Exception {
+    IndexValue value = new IndexValue(1000, 2000, (byte) 0, Utils.Infinite_Time, 2000, new long[]{10, 20, 30});
+    Assert.assertArrayEquals(new long[]{10, 20, 30}, value.getRecordOffsets());
+    Assert.assertArrayEquals(new long[]{10, 20, 30}, new IndexValue(value.getBytes().duplicate()).getRecordOffsets());
+    Assert.assertNull(new IndexValue(1000, 2000).getRecordOffsets());
+    Assert.assertNull(new IndexValue(1000, 2000, (byte) 0, 0, 2000, new long[]{10, 20}).getRecordOffsets());
+    Assert.assertNull(
+        new IndexValue(1000, 2000, (byte) 0, 0, 2000, new long[]{10, 20, Integer.MAX_VALUE + 1L}).getRecordOffsets());
+
+    // a value in the format that has no record offsets is read with its offsets unknown
+    byte[] oldValue = Arrays.copyOf(value.getBytes().array(), IndexValue.Index_Value_Size_In_Bytes_V0);
+    IndexValue converted = new IndexValue(ByteBuffer.wrap(oldValue));
+    Assert.assertEquals(IndexValue.Index_Value_Size_In_Bytes, converted.getBytes().capacity());
+    Assert.assertEquals(1000, converted.getSize());
+    Assert.assertEquals(2000, converted.getOffset());
+    Assert.assertEquals(2000, converted.getOriginalMessageOffset());
+    Assert.assertEquals(Utils.Infinite_Time, converted.getTimeToLiveInMs());
+    Assert.assertNull(converted.getRecordOffsets());
+
+    // a segment written in the old format can be mapped and read into memory
+    StoreKeyFactory factory = Utils.getObj("com.github.ambry.store.MockIdFactory");
+    StoreConfig config = new StoreConfig(new VerifiableProperties(new Properties()));
+    File dataDir = new File(tempFile().getParent(), "recordoffsets" + UUID.randomUUID());
+    Assert.assertTrue(dataDir.mkdirs());
+    StoreMetrics metrics = new StoreMetrics(dataDir.getAbsolutePath(), new MetricRegistry());
+    int keySize = new MockId("id1").sizeInBytes();
+    IndexSegment segment = new IndexSegment(dataDir.getAbsolutePath(), 0, factory, keySize,
+        IndexValue.Index_Value_Size_In_Bytes, config, metrics);
+    String[] ids = {"id1", "id2", "id3"};
+    for (int i = 0; i < ids.length; i++) {
+      segment.addEntry(new IndexEntry(new MockId(ids[i]),
+          new IndexValue(100, i * 100, (byte) 0, Utils.Infinite_Time, i * 100, new long[]{10, 20, 30})), (i + 1) * 100);
+    }
+    segment.writeIndexToFile(ids.length * 100);
+    segment.map(true);
+    List<byte[]> values = new ArrayList<byte[]>();
+    for (String id : ids) {
+      values.add(segment.find(new MockId(id)).getBytes().array());
+    }
+    CrcOutputStream crcStream = new CrcOutputStream(new FileOutputStream(segment.getFile()));
+    DataOutputStream stream = new DataOutputStream(crcStream);
+    try {
+      stream.writeShort(PersistentIndex.version);
+      stream.writeInt(keySize);
+      stream.writeInt(IndexValue.Index_Value_Size_In_Bytes_V0);
+      stream.writeLong(ids.length * 100);
+      for (int i = 0; i < ids.length; i++) {
+        stream.write(new MockId(ids[i]).toBytes());
+        stream.write(values.get(i), 0, IndexValue.Index_Value_Size_In_Bytes_V0);
+      }
+      stream.writeLong(crcStream.getValue());
+    } finally {
+      stream.close();
+    }
+    for (boolean mapped : new boolean[]{true, false}) {
+      IndexSegment loaded =
+          new IndexSegment(segment.getFile(), mapped, factory, config, metrics, new InMemoryJournal("test", 5, 5));
+      Assert.assertEquals(mapped ? IndexValue.Index_Value_Size_In_Bytes_V0 : IndexValue.Index_Value_Size_In_Bytes,
+          loaded.getValueSize());
+      for (int i = 0; i < ids.length; i++) {
+        IndexValue loadedValue = loaded.find(new MockId(ids[i]));
+        Assert.assertEquals(i * 100, loadedValue.getOffset());
+        Assert.assertEquals(100, loadedValue.getSize());
+        Assert.assertNull(loadedValue.getRecordOffsets());
+      }
+    }
+  }
+
   @Test
   public void testIndexBasic()
       throws IOException {
@@ -317,6 +544,494 @@ public class PersistentIndexTest {
     }
   }
 
+  @Test
+  public void testIndexLookupCache()
+      throws Exception {
+    String logFile = tempFile().getParent();
+    File indexFile = new File(logFile);
+    for (File c : indexFile.listFiles()) {
+      c.delete();
+    }
+    Scheduler scheduler = new Scheduler(1, false);
+    scheduler.startup();
+    StoreMetrics metrics = new StoreMetrics(logFile, new MetricRegistry());
+    Log log = new Log(logFile, 10000, metrics);
+    Properties props = new Properties();
+    props.setProperty("store.index.max.number.of.inmem.elements", "2");
+    props.setProperty("store.index.lookup.cache.max.entries", "2");
+    StoreConfig config = new StoreConfig(new VerifiableProperties(props));
+    StoreKeyFactory factory = Utils.getObj("com.github.ambry.store.MockIdFactory");
+    PersistentIndex index =
+        new PersistentIndex(logFile, scheduler, log, config, factory, new DummyMessageStoreRecovery(),
+            new DummyMessageStoreHardDelete(), metrics, SystemTime.getInstance());
+    log.appendFrom(ByteBuffer.allocate(800));
+    MockId blobId1 = new MockId("id1");
+    MockId blobId2 = new MockId("id2");
+    MockId blobId3 = new MockId("id3");
+    MockId blobId4 = new MockId("id4");
+    // two segments, starting at 0 and 300
+    index.addToIndex(new IndexEntry(blobId1, new IndexValue(100, 0)), new FileSpan(0, 100));
+    index.addToIndex(new IndexEntry(blobId2, new IndexValue(200, 100)), new FileSpan(100, 300));
+    index.addToIndex(new IndexEntry(blobId3, new IndexValue(300, 300)), new FileSpan(300, 600));
+    index.addToIndex(new IndexEntry(blobId4, new IndexValue(100, 600)), new FileSpan(600, 700));
+
+    Assert.assertEquals(0, index.findKey(blobId1).getOffset());
+    Assert.assertEquals(1, metrics.indexLookupCacheMissCount.getCount());
+    Assert.assertEquals(0, index.findKey(blobId1).getOffset());
+    Assert.assertEquals(1, metrics.indexLookupCacheHitCount.getCount());
+    // the cached value is used to answer searches within a file span as well
+    Assert.assertNull(index.findKey(blobId1, new FileSpan(300, 700)));
+    Assert.assertEquals(0, index.findKey(blobId1, new FileSpan(0, 300)).getOffset());
+    Assert.assertEquals(3, metrics.indexLookupCacheHitCount.getCount());
+    Assert.assertNull(index.findKey(new MockId("id5")));
+
+    // a delete replaces the cached value
+    index.markAsDeleted(blobId1, new FileSpan(700, 800));
+    IndexValue value = index.findKey(blobId1);
+    Assert.assertTrue(value.isFlagSet(IndexValue.Flags.Delete_Index));
+    Assert.assertEquals(700, value.getOffset());
+    Assert.assertTrue(index.findKey(blobId1).isFlagSet(IndexValue.Flags.Delete_Index));
+
+    // modifying a returned value does not modify the cached value
+    value = index.findKey(blobId3);
+    value.setFlag(IndexValue.Flags.Delete_Index);
+    Assert.assertFalse(index.findKey(blobId3).isFlagSet(IndexValue.Flags.Delete_Index));
+
+    // the least recently used keys are evicted
+    Assert.assertEquals(0, metrics.indexLookupCacheEvictionCount.getCount());
+    index.findKey(blobId2);
+    index.findKey(blobId4);
+    Assert.assertEquals(2, metrics.indexLookupCacheEvictionCount.getCount());
+    index.close();
+    scheduler.shutdown();
+    log.close();
+
+    // a lookup only fails to cache its value if the key it looked up was invalidated while it was in progress
+    IndexLookupCache cache = new IndexLookupCache(1000, metrics);
+    IndexLookupCache.LookupMarker marker = cache.startLookup(blobId1);
+    cache.invalidate(blobId2);
+    cache.put(blobId1, new IndexValue(100, 0), 0, marker);
+    Assert.assertEquals(0, cache.get(blobId1).getValue().getOffset());
+    marker = cache.startLookup(blobId2);
+    cache.invalidate(blobId2);
+    cache.put(blobId2, new IndexValue(200, 100), 0, marker);
+    Assert.assertNull(cache.get(blobId2));
+    // a lookup that found nothing leaves no trace
+    marker = cache.startLookup(blobId3);
+    cache.endLookup(blobId3, marker);
+    Assert.assertNull(cache.get(blobId3));
+    cache.clear();
+    Assert.assertNull(cache.get(blobId1));
+  }
+
+  @Test
+  public void testExpiryIndex()
+      throws Exception {
+    String logFile = tempFile().getParent();
+    File indexFile = new File(logFile);
+    for (File c : indexFile.listFiles()) {
+      c.delete();
+    }
+    Scheduler scheduler = new Scheduler(1, false);
+    scheduler.startup();
+    MockTime time = new MockTime(0);
+    StoreMetrics metrics = new StoreMetrics(logFile, new MetricRegistry());
+    Log log = new Log(logFile, 10000, 1000, metrics);
+    Properties props = new Properties();
+    props.setProperty("store.index.max.number.of.inmem.elements", "2");
+    props.setProperty("store.enable.compaction", "true");
+    props.setProperty("store.compaction.expiry.bucket.size.seconds", "10");
+    StoreConfig config = new StoreConfig(new VerifiableProperties(props));
+    StoreKeyFactory factory = Utils.getObj("com.github.ambry.store.MockIdFactory");
+    PersistentIndex index =
+        new PersistentIndex(logFile, scheduler, log, config, factory, new DummyMessageStoreRecovery(),
+            new DummyMessageStoreHardDelete(), metrics, time);
+    log.appendFrom(ByteBuffer.allocate(500));
+    MockId blobId1 = new MockId("id1");
+    MockId blobId2 = new MockId("id2");
+    MockId blobId3 = new MockId("id3");
+    MockId blobId4 = new MockId("id4");
+    // id1 and id4 expire within the bucket that ends at 20000 and id2 within the one that ends at 30000
+    index.addToIndex(new IndexEntry(blobId1, new IndexValue(100, 0, 15000)), new FileSpan(0, 100));
+    index.addToIndex(new IndexEntry(blobId2, new IndexValue(100, 100, 25000)), new FileSpan(100, 200));
+    index.addToIndex(new IndexEntry(blobId3, new IndexValue(100, 200)), new FileSpan(200, 300));
+    index.addToIndex(new IndexEntry(blobId4, new IndexValue(100, 300, 17000)), new FileSpan(300, 400));
+    Assert.assertEquals(300, metrics.bytesPendingExpiry.getValue().longValue());
+    // a deleted blob is no longer tracked
+    index.markAsDeleted(blobId4, new FileSpan(400, 500));
+    Assert.assertEquals(200, metrics.bytesPendingExpiry.getValue().longValue());
+    index.close();
+
+    // the expiry index is rebuilt from the index segments
+    metrics = new StoreMetrics(logFile, new MetricRegistry());
+    index = new PersistentIndex(logFile, scheduler, log, config, factory, new DummyMessageStoreRecovery(),
+        new DummyMessageStoreHardDelete(), metrics, time);
+    Assert.assertEquals(200, metrics.bytesPendingExpiry.getValue().longValue());
+
+    // blobs are only returned once their whole bucket has expired, and only once
+    time.currentMilliseconds = 19999;
+    Assert.assertEquals(0, index.pollExpiredEntries(time.milliseconds()).size());
+    time.currentMilliseconds = 20000;
+    List<IndexEntry> expiredEntries = index.pollExpiredEntries(time.milliseconds());
+    Assert.assertEquals(1, expiredEntries.size());
+    Assert.assertEquals(blobId1, expiredEntries.get(0).getKey());
+    Assert.assertEquals(0, expiredEntries.get(0).getValue().getOffset());
+    Assert.assertEquals(100, metrics.bytesPendingExpiry.getValue().longValue());
+    Assert.assertEquals(0, index.pollExpiredEntries(time.milliseconds()).size());
+    time.currentMilliseconds = 30000;
+    expiredEntries = index.pollExpiredEntries(time.milliseconds());
+    Assert.assertEquals(1, expiredEntries.size());
+    Assert.assertEquals(blobId2, expiredEntries.get(0).getKey());
+    Assert.assertEquals(0, metrics.bytesPendingExpiry.getValue().longValue());
+    index.close();
+    scheduler.shutdown();
+    log.close();
+  }
+
+  /**
+   * Tests that the number of blobs tracked by the expiry index is capped by dropping the blobs that expire last, and
+   * that tracking resumes once the index has drained
+   */
+  @Test
+  public void testExpiryIndexMaxEntries() {
+    ExpiryIndex expiryIndex = new ExpiryIndex(1000, 4);
+    for (int i = 0; i < 4; i++) {
+      expiryIndex.add(new MockId("id" + i), new IndexValue(100, i * 100, 1000 + i * 1000));
+    }
+    Assert.assertEquals(4, expiryIndex.getEntryCount());
+    Assert.assertEquals(400, expiryIndex.getBytesPendingExpiry());
+    // a fifth blob that expires last is dropped right away
+    expiryIndex.add(new MockId("id4"), new IndexValue(100, 400, 5000));
+    Assert.assertEquals(4, expiryIndex.getEntryCount());
+    // a blob that expires earlier drops the bucket of the blobs that expire last, which it is part of
+    expiryIndex.add(new MockId("id5"), new IndexValue(100, 500, 4500));
+    Assert.assertEquals(3, expiryIndex.getEntryCount());
+    Assert.assertEquals(300, expiryIndex.getBytesPendingExpiry());
+    // blobs that expire at or after the dropped ones are not tracked while the index is full
+    expiryIndex.add(new MockId("id8"), new IndexValue(100, 800, 4000));
+    Assert.assertEquals(3, expiryIndex.getEntryCount());
+    // blobs that expire before the dropped ones still are
+    expiryIndex.add(new MockId("id6"), new IndexValue(100, 600, 1500));
+    Assert.assertEquals(4, expiryIndex.getEntryCount());
+
+    // once the index has drained to half its capacity, blobs that expire later are tracked again
+    Assert.assertEquals(3, expiryIndex.pollExpiredEntries(3000).size());
+    Assert.assertEquals(1, expiryIndex.getEntryCount());
+    expiryIndex.add(new MockId("id7"), new IndexValue(100, 700, 6000));
+    Assert.assertEquals(2, expiryIndex.getEntryCount());
+    Assert.assertEquals(200, expiryIndex.getBytesPendingExpiry());
+  }
+
+  @Test
+  public void testStoreStats()
+      throws Exception {
+    String logFile = tempFile().getParent();
+    File indexFile = new File(logFile);
+    for (File c : indexFile.listFiles()) {
+      c.delete();
+    }
+    Scheduler scheduler = new Scheduler(1, false);
+    scheduler.startup();
+    MockTime time = new MockTime(0);
+    StoreMetrics metrics = new StoreMetrics(logFile, new MetricRegistry());
+    Log log = new Log(logFile, 10000, 1000, metrics);
+    Properties props = new Properties();
+    props.setProperty("store.index.max.number.of.inmem.elements", "2");
+    props.setProperty("store.enable.stats", "true");
+    StoreConfig config = new StoreConfig(new VerifiableProperties(props));
+    StoreKeyFactory factory = Utils.getObj("com.github.ambry.store.MockIdFactory");
+    MockId blobId1 = new MockId("id1");
+    MockId blobId2 = new MockId("id2");
+    MockId blobId3 = new MockId("id3");
+    MockId blobId4 = new MockId("id4");
+    HashMap<Long, MessageInfo> deletedMessages = new HashMap<Long, MessageInfo>();
+    deletedMessages.put(200L, new MessageInfo(blobId3, 100));
+    PersistentIndex index =
+        new PersistentIndex(logFile, scheduler, log, config, factory, new DummyMessageStoreRecovery(),
+            new DummyMessageStoreHardDelete(deletedMessages), metrics, time);
+    log.appendFrom(ByteBuffer.allocate(1200));
+    index.addToIndex(new IndexEntry(blobId1, new IndexValue(100, 0, 15000)), new FileSpan(0, 100));
+    index.addToIndex(new IndexEntry(blobId2, new IndexValue(100, 100)), new FileSpan(100, 200));
+    index.addToIndex(new IndexEntry(blobId3, new IndexValue(100, 200)), new FileSpan(200, 300));
+    index.markAsDeleted(blobId3, new FileSpan(300, 400));
+    index.addToIndex(new IndexEntry(blobId4, new IndexValue(100, 1000)), new FileSpan(1000, 1100));
+    // a copy of id2 replaces the original
+    index.addToIndex(new IndexEntry(blobId2, new IndexValue(100, 1100)), new FileSpan(1100, 1200));
+    verifyStats(index.getStats(), 100, 1, 0, 0, 100, 1, 200, 2);
+    Assert.assertEquals(300, metrics.liveBytes.getValue().longValue());
+    Assert.assertEquals(100, metrics.deletedBytes.getValue().longValue());
+    index.close();
+
+    // the stats are rebuilt from the index segments
+    metrics = new StoreMetrics(logFile, new MetricRegistry());
+    index = new PersistentIndex(logFile, scheduler, log, config, factory, new DummyMessageStoreRecovery(),
+        new DummyMessageStoreHardDelete(deletedMessages), metrics, time);
+    verifyStats(index.getStats(), 100, 1, 0, 0, 100, 1, 200, 2);
+
+    // id1 is expired once the minute in which it expires is over
+    time.currentMilliseconds = 60000;
+    verifyStats(index.getStats(), 0, 0, 100, 1, 100, 1, 200, 2);
+    Assert.assertEquals(100, metrics.expiredBytes.getValue().longValue());
+
+    // the stats of a range of the log go away when its space is reclaimed
+    index.getStats().onRangeFreed(0, 1000);
+    Assert.assertEquals(1, index.getStats().getCountsByBucket().size());
+    Assert.assertEquals(200, index.getStats().getTotalCounts().getLiveBytes());
+    Assert.assertEquals(0, index.getStats().getTotalCounts().getDeletedBytes());
+    index.close();
+    scheduler.shutdown();
+    log.close();
+  }
+
+  @Test
+  public void testBloomFilterBudget()
+      throws Exception {
+    String logFile = tempFile().getParent();
+    File indexFile = new File(logFile);
+    for (File c : indexFile.listFiles()) {
+      c.delete();
+    }
+    Scheduler scheduler = new Scheduler(1, false);
+    scheduler.startup();
+    StoreMetrics metrics = new StoreMetrics(logFile, new MetricRegistry());
+    Log log = new Log(logFile, 10000, metrics);
+    Properties props = new Properties();
+    props.setProperty("store.index.max.number.of.inmem.elements", "2");
+    props.setProperty("store.index.bloom.blocked", "true");
+    StoreConfig config = new StoreConfig(new VerifiableProperties(props));
+    StoreKeyFactory factory = Utils.getObj("com.github.ambry.store.MockIdFactory");
+    PersistentIndex index =
+        new PersistentIndex(logFile, scheduler, log, config, factory, new DummyMessageStoreRecovery(),
+            new DummyMessageStoreHardDelete(), metrics, SystemTime.getInstance());
+    List<MockId> ids = new ArrayList<MockId>();
+    log.appendFrom(ByteBuffer.allocate(600));
+    for (int i = 0; i < 6; i++) {
+      MockId id = new MockId("id" + i);
+      ids.add(id);
+      index.addToIndex(new IndexEntry(id, new IndexValue(100, i * 100)), new FileSpan(i * 100, (i + 1) * 100));
+    }
+    index.close();
+
+    // a budget that fits a single filter keeps dropping the filters of the segments that are not looked up
+    MetricRegistry registry = new MetricRegistry();
+    BloomFilterBudget budget = new BloomFilterBudget(1, registry);
+    metrics = new StoreMetrics(logFile, registry);
+    index = new PersistentIndex(logFile, scheduler, log, config, factory, new DummyMessageStoreRecovery(),
+        new DummyMessageStoreHardDelete(), metrics, null, budget, SystemTime.getInstance());
+    for (int i = 0; i < 2; i++) {
+      for (MockId id : ids) {
+        Assert.assertNotNull(index.findKey(id));
+      }
+      Assert.assertNull(index.findKey(new MockId("id-missing")));
+    }
+    // the dropped filters are loaded again in the background
+    long deadline = System.currentTimeMillis() + 10000;
+    while (metrics.bloomFilterLoadCount.getCount() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(metrics.bloomFilterLoadCount.getCount() > 0);
+    Assert.assertTrue(
+        registry.counter(MetricRegistry.name(BloomFilterBudget.class, "BloomFiltersDropped")).getCount() > 0);
+    // blocked filters are off heap
+    Assert.assertTrue(budget.getOffHeapBytesInUse() > 0);
+    Assert.assertEquals(0, budget.getHeapBytesInUse());
+
+    // once the budget stops loading filters, the segments whose filters were dropped are searched without them
+    budget.close();
+    Assert.assertNull(index.findKey(new MockId("id-missing")));
+    Assert.assertTrue(metrics.maxSegmentBloomFalsePositiveRatio.getValue() > 0);
+    for (MockId id : ids) {
+      Assert.assertNotNull(index.findKey(id));
+    }
+    index.close();
+    Assert.assertEquals(0, budget.getBytesInUse());
+    scheduler.shutdown();
+    log.close();
+  }
+
+  /**
+   * Verifies the stats of the two buckets of a store whose buckets cover 1000 bytes of the log
+   */
+  private void verifyStats(BlobStoreStats stats, long firstLiveBytes, long firstLiveCount, long firstExpiredBytes,
+      long firstExpiredCount, long firstDeletedBytes, long firstDeletedCount, long secondLiveBytes,
+      long secondLiveCount) {
+    SortedMap<Long, BlobStoreStats.Counts> countsByBucket = stats.getCountsByBucket();
+    Assert.assertEquals(2, countsByBucket.size());
+    BlobStoreStats.Counts first = countsByBucket.get(0L);
+    Assert.assertEquals(firstLiveBytes, first.getLiveBytes());
+    Assert.assertEquals(firstLiveCount, first.getLiveCount());
+    Assert.assertEquals(firstExpiredBytes, first.getExpiredBytes());
+    Assert.assertEquals(firstExpiredCount, first.getExpiredCount());
+    Assert.assertEquals(firstDeletedBytes, first.getDeletedBytes());
+    Assert.assertEquals(firstDeletedCount, first.getDeletedCount());
+    BlobStoreStats.Counts second = countsByBucket.get(1000L);
+    Assert.assertEquals(secondLiveBytes, second.getLiveBytes());
+    Assert.assertEquals(secondLiveCount, second.getLiveCount());
+    Assert.assertEquals(0, second.getDeletedCount());
+    BlobStoreStats.Counts total = stats.getTotalCounts();
+    Assert.assertEquals(firstLiveBytes + secondLiveBytes, total.getLiveBytes());
+    Assert.assertEquals(firstExpiredBytes, total.getExpiredBytes());
+    Assert.assertEquals(firstDeletedBytes, total.getDeletedBytes());
+  }
+
+  @Test
+  public void testIndexSegmentMerge()
+      throws Exception {
+    String logFile = tempFile().getParent();
+    File indexFile = new File(logFile);
+    for (File c : indexFile.listFiles()) {
+      c.delete();
+    }
+    Scheduler scheduler = new Scheduler(1, false);
+    scheduler.startup();
+    StoreMetrics metrics = new StoreMetrics(logFile, new MetricRegistry());
+    Log log = new Log(logFile, 10000, metrics);
+    Properties props = new Properties();
+    props.setProperty("store.index.max.number.of.inmem.elements", "2");
+    props.setProperty("store.index.segment.merge.max.entries", "6");
+    StoreConfig config = new StoreConfig(new VerifiableProperties(props));
+    StoreKeyFactory factory = Utils.getObj("com.github.ambry.store.MockIdFactory");
+    PersistentIndex index =
+        new PersistentIndex(logFile, scheduler, log, config, factory, new DummyMessageStoreRecovery(),
+            new DummyMessageStoreHardDelete(), metrics, SystemTime.getInstance());
+    log.appendFrom(ByteBuffer.allocate(1100));
+    MockId[] ids = new MockId[11];
+    for (int i = 1; i < ids.length; i++) {
+      ids[i] = new MockId("id" + i);
+    }
+    // segments starting at 0, 200, 400, 600, 800 and 1000, the delete of id1 supersedes its put in the first segment
+    index.addToIndex(new IndexEntry(ids[1], new IndexValue(100, 0)), new FileSpan(0, 100));
+    index.addToIndex(new IndexEntry(ids[2], new IndexValue(100, 100)), new FileSpan(100, 200));
+    index.addToIndex(new IndexEntry(ids[3], new IndexValue(100, 200)), new FileSpan(200, 300));
+    index.markAsDeleted(ids[1], new FileSpan(300, 400));
+    for (int i = 4; i < ids.length; i++) {
+      long offset = (i - 4) * 100 + 400;
+      index.addToIndex(new IndexEntry(ids[i], new IndexValue(100, offset)), new FileSpan(offset, offset + 100));
+    }
+    index.persistIndex();
+    Assert.assertEquals(6, index.indexes.size());
+
+    // a token that is in the middle of the first segment
+    FindInfo info = index.findEntriesSince(new StoreFindToken(), 200);
+    Assert.assertEquals(2, info.getMessageEntries().size());
+    StoreFindToken tokenBeforeMerge = (StoreFindToken) info.getFindToken();
+    Assert.assertEquals(ids[2], tokenBeforeMerge.getStoreKey());
+
+    // only the segments that are older than the journal are merged
+    Assert.assertEquals(2, index.mergeIndexSegments());
+    Assert.assertEquals(4, index.indexes.size());
+    Assert.assertEquals(1, metrics.indexSegmentMergeEntriesDropped.getCount());
+    Assert.assertEquals(400, index.indexes.get(0L).getLastSegmentStartOffset());
+    Assert.assertEquals(600, index.indexes.get(0L).getEndOffset());
+    Assert.assertTrue(new File(logFile, "0_400_index").exists());
+    Assert.assertFalse(new File(logFile, "0_index").exists());
+    Assert.assertFalse(new File(logFile, "200_index").exists());
+    Assert.assertFalse(new File(logFile, "400_bloom").exists());
+    Assert.assertTrue(index.findKey(ids[1]).isFlagSet(IndexValue.Flags.Delete_Index));
+    Assert.assertEquals(500, index.findKey(ids[5]).getOffset());
+    Assert.assertEquals(0, index.findMissingKeys(Arrays.<StoreKey>asList(ids[2], ids[3], ids[8])).size());
+    // a second merge has nothing to do
+    Assert.assertEquals(0, index.mergeIndexSegments());
+
+    // a token that was handed out before the merge reads the merged segment again, including the delete of id1
+    // that sorts before the key in the token
+    info = index.findEntriesSince(tokenBeforeMerge, 500);
+    Assert.assertEquals(ids[1], info.getMessageEntries().get(0).getStoreKey());
+    Assert.assertTrue(info.getMessageEntries().get(0).isDeleted());
+
+    // a token that is handed out after the merge continues from its key
+    info = index.findEntriesSince(new StoreFindToken(), 200);
+    StoreFindToken tokenAfterMerge = (StoreFindToken) info.getFindToken();
+    Assert.assertEquals(ids[2], tokenAfterMerge.getStoreKey());
+    Assert.assertEquals(400, tokenAfterMerge.getIndexStartOffset());
+    info = index.findEntriesSince(tokenAfterMerge, 200);
+    Assert.assertEquals(2, info.getMessageEntries().size());
+    Assert.assertEquals(ids[3], info.getMessageEntries().get(0).getStoreKey());
+    Assert.assertEquals(ids[4], info.getMessageEntries().get(1).getStoreKey());
+    index.close();
+
+    // segments that were merged but not yet deleted when the store went down are removed on startup
+    new File(logFile, "200_index").createNewFile();
+    new File(logFile, "200_bloom").createNewFile();
+    metrics = new StoreMetrics(logFile, new MetricRegistry());
+    index = new PersistentIndex(logFile, scheduler, log, config, factory, new DummyMessageStoreRecovery(),
+        new DummyMessageStoreHardDelete(), metrics, SystemTime.getInstance());
+    Assert.assertEquals(4, index.indexes.size());
+    Assert.assertFalse(new File(logFile, "200_index").exists());
+    Assert.assertFalse(new File(logFile, "200_bloom").exists());
+    Assert.assertTrue(index.findKey(ids[1]).isFlagSet(IndexValue.Flags.Delete_Index));
+    Assert.assertEquals(200, index.findKey(ids[3]).getOffset());
+    index.close();
+    scheduler.shutdown();
+    log.close();
+  }
+
+  @Test
+  public void testRecoveryCheckpoint()
+      throws Exception {
+    String logFile = tempFile().getParent();
+    File indexFile = new File(logFile);
+    for (File c : indexFile.listFiles()) {
+      c.delete();
+    }
+    Scheduler scheduler = new Scheduler(1, false);
+    scheduler.startup();
+    StoreMetrics metrics = new StoreMetrics(logFile, new MetricRegistry());
+    Log log = new Log(logFile, 10000, metrics);
+    Properties props = new Properties();
+    props.setProperty("store.index.recovery.checkpoint.interval.seconds", "3600");
+    StoreConfig config = new StoreConfig(new VerifiableProperties(props));
+    StoreKeyFactory factory = Utils.getObj("com.github.ambry.store.MockIdFactory");
+    PersistentIndex index =
+        new PersistentIndex(logFile, scheduler, log, config, factory, new DummyMessageStoreRecovery(),
+            new DummyMessageStoreHardDelete(), metrics, SystemTime.getInstance());
+    log.appendFrom(ByteBuffer.allocate(600));
+    MockId blobId1 = new MockId("id1");
+    MockId blobId2 = new MockId("id2");
+    MockId blobId3 = new MockId("id3");
+    MockId blobId4 = new MockId("id4");
+    index.addToIndex(new IndexEntry(blobId1, new IndexValue(100, 0)), new FileSpan(0, 100));
+    index.addToIndex(new IndexEntry(blobId2, new IndexValue(100, 100)), new FileSpan(100, 200));
+    index.persistIndex();
+    index.addToIndex(new IndexEntry(blobId3, new IndexValue(100, 200)), new FileSpan(200, 300));
+    index.markAsDeleted(blobId1, new FileSpan(300, 400));
+    index.writeRecoveryCheckpoint();
+    // not in the checkpoint, so lost as the recovery used here does not find anything in the log
+    index.addToIndex(new IndexEntry(blobId4, new IndexValue(100, 400)), new FileSpan(400, 500));
+    scheduler.shutdown();
+
+    // restart without closing the index
+    scheduler = new Scheduler(1, false);
+    scheduler.startup();
+    metrics = new StoreMetrics(logFile, new MetricRegistry());
+    index = new PersistentIndex(logFile, scheduler, log, config, factory, new DummyMessageStoreRecovery(),
+        new DummyMessageStoreHardDelete(), metrics, SystemTime.getInstance());
+    Assert.assertEquals(2, metrics.recoveryCheckpointEntriesReplayed.getCount());
+    Assert.assertEquals(400, index.getCurrentEndOffset());
+    Assert.assertEquals(100, index.findKey(blobId2).getOffset());
+    Assert.assertEquals(200, index.findKey(blobId3).getOffset());
+    IndexValue value = index.findKey(blobId1);
+    Assert.assertTrue(value.isFlagSet(IndexValue.Flags.Delete_Index));
+    Assert.assertEquals(0, value.getOriginalMessageOffset());
+    Assert.assertNull(index.findKey(blobId4));
+    FindInfo info = index.findEntriesSince(new StoreFindToken(), 10000);
+    Assert.assertEquals(3, info.getMessageEntries().size());
+
+    // a checkpoint that is older than the persisted index is not used
+    index.persistIndex();
+    log.appendFrom(ByteBuffer.allocate(100));
+    index.addToIndex(new IndexEntry(blobId4, new IndexValue(100, 400)), new FileSpan(400, 500));
+    index.close();
+    metrics = new StoreMetrics(logFile, new MetricRegistry());
+    index = new PersistentIndex(logFile, scheduler, log, config, factory, new DummyMessageStoreRecovery(),
+        new DummyMessageStoreHardDelete(), metrics, SystemTime.getInstance());
+    Assert.assertEquals(0, metrics.recoveryCheckpointEntriesReplayed.getCount());
+    Assert.assertEquals(400, index.findKey(blobId4).getOffset());
+    index.close();
+    scheduler.shutdown();
+    log.close();
+  }
+
   @Test
   public void testIndexRestore()
       throws IOException {
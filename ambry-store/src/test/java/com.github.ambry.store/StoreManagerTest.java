@@ -0,0 +1,154 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.store;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.ambry.clustermap.DataNodeId;
+import com.github.ambry.clustermap.MockClusterMap;
+import com.github.ambry.clustermap.ReplicaId;
+import com.github.ambry.config.StoreConfig;
+import com.github.ambry.config.VerifiableProperties;
+import com.github.ambry.utils.FileLock;
+import com.github.ambry.utils.Scheduler;
+import com.github.ambry.utils.SystemTime;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class StoreManagerTest {
+  private MockClusterMap clusterMap;
+  private Scheduler scheduler;
+  private List<ReplicaId> replicas;
+
+  @Before
+  public void setup()
+      throws Exception {
+    // one node with two disks of three stores each
+    clusterMap = new MockClusterMap(false, 1, 2, 3);
+    DataNodeId dataNode = clusterMap.getDataNodeIds().get(0);
+    replicas = clusterMap.getReplicaIds(dataNode);
+    scheduler = new Scheduler(4, "thread", false);
+    scheduler.startup();
+  }
+
+  @After
+  public void cleanup()
+      throws IOException {
+    scheduler.shutdown();
+    clusterMap.cleanup();
+  }
+
+  /**
+   * Tests that the stores of a node are started in parallel, within the limits for the node, and that all of them
+   * are available once startup completes
+   * @throws Exception
+   */
+  @Test
+  public void parallelStartupTest()
+      throws Exception {
+    Properties props = new Properties();
+    props.setProperty("store.startup.num.threads", "3");
+    props.setProperty("store.startup.num.threads.per.disk", "2");
+    StoreConfig config = new StoreConfig(new VerifiableProperties(props));
+    ConcurrencyTrackingRecovery recovery = new ConcurrencyTrackingRecovery();
+    StoreManager storeManager =
+        new StoreManager(config, scheduler, new MetricRegistry(), replicas, new MockIdFactory(), recovery,
+            new DummyMessageStoreHardDelete(), SystemTime.getInstance());
+    storeManager.start();
+    for (ReplicaId replica : replicas) {
+      Assert.assertNotNull("Store of " + replica.getReplicaPath() + " was not started",
+          storeManager.getStore(replica.getPartitionId()));
+    }
+    Assert.assertEquals(replicas.size(), recovery.recoveries.get());
+    Assert.assertTrue("Stores were not started in parallel", recovery.maxConcurrentRecoveries.get() > 1);
+    Assert.assertTrue("More stores were started at once than allowed", recovery.maxConcurrentRecoveries.get() <= 3);
+    storeManager.shutdown();
+  }
+
+  /**
+   * Tests that a store that fails to start fails the startup of the store manager and that none of the stores are
+   * left running
+   * @throws Exception
+   */
+  @Test
+  public void startupFailureTest()
+      throws Exception {
+    // a replica whose path is a file instead of a directory cannot be started
+    ReplicaId failingReplica = replicas.get(replicas.size() - 1);
+    File replicaDir = new File(failingReplica.getReplicaPath());
+    Assert.assertTrue(replicaDir.delete());
+    Assert.assertTrue(replicaDir.createNewFile());
+    StoreConfig config = new StoreConfig(new VerifiableProperties(new Properties()));
+    StoreManager storeManager =
+        new StoreManager(config, scheduler, new MetricRegistry(), replicas, new MockIdFactory(),
+            new DummyMessageStoreRecovery(), new DummyMessageStoreHardDelete(), SystemTime.getInstance());
+    try {
+      storeManager.start();
+      Assert.fail("Startup should have failed as one of the stores could not be started");
+    } catch (StoreException e) {
+      Assert.assertEquals(StoreErrorCodes.Initialization_Error, e.getErrorCode());
+    }
+    for (ReplicaId replica : replicas) {
+      Assert.assertNull("Store of " + replica.getReplicaPath() + " should not be running",
+          storeManager.getStore(replica.getPartitionId()));
+      // the stores that did start have released the lock on their directory
+      File lockFile = new File(replica.getReplicaPath(), ".lock");
+      if (replica != failingReplica && lockFile.exists()) {
+        FileLock lock = new FileLock(lockFile);
+        Assert.assertTrue(lock.tryLock());
+        lock.destroy();
+      }
+    }
+    // put the directory back for the cluster map to clean up
+    Assert.assertTrue(replicaDir.delete());
+    Assert.assertTrue(replicaDir.mkdir());
+  }
+
+  /**
+   * A recovery that finds nothing to recover but takes a while to do so, and tracks how many recoveries run at once
+   */
+  private static class ConcurrencyTrackingRecovery implements MessageStoreRecovery {
+    final AtomicInteger recoveries = new AtomicInteger(0);
+    final AtomicInteger maxConcurrentRecoveries = new AtomicInteger(0);
+    private final AtomicInteger concurrentRecoveries = new AtomicInteger(0);
+
+    @Override
+    public List<MessageInfo> recover(Read read, long startOffset, long endOffset, StoreKeyFactory factory)
+        throws IOException {
+      int concurrent = concurrentRecoveries.incrementAndGet();
+      int max;
+      while ((max = maxConcurrentRecoveries.get()) < concurrent && !maxConcurrentRecoveries.compareAndSet(max,
+          concurrent)) {
+        // retry until the max is at least the current concurrency
+      }
+      try {
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while recovering", e);
+      } finally {
+        concurrentRecoveries.decrementAndGet();
+        recoveries.incrementAndGet();
+      }
+      return new ArrayList<MessageInfo>();
+    }
+  }
+}
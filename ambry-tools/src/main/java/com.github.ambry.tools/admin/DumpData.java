@@ -259,7 +259,7 @@ public class DumpData {
         StoreKeyFactory storeKeyFactory = Utils.getObj("com.github.ambry.commons.BlobIdFactory", map);
         while (stream.available() > Crc_Size) {
           StoreKey key = storeKeyFactory.getStoreKey(stream);
-          byte[] value = new byte[IndexValue.Index_Value_Size_In_Bytes];
+          byte[] value = new byte[valueSize];
           stream.read(value);
           IndexValue blobValue = new IndexValue(ByteBuffer.wrap(value));
           String msg =
@@ -703,7 +703,7 @@ public class DumpData {
       StoreKeyFactory storeKeyFactory = Utils.getObj("com.github.ambry.commons.BlobIdFactory", map);
       while (stream.available() > Crc_Size) {
         StoreKey key = storeKeyFactory.getStoreKey(stream);
-        byte[] value = new byte[IndexValue.Index_Value_Size_In_Bytes];
+        byte[] value = new byte[valueSize];
         stream.read(value);
         IndexValue blobValue = new IndexValue(ByteBuffer.wrap(value));
         String msg = "key :" + key + ": value - offset " + blobValue.getOffset() + " size " +
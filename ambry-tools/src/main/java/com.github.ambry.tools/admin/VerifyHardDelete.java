@@ -312,7 +312,7 @@ class HardDeleteVerifier {
         StoreKeyFactory storeKeyFactory = Utils.getObj("com.github.ambry.commons.BlobIdFactory", map);
         while (stream.available() > Crc_Size) {
           BlobId key = (BlobId) storeKeyFactory.getStoreKey(stream);
-          byte[] value = new byte[IndexValue.Index_Value_Size_In_Bytes];
+          byte[] value = new byte[valueSize];
           stream.read(value);
           IndexValue blobValue = new IndexValue(ByteBuffer.wrap(value));
           boolean deleted = blobValue.isFlagSet(IndexValue.Flags.Delete_Index);
@@ -62,7 +62,10 @@ import joptsimple.OptionSpec;
 
 
 /**
- *
+ * Replays the blob ids in a log against the servers and measures the latency of getting the blobs and of getting
+ * their properties and user metadata, which are small reads. Every interval it reports, for blobs and then for
+ * metadata, the number of gets and the 99th percentile, 95th percentile and average latency in seconds. Running it
+ * against servers with and without store.mapped.read.window.size.in.bytes set compares the two store read paths.
  */
 public class ServerReadPerformance {
   public static void main(String args[]) {
@@ -201,6 +204,8 @@ public class ServerReadPerformance {
       ArrayList<Long> latenciesForGetBlobs = new ArrayList<Long>();
       long maxLatencyForGetBlobs = 0;
       long minLatencyForGetBlobs = Long.MAX_VALUE;
+      long totalLatencyForGetMetadata = 0;
+      ArrayList<Long> latenciesForGetMetadata = new ArrayList<Long>();
 
       while ((line = br.readLine()) != null) {
         String[] id = line.split("-");
@@ -255,11 +260,22 @@ public class ServerReadPerformance {
                   totalNumberOfGetBlobs + "," + (double) latenciesForGetBlobs.get(index99) / SystemTime.NsPerSec + ","
                       + (double) latenciesForGetBlobs.get(index95) / SystemTime.NsPerSec + "," + (
                       (double) totalLatencyForGetBlobs / SystemTime.NsPerSec / totalNumberOfGetBlobs);
+              if (latenciesForGetMetadata.size() > 0) {
+                Collections.sort(latenciesForGetMetadata);
+                int metadataIndex99 = Math.max((int) (latenciesForGetMetadata.size() * 0.99) - 1, 0);
+                int metadataIndex95 = Math.max((int) (latenciesForGetMetadata.size() * 0.95) - 1, 0);
+                message += "," + latenciesForGetMetadata.size() + ","
+                    + (double) latenciesForGetMetadata.get(metadataIndex99) / SystemTime.NsPerSec + ","
+                    + (double) latenciesForGetMetadata.get(metadataIndex95) / SystemTime.NsPerSec + ","
+                    + ((double) totalLatencyForGetMetadata / SystemTime.NsPerSec / latenciesForGetMetadata.size());
+              }
               System.out.println(message);
               writer.write(message + "\n");
               totalLatencyForGetBlobs = 0;
               latenciesForGetBlobs.clear();
               totalNumberOfGetBlobs = 0;
+              totalLatencyForGetMetadata = 0;
+              latenciesForGetMetadata.clear();
               maxLatencyForGetBlobs = 0;
               minLatencyForGetBlobs = Long.MAX_VALUE;
             }
@@ -293,6 +309,9 @@ public class ServerReadPerformance {
             ByteBuffer userMetadata =
                 MessageFormatRecord.deserializeUserMetadata(getResponseUserMetadata.getInputStream());
             long endTimeGetBlobUserMetadata = SystemTime.getInstance().nanoseconds() - startTimeGetBlobUserMetadata;
+            latenciesForGetMetadata.add(endTimeGetBlobProperties);
+            latenciesForGetMetadata.add(endTimeGetBlobUserMetadata);
+            totalLatencyForGetMetadata += endTimeGetBlobProperties + endTimeGetBlobUserMetadata;
             // delete the blob
             DeleteRequest deleteRequest = new DeleteRequest(0, "perf", blobId);
             channel.send(deleteRequest);
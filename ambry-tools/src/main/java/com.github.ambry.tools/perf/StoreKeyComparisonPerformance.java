@@ -0,0 +1,180 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.tools.perf;
+
+import com.github.ambry.clustermap.ClusterMap;
+import com.github.ambry.clustermap.ClusterMapManager;
+import com.github.ambry.clustermap.PartitionId;
+import com.github.ambry.commons.BlobId;
+import com.github.ambry.commons.BlobIdFactory;
+import com.github.ambry.config.ClusterMapConfig;
+import com.github.ambry.config.VerifiableProperties;
+import com.github.ambry.store.StoreKey;
+import com.github.ambry.store.StoreKeyFactory;
+import com.github.ambry.utils.ByteBufferInputStream;
+import joptsimple.ArgumentAcceptingOptionSpec;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+
+/**
+ * Compares the cost of looking up blob ids in a sorted buffer of serialized blob ids, the way a mapped index segment
+ * is searched. The deserializing lookup materializes a blob id at every probe of the binary search while the
+ * serialized lookup compares the blob id with the serialized bytes directly. Each lookup is run for a number of warm
+ * up rounds before it is timed.
+ */
+public class StoreKeyComparisonPerformance {
+
+  public static void main(String args[]) {
+    try {
+      OptionParser parser = new OptionParser();
+      ArgumentAcceptingOptionSpec<String> hardwareLayoutOpt =
+          parser.accepts("hardwareLayout", "The path of the hardware layout file").withRequiredArg()
+              .describedAs("hardware_layout").ofType(String.class);
+
+      ArgumentAcceptingOptionSpec<String> partitionLayoutOpt =
+          parser.accepts("partitionLayout", "The path of the partition layout file").withRequiredArg()
+              .describedAs("partition_layout").ofType(String.class);
+
+      ArgumentAcceptingOptionSpec<Integer> numberOfKeysOpt =
+          parser.accepts("numberOfKeys", "The number of serialized keys to search").withRequiredArg()
+              .describedAs("The number of keys").ofType(Integer.class).defaultsTo(100000);
+
+      ArgumentAcceptingOptionSpec<Integer> numberOfLookupsOpt =
+          parser.accepts("numberOfLookups", "The number of timed lookups for each lookup path").withRequiredArg()
+              .describedAs("The number of lookups").ofType(Integer.class).defaultsTo(1000000);
+
+      ArgumentAcceptingOptionSpec<Integer> warmupRoundsOpt =
+          parser.accepts("warmupRounds", "The number of untimed rounds of lookups before the timed round")
+              .withRequiredArg().describedAs("The number of warm up rounds").ofType(Integer.class).defaultsTo(3);
+
+      OptionSet options = parser.parse(args);
+
+      ArrayList<OptionSpec<?>> listOpt = new ArrayList<OptionSpec<?>>();
+      listOpt.add(hardwareLayoutOpt);
+      listOpt.add(partitionLayoutOpt);
+
+      for (OptionSpec opt : listOpt) {
+        if (!options.has(opt)) {
+          System.err.println("Missing required argument \"" + opt + "\"");
+          parser.printHelpOn(System.err);
+          System.exit(1);
+        }
+      }
+
+      int numberOfKeys = options.valueOf(numberOfKeysOpt);
+      int numberOfLookups = options.valueOf(numberOfLookupsOpt);
+      int warmupRounds = options.valueOf(warmupRoundsOpt);
+      ClusterMap map = new ClusterMapManager(options.valueOf(hardwareLayoutOpt), options.valueOf(partitionLayoutOpt),
+          new ClusterMapConfig(new VerifiableProperties(new Properties())));
+      StoreKeyFactory factory = new BlobIdFactory(map);
+
+      // create the keys and serialize them in sorted order into fixed size slots
+      List<PartitionId> partitionIds = map.getWritablePartitionIds();
+      Random random = new Random();
+      List<BlobId> keys = new ArrayList<BlobId>(numberOfKeys);
+      for (int i = 0; i < numberOfKeys; i++) {
+        keys.add(new BlobId(partitionIds.get(random.nextInt(partitionIds.size()))));
+      }
+      Collections.sort(keys);
+      int keySize = keys.get(0).sizeInBytes();
+      ByteBuffer serializedKeys = ByteBuffer.allocate(numberOfKeys * keySize);
+      for (BlobId key : keys) {
+        serializedKeys.put(key.toBytes());
+      }
+      serializedKeys.flip();
+
+      BlobId[] keysToFind = new BlobId[numberOfLookups];
+      for (int i = 0; i < numberOfLookups; i++) {
+        keysToFind[i] = keys.get(random.nextInt(numberOfKeys));
+      }
+
+      for (int i = 0; i < warmupRounds; i++) {
+        runDeserializingLookups(keysToFind, serializedKeys, keySize, factory);
+        runSerializedLookups(keysToFind, serializedKeys, keySize);
+      }
+      long startTime = System.nanoTime();
+      runDeserializingLookups(keysToFind, serializedKeys, keySize, factory);
+      long deserializingTime = System.nanoTime() - startTime;
+      startTime = System.nanoTime();
+      runSerializedLookups(keysToFind, serializedKeys, keySize);
+      long serializedTime = System.nanoTime() - startTime;
+
+      System.out.println("Keys searched: " + numberOfKeys + " Lookups: " + numberOfLookups);
+      System.out.println("Deserializing lookup: " + (deserializingTime / numberOfLookups) + " ns per lookup");
+      System.out.println("Serialized lookup: " + (serializedTime / numberOfLookups) + " ns per lookup");
+    } catch (Exception e) {
+      System.out.println("Error while running the comparison " + e);
+      e.printStackTrace();
+    }
+  }
+
+  private static void runDeserializingLookups(StoreKey[] keysToFind, ByteBuffer serializedKeys, int keySize,
+      StoreKeyFactory factory)
+      throws IOException {
+    for (StoreKey key : keysToFind) {
+      int low = 0;
+      int high = serializedKeys.limit() / keySize - 1;
+      boolean found = false;
+      while (low <= high && !found) {
+        int mid = (low + high) >>> 1;
+        ByteBuffer duplicate = serializedKeys.duplicate();
+        duplicate.position(mid * keySize);
+        int result = factory.getStoreKey(new DataInputStream(new ByteBufferInputStream(duplicate))).compareTo(key);
+        if (result == 0) {
+          found = true;
+        } else if (result < 0) {
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      if (!found) {
+        throw new IllegalStateException("Key " + key + " not found by the deserializing lookup");
+      }
+    }
+  }
+
+  private static void runSerializedLookups(StoreKey[] keysToFind, ByteBuffer serializedKeys, int keySize) {
+    for (StoreKey key : keysToFind) {
+      int low = 0;
+      int high = serializedKeys.limit() / keySize - 1;
+      boolean found = false;
+      while (low <= high && !found) {
+        int mid = (low + high) >>> 1;
+        int result = key.compareToSerialized(serializedKeys, mid * keySize);
+        if (result == 0) {
+          found = true;
+        } else if (result > 0) {
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      if (!found) {
+        throw new IllegalStateException("Key " + key + " not found by the serialized lookup");
+      }
+    }
+  }
+}
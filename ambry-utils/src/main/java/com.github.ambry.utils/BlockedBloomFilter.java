@@ -0,0 +1,150 @@
+/**
+ * Copyright 2016 LinkedIn Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.github.ambry.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * A bloom filter whose bits are split into blocks of the size of a cache line. One hash of a key picks a block and
+ * all the bits of the key are set within that block, so that a lookup touches a single cache line. The bits are kept
+ * off heap in a direct {@link ByteBuffer}.
+ */
+public class BlockedBloomFilter implements IFilter {
+  public static final int Block_Size_In_Bytes = 64;
+  private static final int Bits_Per_Block = Block_Size_In_Bytes * 8;
+
+  private final int hashCount;
+  private final int numBlocks;
+  private final ByteBuffer bits;
+
+  /**
+   * Creates an empty filter whose bits are off heap
+   * @param hashCount The number of bits set for every key
+   * @param numBlocks The number of blocks of the filter
+   */
+  public BlockedBloomFilter(int hashCount, int numBlocks) {
+    this(hashCount, ByteBuffer.allocateDirect(numBlocks * Block_Size_In_Bytes));
+  }
+
+  /**
+   * Creates a filter over the given bits
+   * @param hashCount The number of bits set for every key
+   * @param bits The bits of the filter, from its position to its limit. The size has to be a multiple of the block
+   *             size.
+   */
+  BlockedBloomFilter(int hashCount, ByteBuffer bits) {
+    if (hashCount <= 0 || bits.remaining() == 0 || bits.remaining() % Block_Size_In_Bytes != 0) {
+      throw new IllegalArgumentException(
+          "Invalid blocked bloom filter with " + hashCount + " hashes and " + bits.remaining() + " bytes");
+    }
+    this.hashCount = hashCount;
+    this.bits = bits.slice();
+    this.numBlocks = this.bits.capacity() / Block_Size_In_Bytes;
+  }
+
+  @Override
+  public void add(ByteBuffer key) {
+    long[] hash = MurmurHash.hash3_x64_128(key, key.position(), key.remaining(), 0L);
+    int blockStart = getBlockStart(hash);
+    for (int i = 0; i < hashCount; i++) {
+      int bit = getBit(hash, i);
+      int index = blockStart + (bit >>> 3);
+      bits.put(index, (byte) (bits.get(index) | (1 << (bit & 7))));
+    }
+  }
+
+  @Override
+  public boolean isPresent(ByteBuffer key) {
+    long[] hash = MurmurHash.hash3_x64_128(key, key.position(), key.remaining(), 0L);
+    int blockStart = getBlockStart(hash);
+    for (int i = 0; i < hashCount; i++) {
+      int bit = getBit(hash, i);
+      if ((bits.get(blockStart + (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    for (int i = 0; i < bits.capacity(); i++) {
+      bits.put(i, (byte) 0);
+    }
+  }
+
+  @Override
+  public void close() {
+    // the bits are released along with the buffer that holds them
+  }
+
+  @Override
+  public long getSizeInBytes() {
+    return bits.capacity();
+  }
+
+  /**
+   * Writes the filter in the format read by {@link #deserialize(DataInput)}
+   * @param out The output to write the filter to
+   * @throws IOException
+   */
+  void serialize(DataOutput out)
+      throws IOException {
+    out.writeInt(hashCount);
+    out.writeInt(numBlocks);
+    byte[] buf = new byte[Block_Size_In_Bytes];
+    ByteBuffer duplicate = bits.duplicate();
+    duplicate.clear();
+    while (duplicate.hasRemaining()) {
+      duplicate.get(buf);
+      out.write(buf);
+    }
+  }
+
+  /**
+   * Reads a filter written by {@link #serialize(DataOutput)} into an off heap buffer
+   * @param in The input to read the filter from
+   * @return The filter
+   * @throws IOException
+   */
+  static BlockedBloomFilter deserialize(DataInput in)
+      throws IOException {
+    int hashCount = in.readInt();
+    int numBlocks = in.readInt();
+    ByteBuffer bits = ByteBuffer.allocateDirect(numBlocks * Block_Size_In_Bytes);
+    byte[] buf = new byte[Block_Size_In_Bytes];
+    while (bits.hasRemaining()) {
+      in.readFully(buf);
+      bits.put(buf);
+    }
+    bits.flip();
+    return new BlockedBloomFilter(hashCount, bits);
+  }
+
+  private int getBlockStart(long[] hash) {
+    return (int) Math.abs(hash[0] % numBlocks) * Block_Size_In_Bytes;
+  }
+
+  private int getBit(long[] hash, int i) {
+    // the bits within the block come from the other half of the hash, combined as in BloomFilter. The step between
+    // the bits is made odd so that it is coprime with the size of the block and the bits of a key never repeat.
+    int hash1 = (int) hash[1];
+    int hash2 = (int) (hash[1] >>> 32) | 1;
+    return (hash1 + i * hash2) & (Bits_Per_Block - 1);
+  }
+}
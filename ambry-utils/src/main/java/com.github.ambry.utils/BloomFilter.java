@@ -65,6 +65,10 @@ public abstract class BloomFilter implements IFilter {
     bitset.clear();
   }
 
+  public long getSizeInBytes() {
+    return bitset.capacity() / 8;
+  }
+
   public void close()
       throws IOException {
     bitset.close();
@@ -27,7 +27,14 @@ abstract class BloomFilterSerializer {
 
   public BloomFilter deserialize(DataInput in)
       throws IOException {
-    int hashes = in.readInt();
+    return deserialize(in.readInt(), in);
+  }
+
+  /**
+   * Reads the rest of a filter whose number of hashes has already been read
+   */
+  BloomFilter deserialize(int hashes, DataInput in)
+      throws IOException {
     IBitSet bs = OpenBitSet.deserialize(in);
     return createFilter(hashes, bs);
   }
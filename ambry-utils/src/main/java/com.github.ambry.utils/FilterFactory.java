@@ -25,15 +25,26 @@ public class FilterFactory {
 
   private static final Logger logger = LoggerFactory.getLogger(FilterFactory.class);
   private static final long BITSET_EXCESS = 20;
+  // written in place of the number of hashes, which is always positive, to mark a blocked bloom filter
+  private static final int Blocked_Filter_Marker = -1;
 
   public static void serialize(IFilter bf, DataOutput output)
       throws IOException {
-    Murmur3BloomFilter.serializer.serialize((Murmur3BloomFilter) bf, output);
+    if (bf instanceof BlockedBloomFilter) {
+      output.writeInt(Blocked_Filter_Marker);
+      ((BlockedBloomFilter) bf).serialize(output);
+    } else {
+      Murmur3BloomFilter.serializer.serialize((Murmur3BloomFilter) bf, output);
+    }
   }
 
   public static IFilter deserialize(DataInput input)
       throws IOException {
-    return Murmur3BloomFilter.serializer.deserialize(input);
+    int hashes = input.readInt();
+    if (hashes == Blocked_Filter_Marker) {
+      return BlockedBloomFilter.deserialize(input);
+    }
+    return Murmur3BloomFilter.serializer.deserialize(hashes, input);
   }
 
   /**
@@ -66,6 +77,20 @@ public class FilterFactory {
     return createFilter(spec.K, numElements, spec.bucketsPerElement);
   }
 
+  /**
+   * @return The smallest blocked bloom filter that can provide about the given false positive probability rate for
+   *         the given number of elements. Keeping the bits of a key within one block raises the rate a little, so one
+   *         more bit per element is used than for a regular bloom filter.
+   */
+  public static BlockedBloomFilter getBlockedFilter(long numElements, double maxFalsePosProbability) {
+    int bucketsPerElement = BloomCalculations.maxBucketsPerElement(numElements);
+    BloomCalculations.BloomSpecification spec =
+        BloomCalculations.computeBloomSpec(bucketsPerElement, maxFalsePosProbability);
+    long numBits = numElements * (spec.bucketsPerElement + 1) + BITSET_EXCESS;
+    long bitsPerBlock = BlockedBloomFilter.Block_Size_In_Bytes * 8;
+    return new BlockedBloomFilter(spec.K, (int) ((numBits + bitsPerBlock - 1) / bitsPerBlock));
+  }
+
   private static IFilter createFilter(int hash, long numElements, int bucketsPer) {
     long numBits = (numElements * bucketsPer) + BITSET_EXCESS;
     IBitSet bitset = new OpenBitSet(numBits);
@@ -36,4 +36,9 @@ public interface IFilter extends Closeable {
    * Clears the filter
    */
   public abstract void clear();
+
+  /**
+   * @return The number of bytes held by the bits of the filter
+   */
+  public abstract long getSizeInBytes();
 }
\ No newline at end of file
@@ -22,8 +22,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -681,6 +684,39 @@ public class Utils {
     return existingBuffer;
   }
 
+  /**
+   * Unmaps a memory mapped buffer right away instead of when it is garbage collected. The buffer must not be accessed
+   * afterwards, not even through a duplicate or a slice, since accessing an unmapped buffer crashes the process.
+   * @param buffer the {@link MappedByteBuffer} to unmap.
+   * @return true if the buffer was unmapped, false if the runtime does not support unmapping and the buffer is left to
+   * be unmapped when it is garbage collected.
+   */
+  public static boolean unmap(MappedByteBuffer buffer) {
+    try {
+      // Java 9 and later
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      return true;
+    } catch (Exception e) {
+      // fall through to the Java 8 way of unmapping
+    }
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+        return true;
+      }
+    } catch (Exception e) {
+      // unmapping is not supported
+    }
+    return false;
+  }
+
   /**
    * Gets the root cause for {@code t}.
    * @param t the {@link Throwable} whose root cause is required.
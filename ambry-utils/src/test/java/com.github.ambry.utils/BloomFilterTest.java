@@ -13,6 +13,7 @@
  */
 package com.github.ambry.utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -145,4 +146,72 @@ public class BloomFilterTest {
     Assert.assertTrue(filter2.isPresent(test));
     in.close();
   }
+
+  @Test
+  public void testBlockedFilter()
+      throws IOException {
+    IFilter blocked = FilterFactory.getBlockedFilter(FilterTestHelper.ELEMENTS, FilterTestHelper.MAX_FAILURE_RATE);
+    ResetableIterator<ByteBuffer> keys = FilterTestHelper.randomKeys();
+    while (keys.hasNext()) {
+      blocked.add(keys.next());
+    }
+    keys.reset();
+    while (keys.hasNext()) {
+      Assert.assertTrue(blocked.isPresent(keys.next()));
+    }
+    ResetableIterator<ByteBuffer> otherKeys = FilterTestHelper.randomKeys2();
+    int falsePositives = 0;
+    while (otherKeys.hasNext()) {
+      if (blocked.isPresent(otherKeys.next())) {
+        falsePositives++;
+      }
+    }
+    Assert.assertTrue("Too many false positives " + falsePositives,
+        falsePositives < FilterTestHelper.ELEMENTS * FilterTestHelper.MAX_FAILURE_RATE);
+    blocked.clear();
+    Assert.assertFalse(blocked.isPresent(ByteBuffer.wrap("a".getBytes())));
+  }
+
+  @Test
+  public void testBlockedFilterSerialize()
+      throws IOException {
+    IFilter blocked = FilterFactory.getBlockedFilter(1000, 0.01d);
+    Assert.assertTrue(testSerialize(blocked) instanceof BlockedBloomFilter);
+
+    // the filter is read up to its end, leaving what follows it in the stream
+    ByteBuffer output = ByteBuffer.allocate(100000);
+    DataOutputStream out = new DataOutputStream(new ByteBufferOutputStream(output));
+    FilterFactory.serialize(blocked, out);
+    out.writeLong(1234);
+    output.flip();
+    DataInputStream in = new DataInputStream(new ByteBufferInputStream(output));
+    IFilter read = FilterFactory.deserialize(in);
+    Assert.assertTrue(read.isPresent(ByteBuffer.wrap("a".getBytes())));
+    Assert.assertFalse(read.isPresent(ByteBuffer.wrap("b".getBytes())));
+    Assert.assertEquals(1234, in.readLong());
+  }
+
+  /**
+   * Tests that every key sets as many distinct bits in a blocked filter as the filter has hashes
+   * @throws IOException
+   */
+  @Test
+  public void testBlockedFilterDistinctBits()
+      throws IOException {
+    int hashCount = 20;
+    BlockedBloomFilter blocked = new BlockedBloomFilter(hashCount, 1);
+    for (int i = 0; i < 1000; i++) {
+      blocked.clear();
+      blocked.add(ByteBuffer.wrap(("key" + i).getBytes()));
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      FilterFactory.serialize(blocked, new DataOutputStream(output));
+      byte[] serialized = output.toByteArray();
+      int bitsSet = 0;
+      // the marker, the number of hashes and the number of blocks come before the bits
+      for (int j = 12; j < serialized.length; j++) {
+        bitsSet += Integer.bitCount(serialized[j] & 0xff);
+      }
+      Assert.assertEquals("Bits of key" + i + " overlap", hashCount, bitsSet);
+    }
+  }
 }